@@ -0,0 +1,88 @@
+package com.creativept.pinyindemo2;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.View;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures CandidateView.onDraw() for a page of 10 candidates: drawing the
+ * same page again, moving the highlight across it, and a page whose last
+ * candidate is too long and is drawn with suspension points. Results are
+ * written to logcat with tag "CandidateViewDrawBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class CandidateViewDrawBenchmark {
+    private static final String TAG = "CandidateViewDrawBenchmark";
+
+    private static final String CANDIDATES[] = { "中华人民", "中华", "中", "种",
+            "重", "众", "钟", "忠", "终", "肿" };
+
+    private static final String LONG_CANDIDATE = "中华人民共和国中央人民政府中华人民共和国";
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 60;
+    private static final int ROUNDS = 2000;
+
+    @Test
+    public void drawPage() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        // CandidateView has a Handler, so it is created on the main thread.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                PinyinIME.DecodingInfo decInfo = new PinyinIME().new DecodingInfo();
+                CandidateView view = new CandidateView(context, null);
+                view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+                view.layout(0, 0, WIDTH, HEIGHT);
+                Canvas canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT,
+                        Bitmap.Config.ARGB_8888));
+
+                setCandidates(decInfo, view, null);
+                long redrawNs = drawRounds(view, canvas, false);
+                long highlightNs = drawRounds(view, canvas, true);
+
+                setCandidates(decInfo, view, LONG_CANDIDATE);
+                long ellipsisNs = drawRounds(view, canvas, false);
+
+                Log.i(TAG, "redraw: " + redrawNs / ROUNDS + " ns/draw, highlight: "
+                        + highlightNs / ROUNDS + " ns/draw, ellipsis: "
+                        + ellipsisNs / ROUNDS + " ns/draw");
+            }
+        });
+    }
+
+    private static void setCandidates(PinyinIME.DecodingInfo decInfo, CandidateView view,
+            String last) {
+        decInfo.resetCandidates();
+        for (int i = 0; i < CANDIDATES.length; i++) {
+            decInfo.mCandidatesList.add(null != last && i == CANDIDATES.length - 1
+                    ? last : CANDIDATES[i]);
+        }
+        decInfo.mTotalChoicesNum = CANDIDATES.length;
+        view.setDecodingInfo(decInfo);
+        view.showPage(0, 0, true);
+        assertTrue(decInfo.pageReady(0));
+    }
+
+    private static long drawRounds(CandidateView view, Canvas canvas, boolean moveHighlight) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < ROUNDS; round++) {
+            if (moveHighlight) {
+                view.showPage(0, round % CANDIDATES.length, true);
+            }
+            view.draw(canvas);
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+}
@@ -0,0 +1,70 @@
+package com.creativept.pinyindemo2;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ServiceTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the per-keystroke decoding latency of the in-process backend with
+ * the binder backend. Results are written to logcat with tag
+ * "DecoderBackendBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class DecoderBackendBenchmark {
+    private static final String TAG = "DecoderBackendBenchmark";
+
+    private static final String INPUT = "zhonghuarenmingongheguo";
+
+    private static final int ROUNDS = 50;
+
+    @Rule
+    public final ServiceTestRule mServiceRule = new ServiceTestRule();
+
+    @Test
+    public void compareBackends() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        IBinder binder = mServiceRule.bindService(
+                new Intent(context, PinyinDecoderService.class));
+        PinyinDecoder remote = new RemotePinyinDecoder(
+                IPinyinDecoderService.Stub.asInterface(binder));
+        long remoteNs = typeInput(remote);
+
+        LocalPinyinDecoder local = new LocalPinyinDecoder(context, null);
+        assertTrue(local.awaitReady());
+        long localNs = typeInput(local);
+        local.close();
+
+        int keys = ROUNDS * INPUT.length();
+        Log.i(TAG, "remote: " + remoteNs / keys + " ns/key, local: "
+                + localNs / keys + " ns/key");
+    }
+
+    private long typeInput(PinyinDecoder decoder) throws Exception {
+        byte pyBuf[] = new byte[INPUT.length() + 1];
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < ROUNDS; round++) {
+            decoder.imResetSearch();
+            for (int len = 1; len <= INPUT.length(); len++) {
+                pyBuf[len - 1] = (byte) INPUT.charAt(len - 1);
+                pyBuf[len] = 0;
+                DecodingSnapshot snapshot = decoder.imDecode(
+                        DecodingSnapshot.OP_SEARCH, pyBuf, len, false, false,
+                        10);
+                assertTrue(snapshot.mTotalChoicesNum > 0);
+            }
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+}
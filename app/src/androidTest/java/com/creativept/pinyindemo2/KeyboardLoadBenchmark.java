@@ -0,0 +1,75 @@
+package com.creativept.pinyindemo2;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the time to load each soft keyboard from its xml with
+ * XmlKeyboardLoader and from its precompiled file with BinaryKeyboardLoader,
+ * as SkbPool does when a keyboard switch misses the pool. The template is
+ * already in the pool for both. Results are written to logcat with tag
+ * "KeyboardLoadBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyboardLoadBenchmark {
+    private static final String TAG = "KeyboardLoadBenchmark";
+
+    private static final int KEYBOARDS[] = { R.xml.skb_qwerty, R.xml.skb_sym1,
+            R.xml.skb_sym2, R.xml.skb_smiley, R.xml.skb_phone };
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 400;
+    private static final int ROUNDS = 100;
+
+    @Test
+    public void loadKeyboards() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        assertNotNull(SkbPool.getInstance().getSkbTemplate(R.xml.skb_template1, context));
+
+        for (int skbXmlId : KEYBOARDS) {
+            // Both loaders give the same keys.
+            SoftKeyboard xmlSkb = new XmlKeyboardLoader(context).loadKeyboard(skbXmlId,
+                    WIDTH, HEIGHT);
+            SoftKeyboard binSkb = new BinaryKeyboardLoader(context).loadKeyboard(skbXmlId,
+                    WIDTH, HEIGHT);
+            assertNotNull(xmlSkb);
+            assertNotNull("not compiled", binSkb);
+            assertEquals(xmlSkb.getRowNum(), binSkb.getRowNum());
+            for (int row = 0; row < xmlSkb.getRowNum(); row++) {
+                for (int i = 0; null != xmlSkb.getKey(row, i); i++) {
+                    SoftKey xmlKey = xmlSkb.getKey(row, i);
+                    SoftKey binKey = binSkb.getKey(row, i);
+                    assertNotNull(binKey);
+                    assertEquals(xmlKey.getKeyCode(), binKey.getKeyCode());
+                    assertEquals(xmlKey.getKeyLabel(), binKey.getKeyLabel());
+                    assertEquals(xmlKey.mLeftF, binKey.mLeftF, 0);
+                    assertEquals(xmlKey.mTopF, binKey.mTopF, 0);
+                    assertEquals(xmlKey.mRightF, binKey.mRightF, 0);
+                    assertEquals(xmlKey.mBottomF, binKey.mBottomF, 0);
+                }
+            }
+
+            long xmlNs = 0;
+            long binNs = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                new XmlKeyboardLoader(context).loadKeyboard(skbXmlId, WIDTH, HEIGHT);
+                xmlNs += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                new BinaryKeyboardLoader(context).loadKeyboard(skbXmlId, WIDTH, HEIGHT);
+                binNs += SystemClock.elapsedRealtimeNanos() - start;
+            }
+            Log.i(TAG, context.getResources().getResourceEntryName(skbXmlId) + ": xml "
+                    + xmlNs / ROUNDS / 1000 + " us, binary " + binNs / ROUNDS / 1000 + " us");
+        }
+    }
+}
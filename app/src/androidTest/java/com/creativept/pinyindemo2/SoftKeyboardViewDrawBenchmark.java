@@ -0,0 +1,99 @@
+package com.creativept.pinyindemo2;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.View;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the frame time of SoftKeyboardView on the QWERTY keyboard for a
+ * key press followed by a release: drawing the whole view for each of them,
+ * as when every press invalidated the view, and drawing with the canvas
+ * clipped to the key, as invalidate(Rect) does. The frames are drawn into a
+ * software canvas, where the clip is honoured. Results are written to logcat
+ * with tag "SoftKeyboardViewDrawBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class SoftKeyboardViewDrawBenchmark {
+    private static final String TAG = "SoftKeyboardViewDrawBenchmark";
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 400;
+    private static final int ROUNDS = 500;
+
+    @Test
+    public void pressAndRelease() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Environment.getInstance().onConfigurationChanged(
+                        context.getResources().getConfiguration(), context);
+                XmlKeyboardLoader loader = new XmlKeyboardLoader(context);
+                SoftKeyboard skb = loader.loadKeyboard(R.xml.skb_qwerty, WIDTH, HEIGHT);
+                assertNotNull(skb);
+
+                SoftKeyboardView view = new SoftKeyboardView(context, null);
+                view.setSoftKeyboard(skb);
+                view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+                view.layout(0, 0, WIDTH, HEIGHT);
+                Canvas canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT,
+                        Bitmap.Config.ARGB_8888));
+
+                List<SoftKey> keys = new ArrayList<SoftKey>();
+                for (int row = 0; row < skb.getRowNum(); row++) {
+                    SoftKeyboard.KeyRow keyRow = skb.getKeyRowForDisplay(row);
+                    if (null != keyRow) {
+                        keys.addAll(keyRow.mSoftKeys);
+                    }
+                }
+                assertFalse(keys.isEmpty());
+
+                // Warm up, so that the label widths are measured.
+                drawRounds(view, canvas, keys, false);
+                long fullNs = drawRounds(view, canvas, keys, false);
+                long dirtyNs = drawRounds(view, canvas, keys, true);
+
+                int frames = ROUNDS * 2;
+                Log.i(TAG, keys.size() + " keys, full: " + fullNs / frames
+                        + " ns/frame, dirty rect: " + dirtyNs / frames + " ns/frame");
+            }
+        });
+    }
+
+    /**
+     * Press and release a key per round, going through all keys.
+     */
+    private static long drawRounds(SoftKeyboardView view, Canvas canvas,
+            List<SoftKey> keys, boolean clipToKey) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < ROUNDS; round++) {
+            SoftKey key = keys.get(round % keys.size());
+            for (int frame = 0; frame < 2; frame++) {
+                canvas.save();
+                if (clipToKey) {
+                    canvas.clipRect(view.getPaddingLeft() + key.mLeft,
+                            view.getPaddingTop() + key.mTop,
+                            view.getPaddingLeft() + key.mRight,
+                            view.getPaddingTop() + key.mBottom);
+                }
+                view.draw(canvas);
+                canvas.restore();
+            }
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+}
@@ -187,6 +187,67 @@ JNIEXPORT jstring JNICALL nativeImGetChoice(JNIEnv *env, jclass clazz,
   }
 }
 
+// Layout of the direct buffer, see CandidateBuffer.java:
+//   jint maxCount, jint maxChars, jint count, jint offsets[maxCount + 1],
+//   char16 chars[maxChars]
+#define CAND_BUF_MAX_COUNT 0
+#define CAND_BUF_MAX_CHARS 1
+#define CAND_BUF_COUNT 2
+#define CAND_BUF_OFFSETS 3
+
+JNIEXPORT jint JNICALL nativeImGetChoiceBuffer(JNIEnv *env, jclass clazz,
+                                               jobject buf,
+                                               jint choices_start,
+                                               jint choices_num,
+                                               jint sent_fixed_len) {
+  jint *header = (jint*)(*env).GetDirectBufferAddress(buf);
+  if (NULL == header)
+    return 0;
+
+  jint max_count = header[CAND_BUF_MAX_COUNT];
+  jint max_chars = header[CAND_BUF_MAX_CHARS];
+  jint count = header[CAND_BUF_COUNT];
+  jint *offsets = header + CAND_BUF_OFFSETS;
+  char16 *chars = (char16*)(offsets + max_count + 1);
+
+  jint added = 0;
+  for (jint i = choices_start; i < choices_start + choices_num; i++) {
+    if (count >= max_count)
+      break;
+
+    char16 *dst = chars + offsets[count];
+    size_t room = max_chars - offsets[count];
+    size_t len = 0;
+    if (room >= RET_BUF_LEN) {
+      // Enough room for any candidate, let the engine write in place.
+      if (im_get_candidate(i, dst, room))
+        len = utf16_strlen(dst);
+    } else {
+      if (im_get_candidate(i, retbuf, RET_BUF_LEN))
+        len = utf16_strlen(retbuf);
+      if (len > room)
+        break;
+      memcpy(dst, retbuf, len * sizeof(char16));
+    }
+
+    // The first candidate is the full sentence, remove its fixed part.
+    if (0 == i) {
+      size_t fixed_len = sent_fixed_len > 0 ? sent_fixed_len : 0;
+      if (fixed_len > len)
+        fixed_len = len;
+      memmove(dst, dst + fixed_len, (len - fixed_len) * sizeof(char16));
+      len -= fixed_len;
+    }
+
+    offsets[count + 1] = offsets[count] + len;
+    count++;
+    added++;
+  }
+
+  header[CAND_BUF_COUNT] = count;
+  return added;
+}
+
 JNIEXPORT jint JNICALL nativeImChoose(JNIEnv *env, jclass clazz,
                                       jint choice_id) {
   return im_choose(choice_id);
@@ -212,9 +273,75 @@ JNIEXPORT jboolean JNICALL nativeImFlushCache(JNIEnv *env, jclass clazz) {
   return JNI_TRUE;
 }
 
+struct TransferListener {
+  JNIEnv *env;
+  jobject listener;
+  jmethodID on_progress;
+  // PinyinDecoderService, whose monitor is the lock of the engine
+  jclass engine_class;
+};
+
+static void onTransferProgress(void *arg, size_t lemmas, size_t bytes) {
+  TransferListener *listener = static_cast<TransferListener*>(arg);
+  if (NULL == listener->listener)
+    return;
+  listener->env->CallVoidMethod(listener->listener, listener->on_progress,
+                                (jint)lemmas, (jlong)bytes);
+  // A throwing listener must not stop the transfer half way.
+  if (listener->env->ExceptionCheck())
+    listener->env->ExceptionClear();
+}
+
+static void onTransferLock(void *arg, bool lock) {
+  TransferListener *listener = static_cast<TransferListener*>(arg);
+  if (lock)
+    listener->env->MonitorEnter(listener->engine_class);
+  else
+    listener->env->MonitorExit(listener->engine_class);
+}
+
+// The native methods of the transfers are not synchronized, so that the
+// lock of the engine is taken here and released while the file is read or
+// written. A monitor entered by a synchronized method cannot be exited in
+// JNI.
+static jint transferUserDict(JNIEnv *env, jclass clazz, jobject fd_obj,
+                             jobject listener_obj, bool import) {
+  jint fd = env->GetIntField(fd_obj, gFileDescriptorOffsets.mDescriptor);
+  TransferListener listener = {env, listener_obj, NULL, clazz};
+  if (NULL != listener_obj) {
+    jclass listener_class = env->GetObjectClass(listener_obj);
+    listener.on_progress = env->GetMethodID(listener_class, "onProgress",
+                                            "(IJ)V");
+    env->DeleteLocalRef(listener_class);
+    if (NULL == listener.on_progress)
+      return -1;
+  }
+  if (JNI_OK != env->MonitorEnter(clazz))
+    return -1;
+  jint ret;
+  if (import)
+    ret = im_import_user_dict(fd, onTransferProgress, onTransferLock,
+                              &listener);
+  else
+    ret = im_export_user_dict(fd, onTransferProgress, onTransferLock,
+                              &listener);
+  env->MonitorExit(clazz);
+  return ret;
+}
+
+JNIEXPORT jint JNICALL nativeImImportUserDict(JNIEnv *env, jclass clazz,
+                                              jobject fd, jobject listener) {
+  return transferUserDict(env, clazz, fd, listener, true);
+}
+
+JNIEXPORT jint JNICALL nativeImExportUserDict(JNIEnv *env, jclass clazz,
+                                              jobject fd, jobject listener) {
+  return transferUserDict(env, clazz, fd, listener, false);
+}
+
 JNIEXPORT jint JNICALL nativeImGetPredictsNum(JNIEnv *env, jclass clazz,
                                               jstring fixed_str) {
-  char16 *fixed_ptr = (char16*)(*env).GetStringChars(fixed_str, false);
+  char16 *fixed_ptr = (char16*)(*env).GetStringChars(fixed_str, NULL);
   size_t fixed_len = (size_t)(*env).GetStringLength(fixed_str);
 
   char16 fixed_buf[kMaxPredictSize + 1];
@@ -334,6 +461,8 @@ static JNINativeMethod gMethods[] = {
             (void*) nativeImGetSplStart },
     { "nativeImGetChoice", "(I)Ljava/lang/String;",
             (void*) nativeImGetChoice },
+    { "nativeImGetChoiceBuffer", "(Ljava/nio/ByteBuffer;III)I",
+            (void*) nativeImGetChoiceBuffer },
     { "nativeImChoose", "(I)I",
             (void*) nativeImChoose },
     { "nativeImCancelLastChoice", "()I",
@@ -348,6 +477,12 @@ static JNINativeMethod gMethods[] = {
             (void*) nativeImCancelInput },
     { "nativeImFlushCache", "()Z",
             (void*) nativeImFlushCache },
+    { "nativeImImportUserDict", "(Ljava/io/FileDescriptor;"
+            "Lcom/creativept/pinyindemo2/PinyinDecoderService$TransferListener;)I",
+            (void*) nativeImImportUserDict },
+    { "nativeImExportUserDict", "(Ljava/io/FileDescriptor;"
+            "Lcom/creativept/pinyindemo2/PinyinDecoderService$TransferListener;)I",
+            (void*) nativeImExportUserDict },
     /* <<----Functions for Pinyin-to-hanzi decoding end------------- */
 
     /* ------Functions for sync begin----------------------------->> */
@@ -391,6 +526,12 @@ static int registerNativeMethods(JNIEnv* env, const char* className,
   //  LOG_FATAL_IF(clazz == NULL, "Unable to find Java class java.io.FileDescriptor");
     gFileDescriptorOffsets.mClass = (jclass) env->NewGlobalRef(clazz);
     gFileDescriptorOffsets.mDescriptor = env->GetFieldID(clazz, "descriptor", "I");
+    if (NULL == gFileDescriptorOffsets.mDescriptor) {
+      // The field is called "fd" in the desktop JDK, which is used by the
+      // host benchmarks.
+      env->ExceptionClear();
+      gFileDescriptorOffsets.mDescriptor = env->GetFieldID(clazz, "fd", "I");
+    }
    // LOG_FATAL_IF(gFileDescriptorOffsets.mDescriptor == NULL,
          //        "Unable to find descriptor field in java.io.FileDescriptor");
 
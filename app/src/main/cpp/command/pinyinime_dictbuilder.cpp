@@ -20,30 +20,69 @@
 #include <time.h>
 #include <unistd.h>
 #include "../include/dicttrie.h"
+#include "../include/parallel.h"
 
 using namespace ime_pinyin;
 
 /**
  * Build binary dictionary model. Make sure that ___BUILD_MODEL___ is defined
  * in dictdef.h.
+ *
+ * Usage:
+ *   pinyinime_dictbuilder [-j threads] [-n max_lemmas] [raw_dict valid_hzs
+ *                         [out_dict]]
+ *
+ *   -j  The number of threads, the number of online processors by default.
+ *       The output does not depend on it.
+ *   -n  Use only the first max_lemmas lemmas of raw_dict.
  */
 int main(int argc, char* argv[]) {
+  size_t max_lemma_num = 240000;
+  int opt;
+  while (-1 != (opt = getopt(argc, argv, "j:n:"))) {
+    switch (opt) {
+      case 'j':
+        set_parallel_thread_num(atoi(optarg));
+        break;
+      case 'n':
+        max_lemma_num = atoi(optarg);
+        break;
+      default:
+        return -1;
+    }
+  }
+  argc -= optind - 1;
+  argv += optind - 1;
+
+  struct timespec start, end;
+  clock_gettime(CLOCK_MONOTONIC, &start);
+
   DictTrie* dict_trie = new DictTrie();
   bool success;
   if (argc >= 3)
-     success = dict_trie->build_dict(argv[1], argv[2]);
+     success = dict_trie->build_dict(argv[1], argv[2], max_lemma_num);
   else
      success = dict_trie->build_dict("../data/rawdict_utf16_65105_freq.txt",
-                                     "../data/valid_utf16.txt");
+                                     "../data/valid_utf16.txt",
+                                     max_lemma_num);
 
   if (success) {
-    printf("Build dictionary successfully.\n");
+    clock_gettime(CLOCK_MONOTONIC, &end);
+    printf("Build dictionary successfully with %zu thread(s) in %.1f ms.\n",
+           get_parallel_thread_num(),
+           (end.tv_sec - start.tv_sec) * 1000.0 +
+           (end.tv_nsec - start.tv_nsec) / 1000000.0);
   } else {
     printf("Build dictionary unsuccessfully.\n");
     return -1;
   }
 
-  success = dict_trie->save_dict("../../res/raw/dict_pinyin.dat");
+  // The output is laid out with the builder's own size_t, so a dictionary
+  // for a 64-bit host has to be built on that host.
+  if (argc >= 4)
+    success = dict_trie->save_dict(argv[3]);
+  else
+    success = dict_trie->save_dict("../../res/raw/dict_pinyin.dat");
 
   if (success) {
     printf("Save dictionary successfully.\n");
@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <assert.h>
+#include <dirent.h>
+#include <libgen.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <algorithm>
+#include <string>
+#include <vector>
+#include "../include/lpicache.h"
+#include "../include/pinyinime.h"
+
+using namespace ime_pinyin;
+
+/**
+ * Replay a corpus of Pinyin inputs and choices through the decoding engine,
+ * record the top candidates after every operation and the latency of each
+ * operation, and compare the candidates with a golden file.
+ *
+ * Each line of the corpus is a Pinyin string, optionally followed by the ids
+ * of the candidates to choose one after the other. Lines starting with '#'
+ * are comments.
+ *
+ * Usage:
+ *   pinyinime_replay [-n top_n] [-r rounds] [-o out_file] [-g golden_file]
+ *                    [-u] [-k] sys_dict corpus
+ *
+ *   -n  The number of candidates recorded after each operation, 5 by default.
+ *   -r  Replay the corpus this many times for the latencies. The candidates
+ *       are recorded in the first round only.
+ *   -o  Write the candidates to out_file, which can be used as a golden file.
+ *   -g  Compare the candidates with golden_file. The exit code is 1 if they
+ *       differ.
+ *   -u  Learn the choices in a user dictionary. By default the engine runs
+ *       without one, so the results do not depend on the order of the lines.
+ *       The dictionary starts empty in a temporary directory, which is
+ *       removed with its journal at the end.
+ *   -k  Type the Pinyin strings one letter at a time, as a user does, and
+ *       record the latency of each keystroke instead of the whole search. The
+ *       candidates are recorded after the last letter, so the same golden
+ *       file applies.
+ *
+ * The hit rates of the LmaPsbItem cache are printed at the end.
+ */
+
+namespace {
+
+const size_t kMaxCandLen = 64;
+
+struct Histogram {
+  const char *name;
+  std::vector<uint32_t> samples;  // In nanoseconds.
+};
+
+enum {
+  kOpSearch,
+  kOpKeystroke,
+  kOpChoose,
+  kOpGetCandidates,
+  kOpNum
+};
+
+Histogram histograms[kOpNum] = {
+  {"im_search", std::vector<uint32_t>()},
+  {"keystroke", std::vector<uint32_t>()},
+  {"im_choose", std::vector<uint32_t>()},
+  {"im_get_candidate", std::vector<uint32_t>()},
+};
+
+inline uint64_t now_ns() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return static_cast<uint64_t>(ts.tv_sec) * 1000000000ull + ts.tv_nsec;
+}
+
+inline void record(int op, uint64_t start) {
+  uint64_t ns = now_ns() - start;
+  histograms[op].samples.push_back(ns > UINT32_MAX ? UINT32_MAX :
+                                   static_cast<uint32_t>(ns));
+}
+
+void append_utf8(std::string &out, const char16 *str) {
+  for (size_t pos = 0; 0 != str[pos]; pos++) {
+    uint32_t c = str[pos];
+    if (c >= 0xd800 && c < 0xdc00 && str[pos + 1] >= 0xdc00 &&
+        str[pos + 1] < 0xe000) {
+      c = 0x10000 + ((c - 0xd800) << 10) + (str[pos + 1] - 0xdc00);
+      pos++;
+    }
+    if (c < 0x80) {
+      out += static_cast<char>(c);
+    } else if (c < 0x800) {
+      out += static_cast<char>(0xc0 | (c >> 6));
+      out += static_cast<char>(0x80 | (c & 0x3f));
+    } else if (c < 0x10000) {
+      out += static_cast<char>(0xe0 | (c >> 12));
+      out += static_cast<char>(0x80 | ((c >> 6) & 0x3f));
+      out += static_cast<char>(0x80 | (c & 0x3f));
+    } else {
+      out += static_cast<char>(0xf0 | (c >> 18));
+      out += static_cast<char>(0x80 | ((c >> 12) & 0x3f));
+      out += static_cast<char>(0x80 | ((c >> 6) & 0x3f));
+      out += static_cast<char>(0x80 | (c & 0x3f));
+    }
+  }
+}
+
+// Fetch the top_n candidates. If out is not NULL, append
+// " = <num> fixed <len>: cand0 cand1 ..." to it.
+void get_candidates(std::string *out, size_t cand_num, size_t top_n) {
+  if (NULL != out) {
+    char buf[64];
+    snprintf(buf, sizeof(buf), " = %zu fixed %zu:", cand_num,
+             im_get_fixed_len());
+    *out += buf;
+  }
+
+  char16 cand[kMaxCandLen + 1];
+  for (size_t i = 0; i < cand_num && i < top_n; i++) {
+    uint64_t start = now_ns();
+    char16 *str = im_get_candidate(i, cand, kMaxCandLen);
+    record(kOpGetCandidates, start);
+    if (NULL != out) {
+      *out += ' ';
+      if (NULL != str)
+        append_utf8(*out, str);
+    }
+  }
+  if (NULL != out)
+    *out += '\n';
+}
+
+struct Input {
+  std::string pinyin;
+  std::vector<size_t> choices;
+};
+
+bool read_corpus(const char *fn, std::vector<Input> &inputs) {
+  FILE *fp = fopen(fn, "r");
+  if (NULL == fp)
+    return false;
+
+  char line[1024];
+  while (NULL != fgets(line, sizeof(line), fp)) {
+    if ('#' == line[0])
+      continue;
+    Input input;
+    char *save = NULL;
+    char *token = strtok_r(line, " \t\r\n", &save);
+    if (NULL == token)
+      continue;
+    input.pinyin = token;
+    while (NULL != (token = strtok_r(NULL, " \t\r\n", &save)))
+      input.choices.push_back(atoi(token));
+    inputs.push_back(input);
+  }
+  fclose(fp);
+  return true;
+}
+
+// Replay one input. If out is not NULL, the candidates are appended to it.
+void replay(const Input &input, bool by_keystroke, size_t top_n,
+            std::string *out) {
+  im_reset_search();
+
+  uint64_t start;
+  size_t cand_num = 0;
+  if (by_keystroke) {
+    // A search of one more letter goes on from the previous one.
+    for (size_t len = 1; len <= input.pinyin.length(); len++) {
+      start = now_ns();
+      cand_num = im_search(input.pinyin.c_str(), len);
+      record(kOpKeystroke, start);
+    }
+  } else {
+    start = now_ns();
+    cand_num = im_search(input.pinyin.c_str(), input.pinyin.length());
+    record(kOpSearch, start);
+  }
+  if (NULL != out) {
+    *out += "search ";
+    *out += input.pinyin;
+  }
+  get_candidates(out, cand_num, top_n);
+
+  for (size_t i = 0; i < input.choices.size(); i++) {
+    size_t cand_id = input.choices[i];
+    // Nothing is left to choose once the whole input is fixed.
+    if (cand_id >= cand_num || im_get_fixed_len() >= input.pinyin.length())
+      break;
+    start = now_ns();
+    cand_num = im_choose(cand_id);
+    record(kOpChoose, start);
+    if (NULL != out) {
+      char buf[32];
+      snprintf(buf, sizeof(buf), "choose %zu", cand_id);
+      *out += buf;
+    }
+    get_candidates(out, cand_num, top_n);
+  }
+}
+
+void print_histogram(Histogram &histogram) {
+  std::vector<uint32_t> &samples = histogram.samples;
+  if (samples.empty())
+    return;
+  std::sort(samples.begin(), samples.end());
+  size_t num = samples.size();
+  uint64_t total = 0;
+  for (size_t i = 0; i < num; i++)
+    total += samples[i];
+
+  printf("%s: %zu ops, mean %.2f us, p50 %.2f us, p95 %.2f us, "
+         "p99 %.2f us, max %.2f us\n", histogram.name, num,
+         total / 1000.0 / num, samples[num / 2] / 1000.0,
+         samples[num * 95 / 100] / 1000.0, samples[num * 99 / 100] / 1000.0,
+         samples[num - 1] / 1000.0);
+
+  // Buckets of powers of two microseconds.
+  size_t pos = 0;
+  for (uint32_t bound = 1000; pos < num; bound *= 2) {
+    size_t count = 0;
+    while (pos < num && (samples[pos] < bound || bound >= 0x80000000u)) {
+      count++;
+      pos++;
+    }
+    if (count > 0) {
+      printf("  < %7u us %8zu %5.1f%%\n", bound / 1000, count,
+             100.0 * count / num);
+    }
+    if (bound >= 0x80000000u)
+      break;
+  }
+}
+
+void print_lpi_cache_stats(const LpiCache::Stats &stats) {
+  static const char *kSeqKindNames[LpiCache::kSeqKindNum] = {
+    "extensions", "candidates", "candidates by score"
+  };
+  size_t total = stats.half_hits + stats.half_misses;
+  printf("LPI cache: half ids %zu lookups, %.1f%% hits", total,
+         total > 0 ? 100.0 * stats.half_hits / total : 0.0);
+  for (int kind = 0; kind < LpiCache::kSeqKindNum; kind++) {
+    total = stats.seq_hits[kind] + stats.seq_misses[kind];
+    printf("; %s %zu lookups, %.1f%% hits", kSeqKindNames[kind], total,
+           total > 0 ? 100.0 * stats.seq_hits[kind] / total : 0.0);
+  }
+  printf("; %zu misses stale, %zu user lists stale, %zu evictions\n",
+         stats.seq_stale, stats.seq_user_stale, stats.evictions);
+}
+
+// Remove a directory and the files in it.
+void remove_dir(const char *dir) {
+  DIR *dp = opendir(dir);
+  if (NULL != dp) {
+    struct dirent *entry;
+    while (NULL != (entry = readdir(dp))) {
+      if (0 == strcmp(entry->d_name, ".") || 0 == strcmp(entry->d_name, ".."))
+        continue;
+      unlink((std::string(dir) + "/" + entry->d_name).c_str());
+    }
+    closedir(dp);
+  }
+  rmdir(dir);
+}
+
+// Compare the results with the golden file, skipping its comment lines.
+// Return the number of lines that differ.
+size_t compare_golden(const char *fn, const std::string &result) {
+  FILE *fp = fopen(fn, "r");
+  if (NULL == fp) {
+    printf("Cannot open golden file %s.\n", fn);
+    return 1;
+  }
+
+  size_t diff_num = 0;
+  size_t line_no = 0;
+  size_t pos = 0;
+  std::string expected;
+  char buf[4096];
+  while (NULL != fgets(buf, sizeof(buf), fp)) {
+    expected += buf;
+    if ('\n' != expected[expected.length() - 1] && !feof(fp))
+      continue;
+    if ('#' != expected[0]) {
+      line_no++;
+      size_t end = result.find('\n', pos);
+      std::string actual = std::string::npos == end ?
+          result.substr(pos) : result.substr(pos, end + 1 - pos);
+      pos = std::string::npos == end ? result.length() : end + 1;
+      if (actual != expected) {
+        if (diff_num < 10) {
+          printf("Line %zu differs:\n  golden: %s  actual: %s", line_no,
+                 expected.c_str(), actual.empty() ? "(none)\n" :
+                 actual.c_str());
+        }
+        diff_num++;
+      }
+    }
+    expected.clear();
+  }
+  fclose(fp);
+
+  // Results beyond the end of the golden file.
+  while (pos < result.length()) {
+    size_t end = result.find('\n', pos);
+    pos = std::string::npos == end ? result.length() : end + 1;
+    diff_num++;
+  }
+  return diff_num;
+}
+
+}  // namespace
+
+int main(int argc, char* argv[]) {
+  size_t top_n = 5;
+  int rounds = 1;
+  const char *out_file = NULL;
+  const char *golden_file = NULL;
+  bool with_usr_dict = false;
+  bool by_keystroke = false;
+
+  int opt;
+  while (-1 != (opt = getopt(argc, argv, "n:r:o:g:uk"))) {
+    switch (opt) {
+      case 'n':
+        top_n = atoi(optarg);
+        break;
+      case 'r':
+        rounds = atoi(optarg);
+        break;
+      case 'o':
+        out_file = optarg;
+        break;
+      case 'g':
+        golden_file = optarg;
+        break;
+      case 'u':
+        with_usr_dict = true;
+        break;
+      case 'k':
+        by_keystroke = true;
+        break;
+      default:
+        return -1;
+    }
+  }
+  if (argc - optind != 2 || rounds < 1) {
+    printf("Usage: %s [-n top_n] [-r rounds] [-o out_file] [-g golden_file] "
+           "[-u] [-k] sys_dict corpus\n", argv[0]);
+    return -1;
+  }
+
+  std::vector<Input> inputs;
+  if (!read_corpus(argv[optind + 1], inputs)) {
+    printf("Cannot read corpus %s.\n", argv[optind + 1]);
+    return -1;
+  }
+
+  // The user dictionary and its journal are kept in a temporary directory.
+  // The engine goes on without a user dictionary if it cannot create one, so
+  // without -u, give it a path under a regular file in there.
+  char tmp[] = "/tmp/pinyinime_replayXXXXXX";
+  if (NULL == mkdtemp(tmp)) {
+    printf("Cannot create a temporary directory.\n");
+    return -1;
+  }
+  std::string usr_dict = std::string(tmp) + "/usr_dict.dat";
+  if (!with_usr_dict) {
+    FILE *fp = fopen(usr_dict.c_str(), "w");
+    if (NULL != fp)
+      fclose(fp);
+    usr_dict += "/usr_dict.dat";
+  }
+
+  if (!im_open_decoder(argv[optind], usr_dict.c_str())) {
+    printf("Cannot open the decoder with %s.\n", argv[optind]);
+    remove_dir(tmp);
+    return -1;
+  }
+
+  std::string result;
+  uint64_t start = now_ns();
+  for (int round = 0; round < rounds; round++) {
+    for (size_t i = 0; i < inputs.size(); i++)
+      replay(inputs[i], by_keystroke, top_n, 0 == round ? &result : NULL);
+  }
+  uint64_t total_ns = now_ns() - start;
+  LpiCache::Stats lpi_cache_stats;
+  LpiCache::get_instance().get_stats(&lpi_cache_stats);
+
+  im_close_decoder();
+  remove_dir(tmp);
+
+  printf("Replayed %zu inputs %d time(s) in %.1f ms, %.0f inputs/s.\n",
+         inputs.size(), rounds, total_ns / 1000000.0,
+         inputs.size() * rounds * 1000000000.0 / total_ns);
+  for (int op = 0; op < kOpNum; op++)
+    print_histogram(histograms[op]);
+  print_lpi_cache_stats(lpi_cache_stats);
+
+  if (NULL != out_file) {
+    FILE *fp = fopen(out_file, "w");
+    if (NULL == fp ||
+        fprintf(fp, "# Written by pinyinime_replay from %s, top %zu.\n",
+                basename(argv[optind + 1]), top_n) < 0 ||
+        fwrite(result.data(), 1, result.length(), fp) != result.length()) {
+      printf("Cannot write %s.\n", out_file);
+      if (NULL != fp)
+        fclose(fp);
+      return -1;
+    }
+    fclose(fp);
+    printf("Results written to %s.\n", out_file);
+  }
+
+  if (NULL != golden_file) {
+    size_t diff_num = compare_golden(golden_file, result);
+    if (diff_num > 0) {
+      printf("%zu line(s) differ from %s.\n", diff_num, golden_file);
+      return 1;
+    }
+    printf("Results match %s.\n", golden_file);
+  }
+  return 0;
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <algorithm>
+#include <string>
+#include <vector>
+#include "../include/ngram.h"
+#include "../include/pinyinime.h"
+#include "../include/spellingtrie.h"
+#include "../include/userdict.h"
+
+using namespace ime_pinyin;
+
+/**
+ * Measure user dictionary lookups under a steady stream of synthetic
+ * keystrokes while the dictionary keeps reaching its lemma limit, so that it
+ * is reclaimed and defragmented again and again.
+ *
+ * Every keystroke looks up the spelling ids of a known lemma and predicts
+ * from its first Hanzi. Every tenth keystroke ends a composition: a new
+ * lemma is learnt and the search is reset, which is where a compaction is
+ * started or a compacted copy is taken.
+ *
+ * With -p, only predictions are measured instead: every keystroke predicts
+ * from the first one or two Hanzis of a known lemma, as after a commit. The
+ * lemmas are made of the most common Hanzis so that many of them share a
+ * first Hanzi, as in a real user dictionary. Every prediction is scored, so
+ * the ones from 1 Hanzi also grow with the lemmas found, while few lemmas
+ * share the first 2 Hanzis.
+ *
+ * Usage:
+ *   pinyinime_userdict_bench [-n lemmas] [-k keystrokes] [-s | -p] sys_dict
+ *
+ *   -n  The lemma limit of the user dictionary, which is filled up to it
+ *       first. 20000 by default.
+ *   -k  The number of keystrokes, 200000 by default.
+ *   -s  Reclaim and defragment on the decoding thread when the limit is
+ *       reached, as the sync path does, instead of in the background.
+ *   -p  Measure predictions only.
+ */
+
+namespace {
+
+const size_t kKeysPerComposition = 10;
+const size_t kMaxLpis = 1450;
+const size_t kMaxPredicts = 500;
+const uint32 kReclaimRatio = 20;
+// Hanzis from U+4E00 on that lemmas are made of. All of the CJK block by
+// default, about as many as the common Hanzis with -p.
+const uint32 kAllHzNum = 0x5000;
+const uint32 kCommonHzNum = 3500;
+
+struct Lemma {
+  uint16 len;
+  uint16 splids[kMaxLemmaSize];
+  char16 hzs[kMaxLemmaSize];
+};
+
+struct Histogram {
+  const char *name;
+  std::vector<uint32_t> samples;  // In nanoseconds.
+};
+
+enum {
+  kOpKeyIdle,
+  kOpKeyCompacting,
+  kOpCommit,
+  kOpPredict1,
+  kOpPredict2,
+  kOpNum
+};
+
+Histogram histograms[kOpNum] = {
+  {"keystroke", std::vector<uint32_t>()},
+  {"keystroke (compacting)", std::vector<uint32_t>()},
+  {"commit", std::vector<uint32_t>()},
+  {"predict from 1 Hanzi", std::vector<uint32_t>()},
+  {"predict from 2 Hanzis", std::vector<uint32_t>()},
+};
+
+uint32 hz_num = kAllHzNum;
+
+uint32_t seed = 1;
+
+inline uint32_t next_random() {
+  seed = seed * 1103515245u + 12345u;
+  return seed >> 8;
+}
+
+inline uint64_t now_ns() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return static_cast<uint64_t>(ts.tv_sec) * 1000000000ull + ts.tv_nsec;
+}
+
+inline void record(int op, uint64_t start) {
+  uint64_t ns = now_ns() - start;
+  histograms[op].samples.push_back(ns > UINT32_MAX ? UINT32_MAX :
+                                   static_cast<uint32_t>(ns));
+}
+
+// A lemma of 2 to 4 Hanzis with random full spelling ids.
+void random_lemma(Lemma *lemma, size_t spl_num) {
+  lemma->len = 2 + next_random() % 3;
+  for (uint16 i = 0; i < lemma->len; i++) {
+    lemma->splids[i] = kFullSplIdStart + next_random() % spl_num;
+    lemma->hzs[i] = 0x4e00 + next_random() % hz_num;
+  }
+}
+
+void print_histogram(Histogram &histogram) {
+  std::vector<uint32_t> &samples = histogram.samples;
+  if (samples.empty())
+    return;
+  std::sort(samples.begin(), samples.end());
+  size_t num = samples.size();
+  uint64_t total = 0;
+  for (size_t i = 0; i < num; i++)
+    total += samples[i];
+
+  printf("%s: %zu ops, mean %.2f us, p50 %.2f us, p99 %.2f us, "
+         "p99.9 %.2f us, max %.2f us\n", histogram.name, num,
+         total / 1000.0 / num, samples[num / 2] / 1000.0,
+         samples[num * 99 / 100] / 1000.0,
+         samples[num * 999 / 1000] / 1000.0, samples[num - 1] / 1000.0);
+}
+
+}  // namespace
+
+int main(int argc, char* argv[]) {
+  uint32 limit = 20000;
+  size_t keystrokes = 200000;
+  bool sync_reclaim = false;
+  bool predict_only = false;
+
+  int opt;
+  while (-1 != (opt = getopt(argc, argv, "n:k:sp"))) {
+    switch (opt) {
+      case 'n':
+        limit = atoi(optarg);
+        break;
+      case 'k':
+        keystrokes = atoi(optarg);
+        break;
+      case 's':
+        sync_reclaim = true;
+        break;
+      case 'p':
+        predict_only = true;
+        hz_num = kCommonHzNum;
+        break;
+      default:
+        return -1;
+    }
+  }
+  if (argc - optind != 1 || limit < 10 ||
+      limit > kUserDictIdEnd - kUserDictIdStart + 1 ||
+      (sync_reclaim && predict_only)) {
+    printf("Usage: %s [-n lemmas] [-k keystrokes] [-s | -p] sys_dict\n",
+           argv[0]);
+    return -1;
+  }
+
+  // The decoder is only opened for the spelling table, without a user
+  // dictionary of its own, so give it a path under a regular file.
+  char tmp[] = "/tmp/pinyinime_userdict_benchXXXXXX";
+  int tmp_fd = mkstemp(tmp);
+  if (-1 == tmp_fd) {
+    printf("Cannot create a temporary file.\n");
+    return -1;
+  }
+  close(tmp_fd);
+  std::string no_usr_dict = std::string(tmp) + "/usr_dict.dat";
+  if (!im_open_decoder(argv[optind], no_usr_dict.c_str())) {
+    printf("Cannot open the decoder with %s.\n", argv[optind]);
+    unlink(tmp);
+    return -1;
+  }
+  size_t spl_num = SpellingTrie::get_instance().get_spelling_num();
+
+  std::string usr_dict_file = std::string(tmp) + ".usr";
+  UserDict *usr_dict = new UserDict();
+  if (!usr_dict->load_dict(usr_dict_file.c_str(), kUserDictIdStart,
+                           kUserDictIdEnd)) {
+    printf("Cannot create %s.\n", usr_dict_file.c_str());
+    im_close_decoder();
+    unlink(tmp);
+    return -1;
+  }
+  usr_dict->set_total_lemma_count_of_others(NGram::kSysDictTotalFreq);
+  usr_dict->set_limit(limit, 0, kReclaimRatio);
+
+  std::vector<Lemma> lemmas;
+  Lemma lemma;
+  uint64_t start = now_ns();
+  while (usr_dict->number_of_lemmas() < limit) {
+    random_lemma(&lemma, spl_num);
+    if (0 != usr_dict->put_lemma(lemma.hzs, lemma.splids, lemma.len, 1))
+      lemmas.push_back(lemma);
+  }
+  printf("Filled %u lemmas in %.1f ms.\n", limit,
+         (now_ns() - start) / 1000000.0);
+
+  LmaPsbItem lpi_items[kMaxLpis];
+  NPredictItem npre_items[kMaxPredicts];
+  size_t compactions = 0;
+  start = now_ns();
+  for (size_t key = 0; predict_only && key < keystrokes; key++) {
+    const Lemma &target = lemmas[next_random() % lemmas.size()];
+    uint16 his_len = 1 + next_random() % (target.len - 1);
+    uint64_t predict_start = now_ns();
+    usr_dict->predict(target.hzs, his_len, npre_items, kMaxPredicts, 0);
+    record(1 == his_len ? kOpPredict1 : kOpPredict2, predict_start);
+  }
+  for (size_t key = 0; !predict_only && key < keystrokes; key++) {
+    const Lemma &target = lemmas[next_random() % lemmas.size()];
+    uint16 len = 1 + next_random() % target.len;
+    bool compacting = usr_dict->is_compacting();
+    uint64_t key_start = now_ns();
+    usr_dict->get_lpis(target.splids, len, lpi_items, kMaxLpis);
+    usr_dict->predict(target.hzs, 1, npre_items, kMaxPredicts, 0);
+    record(compacting ? kOpKeyCompacting : kOpKeyIdle, key_start);
+
+    if (key % kKeysPerComposition != kKeysPerComposition - 1)
+      continue;
+    random_lemma(&lemma, spl_num);
+    uint64_t commit_start = now_ns();
+    LemmaIdType id = usr_dict->put_lemma(lemma.hzs, lemma.splids, lemma.len,
+                                         1);
+    if (sync_reclaim) {
+      if (0 == id) {
+        usr_dict->reclaim();
+        usr_dict->defragment();
+        compactions++;
+      }
+    } else {
+      bool was_compacting = usr_dict->is_compacting();
+      usr_dict->reset_milestones(0, 0);
+      if (!was_compacting && usr_dict->is_compacting())
+        compactions++;
+    }
+    record(kOpCommit, commit_start);
+    if (0 != id)
+      lemmas.push_back(lemma);
+  }
+  uint64_t total_ns = now_ns() - start;
+
+  if (predict_only) {
+    printf("%zu predictions in %.1f ms.\n", keystrokes, total_ns / 1000000.0);
+  } else {
+    printf("%zu keystrokes in %.1f ms, %zu compactions %s.\n", keystrokes,
+           total_ns / 1000000.0, compactions,
+           sync_reclaim ? "on the decoding thread" : "in the background");
+  }
+  for (int op = 0; op < kOpNum; op++)
+    print_histogram(histograms[op]);
+
+  delete usr_dict;
+  im_close_decoder();
+  unlink(usr_dict_file.c_str());
+  unlink(tmp);
+  return 0;
+}
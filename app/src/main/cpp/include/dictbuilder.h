@@ -70,25 +70,61 @@ class DictBuilder {
   SpellingParser *spl_parser_;
 
 #ifdef ___DO_STATISTICS___
-  size_t max_sonbuf_len_[kMaxLemmaSize];
-  size_t max_homobuf_len_[kMaxLemmaSize];
+  // Subtrees built on different threads keep their own statistics, which are
+  // added up when they are done.
+  struct TrieStat {
+    size_t max_sonbuf_len[kMaxLemmaSize];
+    size_t max_homobuf_len[kMaxLemmaSize];
 
-  size_t total_son_num_[kMaxLemmaSize];
-  size_t total_node_hasson_[kMaxLemmaSize];
-  size_t total_sonbuf_num_[kMaxLemmaSize];
-  size_t total_sonbuf_allnoson_[kMaxLemmaSize];
-  size_t total_node_in_sonbuf_allnoson_[kMaxLemmaSize];
-  size_t total_homo_num_[kMaxLemmaSize];
+    size_t total_son_num[kMaxLemmaSize];
+    size_t total_node_hasson[kMaxLemmaSize];
+    size_t total_sonbuf_num[kMaxLemmaSize];
+    size_t total_sonbuf_allnoson[kMaxLemmaSize];
+    size_t total_node_in_sonbuf_allnoson[kMaxLemmaSize];
+    size_t total_homo_num[kMaxLemmaSize];
 
-  size_t sonbufs_num1_;     // Number of son buffer with only 1 son
-  size_t sonbufs_numgt1_;   // Number of son buffer with more 1 son;
+    size_t sonbufs_num1;     // Number of son buffer with only 1 son
+    size_t sonbufs_numgt1;   // Number of son buffer with more 1 son;
 
-  size_t total_lma_node_num_;
+    size_t total_lma_node_num;
+  };
+
+  TrieStat stat_;
 
   void stat_init();
+  void stat_merge(const TrieStat &stat);
   void stat_print();
 #endif
 
+  // Where construct_subset() allocates nodes and homophonies' ids.
+  struct SubsetCursor {
+    size_t nodes_ge1;  // Used number of lma_nodes_ge1_
+    size_t homo_eq1;
+    size_t homo_gt1;
+    // The numbers which do not fit in the nodes, allocated with malloc().
+    // A node may have one item for its sons and one for its homophonies.
+    LmaNodeGE1Wide *wides;
+    size_t wide_num;
+    size_t wide_size;
+#ifdef ___DO_STATISTICS___
+    TrieStat stat;
+#endif
+  };
+
+  // The subtree under a son of the root. Its nodes and homophonies' ids take
+  // ranges of the buffers which are known before it is built, so the
+  // subtrees are built on separate threads, each with its own cursor.
+  struct SubsetTask {
+    void *parent;
+    size_t item_start;
+    size_t item_end;
+    SubsetCursor cursor;
+    size_t nodes_ge1_end;  // Where cursor.nodes_ge1 ends up.
+  };
+
+  SubsetTask *subset_tasks_;
+  size_t subset_task_num_;
+
  public:
 
   DictBuilder();
@@ -96,9 +132,11 @@ class DictBuilder {
 
   // Build dictionary trie from the file fn_raw. File fn_validhzs provides
   // valid chars. If fn_validhzs is NULL, only chars in GB2312 will be
-  // included.
+  // included. Only the first max_lemma_num lemmas are used.
+  // The work is spread over get_parallel_thread_num() threads, and the
+  // result does not depend on their number.
   bool build_dict(const char* fn_raw, const char* fn_validhzs,
-                  DictTrie *dict_trie);
+                  DictTrie *dict_trie, size_t max_lemma_num);
 
  private:
   // Fill in the buffer with id. The caller guarantees that the paramters are
@@ -132,8 +170,37 @@ class DictBuilder {
   // item_star to item_end)
   // parent is the parent node to update the necessary information
   // parent can be a member of LmaNodeLE0 or LmaNodeGE1
+  // cursor tells where to allocate the nodes and the homophonies' ids.
+  // The subtrees under the sons of the root are added to subset_tasks_
+  // instead of being built, see run_subset_task().
   bool construct_subset(void* parent, LemmaEntry* lemma_arr,
-                        size_t item_start, size_t item_end, size_t level);
+                        size_t item_start, size_t item_end, size_t level,
+                        SubsetCursor *cursor);
+
+  // Construct the subtree of a son created by construct_subset().
+  void construct_son_subset(void* parent, size_t item_start, size_t item_end,
+                            size_t level, SubsetCursor *cursor);
+
+  // Count the nodes construct_subset() allocates in lma_nodes_ge1_ for the
+  // given items, without building them.
+  size_t count_subset_nodes(size_t item_start, size_t item_end, size_t level);
+
+  // Count all the nodes in lma_nodes_ge1_, after the lemmas are sorted by
+  // their spelling ids.
+  size_t count_ge1_nodes();
+
+  // Set the number of sons or homophonies of a node. If it does not fit in
+  // the node, it is added to cursor->wides.
+  void set_son_num(LmaNodeGE1 *node, size_t son_num, SubsetCursor *cursor);
+  void set_homo_num(LmaNodeGE1 *node, size_t homo_num, SubsetCursor *cursor);
+  void add_wide(LmaNodeGE1 *node, size_t son_num, size_t homo_num,
+                SubsetCursor *cursor);
+
+  // Collect the wide items of all the subtrees to a list sorted by node, one
+  // item for each node. Return NULL if there is none.
+  LmaNodeGE1Wide* merge_wides(size_t *wide_num);
+
+  static void run_subset_task(void *arg, size_t index);
 
 
   // Read valid Chinese Hanzis from the given file.
@@ -145,9 +212,24 @@ class DictBuilder {
   // Read a raw dictionary. max_item is the maximum number of items. If there
   // are more items in the ditionary, only the first max_item will be read.
   // Returned value is the number of items successfully read from the file.
+  // The lines are read in batches, which are parsed in parallel and then
+  // added to the lemma array in order.
   size_t read_raw_dict(const char* fn_raw, const char *fn_validhzs,
                        size_t max_item);
 
+  // A line of the raw dictionary, and a batch of them.
+  struct RawLine;
+  struct RawBatch;
+
+  // Parse a line, without touching the spelling table, which is filled in
+  // order by read_raw_dict().
+  void parse_raw_line(RawLine *line, const char16 *valid_hzs,
+                      size_t valid_hzs_num);
+
+  static void parse_raw_batch(void *arg, size_t index);
+
+  static void convert_spellings(void *arg, size_t index);
+
   // Try to find if a character is in hzs buffer.
   bool hz_in_hanzis_list(const char16 *hzs, size_t hzs_len, char16 hz);
 
@@ -159,9 +241,13 @@ class DictBuilder {
   void get_top_lemmas();
 
   // Allocate resource to build dictionary.
-  // lma_num is the number of items to be loaded
+  // lma_num is the initial size of the lemma array. The buffers whose sizes
+  // depend on the items are allocated when the items are ready.
   bool alloc_resource(size_t lma_num);
 
+  // Make the lemma array larger, up to max_num items.
+  bool grow_lemma_arr(size_t max_num);
+
   // Free resource.
   void free_resource();
 };
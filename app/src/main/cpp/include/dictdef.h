@@ -63,7 +63,9 @@ const size_t kMaxPredictSize = (kMaxLemmaSize - 1);
 
 // LemmaIdType must always be size_t.
 typedef size_t LemmaIdType;
-const size_t kLemmaIdSize = 3;  // Actually, a Id occupies 3 bytes in storage.
+// Actually, a Id occupies 3 bytes in storage, and in LmaPsbItem. It is enough
+// for the 16M ids of the system and user dictionaries below.
+const size_t kLemmaIdSize = 3;
 const size_t kLemmaIdComposing = 0xffffff;
 
 typedef uint16 LmaScoreType;
@@ -78,15 +80,19 @@ const size_t kMaxPredictNumBy2 = 2;
 
 // The last lemma id (included) for the system dictionary. The system
 // dictionary's ids always start from 1.
-const LemmaIdType kSysDictIdEnd = 500000;
+const LemmaIdType kSysDictIdEnd = 16000000;
 
-// The first lemma id for the user dictionary.
-const LemmaIdType kUserDictIdStart = 500001;
+// The first lemma id for the user dictionary. The user dictionary's ids are
+// given when it is loaded, they are not saved.
+const LemmaIdType kUserDictIdStart = 16000001;
 
-// The last lemma id (included) for the user dictionary.
-const LemmaIdType kUserDictIdEnd = 600000;
+// The last lemma id (included) for the user dictionary, room for a few
+// hundred thousand imported lemmas below kLemmaIdComposing.
+const LemmaIdType kUserDictIdEnd = 16500000;
 
-typedef struct {
+// Packed so that an array of them can be used in place in a mapped
+// dictionary at any alignment; the layout is the same as unpacked.
+typedef struct __attribute__((packed)) {
   uint16 half_splid:5;
   uint16 full_splid:11;
 } SpellingId, *PSpellingId;
@@ -118,9 +124,11 @@ struct LmaNodeLE0 {
 
 /**
  * GE = great and equal
- * A node occupies 8 bytes.
+ * A node occupies 10 bytes. It is packed, so that the nodes can be used in
+ * place in a mapped dictionary at any alignment; there is no padding, so the
+ * layout is the same as unpacked.
  */
-struct LmaNodeGE1 {
+struct __attribute__((packed)) LmaNodeGE1 {
   uint16 son_1st_off_l;        // Low bits of the son_1st_off
   uint16 homo_idx_buf_off_l;   // Low bits of the homo_idx_buf_off_1
   uint16 spl_idx;
@@ -130,6 +138,37 @@ struct LmaNodeGE1 {
   unsigned char homo_idx_buf_off_h;    // high bits of the homo_idx_buf_off
 };
 
+// Since version 2, the file of the system dictionary starts with this header.
+// A version 1 file has no header, it starts with the spelling trie. Version 2
+// adds the LmaNodeGE1Wide list to the trie, and allows lemmas of up to
+// max_lemma_size Hanzis instead of 4.
+struct DictFileHeader {
+  uint32 magic;
+  uint32 version;
+  // The file is written with the builder's size_t, which must be the same as
+  // the one of the loader.
+  uint32 size_t_size;
+  uint32 max_lemma_size;
+};
+
+const uint32 kDictFileMagic = 0x54445950;  // "PYDT"
+const uint32 kDictFileVersion = 2;
+
+// The son and homophony offsets of a LmaNodeGE1 have 24 bits.
+const size_t kLmaNodeGE1OffsetMax = 0xffffff;
+
+// A LmaNodeGE1 whose number of sons or homophonies does not fit in its 8-bit
+// field has kLmaNodeGE1NumWide there, and the real numbers are kept in a
+// LmaNodeGE1Wide item, in a list sorted by node. Only version 2 dictionaries
+// have the list, only large vocabularies need it.
+const unsigned char kLmaNodeGE1NumWide = 0xff;
+
+struct LmaNodeGE1Wide {
+  uint32 node;  // The offset of the node in the LmaNodeGE1 buffer.
+  uint16 num_of_son;
+  uint16 num_of_homo;
+};
+
 #ifdef ___BUILD_MODEL___
 struct SingleCharItem {
   float freq;
@@ -20,6 +20,7 @@
 #include <stdlib.h>
 #include <stdio.h>
 #include "./dictdef.h"
+#include "./dictreader.h"
 #include "./searchutility.h"
 #include "./spellingtrie.h"
 #include "./utf16char.h"
@@ -40,6 +41,12 @@ class DictList {
   // The large memory block to store the word list.
   char16 *buf_;
 
+  // Whether the buffers above are allocated by this object. If not, they are
+  // in a read-only mapping of the dictionary.
+  bool own_scis_hz_;
+  bool own_scis_splid_;
+  bool own_buf_;
+
   // Starting position of those words whose lengths are i+1, counted in
   // char16
   size_t start_pos_[kMaxLemmaSize + 1];
@@ -80,7 +87,10 @@ class DictList {
   ~DictList();
 
   bool save_list(FILE *fp);
-  bool load_list(FILE *fp);
+
+  // Load the list. With a memory reader, the word list is used in place if it
+  // is aligned.
+  bool load_list(DictReader *reader);
 
 #ifdef ___BUILD_MODEL___
   // Init the list from the LemmaEntry array.
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef PINYINIME_INCLUDE_DICTREADER_H__
+#define PINYINIME_INCLUDE_DICTREADER_H__
+
+#include <stdio.h>
+#include <stdlib.h>
+
+namespace ime_pinyin {
+
+// Reads the system dictionary sequentially, either from a FILE or from a
+// read-only memory mapping of it. With a mapping, the large arrays of the
+// dictionary can be used in place instead of being copied to the heap, so
+// their pages are shared between processes and can be dropped by the kernel
+// under memory pressure.
+class DictReader {
+ private:
+  FILE *fp_;
+  const unsigned char *data_;
+  size_t size_;
+  size_t pos_;
+
+ public:
+  explicit DictReader(FILE *fp);
+  DictReader(const void *data, size_t size);
+
+  // The same as fread(): copy at most n items of the given size to dst, and
+  // return the number of items copied.
+  size_t read(void *dst, size_t size, size_t n);
+
+  // Copy the next size bytes to dst without moving. Return false if there
+  // are not enough bytes.
+  bool peek(void *dst, size_t size);
+
+  // If the reader is backed by memory, and n items of the given size are
+  // available at an address aligned for align, return them in place and
+  // move forward. Otherwise return NULL without moving, and the caller should
+  // copy the items with read().
+  const void* map(size_t size, size_t n, size_t align);
+
+  // Number of bytes consumed so far. Only valid for a memory reader.
+  size_t tell() const { return pos_; }
+};
+
+// Get n items of T from the reader: in place if the reader is backed by
+// memory and the items are suitably aligned, otherwise in a new buffer
+// allocated with malloc(). *owned tells which one, so that the caller knows
+// whether to free() it. Return NULL if there is not enough data or memory.
+template <typename T>
+T* map_or_copy(DictReader *reader, size_t n, bool *owned) {
+  const void *mapped = reader->map(sizeof(T), n, __alignof__(T));
+  if (NULL != mapped) {
+    *owned = false;
+    // The mapping is read-only, the loaded dictionary is never modified.
+    return static_cast<T*>(const_cast<void*>(mapped));
+  }
+
+  *owned = true;
+  T *buf = static_cast<T*>(malloc(n * sizeof(T)));
+  if (NULL == buf)
+    return NULL;
+  if (reader->read(buf, sizeof(T), n) != n) {
+    free(buf);
+    return NULL;
+  }
+  return buf;
+}
+
+// A read-only mapping of a range of a file. The range does not need to start
+// at a page boundary, such as a resource inside an APK.
+class DictMapping {
+ private:
+  void *addr_;
+  size_t map_len_;
+  const void *data_;
+  size_t size_;
+
+  // Not copyable.
+  DictMapping(const DictMapping&);
+  DictMapping& operator=(const DictMapping&);
+
+ public:
+  DictMapping();
+  ~DictMapping();
+
+  // Map [offset, offset + length) of fd. The fd can be closed afterwards.
+  bool map(int fd, long offset, long length);
+  void unmap();
+
+  const void* data() const { return data_; }
+  size_t size() const { return size_; }
+};
+
+}  // namespace ime_pinyin
+
+#endif  // PINYINIME_INCLUDE_DICTREADER_H__
@@ -21,6 +21,7 @@
 #include "./atomdictbase.h"
 #include "./dictdef.h"
 #include "./dictlist.h"
+#include "./dictreader.h"
 #include "./searchutility.h"
 
 namespace ime_pinyin {
@@ -62,6 +63,11 @@ class DictTrie : AtomDictBase {
   LmaNodeLE0* root_;        // Nodes for root and the first layer.
   LmaNodeGE1* nodes_ge1_;   // Nodes for other layers.
 
+  // The numbers of sons and homophonies of the nodes in nodes_ge1_ which are
+  // too many for the node, sorted by node. See LmaNodeGE1Wide.
+  LmaNodeGE1Wide *ge1_wides_;
+  size_t ge1_wide_num_;
+
   // An quick index from spelling id to the LmaNodeLE0 node buffer, or
   // to the root_ buffer.
   // Index length:
@@ -83,29 +89,73 @@ class DictTrie : AtomDictBase {
   size_t total_lma_num_;    // Total number of lemmas in this dictionary.
   size_t top_lmas_num_;     // Number of lemma with highest scores.
 
+  // Whether root_, nodes_ge1_ and lma_idx_buf_ are allocated by this object.
+  // If not, they point into map_.
+  bool own_root_;
+  bool own_nodes_ge1_;
+  bool own_ge1_wides_;
+  bool own_lma_idx_buf_;
+
+  // The read-only mapping of the system dictionary file, if it is mapped.
+  DictMapping map_;
+
   // Parsing mark list used to mark the detailed extended statuses.
   ParsingMark *parsing_marks_;
   // The position for next available mark.
   uint16 parsing_marks_pos_;
+  // The number of marks allocated in parsing_marks_.
+  uint16 parsing_marks_len_;
 
   // Mile stone list used to mark the extended status.
   MileStone *mile_stones_;
   // The position for the next available mile stone. We use positions (except 0)
   // as handles.
   MileStoneHandle mile_stones_pos_;
+  // The number of mile stones allocated in mile_stones_.
+  uint16 mile_stones_len_;
 
   // Get the offset of sons for a node.
   inline size_t get_son_offset(const LmaNodeGE1 *node);
 
+  // Make sure there is room for one more parsing mark and for the mile stone
+  // at mile_stones_pos_. The lists grow when they are full, because a larger
+  // dictionary matches more nodes for a spelling. Return false if they have
+  // reached kMaxParsingMarkLen and kMaxMileStoneLen.
+  bool reserve_parsing_mark();
+
   // Get the offset of homonious ids for a node.
   inline size_t get_homo_idx_buf_offset(const LmaNodeGE1 *node);
 
+  // Get the number of sons of a node.
+  inline size_t get_son_num(const LmaNodeGE1 *node);
+
+  // Get the number of homonious ids of a node.
+  inline size_t get_homo_num(const LmaNodeGE1 *node);
+
+  // Find the LmaNodeGE1Wide item of a node. Return NULL if there is none.
+  const LmaNodeGE1Wide* get_ge1_wide(const LmaNodeGE1 *node);
+
+  // Given son_num sons sorted by spl_idx, return the position of the first
+  // one whose spl_idx is not less than splid, son_num if there is none.
+  size_t find_son(const LmaNodeGE1 *sons, size_t son_num, uint16 splid);
+
   // Get the lemma id by the offset.
   inline LemmaIdType get_lemma_id(size_t id_offset);
 
   void free_resource(bool free_dict_list);
 
-  bool load_dict(FILE *fp);
+  // Load the trie part of a dictionary of the given format version.
+  bool load_dict(DictReader *reader, uint32 version);
+
+  // Read the file header, and return the format version of the dictionary,
+  // or 0 if it cannot be loaded.
+  uint32 load_header(DictReader *reader);
+
+  // Load all parts of the dictionary from [start_offset, start_offset +
+  // length) of fd. The file is mapped read-only if possible, otherwise it is
+  // read with stdio. The fd is not closed.
+  bool load_dict_from_fd(int fd, long start_offset, long length,
+                         LemmaIdType start_id, LemmaIdType end_id);
 
   // Given a LmaNodeLE0 node, extract the lemmas specified by it, and fill
   // them into the lpi_items buffer.
@@ -147,6 +197,9 @@ class DictTrie : AtomDictBase {
 
   static const int kMaxMileStone = 100;
   static const int kMaxParsingMark = 600;
+  // The most the lists can grow to.
+  static const int kMaxMileStoneLen = kMaxMileStone * 16;
+  static const int kMaxParsingMarkLen = kMaxParsingMark * 16;
   static const MileStoneHandle kFirstValidMileStoneHandle = 1;
 
   friend class DictParser;
@@ -161,9 +214,11 @@ class DictTrie : AtomDictBase {
   // Construct the tree from the file fn_raw.
   // fn_validhzs provide the valid hanzi list. If fn_validhzs is
   // NULL, only chars in GB2312 will be included.
-  bool build_dict(const char *fn_raw, const char *fn_validhzs);
+  // Only the first max_lemma_num lemmas of fn_raw are used.
+  bool build_dict(const char *fn_raw, const char *fn_validhzs,
+                  size_t max_lemma_num = kSysDictIdEnd);
 
-  // Save the binary dictionary
+  // Save the binary dictionary, in the kDictFileVersion format.
   // Actually, the SpellingTrie/DictList instance will be also saved.
   bool save_dict(const char *filename);
 #endif  // ___BUILD_MODEL___
@@ -23,14 +23,133 @@
 
 namespace ime_pinyin {
 
-// Used to cache LmaPsbItem list for half spelling ids.
+// Used to cache LmaPsbItem lists, on two levels:
+// 1. The lists of the system dictionary for half spelling ids at the root,
+//    truncated to their first items, which are all the search needs of them.
+//    The list of the user dictionary is merged with them when they are got.
+// 2. The lists of spelling id sequences, e.g. "zhong wen" or "zh w", which
+//    the search extends to and gets candidates from again and again, as
+//    every keystroke searches the whole input and a typing trace keeps
+//    coming back to the same syllables. The sequences are kept in a least
+//    recently used order, and the least recently used ones are evicted when
+//    there are too many sequences or items.
+//
+// The lists of the user dictionary are kept apart from those of the system
+// dictionary, so that when the user dictionary changes, only they are looked
+// up again. The owner of the dictionaries calls invalidate_user() whenever the
+// user dictionary changes, and invalidate() whenever the system lemmas or
+// their scores do.
 class LpiCache {
+ public:
+  static const int kMaxLpiCachePerId = 15;
+
+  // The lists cached for a sequence.
+  enum SeqKind {
+    // The lists the dictionaries extend to, each sorted by score, the one of
+    // the system dictionary first.
+    kSeqExtension = 0,
+    // The candidates with the repeated lemmas removed, in the order of their
+    // strings, or sorted by score. They depend on both dictionaries.
+    kSeqCandidates,
+    kSeqCandidatesByPsb,
+    kSeqKindNum
+  };
+
+  // How the lists of a sequence were got from the dictionaries.
+  struct SeqInfo {
+    // For kSeqExtension, whether the user dictionary was looked up, and the
+    // handle it returned. The system dictionary is always extended again,
+    // for its handle.
+    bool user_extended;
+    MileStoneHandle user_handle;
+    // The number of lemmas the system dictionary returned for
+    // kSeqExtension, whose user dictionary gets a buffer of the rest. For the
+    // candidates, the number of lemmas the dictionaries returned before the
+    // repeated ones were removed; the list is only the same for a buffer with
+    // room for more.
+    uint16 lpi_num;
+  };
+
+  struct Stats {
+    size_t half_hits;
+    size_t half_misses;
+    size_t seq_hits[kSeqKindNum];
+    size_t seq_misses[kSeqKindNum];
+    // Misses of sequences which were cached before the dictionaries changed.
+    size_t seq_stale;
+    // Hits of kSeqExtension whose list of the user dictionary was stale.
+    size_t seq_user_stale;
+    size_t evictions;
+  };
+
  private:
   static LpiCache *instance_;
-  static const int kMaxLpiCachePerId = 15;
+
+  // Level 2 is bounded by both the number of sequences and their items.
+  static const uint16 kMaxSeqEntries = 2048;
+  static const size_t kMaxSeqItems = 65536;
+  static const uint16 kSeqBuckets = 4096;
+  static const uint16 kNoSeqEntry = 0xffff;
+
+  struct SeqEntry {
+    uint8 kind;
+    uint16 len;
+    uint16 splids[kMaxLemmaSize];
+    // Two lists sorted apart, see put_seq_cache().
+    uint16 first_num;
+    uint16 num;
+    uint16 capacity;
+    SeqInfo info;
+    // The generations of the dictionaries the lists were cached in.
+    uint32 sys_gen;
+    uint32 user_gen;
+    uint32 hash;
+    // Chain of the bucket, and the least recently used order.
+    uint16 bucket_next;
+    uint16 lru_prev;
+    uint16 lru_next;
+    LmaPsbItem *items;
+  };
 
   LmaPsbItem *lpi_cache_;
   uint16 *lpi_cache_len_;
+  // The length of the lists before they were truncated.
+  uint16 *lpi_cache_num_;
+
+  SeqEntry *seq_entries_;
+  uint16 *seq_buckets_;
+  uint16 seq_entry_num_;
+  // Entries evicted for their items, chained by bucket_next.
+  uint16 seq_free_;
+  // The most and least recently used entries.
+  uint16 lru_head_;
+  uint16 lru_tail_;
+  // The entry got or put last.
+  uint16 seq_last_;
+  // Items allocated for all the entries.
+  size_t seq_items_;
+  uint32 sys_gen_;
+  uint32 user_gen_;
+
+  Stats stats_;
+
+  // Merge two lists sorted by score into lpi_items, the items of the first
+  // list first among equal ones, and stop at lpi_max items.
+  static size_t merge_lpis(const LmaPsbItem *first, size_t first_num,
+                           const LmaPsbItem *second, size_t second_num,
+                           LmaPsbItem lpi_items[], size_t lpi_max);
+
+  static uint32 hash_seq(uint8 kind, const uint16 *splids, uint16 len);
+
+  uint16 find_seq(uint8 kind, const uint16 *splids, uint16 len, uint32 hash);
+
+  void lru_unlink(uint16 pos);
+
+  void lru_push_front(uint16 pos);
+
+  // Evict the least recently used entry and return it, freed and unlinked
+  // from its bucket and the least recently used order.
+  uint16 evict_seq();
 
  public:
   LpiCache();
@@ -38,23 +157,64 @@ class LpiCache {
 
   static LpiCache& get_instance();
 
+  // Drop all the cached lists, because the dictionaries they come from have
+  // changed.
+  void invalidate();
+
+  // Drop the cached lists which come from the user dictionary, all of them
+  // but those of the system dictionary.
+  void invalidate_user();
+
   // Test if the LPI list of the given splid  has been cached.
   // If splid is a full spelling id, it returns false, because we only cache
   // list for half ids.
   bool is_cached(uint16 splid);
 
-  // Put LPI list to cahce. If the length of the list, lpi_num, is longer than
-  // the cache buffer. the list will be truncated, and function returns the
-  // maximum length of the cache buffer.
+  // Put LPI list of the system dictionary to cahce, sorted by score. If the
+  // length of the list, lpi_num, is longer than the cache buffer. the list
+  // will be truncated, and function returns the maximum length of the cache
+  // buffer.
   // Note: splid must be a half id, and lpi_items must be not NULL. The
   // caller of this function should guarantee this.
   size_t put_cache(uint16 splid, LmaPsbItem lpi_items[], size_t lpi_num);
 
-  // Get the cached list for the given half id.
-  // Return the length of the cached buffer.
+  // The length of the list put for the given half id, before it was
+  // truncated.
+  size_t get_cache_num(uint16 splid);
+
+  // Get the cached list for the given half id, merged with the list of the
+  // user dictionary, lpi_items[0, user_num) sorted by score, as if they were
+  // sorted together. Return the length of the merged list, truncated to the
+  // maximum length of the cache buffer.
   // Note: splid must be a half id, and lpi_items must be not NULL. The
   // caller of this function should guarantee this.
-  size_t get_cache(uint16 splid, LmaPsbItem lpi_items[], size_t lpi_max);
+  size_t get_cache(uint16 splid, LmaPsbItem lpi_items[], size_t user_num);
+
+  // Look up the lists of the given kind for the spelling id sequence
+  // splids[0, len). On a hit, the entry becomes the most recently used one,
+  // and *info is what it was put with. The lists are got by get_seq_lpis().
+  // A hit of kSeqExtension only needs the list of the system dictionary to
+  // be current; *user_current tells whether that of the user dictionary is
+  // too. It may be NULL for the other kinds.
+  bool get_seq_cache(uint8 kind, const uint16 *splids, uint16 len,
+                     SeqInfo *info, bool *user_current);
+
+  // Put the lists of the given kind for a sequence. lpi_items[0, first_num)
+  // and lpi_items[first_num, lpi_num) are two lists sorted apart; for
+  // kSeqExtension, those of the system and of the user dictionary. Returns
+  // false if there is no room for them.
+  bool put_seq_cache(uint8 kind, const uint16 *splids, uint16 len,
+                     const SeqInfo &info, const LmaPsbItem lpi_items[],
+                     size_t first_num, size_t lpi_num);
+
+  // Merge the lists of the entry got or put last into lpi_items, the items
+  // of the first list first among equal ones, as if the lists were sorted
+  // together by cmp_lpi_with_psb(). A list is left out if with_first or
+  // with_second is false. Returns the number of items.
+  size_t get_seq_lpis(bool with_first, bool with_second,
+                      LmaPsbItem lpi_items[]);
+
+  void get_stats(Stats *stats);
 };
 
 }  // namespace
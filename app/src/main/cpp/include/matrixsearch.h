@@ -20,9 +20,11 @@
 #include <stdlib.h>
 #include "./atomdictbase.h"
 #include "./dicttrie.h"
+#include "./lpicache.h"
 #include "./searchutility.h"
 #include "./spellingtrie.h"
 #include "./splparser.h"
+#include "./userdict.h"
 
 namespace ime_pinyin {
 
@@ -241,6 +243,11 @@ class MatrixSearch {
   LmaPsbItem lpi_items_[kMaxLmaPsbItems];
   size_t lpi_total_;
 
+  // The generations of the system scores and of the user dictionary that the
+  // lists in LpiCache were got with.
+  uint32 sys_score_gen_;
+  uint32 user_dict_gen_;
+
   // Assign the pointers with NULL. The caller makes sure that all pointers are
   // not valid before calling it. This function only will be called in the
   // construction function and free_resource().
@@ -281,6 +288,10 @@ class MatrixSearch {
   // fixed_hzs_ will be also assigned.
   void get_spl_start_id();
 
+  // Get the LpiCache, invalidated first if the dictionaries have changed
+  // since the lists in it were got.
+  LpiCache& get_lpi_cache();
+
   // Get all lemma ids with match the given spelling id stream(shorter than the
   // maximum length of a word).
   // If pfullsent is not NULL, means the full sentence candidate may be the
@@ -290,6 +301,14 @@ class MatrixSearch {
                   LmaPsbItem* lma_buf, size_t max_lma_buf,
                   const char16 *pfullsent, bool sort_by_psb);
 
+  // Get the lemmas from the dictionaries into the first max_lpi_num items of
+  // lma_buf, and remove the repeated ones. *lpi_num is the number got before
+  // they are removed.
+  size_t get_lpis_nocache(const uint16* splid_str, size_t splid_str_len,
+                          LmaPsbItem* lma_buf, size_t max_lma_buf,
+                          size_t max_lpi_num, bool sort_by_psb,
+                          uint16 *lpi_num);
+
   uint16 get_lemma_str(LemmaIdType id_lemma, char16 *str_buf, uint16 str_max);
 
   uint16 get_lemma_splids(LemmaIdType id_lemma, uint16 *splids,
@@ -334,6 +353,11 @@ class MatrixSearch {
   PoolPosType match_dmi(size_t step_to, uint16 spl_ids[], uint16 spl_id_num);
 
   bool add_char(char ch);
+
+  // Decode pys_ from ch_pos, after the search space has been reset to ch_pos
+  // and pys_ holds the py_len characters to search. It is the common part of
+  // search() and add_letter(). Return the position successfully parsed.
+  size_t search_from(size_t ch_pos, size_t py_len);
   bool prepare_add_char(char ch);
 
   // Called after prepare_add_char, so the input char has been saved.
@@ -386,6 +410,16 @@ class MatrixSearch {
 
   void flush_cache();
 
+  // Import lemmas into the user dictionary from, or export them to, fd in
+  // the sync format. Return the number of lemmas, or -1 on failure. The
+  // lock is released while fd is read or written, see
+  // UserDict::import_lemmas().
+  int import_user_dict(int fd, UserDict::TransferProgress progress,
+                       UserDict::TransferLock lock, void *arg);
+
+  int export_user_dict(int fd, UserDict::TransferProgress progress,
+                       UserDict::TransferLock lock, void *arg);
+
   void set_xi_an_switch(bool xi_an_enabled);
 
   bool get_xi_an_switch();
@@ -398,6 +432,13 @@ class MatrixSearch {
   // Return value is the position successfully parsed.
   size_t search(const char *py, size_t py_len);
 
+  // Append a letter to the Pinyin string kept by the engine, and search. It
+  // gives the same result as search() with the whole new string, but does
+  // not need the caller to pass the string again or the engine to compare it
+  // with the previous one.
+  // Return value is the position successfully parsed.
+  size_t add_letter(char ch);
+
   // Used to delete something in the Pinyin string kept by the engine, and do
   // a re-search.
   // Return value is the new length of Pinyin string kept by the engine which
@@ -20,6 +20,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include "./dictdef.h"
+#include "./dictreader.h"
 
 namespace ime_pinyin {
 
@@ -58,12 +59,21 @@ class NGram {
   // we use this value to normalize the score.
   float sys_score_compensation_;
 
+  // Bumped whenever the scores of the system lemmas change, see
+  // get_score_gen().
+  uint32 score_gen_;
+
 #ifdef ___BUILD_MODEL___
   double *freq_codes_df_;
 #endif
   LmaScoreType *freq_codes_;
   CODEBOOK_TYPE *lma_freq_idx_;
 
+  // Whether the tables above are allocated by this object. If not, they are
+  // in a read-only mapping of the system dictionary.
+  bool own_freq_codes_;
+  bool own_lma_freq_idx_;
+
  public:
   NGram();
   ~NGram();
@@ -71,13 +81,23 @@ class NGram {
   static NGram& get_instance();
 
   bool save_ngram(FILE *fp);
-  bool load_ngram(FILE *fp);
+  // Load the tables. With a memory reader they are used in place if they are
+  // aligned, so the reader's memory must outlive this object's use of them.
+  bool load_ngram(DictReader *reader);
+
+  // Free the tables, or forget them if they are mapped.
+  void free_resource();
 
   // Set the total frequency of all none system dictionaries.
   void set_total_freq_none_sys(size_t freq_none_sys);
 
   float get_uni_psb(LemmaIdType lma_id);
 
+  // It changes whenever the score of a system lemma may change, as cut to
+  // LmaScoreType, the way the dictionaries use it. The small changes of the
+  // compensation as the user dictionary grows seldom change any of them.
+  uint32 get_score_gen();
+
   // Convert a probability to score. Actually, the score will be limited to
   // kMaxScore, but at runtime, we also need float expression to get accurate
   // value of the score.
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef PINYINIME_INCLUDE_PARALLEL_H__
+#define PINYINIME_INCLUDE_PARALLEL_H__
+
+#include <stdlib.h>
+
+namespace ime_pinyin {
+
+#ifdef ___BUILD_MODEL___
+
+// Helpers to spread the work of the dictionary builder over several threads.
+// The results never depend on the number of threads.
+
+// Set the number of threads used by parallel_for(). 0 means the number of
+// online processors, which is also the default.
+void set_parallel_thread_num(size_t num);
+
+size_t get_parallel_thread_num();
+
+typedef void (*ParallelWork)(void *arg, size_t index);
+
+// Call work(arg, index) for every index in [0, num), on up to
+// get_parallel_thread_num() threads including the calling one. Returns when
+// all the calls are done. Different indices must not write the same data.
+void parallel_for(size_t num, ParallelWork work, void *arg);
+
+// Sort like myqsort(), but stable, so that the result is the same whatever
+// the number of threads and the C library are.
+void parallel_stable_sort(void *p, size_t n, size_t es,
+                          int (*cmp)(const void *, const void *));
+
+#endif  // ___BUILD_MODEL___
+}
+
+#endif  // PINYINIME_INCLUDE_PARALLEL_H__
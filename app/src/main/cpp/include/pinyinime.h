@@ -74,6 +74,47 @@ extern "C" {
    */
   void im_flush_cache();
 
+  /**
+   * Import lemmas into the user dictionary from a file in the sync format,
+   * "pinyin,hanzis,frequency,last modified time;" in UTF-16LE, as exported by
+   * im_export_user_dict(). The file is read in chunks, the new lemmas of
+   * each chunk are sorted in at once, and the dictionary is written to its
+   * file once at the end, so this takes about as long for 100,000 lemmas as
+   * for a few thousand. Lemmas already in the dictionary take the imported
+   * frequency.
+   *
+   * The caller holds the lock of the engine, if any. It is released by lock
+   * while a chunk is read and parsed and while progress runs, so searches
+   * may run then. They see the lemmas updated so far, the new ones are sorted
+   * in at the end. The engine must not be closed during the call.
+   *
+   * @param fd The file to read from its current position.
+   * @param progress If not NULL, called after every chunk with the number of
+   * lemmas imported and bytes read so far.
+   * @param lock If not NULL, called with false to release the lock and with
+   * true to take it back.
+   * @param arg Passed to progress and lock.
+   * @return The number of lemmas imported, or -1 if the file could not be
+   * read to the end.
+   */
+  int im_import_user_dict(int fd, void (*progress)(void *, size_t, size_t),
+                          void (*lock)(void *, bool), void *arg);
+
+  /**
+   * Export all the lemmas of the user dictionary in the sync format. The
+   * lemmas are copied under the lock, which is released while they are
+   * written, as in im_import_user_dict().
+   *
+   * @param fd The file to write from its current position.
+   * @param progress If not NULL, called after every chunk with the number of
+   * lemmas exported and bytes written so far.
+   * @param lock If not NULL, called as in im_import_user_dict().
+   * @param arg Passed to progress and lock.
+   * @return The number of lemmas exported, or -1 on a write error.
+   */
+  int im_export_user_dict(int fd, void (*progress)(void *, size_t, size_t),
+                          void (*lock)(void *, bool), void *arg);
+
   /**
    * Use a spelling string(Pinyin string) to search. The engine will try to do
    * an incremental search based on its previous search result, so if the new
@@ -108,9 +149,12 @@ extern "C" {
   void im_reset_search();
 
   /**
-   * Add a Pinyin letter to the current spelling string kept by decoder. If the
-   * decoder fails in adding the letter, it will do nothing. im_get_sps_str()
-   * can be used to get the spelling string kept by decoder currently.
+   * Add a Pinyin letter to the current spelling string kept by decoder, and
+   * search. The result is the same as calling im_search() with the new string,
+   * so if the letter cannot be decoded, it is kept as undecoded. It is cheaper
+   * than im_search() when the user is typing at the end of the string.
+   * im_get_sps_str() can be used to get the spelling string kept by decoder
+   * currently.
    *
    * @param ch The letter to add.
    * @return The number of candidates.
@@ -20,6 +20,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include "./dictdef.h"
+#include "./dictreader.h"
 
 namespace ime_pinyin {
 
@@ -232,8 +233,9 @@ class SpellingTrie {
   // Save to the file stream
   bool save_spl_trie(FILE *fp);
 
-  // Load from the file stream
-  bool load_spl_trie(FILE *fp);
+  // Load from the dictionary reader. The spellings are always copied because
+  // they are sorted when the trie is constructed.
+  bool load_spl_trie(DictReader *reader);
 
   // Get the number of spellings
   size_t get_spelling_num();
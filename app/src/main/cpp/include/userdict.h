@@ -26,9 +26,12 @@
 
 #include <pthread.h>
 #include "atomdictbase.h"
+#include "userdictjournal.h"
 
 namespace ime_pinyin {
 
+class SpellingParser;
+
 class UserDict : public AtomDictBase {
  public:
   UserDict();
@@ -89,6 +92,55 @@ class UserDict : public AtomDictBase {
 
   void defragment();
 
+  // Whether a copy of the dictionary is being reclaimed and defragmented in
+  // the background.
+  bool is_compacting();
+
+  // Changes whenever a lookup may return something else: lemmas put, updated
+  // or removed, the dictionary loaded, reloaded or compacted, or the scores
+  // rescaled. Lookups can be cached for as long as it stays the same. As a
+  // lookup would, it first reloads the dictionary if others have written it.
+  uint32 get_change_gen();
+
+  // Called with the lemmas and bytes done so far.
+  typedef void (*TransferProgress)(void *arg, size_t lemmas, size_t bytes);
+
+  // Takes the lock of the engine back if lock is true, otherwise releases
+  // it.
+  typedef void (*TransferLock)(void *arg, bool lock);
+
+  /**
+   * Import lemmas in the format of put_lemmas_no_sync_from_utf16le_string(),
+   * read from fd in UTF-16LE until its end. Lemmas in the dictionary get the
+   * imported frequency and last modified time chunk by chunk. The new ones
+   * are kept aside and sorted in at once at the end, then the dictionary
+   * file is written. Broken lemmas are skipped. Lemmas over the limits are
+   * dropped.
+   *
+   * It is called with the lock of the engine held. The lock is released
+   * while a chunk is read and parsed and while progress runs, so the engine
+   * can be used then, but it must not be closed.
+   *
+   * @param fd the file to read from its current position
+   * @param progress called after each chunk read, can be NULL
+   * @param lock can be NULL if there is no lock
+   * @return the number of lemmas imported, or -1 if fd cannot be read
+   */
+  int import_lemmas(int fd, TransferProgress progress, TransferLock lock,
+                    void *arg);
+
+  /**
+   * Export all the lemmas to fd in the same format. A copy of the lemmas is
+   * taken under the lock of the engine, then the lock is released while they
+   * are written, as for import_lemmas().
+   *
+   * @param progress called after each chunk written, can be NULL
+   * @param lock can be NULL if there is no lock
+   * @return the number of lemmas exported, or -1 if fd cannot be written
+   */
+  int export_lemmas(int fd, TransferProgress progress, TransferLock lock,
+                    void *arg);
+
 #ifdef ___SYNC_ENABLED___
   void clear_sync_lemmas(unsigned int start, unsigned int end);
 
@@ -144,6 +196,7 @@ class UserDict : public AtomDictBase {
   uint32 total_other_nfreq_;
   struct timeval load_time_;
   LemmaIdType start_id_;
+  LemmaIdType end_id_;
   uint32 version_;
   uint8 * lemmas_;
 
@@ -179,6 +232,20 @@ class UserDict : public AtomDictBase {
   uint32 * ids_;
 #ifdef ___PREDICT_ENABLED___
   uint32 * predicts_;
+
+  // The lemmas in predicts_ starting with hz, sorted by their Hanzis.
+  struct UserDictPredictRun {
+    char16 hz;
+    uint32 start;
+    uint32 count;
+  };
+  // Open addressing hash table of the runs of predicts_ by the first Hanzi,
+  // so that a prediction only compares the lemmas of one run. Empty slots
+  // have hz 0. NULL if it cannot be allocated, then predicts_ is searched as
+  // a whole.
+  UserDictPredictRun * predict_runs_;
+  uint32 predict_run_bits_;
+  uint32 predict_run_num_;
 #endif
 #ifdef ___SYNC_ENABLED___
   uint32 * syncs_;
@@ -191,6 +258,33 @@ class UserDict : public AtomDictBase {
 
   const char * dict_file_;
 
+  // Changes not in dict_file_ yet, NULL if another instance journals the same
+  // process' changes or the journal cannot be written.
+  UserDictJournal * journal_;
+  bool journal_replaying_;
+  // Hash of dict_file_ when it was loaded.
+  uint64 base_hash_;
+  // Value of the global write generation when dict_file_ was loaded or last
+  // written by this instance. It differs from the global one once another
+  // instance has written the file.
+  uint32 write_gen_;
+  // Bumped on every change, see get_change_gen().
+  uint32 change_gen_;
+  // lemma_size of dict_file_ when it was loaded.
+  uint32 loaded_lemma_size_;
+
+  // The copy reclaimed and defragmented by compaction_thread_, NULL if none.
+  // The decoding thread goes on with its own arrays meanwhile, and logs its
+  // changes to redo them on the copy when it takes it.
+  UserDict * compaction_;
+  pthread_t compaction_thread_;
+  // Set to compaction_ by compaction_thread_ once the copy is done.
+  UserDict * compacted_;
+  uint8 * changes_;
+  size_t changes_size_;
+  size_t changes_capacity_;
+  bool changes_lost_;
+
   // Be sure size is 4xN
   struct UserDictInfo {
     // When limitation reached, how much percentage will be reclaimed (1 ~ 100)
@@ -219,7 +313,22 @@ class UserDict : public AtomDictBase {
   static const uint32 kUserDictVersion = 0x0ABCDEF0;
 
   static const uint32 kUserDictPreAlloc = 32;
+  // UTF-16LE characters read or written by import_lemmas() and
+  // export_lemmas() at a time.
+  static const size_t kUserDictTransferBufferSize = 32 << 10;
+  // The shortest lemma in the transfer format, "a,HZ,,", so a chunk of the
+  // buffer has no more lemmas than the buffer size over it.
+  static const size_t kUserDictTransferMinLemmaLen = 5;
+  // Records in the journal from which it is folded into the file.
+  static const size_t kUserDictJournalCompactSize = 32 << 10;
+  // Removed lemmas, as a part of all, from which the dictionary is compacted
+  // in the background.
+  static const uint32 kUserDictCompactFreeRatio = 4;
   static const uint32 kUserDictAverageNchar = 8;
+#ifdef ___PREDICT_ENABLED___
+  // Slots of the predict run table, for about 500 first Hanzis.
+  static const uint32 kUserDictPredictRunMinBits = 10;
+#endif
 
   enum UserDictState {
     // Keep in order
@@ -301,6 +410,50 @@ class UserDict : public AtomDictBase {
 
   inline int utf16le_lltoa(int64 v, uint16 *s, int size);
 
+  // Parse the lemma at p in the format of
+  // put_lemmas_no_sync_from_utf16le_string(), ending before end. Returns the
+  // position after it, or NULL if it is broken. *hzs points into the string.
+  char16 * parse_lemma_in_utf16le(SpellingParser *spl_parser, char16 *p,
+                                  char16 *end, char16 **hzs, uint16 *splids,
+                                  uint16 *lemma_len, uint32 *count,
+                                  uint64 *lmt);
+
+  // Write the lemma at offset with score in the same format. Returns the
+  // length written, or 0 if str is too small.
+  int write_lemma_in_utf16le(uint32 offset, uint32 score, char16 *str,
+                             int size);
+
+  // As above, with the lemma at offset in lemmas, a copy of lemmas_.
+  int write_lemma_in_utf16le(const uint8 *lemmas, uint32 offset,
+                             uint32 score, char16 *str, int size);
+
+  // A lemma parsed by import_lemmas().
+  struct ImportedLemma {
+    uint16 splids[kMaxLemmaSize];
+    char16 hzs[kMaxLemmaSize];
+    uint16 lemma_len;
+    uint16 count;
+    uint64 lmt;
+  };
+
+  // Update the lemmas already in the dictionary with the imported ones, and
+  // move the others to the front of lemmas. Returns the number of others.
+  uint32 update_imported(ImportedLemma *lemmas, uint32 num);
+
+  // Put in the lemmas: update the ones in the dictionary, and stage and sort
+  // in the others at once. Returns the number imported.
+  int put_imported(ImportedLemma *lemmas, uint32 num);
+
+  // Add the lemma after the last one in the arrays without counting it, see
+  // sort_in_imported().
+  bool stage_imported(char16 lemma_str[], uint16 splids[], uint16 lemma_len,
+                      uint16 count, uint64 lmt, uint32 staged,
+                      size_t staged_size);
+
+  // Count the staged lemmas and merge them into the sorted arrays. Lemmas
+  // imported more than once are kept as their last one.
+  bool sort_in_imported(uint32 staged, size_t staged_size);
+
   LemmaIdType _put_lemma(char16 lemma_str[], uint16 splids[],
                         uint16 lemma_len, uint16 count, uint64 lmt);
 
@@ -325,6 +478,62 @@ class UserDict : public AtomDictBase {
 
   bool load(const char *file, LemmaIdType start_id);
 
+  // Make room for lemma_count more lemmas of lemma_size bytes in total.
+  bool reserve(size_t lemma_count, size_t lemma_size);
+
+  void open_journal();
+
+  void close_journal();
+
+  // Redo the changes in the journal, without journaling them again.
+  bool replay_journal();
+
+  void append_to_journal(uint8 type, uint32 arg0, uint32 arg1, uint32 arg2,
+                         uint8 lemma_len, const uint16 *splids,
+                         const char16 *hzs);
+
+  // The content of the dictionary file with all changes made so far.
+  uint8 * build_file_image(size_t *size);
+
+  bool compact_journal(bool closing);
+
+  static bool journal_commit_begin(void *arg);
+
+  static void journal_commit_end(void *arg, bool committed);
+
+  // A change logged during a compaction, followed by the spelling ids and
+  // the Hanzis of its lemma.
+  struct UserDictChange {
+    uint8 type;
+    uint8 lemma_len;
+    uint16 reserved;
+    uint32 args[3];
+  };
+
+  // Redo a change read from the journal or logged during a compaction.
+  void apply_change(const UserDictJournal::Record &record);
+
+  bool log_change(uint8 type, const uint32 args[3], uint8 lemma_len,
+                  const uint16 *splids, const char16 *hzs);
+
+  // Whether a limit is reached and reclaim() would make room.
+  bool needs_reclaim();
+
+  // Copy the dictionary, reclaim and defragment the copy in the background.
+  void start_compaction();
+
+  // Take the compacted copy if it is done, and redo the changes made since
+  // it was copied. Only called when no lemma id is held by the decoder.
+  void finish_compaction();
+
+  // Wait for the compaction and drop the copy.
+  void cancel_compaction();
+
+  static void *compaction_main(void *arg);
+
+  // Free the arrays, without writing anything back.
+  void discard();
+
   bool is_valid_state();
 
   bool is_valid_lemma_id(LemmaIdType id);
@@ -372,6 +581,21 @@ class UserDict : public AtomDictBase {
   int32 locate_first_in_predicts(const uint16 * words, int lemma_len);
 
   void remove_lemma_from_predict_list(uint32 offset);
+
+  // Range [*begin, *end) of predicts_ where lemmas starting with hz are.
+  void get_predict_range(char16 hz, uint32 *begin, uint32 *end);
+
+  // Lemmas in older files may not be in order.
+  bool sort_predicts();
+
+  void build_predict_runs();
+
+  UserDictPredictRun * find_predict_run(char16 hz);
+
+  UserDictPredictRun * add_predict_run(char16 hz);
+
+  // A lemma starting with hz has been inserted to predicts_ at pos.
+  void insert_to_predict_runs(char16 hz, uint32 pos);
 #endif
 #ifdef ___SYNC_ENABLED___
   void queue_lemma_for_sync(LemmaIdType id);
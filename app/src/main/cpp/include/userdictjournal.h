@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef PINYINIME_INCLUDE_USERDICTJOURNAL_H__
+#define PINYINIME_INCLUDE_USERDICTJOURNAL_H__
+
+#include <pthread.h>
+#include <stdlib.h>
+#include "./dictdef.h"
+
+namespace ime_pinyin {
+
+// An append-only log of the changes made to a user dictionary since its file
+// was last written, so that what the user has learnt survives the process
+// being killed before UserDict::close_dict().
+//
+// The journal of a dictionary file is "<file>.journal.<hash>", where hash is
+// the hash of the whole dictionary file the records apply to. A journal whose
+// hash does not match the file any more is stale and is deleted when the
+// journal is opened for writing.
+//
+// Records are written to the file as soon as they are appended, so they
+// survive the process being killed. A worker thread makes them durable with
+// one fdatasync() for a group of records, at the latest kSyncIntervalMs after
+// they were appended. It also compacts the journal: it writes a new
+// dictionary file from an image taken by the caller, renames it over the old
+// one and starts a new journal with the records appended since the image was
+// taken.
+//
+// On-disk format:
+// +-------------+-------------+---------------+
+// | Magic (4)   | Version (4) | Base hash (8) |
+// +-------------+-------------+---------------+
+// +----------+----------+---------+----------+-------------+-----------+
+// | Size (2) | Type (1) | Len (1) | Args (12)| Splids (2L) | Hzs (2L)  |
+// +----------+----------+---------+----------+-------------+-----------+
+// +--------------+
+// | Checksum (4) |
+// +--------------+
+// ...
+// A record that is cut short or has a wrong checksum ends the journal.
+class UserDictJournal {
+ public:
+  enum RecordType {
+    // A lemma put with count args[0] and last modified time args[1]. args[2]
+    // is 1 if it was not queued for sync.
+    kRecordPut = 1,
+    // The score of a lemma set to args[0], with args[1] added to the total
+    // frequency.
+    kRecordUpdate,
+    // A lemma removed.
+    kRecordRemove,
+    // Sync items [args[0], args[1]) cleared.
+    kRecordClearSync,
+    // Limits set to args[0] lemmas, args[1] bytes and args[2] percent.
+    kRecordLimit,
+    // The dictionary defragmented.
+    kRecordDefragment,
+  };
+
+  struct Record {
+    uint8 type;
+    uint8 lemma_len;
+    uint32 args[3];
+    const uint16 *splids;
+    const char16 *hzs;
+  };
+
+  // Called by the thread committing a compaction, before and after the
+  // dictionary file is replaced. If begin returns false, the compaction is
+  // dropped; end is called in any case.
+  typedef bool (*CommitBegin)(void *arg);
+  typedef void (*CommitEnd)(void *arg, bool committed);
+
+  // Records appended before the worker syncs them.
+  static const size_t kSyncRecordNum = 16;
+  static const int kSyncIntervalMs = 1000;
+
+  UserDictJournal();
+  ~UserDictJournal();
+
+  // Hash of a dictionary file, updated piece by piece from kHashSeed.
+  static const uint64 kHashSeed = 0xcbf29ce484222325ULL;
+  static uint64 hash(uint64 h, const void *data, size_t size);
+
+  // Open the journal of dict_file whose content hashes to base_hash, and
+  // read its records. If writable, the journal is created if missing, a
+  // broken tail is cut off, stale journals are deleted and the worker thread
+  // is started. Otherwise only the records are read.
+  bool open(const char *dict_file, uint64 base_hash, bool writable);
+
+  // Stop the worker after it finishes the pending compaction and syncs the
+  // records, then close the file.
+  void close();
+
+  bool is_writable();
+
+  // Iterate over the records read by open(). *pos starts from 0. The
+  // pointers in the record are valid until release_records() or close().
+  bool next_record(size_t *pos, Record *record);
+
+  void release_records();
+
+  // Append a record. Returns false if the journal could not be written, and
+  // the journal is not writable any more.
+  bool append(uint8 type, const uint32 args[3], uint8 lemma_len,
+              const uint16 *splids, const char16 *hzs);
+
+  // Size of the records, as an offset for compact().
+  size_t get_records_size();
+
+  bool is_compacting();
+
+  // Replace the dictionary file with image, which is taken after the first
+  // records_size bytes of records. The journal takes the image, which must
+  // be allocated by malloc(). The work is done by the worker thread and the
+  // call returns at once, unless closing is true: then it waits, and nothing
+  // can be appended after the compaction. Returns false if the compaction is
+  // dropped or fails, in which case the journal is unchanged.
+  bool compact(uint8 *image, size_t image_size, size_t records_size,
+               bool closing);
+
+  // Wait until the pending compaction, if any, is done. Returns whether the
+  // last compaction was committed.
+  bool wait_for_compaction();
+
+  void set_commit_hooks(CommitBegin begin, CommitEnd end, void *arg);
+
+ private:
+  static const uint32 kMagic = 0x4c4a4455;  // "UDJL"
+  static const uint32 kVersion = 1;
+
+  struct FileHeader {
+    uint32 magic;
+    uint32 version;
+    uint64 base_hash;
+  };
+
+  struct RecordHeader {
+    uint16 size;
+    uint8 type;
+    uint8 lemma_len;
+    uint32 args[3];
+  };
+
+  char *dict_file_;
+  char *file_name_;
+  int fd_;
+  bool writable_;
+
+  // Records read by open().
+  uint8 *records_;
+  size_t records_size_;
+
+  // Guards all the fields below and the writes to fd_.
+  pthread_mutex_t mutex_;
+  pthread_cond_t cond_;
+  pthread_t worker_;
+  bool worker_started_;
+  bool stopping_;
+  // Bytes of records in the file.
+  size_t size_;
+  size_t unsynced_num_;
+
+  uint8 *image_;
+  size_t image_size_;
+  size_t image_records_size_;
+  bool image_closing_;
+  // Whether the last compaction was committed.
+  bool compacted_;
+
+  CommitBegin commit_begin_;
+  CommitEnd commit_end_;
+  void *commit_arg_;
+
+  static void *worker_main(void *arg);
+
+  void run_worker();
+
+  // Write image to a temporary file, then commit it. Called without mutex_.
+  bool do_compact(uint8 *image, size_t image_size, size_t records_size,
+                  bool closing);
+
+  static char *get_file_name(const char *dict_file, uint64 base_hash);
+
+  static uint32 checksum(const uint8 *data, size_t size);
+
+  // Length of the valid records in buf.
+  static size_t scan_records(const uint8 *buf, size_t size);
+
+  void delete_stale_journals();
+};
+}
+
+#endif  // PINYINIME_INCLUDE_USERDICTJOURNAL_H__
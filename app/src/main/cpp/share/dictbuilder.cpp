@@ -23,6 +23,7 @@
 #include "../include/dicttrie.h"
 #include "../include/mystdlib.h"
 #include "../include/ngram.h"
+#include "../include/parallel.h"
 #include "../include/searchutility.h"
 #include "../include/spellingtable.h"
 #include "../include/spellingtrie.h"
@@ -36,6 +37,23 @@ namespace ime_pinyin {
 static const size_t kReadBufLen = 512;
 static const size_t kSplTableHashLen = 2000;
 
+// The number of lines of the raw dictionary parsed together.
+static const size_t kRawBatchLen = 16384;
+
+// The initial size of the lemma array, which is enough for the dictionary
+// shipped with the engine.
+static const size_t kLemmaArrInitLen = 240000;
+
+int cmp_lma_node_ge1_wide(const void* p1, const void* p2) {
+  uint32 node1 = static_cast<const LmaNodeGE1Wide*>(p1)->node;
+  uint32 node2 = static_cast<const LmaNodeGE1Wide*>(p2)->node;
+  if (node1 < node2)
+    return -1;
+  if (node1 > node2)
+    return 1;
+  return 0;
+}
+
 // Compare a SingleCharItem, first by Hanzis, then by spelling ids, then by
 // frequencies.
 int cmp_scis_hz_splid_freq(const void* p1, const void* p2) {
@@ -166,6 +184,9 @@ DictBuilder::DictBuilder() {
 
   spl_table_ = NULL;
   spl_parser_ = NULL;
+
+  subset_tasks_ = NULL;
+  subset_task_num_ = 0;
 }
 
 DictBuilder::~DictBuilder() {
@@ -184,40 +205,49 @@ bool DictBuilder::alloc_resource(size_t lma_num) {
   top_lmas_num_ = 0;
   top_lmas_ = new LemmaEntry[kTopScoreLemmaNum];
 
-  // New the scis_ buffer to the possible maximum size.
-  scis_num_ = lemma_num_ * kMaxLemmaSize;
-  scis_ = new SingleCharItem[scis_num_];
-
   // The root and first level nodes is less than kMaxSpellingNum + 1
   lma_nds_used_num_le0_ = 0;
   lma_nodes_le0_ = new LmaNodeLE0[kMaxSpellingNum + 1];
 
-  // Other nodes is less than lemma_num
-  lma_nds_used_num_ge1_ = 0;
-  lma_nodes_ge1_ = new LmaNodeGE1[lemma_num_];
-
-  homo_idx_buf_ = new LemmaIdType[lemma_num_];
   spl_table_ = new SpellingTable();
   spl_parser_ = new SpellingParser();
 
+  // One task for each son of the root at most.
+  subset_task_num_ = 0;
+  subset_tasks_ = new SubsetTask[kMaxSpellingNum + 1];
+
   if (NULL == lemma_arr_ || NULL == top_lmas_ ||
-      NULL == scis_ || NULL == spl_table_ ||
-      NULL == spl_parser_ || NULL == lma_nodes_le0_ ||
-      NULL == lma_nodes_ge1_ || NULL == homo_idx_buf_) {
+      NULL == spl_table_ || NULL == spl_parser_ ||
+      NULL == lma_nodes_le0_ || NULL == subset_tasks_) {
     free_resource();
     return false;
   }
 
   memset(lemma_arr_, 0, sizeof(LemmaEntry) * lemma_num_);
-  memset(scis_, 0, sizeof(SingleCharItem) * scis_num_);
   memset(lma_nodes_le0_, 0, sizeof(LmaNodeLE0) * (kMaxSpellingNum + 1));
-  memset(lma_nodes_ge1_, 0, sizeof(LmaNodeGE1) * lemma_num_);
-  memset(homo_idx_buf_, 0, sizeof(LemmaIdType) * lemma_num_);
   spl_table_->init_table(kMaxPinyinSize, kSplTableHashLen, true);
 
   return true;
 }
 
+bool DictBuilder::grow_lemma_arr(size_t max_num) {
+  size_t lemma_num = lemma_num_ * 2 < max_num ? lemma_num_ * 2 : max_num;
+  if (lemma_num <= lemma_num_)
+    return false;
+
+  LemmaEntry *lemma_arr = new LemmaEntry[lemma_num];
+  if (NULL == lemma_arr)
+    return false;
+
+  memcpy(lemma_arr, lemma_arr_, sizeof(LemmaEntry) * lemma_num_);
+  memset(lemma_arr + lemma_num_, 0,
+         sizeof(LemmaEntry) * (lemma_num - lemma_num_));
+  delete [] lemma_arr_;
+  lemma_arr_ = lemma_arr;
+  lemma_num_ = lemma_num;
+  return true;
+}
+
 char16* DictBuilder::read_valid_hanzis(const char *fn_validhzs, size_t *num) {
   if (NULL == fn_validhzs || NULL == num)
     return NULL;
@@ -350,6 +380,12 @@ void DictBuilder::free_resource() {
   if (NULL != spl_parser_)
     delete spl_parser_;
 
+  if (NULL != subset_tasks_) {
+    for (size_t pos = 0; pos < subset_task_num_; pos++)
+      free(subset_tasks_[pos].cursor.wides);
+    delete [] subset_tasks_;
+  }
+
   lemma_arr_ = NULL;
   scis_ = NULL;
   lma_nodes_le0_ = NULL;
@@ -357,12 +393,119 @@ void DictBuilder::free_resource() {
   homo_idx_buf_ = NULL;
   spl_table_ = NULL;
   spl_parser_ = NULL;
+  subset_tasks_ = NULL;
 
   lemma_num_ = 0;
   lma_nds_used_num_le0_ = 0;
   lma_nds_used_num_ge1_ = 0;
   homo_idx_num_eq1_ = 0;
   homo_idx_num_gt1_ = 0;
+  subset_task_num_ = 0;
+}
+
+struct DictBuilder::RawLine {
+  char16 buf[kReadBufLen];
+  LemmaEntry lemma;
+  // Whether the line is malformed, which fails the whole read.
+  bool error;
+  // Whether the line is dropped before its spellings are put to the
+  // spelling table.
+  bool skipped;
+  // The number of spellings in the line. If it is less than the number of
+  // Hanzis, the line is malformed.
+  size_t spelling_num;
+  // Whether there are tokens after the spellings.
+  bool extra_token;
+};
+
+struct DictBuilder::RawBatch {
+  DictBuilder *builder;
+  RawLine *lines;
+  const char16 *valid_hzs;
+  size_t valid_hzs_num;
+};
+
+void DictBuilder::parse_raw_line(RawLine *line, const char16 *valid_hzs,
+                                 size_t valid_hzs_num) {
+  memset(&line->lemma, 0, sizeof(LemmaEntry));
+  line->error = true;
+  line->skipped = true;
+  line->spelling_num = 0;
+  line->extra_token = false;
+
+  size_t token_size;
+  char16 *token;
+  char16 *to_tokenize = line->buf;
+
+  // Get the Hanzi string
+  token = utf16_strtok(to_tokenize, &token_size, &to_tokenize);
+  if (NULL == token)
+    return;
+
+  size_t lemma_size = utf16_strlen(token);
+
+  if (lemma_size > kMaxLemmaSize) {
+    line->error = false;
+    return;
+  }
+
+  // Copy to the lemma entry
+  utf16_strcpy(line->lemma.hanzi_str, token);
+
+  line->lemma.hz_str_len = token_size;
+
+  // Get the freq string
+  token = utf16_strtok(to_tokenize, &token_size, &to_tokenize);
+  if (NULL == token)
+    return;
+  line->lemma.freq = utf16_atof(token);
+
+  line->error = false;
+  if (lemma_size > 1 && line->lemma.freq < 60)
+    return;
+
+  // Get GBK mark, if no valid Hanzi list available, all items which contains
+  // GBK characters will be discarded. Otherwise, all items which contains
+  // characters outside of the valid Hanzi list will be discarded.
+  token = utf16_strtok(to_tokenize, &token_size, &to_tokenize);
+  assert(NULL != token);
+  int gbk_flag = utf16_atoi(token);
+  if (NULL == valid_hzs || 0 == valid_hzs_num) {
+    if (0 != gbk_flag)
+      return;
+  } else {
+    if (!str_in_hanzis_list(valid_hzs, valid_hzs_num,
+        line->lemma.hanzi_str, line->lemma.hz_str_len))
+      return;
+  }
+
+  line->skipped = false;
+
+  // Get spelling String
+  for (size_t hz_pos = 0; hz_pos < (size_t)line->lemma.hz_str_len;
+       hz_pos++) {
+    // Get a Pinyin
+    token = utf16_strtok(to_tokenize, &token_size, &to_tokenize);
+    if (NULL == token)
+      return;
+
+    assert(utf16_strlen(token) <= kMaxPinyinSize);
+
+    utf16_strcpy_tochar(line->lemma.pinyin_str[hz_pos], token);
+
+    format_spelling_str(line->lemma.pinyin_str[hz_pos]);
+    line->spelling_num++;
+  }
+
+  // The whole line must have been parsed fully, otherwise discard this one.
+  token = utf16_strtok(to_tokenize, &token_size, &to_tokenize);
+  line->extra_token = NULL != token;
+}
+
+void DictBuilder::parse_raw_batch(void *arg, size_t index) {
+  RawBatch *batch = static_cast<RawBatch*>(arg);
+  batch->builder->parse_raw_line(batch->lines + index, batch->valid_hzs,
+                                 batch->valid_hzs_num);
 }
 
 size_t DictBuilder::read_raw_dict(const char* fn_raw,
@@ -374,14 +517,13 @@ size_t DictBuilder::read_raw_dict(const char* fn_raw,
   if (!utf16_reader.open(fn_raw, kReadBufLen * 10))
     return false;
 
-  char16 read_buf[kReadBufLen];
-
-  // Read the number of lemmas in the file
-  size_t lemma_num = 240000;
+  // The lemma array grows while the items are read.
+  size_t lemma_num = max_item < kLemmaArrInitLen ? max_item : kLemmaArrInitLen;
 
   // allocate resource required
   if (!alloc_resource(lemma_num)) {
     utf16_reader.close();
+    return 0;
   }
 
   // Read the valid Hanzi list.
@@ -389,110 +531,73 @@ size_t DictBuilder::read_raw_dict(const char* fn_raw,
   size_t valid_hzs_num = 0;
   valid_hzs = read_valid_hanzis(fn_validhzs, &valid_hzs_num);
 
-  // Begin reading the lemma entries
-  for (size_t i = 0; i < max_item; i++) {
-    // read next entry
-    if (!utf16_reader.readline(read_buf, kReadBufLen)) {
-      lemma_num = i;
-      break;
-    }
-
-    size_t token_size;
-    char16 *token;
-    char16 *to_tokenize = read_buf;
-
-    // Get the Hanzi string
-    token = utf16_strtok(to_tokenize, &token_size, &to_tokenize);
-    if (NULL == token) {
-      free_resource();
-      utf16_reader.close();
-      return false;
-    }
-
-    size_t lemma_size = utf16_strlen(token);
+  RawBatch batch;
+  batch.builder = this;
+  batch.lines = new RawLine[kRawBatchLen];
+  batch.valid_hzs = valid_hzs;
+  batch.valid_hzs_num = valid_hzs_num;
 
-    if (lemma_size > kMaxLemmaSize) {
-      i--;
-      continue;
-    }
-
-    if (lemma_size > 4) {
-      i--;
-      continue;
-    }
-
-    // Copy to the lemma entry
-    utf16_strcpy(lemma_arr_[i].hanzi_str, token);
-
-    lemma_arr_[i].hz_str_len = token_size;
-
-    // Get the freq string
-    token = utf16_strtok(to_tokenize, &token_size, &to_tokenize);
-    if (NULL == token) {
-      free_resource();
-      utf16_reader.close();
-      return false;
-    }
-    lemma_arr_[i].freq = utf16_atof(token);
-
-    if (lemma_size > 1 && lemma_arr_[i].freq < 60) {
-      i--;
-      continue;
-    }
-
-    // Get GBK mark, if no valid Hanzi list available, all items which contains
-    // GBK characters will be discarded. Otherwise, all items which contains
-    // characters outside of the valid Hanzi list will be discarded.
-    token = utf16_strtok(to_tokenize, &token_size, &to_tokenize);
-    assert(NULL != token);
-    int gbk_flag = utf16_atoi(token);
-    if (NULL == valid_hzs || 0 == valid_hzs_num) {
-      if (0 != gbk_flag) {
-        i--;
-        continue;
-      }
-    } else {
-      if (!str_in_hanzis_list(valid_hzs, valid_hzs_num,
-          lemma_arr_[i].hanzi_str, lemma_arr_[i].hz_str_len)) {
-        i--;
-        continue;
+  // Begin reading the lemma entries
+  size_t i = 0;
+  bool eof = false;
+  while (i < max_item && !eof) {
+    size_t line_num = 0;
+    while (line_num < kRawBatchLen &&
+           utf16_reader.readline(batch.lines[line_num].buf, kReadBufLen))
+      line_num++;
+    eof = line_num < kRawBatchLen;
+
+    parallel_for(line_num, parse_raw_batch, &batch);
+
+    // The spellings are put to the table in the order of the file, so that
+    // the table is the same whatever the number of threads is.
+    for (size_t line_pos = 0; line_pos < line_num && i < max_item;
+         line_pos++) {
+      RawLine *line = batch.lines + line_pos;
+      bool error = line->error;
+      bool spelling_not_support = false;
+      if (!error && !line->skipped) {
+        // Put the pinyin to the spelling table
+        for (size_t hz_pos = 0; hz_pos < (size_t)line->lemma.hz_str_len;
+             hz_pos++) {
+          if (hz_pos == line->spelling_num) {
+            error = true;
+            break;
+          }
+          if (!spl_table_->put_spelling(line->lemma.pinyin_str[hz_pos],
+                                        line->lemma.freq)) {
+            spelling_not_support = true;
+            break;
+          }
+        }
       }
-    }
-
-    // Get spelling String
-    bool spelling_not_support = false;
-    for (size_t hz_pos = 0; hz_pos < (size_t)lemma_arr_[i].hz_str_len;
-         hz_pos++) {
-      // Get a Pinyin
-      token = utf16_strtok(to_tokenize, &token_size, &to_tokenize);
-      if (NULL == token) {
+      if (error) {
+        delete [] batch.lines;
+        delete [] valid_hzs;
         free_resource();
         utf16_reader.close();
         return false;
       }
+      if (line->skipped)
+        continue;
 
-      assert(utf16_strlen(token) <= kMaxPinyinSize);
-
-      utf16_strcpy_tochar(lemma_arr_[i].pinyin_str[hz_pos], token);
-
-      format_spelling_str(lemma_arr_[i].pinyin_str[hz_pos]);
+      if (spelling_not_support || line->extra_token)
+        continue;
 
-      // Put the pinyin to the spelling table
-      if (!spl_table_->put_spelling(lemma_arr_[i].pinyin_str[hz_pos],
-                                    lemma_arr_[i].freq)) {
-        spelling_not_support = true;
-        break;
+      if (i == lemma_num_ && !grow_lemma_arr(max_item)) {
+        delete [] batch.lines;
+        delete [] valid_hzs;
+        free_resource();
+        utf16_reader.close();
+        return false;
       }
-    }
-
-    // The whole line must have been parsed fully, otherwise discard this one.
-    token = utf16_strtok(to_tokenize, &token_size, &to_tokenize);
-    if (spelling_not_support || NULL != token) {
-      i--;
-      continue;
+      lemma_arr_[i] = line->lemma;
+      i++;
     }
   }
+  lemma_num = i;
 
+  delete [] batch.lines;
   delete [] valid_hzs;
   utf16_reader.close();
 
@@ -503,11 +608,13 @@ size_t DictBuilder::read_raw_dict(const char* fn_raw,
 
 bool DictBuilder::build_dict(const char *fn_raw,
                              const char *fn_validhzs,
-                             DictTrie *dict_trie) {
+                             DictTrie *dict_trie, size_t max_lemma_num) {
   if (NULL == fn_raw || NULL == dict_trie)
     return false;
 
-  lemma_num_ = read_raw_dict(fn_raw, fn_validhzs, 240000);
+  lemma_num_ = read_raw_dict(fn_raw, fn_validhzs,
+                             max_lemma_num < kSysDictIdEnd ?
+                             max_lemma_num : kSysDictIdEnd);
   if (0 == lemma_num_)
     return false;
 
@@ -536,25 +643,7 @@ bool DictBuilder::build_dict(const char *fn_raw,
   printf("spelling tree construct successfully.\n");
 
   // Convert the spelling string to idxs
-  for (size_t i = 0; i < lemma_num_; i++) {
-    for (size_t hz_pos = 0; hz_pos < (size_t)lemma_arr_[i].hz_str_len;
-         hz_pos++) {
-      uint16 spl_idxs[2];
-      uint16 spl_start_pos[3];
-      bool is_pre = true;
-      int spl_idx_num =
-        spl_parser_->splstr_to_idxs(lemma_arr_[i].pinyin_str[hz_pos],
-                                    strlen(lemma_arr_[i].pinyin_str[hz_pos]),
-                                    spl_idxs, spl_start_pos, 2, is_pre);
-      assert(1 == spl_idx_num);
-
-      if (spl_trie.is_half_id(spl_idxs[0])) {
-        uint16 num = spl_trie.half_to_full(spl_idxs[0], spl_idxs);
-        assert(0 != num);
-      }
-      lemma_arr_[i].spl_idx_arr[hz_pos] = spl_idxs[0];
-    }
-  }
+  parallel_for(lemma_num_, convert_spellings, this);
 
   // Sort the lemma items according to the hanzi, and give each unique item a
   // id
@@ -574,23 +663,53 @@ bool DictBuilder::build_dict(const char *fn_raw,
                       lemma_arr_[lemma_num_ - 1].idx_by_hz + 1);
 
   // sort the lemma items according to the spelling idx string
-  myqsort(lemma_arr_, lemma_num_, sizeof(LemmaEntry), compare_py);
+  parallel_stable_sort(lemma_arr_, lemma_num_, sizeof(LemmaEntry),
+                       compare_py);
 
   get_top_lemmas();
 
+  // The nodes are addressed with 24 bits, see LmaNodeGE1.
+  size_t node_num_ge1 = count_ge1_nodes();
+  if (node_num_ge1 > kLmaNodeGE1OffsetMax) {
+    printf("Too many nodes: %zu\n", node_num_ge1);
+    free_resource();
+    return false;
+  }
+  lma_nodes_ge1_ = new LmaNodeGE1[node_num_ge1 > 0 ? node_num_ge1 : 1];
+  homo_idx_buf_ = new LemmaIdType[lemma_num_];
+  if (NULL == lma_nodes_ge1_ || NULL == homo_idx_buf_) {
+    free_resource();
+    return false;
+  }
+  memset(lma_nodes_ge1_, 0, sizeof(LmaNodeGE1) * node_num_ge1);
+  memset(homo_idx_buf_, 0, sizeof(LemmaIdType) * lemma_num_);
+
 #ifdef ___DO_STATISTICS___
   stat_init();
 #endif
 
+  SubsetCursor cursor;
+  memset(&cursor, 0, sizeof(SubsetCursor));
+  subset_task_num_ = 0;
   lma_nds_used_num_le0_ = 1;  // The root node
   bool dt_success = construct_subset(static_cast<void*>(lma_nodes_le0_),
-                                     lemma_arr_, 0, lemma_num_, 0);
+                                     lemma_arr_, 0, lemma_num_, 0, &cursor);
   if (!dt_success) {
     free_resource();
     return false;
   }
 
+  // Build the subtrees under the sons of the root.
+  parallel_for(subset_task_num_, run_subset_task, this);
+  lma_nds_used_num_ge1_ = cursor.nodes_ge1;
+  homo_idx_num_eq1_ = cursor.homo_eq1;
+  homo_idx_num_gt1_ = cursor.homo_gt1;
+  assert(lma_nds_used_num_ge1_ == node_num_ge1);
+
 #ifdef ___DO_STATISTICS___
+  stat_merge(cursor.stat);
+  for (size_t pos = 0; pos < subset_task_num_; pos++)
+    stat_merge(subset_tasks_[pos].cursor.stat);
   stat_print();
 #endif
 
@@ -610,6 +729,7 @@ bool DictBuilder::build_dict(const char *fn_raw,
          sizeof(LmaNodeLE0) * lma_nds_used_num_le0_);
   memcpy(dict_trie->nodes_ge1_, lma_nodes_ge1_,
          sizeof(LmaNodeGE1) * lma_nds_used_num_ge1_);
+  dict_trie->ge1_wides_ = merge_wides(&dict_trie->ge1_wide_num_);
 
   for (size_t pos = 0; pos < homo_idx_num_eq1_ + homo_idx_num_gt1_; pos++) {
     id_to_charbuf(dict_trie->lma_idx_buf_ + pos * kLemmaIdSize,
@@ -637,6 +757,28 @@ bool DictBuilder::build_dict(const char *fn_raw,
   return dt_success;
 }
 
+void DictBuilder::convert_spellings(void *arg, size_t index) {
+  DictBuilder *builder = static_cast<DictBuilder*>(arg);
+  const SpellingTrie &spl_trie = SpellingTrie::get_instance();
+  LemmaEntry *lemma = builder->lemma_arr_ + index;
+  for (size_t hz_pos = 0; hz_pos < (size_t)lemma->hz_str_len; hz_pos++) {
+    uint16 spl_idxs[2];
+    uint16 spl_start_pos[3];
+    bool is_pre = true;
+    int spl_idx_num =
+      builder->spl_parser_->splstr_to_idxs(lemma->pinyin_str[hz_pos],
+                                           strlen(lemma->pinyin_str[hz_pos]),
+                                           spl_idxs, spl_start_pos, 2, is_pre);
+    assert(1 == spl_idx_num);
+
+    if (spl_trie.is_half_id(spl_idxs[0])) {
+      uint16 num = spl_trie.half_to_full(spl_idxs[0], spl_idxs);
+      assert(0 != num);
+    }
+    lemma->spl_idx_arr[hz_pos] = spl_idxs[0];
+  }
+}
+
 void DictBuilder::id_to_charbuf(unsigned char *buf, LemmaIdType id) {
   if (NULL == buf) return;
   for (size_t pos = 0; pos < kLemmaIdSize; pos++) {
@@ -680,7 +822,8 @@ LemmaIdType DictBuilder::sort_lemmas_by_hz() {
   if (NULL == lemma_arr_ || 0 == lemma_num_)
     return 0;
 
-  myqsort(lemma_arr_, lemma_num_, sizeof(LemmaEntry), cmp_lemma_entry_hzs);
+  parallel_stable_sort(lemma_arr_, lemma_num_, sizeof(LemmaEntry),
+                       cmp_lemma_entry_hzs);
 
   lemma_arr_[0].idx_by_hz = 1;
   LemmaIdType idx_max = 1;
@@ -697,8 +840,15 @@ LemmaIdType DictBuilder::sort_lemmas_by_hz() {
 }
 
 size_t DictBuilder::build_scis() {
-  if (NULL == scis_ || lemma_num_ * kMaxLemmaSize > scis_num_)
+  // One item for each Hanzi of each lemma, and a blank one.
+  size_t hz_num_total = 1;
+  for (size_t pos = 0; pos < lemma_num_; pos++)
+    hz_num_total += lemma_arr_[pos].hz_str_len;
+
+  scis_ = new SingleCharItem[hz_num_total];
+  if (NULL == scis_)
     return 0;
+  memset(scis_, 0, sizeof(SingleCharItem) * hz_num_total);
 
   SpellingTrie &spl_trie = SpellingTrie::get_instance();
 
@@ -725,7 +875,8 @@ size_t DictBuilder::build_scis() {
     }
   }
 
-  myqsort(scis_, scis_num_, sizeof(SingleCharItem), cmp_scis_hz_splid_freq);
+  parallel_stable_sort(scis_, scis_num_, sizeof(SingleCharItem),
+                       cmp_scis_hz_splid_freq);
 
   // Remove repeated items
   size_t unique_scis_num = 1;
@@ -769,7 +920,7 @@ size_t DictBuilder::build_scis() {
 
 bool DictBuilder::construct_subset(void* parent, LemmaEntry* lemma_arr,
                                    size_t item_start, size_t item_end,
-                                   size_t level) {
+                                   size_t level, SubsetCursor *cursor) {
   if (level >= kMaxLemmaSize || item_end <= item_start)
     return false;
 
@@ -797,17 +948,17 @@ bool DictBuilder::construct_subset(void* parent, LemmaEntry* lemma_arr,
   bool allson_noson = true;
 
   assert(level < kMaxLemmaSize);
-  if (parent_son_num > max_sonbuf_len_[level])
-    max_sonbuf_len_[level] = parent_son_num;
+  if (parent_son_num > cursor->stat.max_sonbuf_len[level])
+    cursor->stat.max_sonbuf_len[level] = parent_son_num;
 
-  total_son_num_[level] += parent_son_num;
-  total_sonbuf_num_[level] += 1;
+  cursor->stat.total_son_num[level] += parent_son_num;
+  cursor->stat.total_sonbuf_num[level] += 1;
 
   if (parent_son_num == 1)
-    sonbufs_num1_++;
+    cursor->stat.sonbufs_num1++;
   else
-    sonbufs_numgt1_++;
-  total_lma_node_num_ += parent_son_num;
+    cursor->stat.sonbufs_numgt1++;
+  cursor->stat.total_lma_node_num += parent_son_num;
 #endif
 
   // 2. Update the parent's information
@@ -825,22 +976,20 @@ bool DictBuilder::construct_subset(void* parent, LemmaEntry* lemma_arr,
       static_cast<uint16>(parent_son_num);
   } else if (1 == level) {  // the parent is a son of root
     (static_cast<LmaNodeLE0*>(parent))->son_1st_off =
-      lma_nds_used_num_ge1_;
-    son_1st_ge1 = lma_nodes_ge1_ + lma_nds_used_num_ge1_;
-    lma_nds_used_num_ge1_ += parent_son_num;
+      cursor->nodes_ge1;
+    son_1st_ge1 = lma_nodes_ge1_ + cursor->nodes_ge1;
+    cursor->nodes_ge1 += parent_son_num;
 
     assert(parent_son_num <= 65535);
     (static_cast<LmaNodeLE0*>(parent))->num_of_son =
       static_cast<uint16>(parent_son_num);
   } else {
     set_son_offset((static_cast<LmaNodeGE1*>(parent)),
-                   lma_nds_used_num_ge1_);
-    son_1st_ge1 = lma_nodes_ge1_ + lma_nds_used_num_ge1_;
-    lma_nds_used_num_ge1_ += parent_son_num;
+                   cursor->nodes_ge1);
+    son_1st_ge1 = lma_nodes_ge1_ + cursor->nodes_ge1;
+    cursor->nodes_ge1 += parent_son_num;
 
-    assert(parent_son_num <= 255);
-    (static_cast<LmaNodeGE1*>(parent))->num_of_son =
-      (unsigned char)parent_son_num;
+    set_son_num(static_cast<LmaNodeGE1*>(parent), parent_son_num, cursor);
   }
 
   // 3. Now begin to construct the son one by one
@@ -869,28 +1018,27 @@ bool DictBuilder::construct_subset(void* parent, LemmaEntry* lemma_arr,
       if (0 == level) {
         node_cur_le0 = son_1st_le0 + son_pos;
         node_cur_le0->spl_idx = spl_idx_node;
-        node_cur_le0->homo_idx_buf_off = homo_idx_num_eq1_ + homo_idx_num_gt1_;
+        node_cur_le0->homo_idx_buf_off = cursor->homo_eq1 + cursor->homo_gt1;
         node_cur_le0->son_1st_off = 0;
-        homo_idx_num_eq1_ += homo_num;
+        cursor->homo_eq1 += homo_num;
       } else {
         node_cur_ge1 = son_1st_ge1 + son_pos;
         node_cur_ge1->spl_idx = spl_idx_node;
 
         set_homo_id_buf_offset(node_cur_ge1,
-                               (homo_idx_num_eq1_ + homo_idx_num_gt1_));
+                               (cursor->homo_eq1 + cursor->homo_gt1));
         set_son_offset(node_cur_ge1, 0);
-        homo_idx_num_gt1_ += homo_num;
+        cursor->homo_gt1 += homo_num;
       }
 
       if (homo_num > 0) {
-        LemmaIdType* idx_buf = homo_idx_buf_ + homo_idx_num_eq1_ +
-              homo_idx_num_gt1_ - homo_num;
+        LemmaIdType* idx_buf = homo_idx_buf_ + cursor->homo_eq1 +
+              cursor->homo_gt1 - homo_num;
         if (0 == level) {
           assert(homo_num <= 65535);
           node_cur_le0->num_of_homo = static_cast<uint16>(homo_num);
         } else {
-          assert(homo_num <= 255);
-          node_cur_ge1->num_of_homo = (unsigned char)homo_num;
+          set_homo_num(node_cur_ge1, homo_num, cursor);
         }
 
         for (size_t homo_pos = 0; homo_pos < homo_num; homo_pos++) {
@@ -898,10 +1046,10 @@ bool DictBuilder::construct_subset(void* parent, LemmaEntry* lemma_arr,
         }
 
 #ifdef ___DO_STATISTICS___
-        if (homo_num > max_homobuf_len_[level])
-          max_homobuf_len_[level] = homo_num;
+        if (homo_num > cursor->stat.max_homobuf_len[level])
+          cursor->stat.max_homobuf_len[level] = homo_num;
 
-        total_homo_num_[level] += homo_num;
+        cursor->stat.total_homo_num[level] += homo_num;
 #endif
       }
 
@@ -911,11 +1059,11 @@ bool DictBuilder::construct_subset(void* parent, LemmaEntry* lemma_arr,
           next_parent = static_cast<void*>(node_cur_le0);
         else
           next_parent = static_cast<void*>(node_cur_ge1);
-        construct_subset(next_parent, lemma_arr,
-                         item_start_next + homo_num, i, level + 1);
+        construct_son_subset(next_parent, item_start_next + homo_num, i,
+                             level + 1, cursor);
 #ifdef ___DO_STATISTICS___
 
-        total_node_hasson_[level] += 1;
+        cursor->stat.total_node_hasson[level] += 1;
         allson_noson = false;
 #endif
       }
@@ -938,28 +1086,27 @@ bool DictBuilder::construct_subset(void* parent, LemmaEntry* lemma_arr,
   if (0 == level) {
     node_cur_le0 = son_1st_le0 + son_pos;
     node_cur_le0->spl_idx = spl_idx_node;
-    node_cur_le0->homo_idx_buf_off = homo_idx_num_eq1_ + homo_idx_num_gt1_;
+    node_cur_le0->homo_idx_buf_off = cursor->homo_eq1 + cursor->homo_gt1;
     node_cur_le0->son_1st_off = 0;
-    homo_idx_num_eq1_ += homo_num;
+    cursor->homo_eq1 += homo_num;
   } else {
     node_cur_ge1 = son_1st_ge1 + son_pos;
     node_cur_ge1->spl_idx = spl_idx_node;
 
     set_homo_id_buf_offset(node_cur_ge1,
-                           (homo_idx_num_eq1_ + homo_idx_num_gt1_));
+                           (cursor->homo_eq1 + cursor->homo_gt1));
     set_son_offset(node_cur_ge1, 0);
-    homo_idx_num_gt1_ += homo_num;
+    cursor->homo_gt1 += homo_num;
   }
 
   if (homo_num > 0) {
-    LemmaIdType* idx_buf = homo_idx_buf_ + homo_idx_num_eq1_ +
-          homo_idx_num_gt1_ - homo_num;
+    LemmaIdType* idx_buf = homo_idx_buf_ + cursor->homo_eq1 +
+          cursor->homo_gt1 - homo_num;
     if (0 == level) {
       assert(homo_num <= 65535);
       node_cur_le0->num_of_homo = static_cast<uint16>(homo_num);
     } else {
-      assert(homo_num <= 255);
-      node_cur_ge1->num_of_homo = (unsigned char)homo_num;
+      set_homo_num(node_cur_ge1, homo_num, cursor);
     }
 
     for (size_t homo_pos = 0; homo_pos < homo_num; homo_pos++) {
@@ -967,10 +1114,10 @@ bool DictBuilder::construct_subset(void* parent, LemmaEntry* lemma_arr,
     }
 
 #ifdef ___DO_STATISTICS___
-    if (homo_num > max_homobuf_len_[level])
-      max_homobuf_len_[level] = homo_num;
+    if (homo_num > cursor->stat.max_homobuf_len[level])
+      cursor->stat.max_homobuf_len[level] = homo_num;
 
-    total_homo_num_[level] += homo_num;
+    cursor->stat.total_homo_num[level] += homo_num;
 #endif
   }
 
@@ -980,19 +1127,19 @@ bool DictBuilder::construct_subset(void* parent, LemmaEntry* lemma_arr,
       next_parent = static_cast<void*>(node_cur_le0);
     else
       next_parent = static_cast<void*>(node_cur_ge1);
-    construct_subset(next_parent, lemma_arr,
-                     item_start_next + homo_num, item_end, level + 1);
+    construct_son_subset(next_parent, item_start_next + homo_num, item_end,
+                         level + 1, cursor);
 #ifdef ___DO_STATISTICS___
 
-    total_node_hasson_[level] += 1;
+    cursor->stat.total_node_hasson[level] += 1;
     allson_noson = false;
 #endif
   }
 
 #ifdef ___DO_STATISTICS___
   if (allson_noson) {
-    total_sonbuf_allnoson_[level] += 1;
-    total_node_in_sonbuf_allnoson_[level] += parent_son_num;
+    cursor->stat.total_sonbuf_allnoson[level] += 1;
+    cursor->stat.total_node_in_sonbuf_allnoson[level] += parent_son_num;
   }
 #endif
 
@@ -1000,20 +1147,185 @@ bool DictBuilder::construct_subset(void* parent, LemmaEntry* lemma_arr,
   return true;
 }
 
+void DictBuilder::construct_son_subset(void* parent, size_t item_start,
+                                       size_t item_end, size_t level,
+                                       SubsetCursor *cursor) {
+  if (level > 1) {
+    construct_subset(parent, lemma_arr_, item_start, item_end, level, cursor);
+    return;
+  }
+
+  // The subtree takes the next nodes, and the next homophonies' ids, one for
+  // each item, so the ones after it can be allocated before it is built.
+  assert(subset_task_num_ <= kMaxSpellingNum);
+  SubsetTask *task = subset_tasks_ + subset_task_num_;
+  subset_task_num_++;
+  task->parent = parent;
+  task->item_start = item_start;
+  task->item_end = item_end;
+  task->cursor = *cursor;
+  task->cursor.wides = NULL;
+  task->cursor.wide_num = 0;
+  task->cursor.wide_size = 0;
+#ifdef ___DO_STATISTICS___
+  memset(&task->cursor.stat, 0, sizeof(TrieStat));
+#endif
+  cursor->nodes_ge1 += count_subset_nodes(item_start, item_end, level);
+  cursor->homo_gt1 += item_end - item_start;
+  task->nodes_ge1_end = cursor->nodes_ge1;
+}
+
+size_t DictBuilder::count_subset_nodes(size_t item_start, size_t item_end,
+                                       size_t level) {
+  // Each item adds a node for each of its spellings from the first one in
+  // which it differs from the item before it.
+  size_t node_num = 0;
+  for (size_t pos = item_start; pos < item_end; pos++) {
+    const uint16 *spl_idx_arr = lemma_arr_[pos].spl_idx_arr;
+    size_t diff_pos = level;
+    if (pos > item_start) {
+      const uint16 *spl_idx_prev = lemma_arr_[pos - 1].spl_idx_arr;
+      while (0 != spl_idx_arr[diff_pos] &&
+             spl_idx_arr[diff_pos] == spl_idx_prev[diff_pos])
+        diff_pos++;
+    }
+    while (0 != spl_idx_arr[diff_pos]) {
+      node_num++;
+      diff_pos++;
+    }
+  }
+  return node_num;
+}
+
+size_t DictBuilder::count_ge1_nodes() {
+  // The sons of each first level node make a subset, as they do in
+  // construct_son_subset().
+  size_t node_num = 0;
+  size_t item_start = 0;
+  for (size_t pos = 1; pos <= lemma_num_; pos++) {
+    if (pos == lemma_num_ || lemma_arr_[pos].spl_idx_arr[0] !=
+        lemma_arr_[item_start].spl_idx_arr[0]) {
+      node_num += count_subset_nodes(item_start, pos, 1);
+      item_start = pos;
+    }
+  }
+  return node_num;
+}
+
+void DictBuilder::set_son_num(LmaNodeGE1 *node, size_t son_num,
+                              SubsetCursor *cursor) {
+  if (son_num < kLmaNodeGE1NumWide) {
+    node->num_of_son = static_cast<unsigned char>(son_num);
+    return;
+  }
+  node->num_of_son = kLmaNodeGE1NumWide;
+  add_wide(node, son_num, 0, cursor);
+}
+
+void DictBuilder::set_homo_num(LmaNodeGE1 *node, size_t homo_num,
+                               SubsetCursor *cursor) {
+  if (homo_num < kLmaNodeGE1NumWide) {
+    node->num_of_homo = static_cast<unsigned char>(homo_num);
+    return;
+  }
+  node->num_of_homo = kLmaNodeGE1NumWide;
+  add_wide(node, 0, homo_num, cursor);
+}
+
+void DictBuilder::add_wide(LmaNodeGE1 *node, size_t son_num, size_t homo_num,
+                           SubsetCursor *cursor) {
+  assert(son_num <= 65535 && homo_num <= 65535);
+  if (cursor->wide_num == cursor->wide_size) {
+    size_t wide_size = cursor->wide_size > 0 ? cursor->wide_size * 2 : 64;
+    LmaNodeGE1Wide *wides = static_cast<LmaNodeGE1Wide*>(
+        realloc(cursor->wides, wide_size * sizeof(LmaNodeGE1Wide)));
+    assert(NULL != wides);
+    cursor->wides = wides;
+    cursor->wide_size = wide_size;
+  }
+
+  LmaNodeGE1Wide *wide = cursor->wides + cursor->wide_num;
+  wide->node = static_cast<uint32>(node - lma_nodes_ge1_);
+  wide->num_of_son = static_cast<uint16>(son_num);
+  wide->num_of_homo = static_cast<uint16>(homo_num);
+  cursor->wide_num++;
+}
+
+LmaNodeGE1Wide* DictBuilder::merge_wides(size_t *wide_num) {
+  size_t num = 0;
+  for (size_t pos = 0; pos < subset_task_num_; pos++)
+    num += subset_tasks_[pos].cursor.wide_num;
+
+  *wide_num = 0;
+  if (0 == num)
+    return NULL;
+
+  LmaNodeGE1Wide *wides = static_cast<LmaNodeGE1Wide*>(
+      malloc(num * sizeof(LmaNodeGE1Wide)));
+  assert(NULL != wides);
+  num = 0;
+  for (size_t pos = 0; pos < subset_task_num_; pos++) {
+    SubsetCursor *cursor = &subset_tasks_[pos].cursor;
+    memcpy(wides + num, cursor->wides,
+           cursor->wide_num * sizeof(LmaNodeGE1Wide));
+    num += cursor->wide_num;
+  }
+  myqsort(wides, num, sizeof(LmaNodeGE1Wide), cmp_lma_node_ge1_wide);
+
+  // Join the items of the same node. A number which is not in an item fits
+  // in the node.
+  size_t unique_num = 0;
+  for (size_t pos = 0; pos < num; pos++) {
+    if (unique_num > 0 && wides[unique_num - 1].node == wides[pos].node) {
+      wides[unique_num - 1].num_of_son += wides[pos].num_of_son;
+      wides[unique_num - 1].num_of_homo += wides[pos].num_of_homo;
+    } else {
+      wides[unique_num++] = wides[pos];
+    }
+  }
+  for (size_t pos = 0; pos < unique_num; pos++) {
+    const LmaNodeGE1 *node = lma_nodes_ge1_ + wides[pos].node;
+    if (0 == wides[pos].num_of_son)
+      wides[pos].num_of_son = node->num_of_son;
+    if (0 == wides[pos].num_of_homo)
+      wides[pos].num_of_homo = node->num_of_homo;
+  }
+
+  *wide_num = unique_num;
+  return wides;
+}
+
+void DictBuilder::run_subset_task(void *arg, size_t index) {
+  DictBuilder *builder = static_cast<DictBuilder*>(arg);
+  SubsetTask *task = builder->subset_tasks_ + index;
+  builder->construct_subset(task->parent, builder->lemma_arr_,
+                            task->item_start, task->item_end, 1,
+                            &task->cursor);
+  assert(task->cursor.nodes_ge1 == task->nodes_ge1_end);
+}
+
 #ifdef ___DO_STATISTICS___
 void DictBuilder::stat_init() {
-  memset(max_sonbuf_len_, 0, sizeof(size_t) * kMaxLemmaSize);
-  memset(max_homobuf_len_, 0, sizeof(size_t) * kMaxLemmaSize);
-  memset(total_son_num_, 0, sizeof(size_t) * kMaxLemmaSize);
-  memset(total_node_hasson_, 0, sizeof(size_t) * kMaxLemmaSize);
-  memset(total_sonbuf_num_, 0, sizeof(size_t) * kMaxLemmaSize);
-  memset(total_sonbuf_allnoson_, 0, sizeof(size_t) * kMaxLemmaSize);
-  memset(total_node_in_sonbuf_allnoson_, 0, sizeof(size_t) * kMaxLemmaSize);
-  memset(total_homo_num_, 0, sizeof(size_t) * kMaxLemmaSize);
-
-  sonbufs_num1_ = 0;
-  sonbufs_numgt1_ = 0;
-  total_lma_node_num_ = 0;
+  memset(&stat_, 0, sizeof(TrieStat));
+}
+
+void DictBuilder::stat_merge(const TrieStat &stat) {
+  for (size_t i = 0; i < kMaxLemmaSize; i++) {
+    if (stat.max_sonbuf_len[i] > stat_.max_sonbuf_len[i])
+      stat_.max_sonbuf_len[i] = stat.max_sonbuf_len[i];
+    if (stat.max_homobuf_len[i] > stat_.max_homobuf_len[i])
+      stat_.max_homobuf_len[i] = stat.max_homobuf_len[i];
+    stat_.total_son_num[i] += stat.total_son_num[i];
+    stat_.total_node_hasson[i] += stat.total_node_hasson[i];
+    stat_.total_sonbuf_num[i] += stat.total_sonbuf_num[i];
+    stat_.total_sonbuf_allnoson[i] += stat.total_sonbuf_allnoson[i];
+    stat_.total_node_in_sonbuf_allnoson[i] +=
+        stat.total_node_in_sonbuf_allnoson[i];
+    stat_.total_homo_num[i] += stat.total_homo_num[i];
+  }
+  stat_.sonbufs_num1 += stat.sonbufs_num1;
+  stat_.sonbufs_numgt1 += stat.sonbufs_numgt1;
+  stat_.total_lma_node_num += stat.total_lma_node_num;
 }
 
 void DictBuilder::stat_print() {
@@ -1021,48 +1333,49 @@ void DictBuilder::stat_print() {
   printf("[root is layer -1]\n");
   printf(".. max_sonbuf_len per layer(from layer 0):\n   ");
   for (size_t i = 0; i < kMaxLemmaSize; i++)
-    printf("%d, ", max_sonbuf_len_[i]);
+    printf("%d, ", stat_.max_sonbuf_len[i]);
   printf("-, \n");
 
   printf(".. max_homobuf_len per layer:\n   -, ");
   for (size_t i = 0; i < kMaxLemmaSize; i++)
-    printf("%d, ", max_homobuf_len_[i]);
+    printf("%d, ", stat_.max_homobuf_len[i]);
   printf("\n");
 
   printf(".. total_son_num per layer:\n   ");
   for (size_t i = 0; i < kMaxLemmaSize; i++)
-    printf("%d, ", total_son_num_[i]);
+    printf("%d, ", stat_.total_son_num[i]);
   printf("-, \n");
 
   printf(".. total_node_hasson per layer:\n   1, ");
   for (size_t i = 0; i < kMaxLemmaSize; i++)
-    printf("%d, ", total_node_hasson_[i]);
+    printf("%d, ", stat_.total_node_hasson[i]);
   printf("\n");
 
   printf(".. total_sonbuf_num per layer:\n   ");
   for (size_t i = 0; i < kMaxLemmaSize; i++)
-    printf("%d, ", total_sonbuf_num_[i]);
+    printf("%d, ", stat_.total_sonbuf_num[i]);
   printf("-, \n");
 
   printf(".. total_sonbuf_allnoson per layer:\n   ");
   for (size_t i = 0; i < kMaxLemmaSize; i++)
-    printf("%d, ", total_sonbuf_allnoson_[i]);
+    printf("%d, ", stat_.total_sonbuf_allnoson[i]);
   printf("-, \n");
 
   printf(".. total_node_in_sonbuf_allnoson per layer:\n   ");
   for (size_t i = 0; i < kMaxLemmaSize; i++)
-    printf("%d, ", total_node_in_sonbuf_allnoson_[i]);
+    printf("%d, ", stat_.total_node_in_sonbuf_allnoson[i]);
   printf("-, \n");
 
   printf(".. total_homo_num per layer:\n   0, ");
   for (size_t i = 0; i < kMaxLemmaSize; i++)
-    printf("%d, ", total_homo_num_[i]);
+    printf("%d, ", stat_.total_homo_num[i]);
   printf("\n");
 
-  printf(".. son buf allocation number with only 1 son: %d\n", sonbufs_num1_);
+  printf(".. son buf allocation number with only 1 son: %d\n",
+         stat_.sonbufs_num1);
   printf(".. son buf allocation number with more than 1 son: %d\n",
-         sonbufs_numgt1_);
-  printf(".. total lemma node number: %d\n", total_lma_node_num_ + 1);
+         stat_.sonbufs_numgt1);
+  printf(".. total lemma node number: %d\n", stat_.total_lma_node_num + 1);
 }
 #endif  // ___DO_STATISTICS___
 
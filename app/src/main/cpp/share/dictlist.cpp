@@ -30,6 +30,9 @@ DictList::DictList() {
   scis_hz_ = NULL;
   scis_splid_ = NULL;
   buf_ = NULL;
+  own_scis_hz_ = false;
+  own_scis_splid_ = false;
+  own_buf_ = false;
   spl_trie_ = SpellingTrie::get_cpinstance();
 
   assert(kMaxLemmaSize == 8);
@@ -50,17 +53,20 @@ DictList::~DictList() {
 bool DictList::alloc_resource(size_t buf_size, size_t scis_num) {
   // Allocate memory
   buf_ = static_cast<char16*>(malloc(buf_size * sizeof(char16)));
+  own_buf_ = true;
   if (NULL == buf_)
     return false;
 
   scis_num_ = scis_num;
 
   scis_hz_ = static_cast<char16*>(malloc(scis_num_ * sizeof(char16)));
+  own_scis_hz_ = true;
   if (NULL == scis_hz_)
     return false;
 
   scis_splid_ = static_cast<SpellingId*>
       (malloc(scis_num_ * sizeof(SpellingId)));
+  own_scis_splid_ = true;
 
   if (NULL == scis_splid_)
     return false;
@@ -69,15 +75,15 @@ bool DictList::alloc_resource(size_t buf_size, size_t scis_num) {
 }
 
 void DictList::free_resource() {
-  if (NULL != buf_)
+  if (NULL != buf_ && own_buf_)
     free(buf_);
   buf_ = NULL;
 
-  if (NULL != scis_hz_)
+  if (NULL != scis_hz_ && own_scis_hz_)
     free(scis_hz_);
   scis_hz_ = NULL;
 
-  if (NULL != scis_splid_)
+  if (NULL != scis_splid_ && own_scis_splid_)
     free(scis_splid_);
   scis_splid_ = NULL;
 }
@@ -408,36 +414,35 @@ bool DictList::save_list(FILE *fp) {
   return true;
 }
 
-bool DictList::load_list(FILE *fp) {
-  if (NULL == fp)
+bool DictList::load_list(DictReader *reader) {
+  if (NULL == reader)
     return false;
 
   initialized_ = false;
 
-  if (fread(&scis_num_, sizeof(size_t), 1, fp) != 1)
+  if (reader->read(&scis_num_, sizeof(size_t), 1) != 1)
     return false;
 
-  if (fread(start_pos_, sizeof(size_t), kMaxLemmaSize + 1, fp) !=
+  if (reader->read(start_pos_, sizeof(size_t), kMaxLemmaSize + 1) !=
       kMaxLemmaSize + 1)
     return false;
 
-  if (fread(start_id_, sizeof(size_t), kMaxLemmaSize + 1, fp) !=
+  if (reader->read(start_id_, sizeof(size_t), kMaxLemmaSize + 1) !=
       kMaxLemmaSize + 1)
     return false;
 
   free_resource();
 
-  if (!alloc_resource(start_pos_[kMaxLemmaSize], scis_num_))
-    return false;
-
-  if (fread(scis_hz_, sizeof(char16), scis_num_, fp) != scis_num_)
+  scis_hz_ = map_or_copy<char16>(reader, scis_num_, &own_scis_hz_);
+  if (NULL == scis_hz_)
     return false;
 
-  if (fread(scis_splid_, sizeof(SpellingId), scis_num_, fp) != scis_num_)
+  scis_splid_ = map_or_copy<SpellingId>(reader, scis_num_, &own_scis_splid_);
+  if (NULL == scis_splid_)
     return false;
 
-  if (fread(buf_, sizeof(char16), start_pos_[kMaxLemmaSize], fp) !=
-      start_pos_[kMaxLemmaSize])
+  buf_ = map_or_copy<char16>(reader, start_pos_[kMaxLemmaSize], &own_buf_);
+  if (NULL == buf_)
     return false;
 
   initialized_ = true;
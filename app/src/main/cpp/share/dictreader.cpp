@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <string.h>
+#include <sys/mman.h>
+#include <unistd.h>
+#include "../include/dictreader.h"
+
+namespace ime_pinyin {
+
+DictReader::DictReader(FILE *fp) {
+  fp_ = fp;
+  data_ = NULL;
+  size_ = 0;
+  pos_ = 0;
+}
+
+DictReader::DictReader(const void *data, size_t size) {
+  fp_ = NULL;
+  data_ = static_cast<const unsigned char*>(data);
+  size_ = size;
+  pos_ = 0;
+}
+
+size_t DictReader::read(void *dst, size_t size, size_t n) {
+  if (NULL != fp_)
+    return fread(dst, size, n, fp_);
+
+  if (NULL == data_ || 0 == size)
+    return 0;
+
+  size_t avail = (size_ - pos_) / size;
+  if (n > avail)
+    n = avail;
+  memcpy(dst, data_ + pos_, size * n);
+  pos_ += size * n;
+  return n;
+}
+
+bool DictReader::peek(void *dst, size_t size) {
+  if (NULL != fp_) {
+    long pos = ftell(fp_);
+    if (-1 == pos)
+      return false;
+    size_t n = fread(dst, size, 1, fp_);
+    return 0 == fseek(fp_, pos, SEEK_SET) && 1 == n;
+  }
+
+  if (NULL == data_ || size > size_ - pos_)
+    return false;
+  memcpy(dst, data_ + pos_, size);
+  return true;
+}
+
+const void* DictReader::map(size_t size, size_t n, size_t align) {
+  if (NULL == data_ || 0 == size || n > (size_ - pos_) / size)
+    return NULL;
+
+  const unsigned char *ret = data_ + pos_;
+  if (0 != reinterpret_cast<size_t>(ret) % align)
+    return NULL;
+
+  pos_ += size * n;
+  return ret;
+}
+
+DictMapping::DictMapping() {
+  addr_ = MAP_FAILED;
+  map_len_ = 0;
+  data_ = NULL;
+  size_ = 0;
+}
+
+DictMapping::~DictMapping() {
+  unmap();
+}
+
+bool DictMapping::map(int fd, long offset, long length) {
+  unmap();
+  if (fd < 0 || offset < 0 || length <= 0)
+    return false;
+
+  // mmap() needs a page aligned offset.
+  long page_size = sysconf(_SC_PAGESIZE);
+  if (page_size <= 0)
+    return false;
+  long delta = offset % page_size;
+
+  map_len_ = static_cast<size_t>(length + delta);
+  addr_ = mmap(NULL, map_len_, PROT_READ, MAP_SHARED, fd, offset - delta);
+  if (MAP_FAILED == addr_) {
+    map_len_ = 0;
+    return false;
+  }
+
+  data_ = static_cast<unsigned char*>(addr_) + delta;
+  size_ = static_cast<size_t>(length);
+  return true;
+}
+
+void DictMapping::unmap() {
+  if (MAP_FAILED != addr_)
+    munmap(addr_, map_len_);
+  addr_ = MAP_FAILED;
+  map_len_ = 0;
+  data_ = NULL;
+  size_ = 0;
+}
+
+}  // namespace ime_pinyin
@@ -15,8 +15,11 @@
  */
 
 #include <assert.h>
+#include <fcntl.h>
 #include <stdio.h>
 #include <string.h>
+#include <sys/stat.h>
+#include <unistd.h>
 #include "../include/dicttrie.h"
 #include "../include/dictbuilder.h"
 #include "../include/lpicache.h"
@@ -33,14 +36,22 @@ DictTrie::DictTrie() {
   lma_node_num_le0_ = 0;
   nodes_ge1_ = NULL;
   lma_node_num_ge1_ = 0;
+  ge1_wides_ = NULL;
+  ge1_wide_num_ = 0;
   lma_idx_buf_ = NULL;
   lma_idx_buf_len_ = 0;
   total_lma_num_ = 0;
   top_lmas_num_ = 0;
+  own_root_ = true;
+  own_nodes_ge1_ = true;
+  own_ge1_wides_ = true;
+  own_lma_idx_buf_ = true;
   dict_list_ = NULL;
 
   parsing_marks_ = NULL;
+  parsing_marks_len_ = 0;
   mile_stones_ = NULL;
+  mile_stones_len_ = 0;
   reset_milestones(0, kFirstValidMileStoneHandle);
 }
 
@@ -49,7 +60,7 @@ DictTrie::~DictTrie() {
 }
 
 void DictTrie::free_resource(bool free_dict_list) {
-  if (NULL != root_)
+  if (NULL != root_ && own_root_)
     free(root_);
   root_ = NULL;
 
@@ -57,28 +68,41 @@ void DictTrie::free_resource(bool free_dict_list) {
     free(splid_le0_index_);
   splid_le0_index_ = NULL;
 
-  if (NULL != nodes_ge1_)
+  if (NULL != nodes_ge1_ && own_nodes_ge1_)
     free(nodes_ge1_);
   nodes_ge1_ = NULL;
 
-  if (NULL != nodes_ge1_)
-    free(nodes_ge1_);
-  nodes_ge1_ = NULL;
+  if (NULL != ge1_wides_ && own_ge1_wides_)
+    free(ge1_wides_);
+  ge1_wides_ = NULL;
+  ge1_wide_num_ = 0;
+
+  if (NULL != lma_idx_buf_ && own_lma_idx_buf_)
+    free(lma_idx_buf_);
+  lma_idx_buf_ = NULL;
 
   if (free_dict_list) {
     if (NULL != dict_list_) {
       delete dict_list_;
     }
     dict_list_ = NULL;
+
+    // The n-gram tables may point into the mapping too.
+    if (NULL != map_.data()) {
+      NGram::get_instance().free_resource();
+      map_.unmap();
+    }
   }
 
   if (parsing_marks_)
     delete [] parsing_marks_;
   parsing_marks_ = NULL;
+  parsing_marks_len_ = 0;
 
   if (mile_stones_)
     delete [] mile_stones_;
   mile_stones_ = NULL;
+  mile_stones_len_ = 0;
 
   reset_milestones(0, kFirstValidMileStoneHandle);
 }
@@ -92,6 +116,52 @@ inline size_t DictTrie::get_homo_idx_buf_offset(const LmaNodeGE1 *node) {
           ((size_t)node->homo_idx_buf_off_h << 16));
 }
 
+inline size_t DictTrie::get_son_num(const LmaNodeGE1 *node) {
+  if (kLmaNodeGE1NumWide != node->num_of_son)
+    return node->num_of_son;
+  const LmaNodeGE1Wide *wide = get_ge1_wide(node);
+  return NULL == wide ? node->num_of_son : wide->num_of_son;
+}
+
+inline size_t DictTrie::get_homo_num(const LmaNodeGE1 *node) {
+  if (kLmaNodeGE1NumWide != node->num_of_homo)
+    return node->num_of_homo;
+  const LmaNodeGE1Wide *wide = get_ge1_wide(node);
+  return NULL == wide ? node->num_of_homo : wide->num_of_homo;
+}
+
+const LmaNodeGE1Wide* DictTrie::get_ge1_wide(const LmaNodeGE1 *node) {
+  size_t node_off = node - nodes_ge1_;
+  size_t begin = 0;
+  size_t end = ge1_wide_num_;
+  while (begin < end) {
+    size_t middle = begin + (end - begin) / 2;
+    if (ge1_wides_[middle].node < node_off)
+      begin = middle + 1;
+    else
+      end = middle;
+  }
+  if (begin < ge1_wide_num_ && ge1_wides_[begin].node == node_off)
+    return ge1_wides_ + begin;
+  return NULL;
+}
+
+size_t DictTrie::find_son(const LmaNodeGE1 *sons, size_t son_num,
+                          uint16 splid) {
+  // The sons are sorted by their spelling ids, so the cost does not grow
+  // with the number of sons, which does with the size of the vocabulary.
+  size_t begin = 0;
+  size_t end = son_num;
+  while (begin < end) {
+    size_t middle = begin + (end - begin) / 2;
+    if (sons[middle].spl_idx < splid)
+      begin = middle + 1;
+    else
+      end = middle;
+  }
+  return begin;
+}
+
 inline LemmaIdType DictTrie::get_lemma_id(size_t id_offset) {
   LemmaIdType id = 0;
   for (uint16 pos = kLemmaIdSize - 1; pos > 0; pos--)
@@ -101,12 +171,13 @@ inline LemmaIdType DictTrie::get_lemma_id(size_t id_offset) {
 }
 
 #ifdef ___BUILD_MODEL___
-bool DictTrie::build_dict(const char* fn_raw, const char* fn_validhzs) {
+bool DictTrie::build_dict(const char* fn_raw, const char* fn_validhzs,
+                          size_t max_lemma_num) {
   DictBuilder* dict_builder = new DictBuilder();
 
   free_resource(true);
 
-  return dict_builder->build_dict(fn_raw, fn_validhzs, this);
+  return dict_builder->build_dict(fn_raw, fn_validhzs, this, max_lemma_num);
 }
 
 bool DictTrie::save_dict(FILE *fp) {
@@ -125,6 +196,13 @@ bool DictTrie::save_dict(FILE *fp) {
   if (fwrite(&top_lmas_num_, sizeof(size_t), 1, fp) != 1)
     return false;
 
+  if (fwrite(&ge1_wide_num_, sizeof(size_t), 1, fp) != 1)
+    return false;
+
+  if (fwrite(ge1_wides_, sizeof(LmaNodeGE1Wide), ge1_wide_num_, fp)
+      != ge1_wide_num_)
+    return false;
+
   if (fwrite(root_, sizeof(LmaNodeLE0), lma_node_num_le0_, fp)
       != lma_node_num_le0_)
     return false;
@@ -154,6 +232,16 @@ bool DictTrie::save_dict(const char *filename) {
   if (NULL == fp)
     return false;
 
+  DictFileHeader header;
+  header.magic = kDictFileMagic;
+  header.version = kDictFileVersion;
+  header.size_t_size = sizeof(size_t);
+  header.max_lemma_size = kMaxLemmaSize;
+  if (fwrite(&header, sizeof(DictFileHeader), 1, fp) != 1) {
+    fclose(fp);
+    return false;
+  }
+
   if (!spl_trie.save_spl_trie(fp) || !dict_list_->save_list(fp) ||
       !save_dict(fp) || !ngram.save_ngram(fp)) {
     fclose(fp);
@@ -165,30 +253,48 @@ bool DictTrie::save_dict(const char *filename) {
 }
 #endif  // ___BUILD_MODEL___
 
-bool DictTrie::load_dict(FILE *fp) {
-  if (NULL == fp)
+uint32 DictTrie::load_header(DictReader *reader) {
+  uint32 magic;
+  if (!reader->peek(&magic, sizeof(uint32)))
+    return 0;
+
+  // A version 1 file starts with the size of a spelling item.
+  if (kDictFileMagic != magic)
+    return 1;
+
+  DictFileHeader header;
+  if (reader->read(&header, sizeof(DictFileHeader), 1) != 1 ||
+      header.version < 2 || header.version > kDictFileVersion ||
+      header.size_t_size != sizeof(size_t) ||
+      header.max_lemma_size != kMaxLemmaSize)
+    return 0;
+  return header.version;
+}
+
+bool DictTrie::load_dict(DictReader *reader, uint32 version) {
+  if (NULL == reader)
     return false;
 
-  if (fread(&lma_node_num_le0_, sizeof(size_t), 1, fp) != 1)
+  if (reader->read(&lma_node_num_le0_, sizeof(size_t), 1) != 1)
     return false;
 
-  if (fread(&lma_node_num_ge1_, sizeof(size_t), 1, fp) != 1)
+  if (reader->read(&lma_node_num_ge1_, sizeof(size_t), 1) != 1)
     return false;
 
-  if (fread(&lma_idx_buf_len_, sizeof(size_t), 1, fp) != 1)
+  if (reader->read(&lma_idx_buf_len_, sizeof(size_t), 1) != 1)
     return false;
 
-  if (fread(&top_lmas_num_, sizeof(size_t), 1, fp) != 1 ||
+  if (reader->read(&top_lmas_num_, sizeof(size_t), 1) != 1 ||
       top_lmas_num_ >= lma_idx_buf_len_)
     return false;
 
+  size_t ge1_wide_num = 0;
+  if (version >= 2 &&
+      reader->read(&ge1_wide_num, sizeof(size_t), 1) != 1)
+    return false;
+
   free_resource(false);
 
-  root_ = static_cast<LmaNodeLE0*>
-          (malloc(lma_node_num_le0_ * sizeof(LmaNodeLE0)));
-  nodes_ge1_ = static_cast<LmaNodeGE1*>
-               (malloc(lma_node_num_ge1_ * sizeof(LmaNodeGE1)));
-  lma_idx_buf_ = (unsigned char*)malloc(lma_idx_buf_len_);
   total_lma_num_ = lma_idx_buf_len_ / kLemmaIdSize;
 
   size_t buf_size = SpellingTrie::get_instance().get_spelling_num() + 1;
@@ -197,26 +303,37 @@ bool DictTrie::load_dict(FILE *fp) {
 
   // Init the space for parsing.
   parsing_marks_ = new ParsingMark[kMaxParsingMark];
+  parsing_marks_len_ = kMaxParsingMark;
   mile_stones_ = new MileStone[kMaxMileStone];
+  mile_stones_len_ = kMaxMileStone;
   reset_milestones(0, kFirstValidMileStoneHandle);
 
-  if (NULL == root_ || NULL == nodes_ge1_ || NULL == lma_idx_buf_ ||
-      NULL == splid_le0_index_ || NULL == parsing_marks_ ||
+  if (NULL == splid_le0_index_ || NULL == parsing_marks_ ||
       NULL == mile_stones_) {
     free_resource(false);
     return false;
   }
 
-  if (fread(root_, sizeof(LmaNodeLE0), lma_node_num_le0_, fp)
-      != lma_node_num_le0_)
+  if (ge1_wide_num > 0) {
+    ge1_wides_ = map_or_copy<LmaNodeGE1Wide>(reader, ge1_wide_num,
+                                             &own_ge1_wides_);
+    if (NULL == ge1_wides_)
+      return false;
+    ge1_wide_num_ = ge1_wide_num;
+  }
+
+  root_ = map_or_copy<LmaNodeLE0>(reader, lma_node_num_le0_, &own_root_);
+  if (NULL == root_)
     return false;
 
-  if (fread(nodes_ge1_, sizeof(LmaNodeGE1), lma_node_num_ge1_, fp)
-      != lma_node_num_ge1_)
+  nodes_ge1_ = map_or_copy<LmaNodeGE1>(reader, lma_node_num_ge1_,
+                                       &own_nodes_ge1_);
+  if (NULL == nodes_ge1_)
     return false;
 
-  if (fread(lma_idx_buf_, sizeof(unsigned char), lma_idx_buf_len_, fp) !=
-      lma_idx_buf_len_)
+  lma_idx_buf_ = map_or_copy<unsigned char>(reader, lma_idx_buf_len_,
+                                            &own_lma_idx_buf_);
+  if (NULL == lma_idx_buf_)
     return false;
 
   // The quick index for the first level sons
@@ -246,31 +363,19 @@ bool DictTrie::load_dict(const char *filename, LemmaIdType start_id,
   if (NULL == filename || end_id <= start_id)
     return false;
 
-  FILE *fp = fopen(filename, "rb");
-  if (NULL == fp)
+  int fd = open(filename, O_RDONLY);
+  if (-1 == fd)
     return false;
 
-  free_resource(true);
-
-  dict_list_ = new DictList();
-  if (NULL == dict_list_) {
-    fclose(fp);
+  struct stat st;
+  if (0 != fstat(fd, &st) || st.st_size <= 0) {
+    close(fd);
     return false;
   }
 
-  SpellingTrie &spl_trie = SpellingTrie::get_instance();
-  NGram &ngram = NGram::get_instance();
-
-  if (!spl_trie.load_spl_trie(fp) || !dict_list_->load_list(fp) ||
-      !load_dict(fp) || !ngram.load_ngram(fp) ||
-      total_lma_num_ > end_id - start_id + 1) {
-    free_resource(true);
-    fclose(fp);
-    return false;
-  }
-
-  fclose(fp);
-  return true;
+  bool ret = load_dict_from_fd(fd, 0, st.st_size, start_id, end_id);
+  close(fd);
+  return ret;
 }
 
 bool DictTrie::load_dict_fd(int sys_fd, long start_offset,
@@ -279,28 +384,56 @@ bool DictTrie::load_dict_fd(int sys_fd, long start_offset,
   if (start_offset < 0 || length <= 0 || end_id <= start_id)
     return false;
 
-  FILE *fp = fdopen(sys_fd, "rb");
-  if (NULL == fp)
-    return false;
-
-  if (-1 == fseek(fp, start_offset, SEEK_SET)) {
-    fclose(fp);
-    return false;
-  }
+  // The fd stays open, the caller closes it. (It used to be closed here
+  // through fdopen()/fclose(), and then again by the caller.)
+  return load_dict_from_fd(sys_fd, start_offset, length, start_id, end_id);
+}
 
+bool DictTrie::load_dict_from_fd(int fd, long start_offset, long length,
+                                 LemmaIdType start_id, LemmaIdType end_id) {
   free_resource(true);
 
   dict_list_ = new DictList();
-  if (NULL == dict_list_) {
-    fclose(fp);
+  if (NULL == dict_list_)
     return false;
-  }
 
   SpellingTrie &spl_trie = SpellingTrie::get_instance();
   NGram &ngram = NGram::get_instance();
 
-  if (!spl_trie.load_spl_trie(fp) || !dict_list_->load_list(fp) ||
-      !load_dict(fp) || !ngram.load_ngram(fp) ||
+  if (map_.map(fd, start_offset, length)) {
+    DictReader reader(map_.data(), map_.size());
+    uint32 version = load_header(&reader);
+    if (0 == version ||
+        !spl_trie.load_spl_trie(&reader) || !dict_list_->load_list(&reader) ||
+        !load_dict(&reader, version) || !ngram.load_ngram(&reader) ||
+        reader.tell() < static_cast<size_t>(length) ||
+        total_lma_num_ > end_id - start_id + 1) {
+      free_resource(true);
+      return false;
+    }
+    return true;
+  }
+
+  // mmap() is not available for this fd, read it the old way.
+  int newfd = dup(fd);
+  if (-1 == newfd)
+    return false;
+  FILE *fp = fdopen(newfd, "rb");
+  if (NULL == fp) {
+    close(newfd);
+    return false;
+  }
+
+  if (-1 == fseek(fp, start_offset, SEEK_SET)) {
+    fclose(fp);
+    return false;
+  }
+
+  DictReader reader(fp);
+  uint32 version = load_header(&reader);
+  if (0 == version ||
+      !spl_trie.load_spl_trie(&reader) || !dict_list_->load_list(&reader) ||
+      !load_dict(&reader, version) || !ngram.load_ngram(&reader) ||
       ftell(fp) < start_offset + length ||
       total_lma_num_ > end_id - start_id + 1) {
     free_resource(true);
@@ -335,7 +468,8 @@ size_t DictTrie::fill_lpi_buffer(LmaPsbItem lpi_items[], size_t lpi_max,
                                  uint16 lma_len) {
   size_t lpi_num = 0;
   NGram& ngram = NGram::get_instance();
-  for (size_t homo = 0; homo < (size_t)node->num_of_homo; homo++) {
+  size_t num_of_homo = get_homo_num(node);
+  for (size_t homo = 0; homo < num_of_homo; homo++) {
     lpi_items[lpi_num].id = get_lemma_id(homo_buf_off + homo);
     lpi_items[lpi_num].lma_len = lma_len;
     lpi_items[lpi_num].psb =
@@ -362,6 +496,31 @@ void DictTrie::reset_milestones(uint16 from_step, MileStoneHandle from_handle) {
   }
 }
 
+bool DictTrie::reserve_parsing_mark() {
+  if (parsing_marks_pos_ >= parsing_marks_len_) {
+    if (parsing_marks_len_ >= kMaxParsingMarkLen)
+      return false;
+    uint16 len = parsing_marks_len_ * 2;
+    ParsingMark *marks = new ParsingMark[len];
+    memcpy(marks, parsing_marks_, parsing_marks_len_ * sizeof(ParsingMark));
+    delete [] parsing_marks_;
+    parsing_marks_ = marks;
+    parsing_marks_len_ = len;
+  }
+
+  if (mile_stones_pos_ >= mile_stones_len_) {
+    if (mile_stones_len_ >= kMaxMileStoneLen)
+      return false;
+    uint16 len = mile_stones_len_ * 2;
+    MileStone *stones = new MileStone[len];
+    memcpy(stones, mile_stones_, mile_stones_len_ * sizeof(MileStone));
+    delete [] mile_stones_;
+    mile_stones_ = stones;
+    mile_stones_len_ = len;
+  }
+  return true;
+}
+
 MileStoneHandle DictTrie::extend_dict(MileStoneHandle from_handle,
                                       const DictExtPara *dep,
                                       LmaPsbItem *lpi_items, size_t lpi_max,
@@ -420,8 +579,7 @@ MileStoneHandle DictTrie::extend_dict0(MileStoneHandle from_handle,
 
     // If necessary, fill in a new mile stone.
     if (son->spl_idx == id_start) {
-      if (mile_stones_pos_ < kMaxMileStone &&
-          parsing_marks_pos_ < kMaxParsingMark) {
+      if (reserve_parsing_mark()) {
         parsing_marks_[parsing_marks_pos_].node_offset = son_pos;
         parsing_marks_[parsing_marks_pos_].node_num = id_num;
         mile_stones_[mile_stones_pos_].mark_start = parsing_marks_pos_;
@@ -466,9 +624,12 @@ MileStoneHandle DictTrie::extend_dict1(MileStoneHandle from_handle,
       LmaNodeLE0 *node = root_ + p_mark.node_offset + ext_pos;
       size_t found_start = 0;
       size_t found_num = 0;
-      for (size_t son_pos = 0; son_pos < (size_t)node->num_of_son; son_pos++) {
-        assert(node->son_1st_off <= lma_node_num_ge1_);
-        LmaNodeGE1 *son = nodes_ge1_ + node->son_1st_off + son_pos;
+      size_t son_num = node->num_of_son;
+      assert(node->son_1st_off <= lma_node_num_ge1_);
+      LmaNodeGE1 *sons = nodes_ge1_ + node->son_1st_off;
+      for (size_t son_pos = find_son(sons, son_num, id_start);
+           son_pos < son_num; son_pos++) {
+        LmaNodeGE1 *son = sons + son_pos;
         if (son->spl_idx >= id_start
             && son->spl_idx < id_start + id_num) {
           if (*lpi_num < lpi_max) {
@@ -484,11 +645,12 @@ MileStoneHandle DictTrie::extend_dict1(MileStoneHandle from_handle,
           }
           found_num++;
         }
-        if (son->spl_idx >= id_start + id_num - 1 || son_pos ==
-            (size_t)node->num_of_son - 1) {
+        if (son->spl_idx >= id_start + id_num - 1 ||
+            son_pos == son_num - 1) {
           if (found_num > 0) {
-            if (mile_stones_pos_ < kMaxMileStone &&
-                parsing_marks_pos_ < kMaxParsingMark) {
+            // Only count the marks which are kept, the mile stone must
+            // not refer to the others.
+            if (reserve_parsing_mark()) {
               parsing_marks_[parsing_marks_pos_].node_offset =
                 node->son_1st_off + found_start;
               parsing_marks_[parsing_marks_pos_].node_num = found_num;
@@ -496,9 +658,8 @@ MileStoneHandle DictTrie::extend_dict1(MileStoneHandle from_handle,
                 mile_stones_[mile_stones_pos_].mark_start =
                   parsing_marks_pos_;
               parsing_marks_pos_++;
+              ret_val++;
             }
-
-            ret_val++;
           }
           break;
         }  // for son_pos
@@ -543,10 +704,13 @@ MileStoneHandle DictTrie::extend_dict2(MileStoneHandle from_handle,
       LmaNodeGE1 *node = nodes_ge1_ + p_mark.node_offset + ext_pos;
       size_t found_start = 0;
       size_t found_num = 0;
+      size_t son_num = get_son_num(node);
+      LmaNodeGE1 *sons = nodes_ge1_ + get_son_offset(node);
 
-      for (size_t son_pos = 0; son_pos < (size_t)node->num_of_son; son_pos++) {
+      for (size_t son_pos = find_son(sons, son_num, id_start);
+           son_pos < son_num; son_pos++) {
         assert(node->son_1st_off_l > 0 || node->son_1st_off_h > 0);
-        LmaNodeGE1 *son = nodes_ge1_ + get_son_offset(node) + son_pos;
+        LmaNodeGE1 *son = sons + son_pos;
         if (son->spl_idx >= id_start
             && son->spl_idx < id_start + id_num) {
           if (*lpi_num < lpi_max) {
@@ -562,11 +726,12 @@ MileStoneHandle DictTrie::extend_dict2(MileStoneHandle from_handle,
           }
           found_num++;
         }
-        if (son->spl_idx >= id_start + id_num - 1 || son_pos ==
-            (size_t)node->num_of_son - 1) {
+        if (son->spl_idx >= id_start + id_num - 1 ||
+            son_pos == son_num - 1) {
           if (found_num > 0) {
-            if (mile_stones_pos_ < kMaxMileStone &&
-                parsing_marks_pos_ < kMaxParsingMark) {
+            // Only count the marks which are kept, the mile stone must
+            // not refer to the others.
+            if (reserve_parsing_mark()) {
               parsing_marks_[parsing_marks_pos_].node_offset =
                 get_son_offset(node) + found_start;
               parsing_marks_[parsing_marks_pos_].node_num = found_num;
@@ -574,9 +739,8 @@ MileStoneHandle DictTrie::extend_dict2(MileStoneHandle from_handle,
                 mile_stones_[mile_stones_pos_].mark_start =
                   parsing_marks_pos_;
               parsing_marks_pos_++;
+              ret_val++;
             }
-
-            ret_val++;
           }
           break;
         }
@@ -605,33 +769,21 @@ bool DictTrie::try_extend(const uint16 *splids, uint16 splid_num,
   for (uint16 pos = 1; pos < splid_num; pos++) {
     if (1 == pos) {
       LmaNodeLE0 *node_le0 = reinterpret_cast<LmaNodeLE0*>(node);
-      LmaNodeGE1 *node_son;
-      uint16 son_pos;
-      for (son_pos = 0; son_pos < static_cast<uint16>(node_le0->num_of_son);
-           son_pos++) {
-        assert(node_le0->son_1st_off <= lma_node_num_ge1_);
-        node_son = nodes_ge1_ + node_le0->son_1st_off
-            + son_pos;
-        if (node_son->spl_idx == splids[pos])
-          break;
-      }
-      if (son_pos < node_le0->num_of_son)
-        node = reinterpret_cast<void*>(node_son);
+      assert(node_le0->son_1st_off <= lma_node_num_ge1_);
+      LmaNodeGE1 *sons = nodes_ge1_ + node_le0->son_1st_off;
+      size_t son_pos = find_son(sons, node_le0->num_of_son, splids[pos]);
+      if (son_pos < node_le0->num_of_son &&
+          sons[son_pos].spl_idx == splids[pos])
+        node = reinterpret_cast<void*>(sons + son_pos);
       else
         return false;
     } else {
       LmaNodeGE1 *node_ge1 = reinterpret_cast<LmaNodeGE1*>(node);
-      LmaNodeGE1 *node_son;
-      uint16 son_pos;
-      for (son_pos = 0; son_pos < static_cast<uint16>(node_ge1->num_of_son);
-           son_pos++) {
-        assert(node_ge1->son_1st_off_l > 0 || node_ge1->son_1st_off_h > 0);
-        node_son = nodes_ge1_ + get_son_offset(node_ge1) + son_pos;
-        if (node_son->spl_idx == splids[pos])
-          break;
-      }
-      if (son_pos < node_ge1->num_of_son)
-        node = reinterpret_cast<void*>(node_son);
+      LmaNodeGE1 *sons = nodes_ge1_ + get_son_offset(node_ge1);
+      size_t son_num = get_son_num(node_ge1);
+      size_t son_pos = find_son(sons, son_num, splids[pos]);
+      if (son_pos < son_num && sons[son_pos].spl_idx == splids[pos])
+        node = reinterpret_cast<void*>(sons + son_pos);
       else
         return false;
     }
@@ -649,7 +801,7 @@ bool DictTrie::try_extend(const uint16 *splids, uint16 splid_num,
     }
   } else {
     LmaNodeGE1* node_ge1 = reinterpret_cast<LmaNodeGE1*>(node);
-    size_t num_of_homo = (size_t)node_ge1->num_of_homo;
+    size_t num_of_homo = get_homo_num(node_ge1);
     for (size_t homo_pos = 0; homo_pos < num_of_homo; homo_pos++) {
       size_t node_homo_off = get_homo_idx_buf_offset(node_ge1);
       if (get_lemma_id(node_homo_off + homo_pos) == id_lemma)
@@ -728,11 +880,12 @@ size_t DictTrie::get_lpis(const uint16* splid_str, uint16 splid_str_len,
     } else if (1 == spl_pos) {  // From LmaNodeLE0 to LmaNodeGE1 nodes
       for (size_t node_fr_pos = 0; node_fr_pos < node_fr_num; node_fr_pos++) {
         LmaNodeLE0 *node = node_fr_le0[node_fr_pos];
-        for (size_t son_pos = 0; son_pos < (size_t)node->num_of_son;
-             son_pos++) {
-          assert(node->son_1st_off <= lma_node_num_ge1_);
-          LmaNodeGE1 *node_son = nodes_ge1_ + node->son_1st_off
-                                  + son_pos;
+        size_t son_num = node->num_of_son;
+        assert(node->son_1st_off <= lma_node_num_ge1_);
+        LmaNodeGE1 *sons = nodes_ge1_ + node->son_1st_off;
+        for (size_t son_pos = find_son(sons, son_num, id_start);
+             son_pos < son_num; son_pos++) {
+          LmaNodeGE1 *node_son = sons + son_pos;
           if (node_son->spl_idx >= id_start
               && node_son->spl_idx < id_start + id_num) {
             if (node_to_num < MAX_EXTENDBUF_LEN) {
@@ -759,11 +912,12 @@ size_t DictTrie::get_lpis(const uint16* splid_str, uint16 splid_str_len,
     } else {  // From LmaNodeGE1 to LmaNodeGE1 nodes
       for (size_t node_fr_pos = 0; node_fr_pos < node_fr_num; node_fr_pos++) {
         LmaNodeGE1 *node = node_fr_ge1[node_fr_pos];
-        for (size_t son_pos = 0; son_pos < (size_t)node->num_of_son;
-             son_pos++) {
+        size_t son_num = get_son_num(node);
+        LmaNodeGE1 *sons = nodes_ge1_ + get_son_offset(node);
+        for (size_t son_pos = find_son(sons, son_num, id_start);
+             son_pos < son_num; son_pos++) {
           assert(node->son_1st_off_l > 0 || node->son_1st_off_h > 0);
-          LmaNodeGE1 *node_son = nodes_ge1_
-                                  + get_son_offset(node) + son_pos;
+          LmaNodeGE1 *node_son = sons + son_pos;
           if (node_son->spl_idx >= id_start
               && node_son->spl_idx < id_start + id_num) {
             if (node_to_num < MAX_EXTENDBUF_LEN) {
@@ -822,7 +976,7 @@ size_t DictTrie::get_lpis(const uint16* splid_str, uint16 splid_str_len,
       }
     } else {  // Get from LmaNodeGE1 nodes
       LmaNodeGE1* node_ge1 = node_to_ge1[node_pos];
-      num_of_homo = (size_t)node_ge1->num_of_homo;
+      num_of_homo = get_homo_num(node_ge1);
       for (size_t homo_pos = 0; homo_pos < num_of_homo; homo_pos++) {
         size_t ch_pos = lma_num + homo_pos;
         size_t node_homo_off = get_homo_idx_buf_offset(node_ge1);
@@ -15,6 +15,7 @@
  */
 
 #include <assert.h>
+#include <string.h>
 #include "../include/lpicache.h"
 
 namespace ime_pinyin {
@@ -24,10 +25,27 @@ LpiCache* LpiCache::instance_ = NULL;
 LpiCache::LpiCache() {
   lpi_cache_ = new LmaPsbItem[kFullSplIdStart * kMaxLpiCachePerId];
   lpi_cache_len_ = new uint16[kFullSplIdStart];
+  lpi_cache_num_ = new uint16[kFullSplIdStart];
   assert(NULL != lpi_cache_);
   assert(NULL != lpi_cache_len_);
+  assert(NULL != lpi_cache_num_);
   for (uint16 id = 0; id < kFullSplIdStart; id++)
     lpi_cache_len_[id] = 0;
+
+  seq_entries_ = new SeqEntry[kMaxSeqEntries];
+  seq_buckets_ = new uint16[kSeqBuckets];
+  assert(NULL != seq_entries_);
+  assert(NULL != seq_buckets_);
+  for (uint16 bucket = 0; bucket < kSeqBuckets; bucket++)
+    seq_buckets_[bucket] = kNoSeqEntry;
+  seq_entry_num_ = 0;
+  seq_free_ = kNoSeqEntry;
+  lru_head_ = lru_tail_ = kNoSeqEntry;
+  seq_last_ = kNoSeqEntry;
+  seq_items_ = 0;
+  sys_gen_ = 0;
+  user_gen_ = 0;
+  memset(&stats_, 0, sizeof(stats_));
 }
 
 LpiCache::~LpiCache() {
@@ -36,6 +54,18 @@ LpiCache::~LpiCache() {
 
   if (NULL != lpi_cache_len_)
     delete [] lpi_cache_len_;
+
+  if (NULL != lpi_cache_num_)
+    delete [] lpi_cache_num_;
+
+  if (NULL != seq_entries_) {
+    for (uint16 pos = 0; pos < seq_entry_num_; pos++)
+      free(seq_entries_[pos].items);
+    delete [] seq_entries_;
+  }
+
+  if (NULL != seq_buckets_)
+    delete [] seq_buckets_;
 }
 
 LpiCache& LpiCache::get_instance() {
@@ -46,6 +76,21 @@ LpiCache& LpiCache::get_instance() {
   return *instance_;
 }
 
+void LpiCache::invalidate() {
+  for (uint16 id = 0; id < kFullSplIdStart; id++)
+    lpi_cache_len_[id] = 0;
+  // The entries of older generations are misses, and are reused or evicted
+  // in the least recently used order.
+  sys_gen_++;
+  user_gen_++;
+  seq_last_ = kNoSeqEntry;
+}
+
+void LpiCache::invalidate_user() {
+  user_gen_++;
+  seq_last_ = kNoSeqEntry;
+}
+
 bool LpiCache::is_cached(uint16 splid) {
   if (splid >= kFullSplIdStart)
     return false;
@@ -63,19 +108,225 @@ size_t LpiCache::put_cache(uint16 splid, LmaPsbItem lpi_items[],
     lpi_cache_this[pos] = lpi_items[pos];
 
   lpi_cache_len_[splid] = num;
+  lpi_cache_num_[splid] = static_cast<uint16>(lpi_num);
+  stats_.half_misses++;
   return num;
 }
 
+size_t LpiCache::get_cache_num(uint16 splid) {
+  return lpi_cache_num_[splid];
+}
+
 size_t LpiCache::get_cache(uint16 splid, LmaPsbItem lpi_items[],
-                           size_t lpi_max) {
-  if (lpi_max > lpi_cache_len_[splid])
-    lpi_max = lpi_cache_len_[splid];
+                           size_t user_num) {
+  // Only the first items of the user list can make it into the merged one.
+  LmaPsbItem user_items[kMaxLpiCachePerId];
+  if (user_num > kMaxLpiCachePerId)
+    user_num = kMaxLpiCachePerId;
+  for (size_t pos = 0; pos < user_num; pos++)
+    user_items[pos] = lpi_items[pos];
 
-  LmaPsbItem *lpi_cache_this = lpi_cache_ + splid * kMaxLpiCachePerId;
-  for (uint16 pos = 0; pos < lpi_max; pos++) {
-    lpi_items[pos] = lpi_cache_this[pos];
+  stats_.half_hits++;
+  return merge_lpis(lpi_cache_ + splid * kMaxLpiCachePerId,
+                    lpi_cache_len_[splid], user_items, user_num, lpi_items,
+                    kMaxLpiCachePerId);
+}
+
+size_t LpiCache::merge_lpis(const LmaPsbItem *first, size_t first_num,
+                            const LmaPsbItem *second, size_t second_num,
+                            LmaPsbItem lpi_items[], size_t lpi_max) {
+  size_t first_pos = 0;
+  size_t second_pos = 0;
+  size_t num = 0;
+  while (num < lpi_max && first_pos < first_num && second_pos < second_num) {
+    if (second[second_pos].psb < first[first_pos].psb)
+      lpi_items[num++] = second[second_pos++];
+    else
+      lpi_items[num++] = first[first_pos++];
+  }
+  while (num < lpi_max && first_pos < first_num)
+    lpi_items[num++] = first[first_pos++];
+  while (num < lpi_max && second_pos < second_num)
+    lpi_items[num++] = second[second_pos++];
+  return num;
+}
+
+uint32 LpiCache::hash_seq(uint8 kind, const uint16 *splids, uint16 len) {
+  // FNV-1a over the kind and the ids.
+  uint32 hash = (2166136261u ^ kind) * 16777619u;
+  for (uint16 pos = 0; pos < len; pos++) {
+    hash = (hash ^ splids[pos]) * 16777619u;
+  }
+  return hash;
+}
+
+uint16 LpiCache::find_seq(uint8 kind, const uint16 *splids, uint16 len,
+                          uint32 hash) {
+  uint16 pos = seq_buckets_[hash & (kSeqBuckets - 1)];
+  while (kNoSeqEntry != pos) {
+    SeqEntry *entry = seq_entries_ + pos;
+    if (entry->hash == hash && entry->kind == kind && entry->len == len &&
+        0 == memcmp(entry->splids, splids, len * sizeof(uint16)))
+      return pos;
+    pos = entry->bucket_next;
+  }
+  return kNoSeqEntry;
+}
+
+void LpiCache::lru_unlink(uint16 pos) {
+  SeqEntry *entry = seq_entries_ + pos;
+  if (kNoSeqEntry != entry->lru_prev)
+    seq_entries_[entry->lru_prev].lru_next = entry->lru_next;
+  else
+    lru_head_ = entry->lru_next;
+  if (kNoSeqEntry != entry->lru_next)
+    seq_entries_[entry->lru_next].lru_prev = entry->lru_prev;
+  else
+    lru_tail_ = entry->lru_prev;
+}
+
+void LpiCache::lru_push_front(uint16 pos) {
+  SeqEntry *entry = seq_entries_ + pos;
+  entry->lru_prev = kNoSeqEntry;
+  entry->lru_next = lru_head_;
+  if (kNoSeqEntry != lru_head_)
+    seq_entries_[lru_head_].lru_prev = pos;
+  else
+    lru_tail_ = pos;
+  lru_head_ = pos;
+}
+
+uint16 LpiCache::evict_seq() {
+  uint16 pos = lru_tail_;
+  assert(kNoSeqEntry != pos);
+  SeqEntry *entry = seq_entries_ + pos;
+  lru_unlink(pos);
+
+  uint16 *prev = seq_buckets_ + (entry->hash & (kSeqBuckets - 1));
+  while (*prev != pos)
+    prev = &seq_entries_[*prev].bucket_next;
+  *prev = entry->bucket_next;
+
+  seq_items_ -= entry->capacity;
+  free(entry->items);
+  entry->items = NULL;
+  entry->capacity = 0;
+  if (entry->sys_gen == sys_gen_)
+    stats_.evictions++;
+  if (seq_last_ == pos)
+    seq_last_ = kNoSeqEntry;
+  return pos;
+}
+
+bool LpiCache::get_seq_cache(uint8 kind, const uint16 *splids, uint16 len,
+                             SeqInfo *info, bool *user_current) {
+  assert(kind < kSeqKindNum);
+  uint16 pos = find_seq(kind, splids, len, hash_seq(kind, splids, len));
+  bool sys_ok = kNoSeqEntry != pos && seq_entries_[pos].sys_gen == sys_gen_;
+  bool user_ok = sys_ok && seq_entries_[pos].user_gen == user_gen_;
+  if (!(kSeqExtension == kind ? sys_ok : user_ok)) {
+    stats_.seq_misses[kind]++;
+    if (kNoSeqEntry != pos)
+      stats_.seq_stale++;
+    return false;
+  }
+
+  stats_.seq_hits[kind]++;
+  if (!user_ok)
+    stats_.seq_user_stale++;
+  if (NULL != user_current)
+    *user_current = user_ok;
+  lru_unlink(pos);
+  lru_push_front(pos);
+  seq_last_ = pos;
+  *info = seq_entries_[pos].info;
+  return true;
+}
+
+bool LpiCache::put_seq_cache(uint8 kind, const uint16 *splids, uint16 len,
+                             const SeqInfo &info,
+                             const LmaPsbItem lpi_items[], size_t first_num,
+                             size_t lpi_num) {
+  assert(kind < kSeqKindNum && len > 0 && len <= kMaxLemmaSize);
+  assert(first_num <= lpi_num);
+  seq_last_ = kNoSeqEntry;
+  if (lpi_num > kMaxSeqItems)
+    return false;
+
+  uint32 hash = hash_seq(kind, splids, len);
+  uint16 pos = find_seq(kind, splids, len, hash);
+  SeqEntry *entry;
+  if (kNoSeqEntry != pos) {
+    lru_unlink(pos);
+    entry = seq_entries_ + pos;
+  } else {
+    if (kNoSeqEntry != seq_free_) {
+      pos = seq_free_;
+      seq_free_ = seq_entries_[pos].bucket_next;
+    } else if (seq_entry_num_ < kMaxSeqEntries) {
+      pos = seq_entry_num_++;
+      seq_entries_[pos].items = NULL;
+      seq_entries_[pos].capacity = 0;
+    } else {
+      pos = evict_seq();
+    }
+    entry = seq_entries_ + pos;
+    entry->kind = kind;
+    entry->len = len;
+    memcpy(entry->splids, splids, len * sizeof(uint16));
+    entry->hash = hash;
+    uint16 bucket = hash & (kSeqBuckets - 1);
+    entry->bucket_next = seq_buckets_[bucket];
+    seq_buckets_[bucket] = pos;
+  }
+  // Linked in front, it is not evicted to make room for its own items.
+  lru_push_front(pos);
+
+  if (entry->capacity < lpi_num) {
+    seq_items_ -= entry->capacity;
+    free(entry->items);
+    entry->items = NULL;
+    entry->capacity = 0;
+    while (seq_items_ + lpi_num > kMaxSeqItems && lru_tail_ != pos) {
+      uint16 evicted = evict_seq();
+      seq_entries_[evicted].bucket_next = seq_free_;
+      seq_free_ = evicted;
+    }
+    entry->items = static_cast<LmaPsbItem*>(
+        malloc(lpi_num * sizeof(LmaPsbItem)));
+    if (NULL == entry->items) {
+      // Left without items, it is a miss until it is put again.
+      entry->first_num = entry->num = 0;
+      entry->sys_gen = sys_gen_ - 1;
+      return false;
+    }
+    entry->capacity = static_cast<uint16>(lpi_num);
+    seq_items_ += lpi_num;
   }
-  return lpi_max;
+
+  if (lpi_num > 0)
+    memcpy(entry->items, lpi_items, lpi_num * sizeof(LmaPsbItem));
+  entry->first_num = static_cast<uint16>(first_num);
+  entry->num = static_cast<uint16>(lpi_num);
+  entry->info = info;
+  entry->sys_gen = sys_gen_;
+  entry->user_gen = user_gen_;
+  seq_last_ = pos;
+  return true;
+}
+
+size_t LpiCache::get_seq_lpis(bool with_first, bool with_second,
+                              LmaPsbItem lpi_items[]) {
+  assert(kNoSeqEntry != seq_last_);
+  SeqEntry *entry = seq_entries_ + seq_last_;
+  size_t first_num = with_first ? entry->first_num : 0;
+  size_t second_num = with_second ? entry->num - entry->first_num : 0;
+  return merge_lpis(entry->items, first_num, entry->items + entry->first_num,
+                    second_num, lpi_items, first_num + second_num);
+}
+
+void LpiCache::get_stats(Stats *stats) {
+  *stats = stats_;
 }
 
 }  // namespace ime_pinyin
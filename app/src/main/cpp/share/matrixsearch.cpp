@@ -39,6 +39,8 @@ MatrixSearch::MatrixSearch() {
   dmi_pool_used_ = 0;
   xi_an_enabled_ = false;
   dmi_c_phrase_ = false;
+  sys_score_gen_ = 0;
+  user_dict_gen_ = 0;
 
   assert(kMaxSearchSteps > 0);
   max_sps_len_ = kMaxSearchSteps - 1;
@@ -117,6 +119,11 @@ void MatrixSearch::free_resource() {
   if (NULL != share_buf_)
     delete [] share_buf_;
 
+  // The cached lists come from the dictionaries.
+  LpiCache::get_instance().invalidate();
+  sys_score_gen_ = 0;
+  user_dict_gen_ = 0;
+
   reset_pointers_to_null();
 }
 
@@ -187,6 +194,22 @@ void MatrixSearch::flush_cache() {
     user_dict_->flush_cache();
 }
 
+int MatrixSearch::import_user_dict(int fd, UserDict::TransferProgress progress,
+                                   UserDict::TransferLock lock, void *arg) {
+  if (NULL == user_dict_)
+    return -1;
+  return static_cast<UserDict*>(user_dict_)->import_lemmas(fd, progress, lock,
+                                                           arg);
+}
+
+int MatrixSearch::export_user_dict(int fd, UserDict::TransferProgress progress,
+                                   UserDict::TransferLock lock, void *arg) {
+  if (NULL == user_dict_)
+    return -1;
+  return static_cast<UserDict*>(user_dict_)->export_lemmas(fd, progress, lock,
+                                                           arg);
+}
+
 void MatrixSearch::set_xi_an_switch(bool xi_an_enabled) {
   xi_an_enabled_ = xi_an_enabled;
 }
@@ -198,6 +221,9 @@ bool MatrixSearch::get_xi_an_switch() {
 bool MatrixSearch::reset_search() {
   if (!inited_)
     return false;
+  // Forget the string too, so that add_letter() starts a new one.
+  // reset_search0() keeps it, because delsearch() decodes it again.
+  pys_[0] = '\0';
   return reset_search0();
 }
 
@@ -441,8 +467,38 @@ size_t MatrixSearch::search(const char *py, size_t py_len) {
   memcpy(pys_ + ch_pos, py + ch_pos, py_len - ch_pos);
   pys_[py_len] = '\0';
 
+  return search_from(ch_pos, py_len);
+}
+
+size_t MatrixSearch::add_letter(char ch) {
+  if (!inited_)
+    return 0;
+
+  size_t py_len = strlen(pys_);
+
+  // If the string is not decoded to its end, or it is full, search() handles
+  // it the same as a new string.
+  if (py_len != pys_decoded_len_ || py_len >= kMaxRowNum - 1) {
+    char py[kMaxRowNum + 1];
+    memcpy(py, pys_, py_len);
+    py[py_len] = ch;
+    py[py_len + 1] = '\0';
+    return search(py, py_len + 1);
+  }
+
+  // The whole string is the common prefix, so keep all of it, as search()
+  // does in this case.
+  reset_search(py_len, false, false, false);
+
+  pys_[py_len] = ch;
+  pys_[py_len + 1] = '\0';
+
+  return search_from(py_len, py_len + 1);
+}
+
+size_t MatrixSearch::search_from(size_t ch_pos, size_t py_len) {
   while ('\0' != pys_[ch_pos]) {
-    if (!add_char(py[ch_pos])) {
+    if (!add_char(pys_[ch_pos])) {
       pys_decoded_len_ = ch_pos;
       break;
     }
@@ -665,11 +721,16 @@ bool MatrixSearch::add_lma_to_userdict(uint16 lma_fr, uint16 lma_to,
       user_dict_->update_lemma(lma_id, 1, true);
     }
     uint16 lma_len = lma_start_[pos + 1] - lma_start_[pos];
+    if (spl_id_fr + lma_len > kMaxLemmaSize)
+      return false;
     utf16_strncpy(spl_ids + spl_id_fr, spl_id_ + lma_start_[pos], lma_len);
 
+    // After a choice, the spelling segmentation of the rest may not match
+    // the lengths of its lemmas. Such a sentence is not learnt.
     uint16 tmp = get_lemma_str(lma_id, word_str + spl_id_fr,
                                kMaxLemmaSize + 1 - spl_id_fr);
-    assert(tmp == lma_len);
+    if (tmp != lma_len)
+      return false;
 
     tmp = get_lemma_splids(lma_id, spl_ids + spl_id_fr, lma_len, true);
     if (tmp != lma_len) {
@@ -1403,7 +1464,7 @@ size_t MatrixSearch::extend_dmi(DictExtPara *dep, DictMatchInfo *dmi_s) {
   if (dmi_c_phrase_)
     return extend_dmi_c(dep, dmi_s);
 
-  LpiCache& lpi_cache = LpiCache::get_instance();
+  LpiCache& lpi_cache = get_lpi_cache();
   uint16 splid = dep->splids[dep->splids_extended];
 
   bool cached = false;
@@ -1426,16 +1487,38 @@ size_t MatrixSearch::extend_dmi(DictExtPara *dep, DictMatchInfo *dmi_s) {
     from_h[1] = dmi_s->dict_handles[1];
   }
 
+  // Except for half ids at the root, the whole lists are cached by the
+  // spelling id sequence. On a hit, the system dictionary only extends its
+  // handle, and the user dictionary is not looked up unless its list is
+  // stale.
+  bool by_seq = NULL != dmi_s || !spl_trie_->is_half_id(splid);
+  bool extend_user = NULL != user_dict_ && (from_h[1] > 0 || NULL == dmi_s);
+  uint16 seq_len = dep->splids_extended + 1;
+  LpiCache::SeqInfo seq_info;
+  bool user_cached = false;
+  bool seq_cached = by_seq &&
+      lpi_cache.get_seq_cache(LpiCache::kSeqExtension, dep->splids, seq_len,
+                              &seq_info, &user_cached);
+  user_cached = seq_cached && user_cached &&
+      seq_info.user_extended == extend_user;
+
   // 2. Begin exgtending in the system dictionary
   size_t lpi_num = 0;
   MileStoneHandle handles[2];
   handles[0] = handles[1] = 0;
   if (from_h[0] > 0 || NULL == dmi_s) {
     handles[0] = dict_trie_->extend_dict(from_h[0], dep, lpi_items_,
-                                         kMaxLmaPsbItems, &lpi_num);
+                                         seq_cached ? 0 : kMaxLmaPsbItems,
+                                         &lpi_num);
   }
-  if (handles[0] > 0)
+  if (handles[0] > 0) {
     lpi_total_ = lpi_num;
+    // The list of the user dictionary is looked up again, after the cached
+    // list of the system dictionary.
+    if (seq_cached && !user_cached)
+      lpi_total_ = lpi_cache.get_seq_lpis(true, false, lpi_items_);
+  }
+  size_t sys_num = lpi_total_;
 
   if (NULL == dmi_s) {  // from root
     assert(0 != handles[0]);
@@ -1443,11 +1526,19 @@ size_t MatrixSearch::extend_dmi(DictExtPara *dep, DictMatchInfo *dmi_s) {
   }
 
   // 3. Begin extending in the user dictionary
-  if (NULL != user_dict_ && (from_h[1] > 0 || NULL == dmi_s)) {
+  if (extend_user && user_cached) {
+    handles[1] = seq_info.user_handle;
+  } else if (extend_user) {
+    // The same buffer as if the system dictionary had filled it.
+    if (seq_cached)
+      sys_num = seq_info.lpi_num;
+    else if (cached)
+      sys_num = lpi_cache.get_cache_num(splid);
     handles[1] = user_dict_->extend_dict(from_h[1], dep,
                                          lpi_items_ + lpi_total_,
-                                         kMaxLmaPsbItems - lpi_total_,
+                                         kMaxLmaPsbItems - sys_num,
                                          &lpi_num);
+    sys_num = lpi_total_;
     if (handles[1] > 0) {
       if (kPrintDebug0) {
         for (size_t t = 0; t < lpi_num; t++) {
@@ -1479,7 +1570,30 @@ size_t MatrixSearch::extend_dmi(DictExtPara *dep, DictMatchInfo *dmi_s) {
     ret_val = 1;
   }
 
-  if (!cached) {
+  if (user_cached) {
+    lpi_total_ = lpi_cache.get_seq_lpis(handles[0] > 0, handles[1] > 0,
+                                        lpi_items_);
+  } else if (by_seq) {
+    if (kPrintDebug0) {
+      printf("--- lpi_total_ = %d\n", lpi_total_);
+    }
+
+    // Sorted apart and merged, the lists are in the same order as sorted
+    // together.
+    if (!seq_cached)
+      myqsort(lpi_items_, sys_num, sizeof(LmaPsbItem), cmp_lpi_with_psb);
+    myqsort(lpi_items_ + sys_num, lpi_total_ - sys_num, sizeof(LmaPsbItem),
+            cmp_lpi_with_psb);
+    seq_info.user_extended = extend_user;
+    seq_info.user_handle = handles[1];
+    seq_info.lpi_num = static_cast<uint16>(sys_num);
+    if (lpi_cache.put_seq_cache(LpiCache::kSeqExtension, dep->splids, seq_len,
+                                seq_info, lpi_items_, sys_num, lpi_total_)) {
+      lpi_total_ = lpi_cache.get_seq_lpis(true, true, lpi_items_);
+    } else {
+      myqsort(lpi_items_, lpi_total_, sizeof(LmaPsbItem), cmp_lpi_with_psb);
+    }
+  } else if (!cached) {
     if (0 == lpi_total_)
       return ret_val;
 
@@ -1487,12 +1601,16 @@ size_t MatrixSearch::extend_dmi(DictExtPara *dep, DictMatchInfo *dmi_s) {
       printf("--- lpi_total_ = %d\n", lpi_total_);
     }
 
+    // Only the list of the system dictionary is cached.
+    myqsort(lpi_items_, sys_num, sizeof(LmaPsbItem), cmp_lpi_with_psb);
+    lpi_cache.put_cache(splid, lpi_items_, sys_num);
     myqsort(lpi_items_, lpi_total_, sizeof(LmaPsbItem), cmp_lpi_with_psb);
-    if (NULL == dmi_s && spl_trie_->is_half_id(splid))
-      lpi_total_ = lpi_cache.put_cache(splid, lpi_items_, lpi_total_);
+    if (lpi_total_ > LpiCache::kMaxLpiCachePerId)
+      lpi_total_ = LpiCache::kMaxLpiCachePerId;
   } else {
     assert(spl_trie_->is_half_id(splid));
-    lpi_total_ = lpi_cache.get_cache(splid, lpi_items_, kMaxLmaPsbItems);
+    myqsort(lpi_items_, lpi_total_, sizeof(LmaPsbItem), cmp_lpi_with_psb);
+    lpi_total_ = lpi_cache.get_cache(splid, lpi_items_, lpi_total_);
   }
 
   return ret_val;
@@ -1678,21 +1796,97 @@ char16* MatrixSearch::get_candidate0(char16 *cand_str, size_t max_len,
   return cand_str;
 }
 
+LpiCache& MatrixSearch::get_lpi_cache() {
+  LpiCache& lpi_cache = LpiCache::get_instance();
+  // The scores of the system lemmas depend on the size of the user
+  // dictionary, but seldom change as it grows.
+  uint32 gen = NGram::get_instance().get_score_gen();
+  if (gen != sys_score_gen_) {
+    sys_score_gen_ = gen;
+    lpi_cache.invalidate();
+  }
+  if (NULL != user_dict_) {
+    gen = static_cast<UserDict*>(user_dict_)->get_change_gen();
+    if (gen != user_dict_gen_) {
+      user_dict_gen_ = gen;
+      lpi_cache.invalidate_user();
+    }
+  }
+  return lpi_cache;
+}
+
 size_t MatrixSearch::get_lpis(const uint16* splid_str, size_t splid_str_len,
                               LmaPsbItem* lma_buf, size_t max_lma_buf,
                               const char16 *pfullsent, bool sort_by_psb) {
   if (splid_str_len > kMaxLemmaSize)
     return 0;
 
+  // Removing the repeated lemmas of more than one Hanzi needs a string for
+  // each item after them in the buffer. A large dictionary can fill up the
+  // whole buffer, so only let the dictionaries use the part before that room.
+  size_t max_lpi_num = max_lma_buf;
+  if (splid_str_len > 1) {
+    max_lpi_num = max_lma_buf * sizeof(LmaPsbItem) /
+        (sizeof(LmaPsbItem) + sizeof(LmaPsbStrItem));
+  }
+
+  // The list is cached before the full sentence candidate is removed from it.
+  // If the dictionaries filled up the buffer, it is only cut short and not
+  // cached.
+  LpiCache& lpi_cache = get_lpi_cache();
+  uint8 seq_kind = sort_by_psb ? LpiCache::kSeqCandidatesByPsb :
+      LpiCache::kSeqCandidates;
+  LpiCache::SeqInfo seq_info;
+  size_t num;
+  if (lpi_cache.get_seq_cache(seq_kind, splid_str, splid_str_len,
+                              &seq_info, NULL) &&
+      seq_info.lpi_num < max_lpi_num) {
+    num = lpi_cache.get_seq_lpis(true, false, lma_buf);
+  } else {
+    num = get_lpis_nocache(splid_str, splid_str_len, lma_buf, max_lma_buf,
+                           max_lpi_num, sort_by_psb, &seq_info.lpi_num);
+    if (seq_info.lpi_num < max_lpi_num) {
+      seq_info.user_extended = false;
+      seq_info.user_handle = 0;
+      lpi_cache.put_seq_cache(seq_kind, splid_str, splid_str_len, seq_info,
+                              lma_buf, num, num);
+    }
+  }
+
+  if (NULL == pfullsent || utf16_strlen(pfullsent) != splid_str_len)
+    return num;
+
+  // Remove the lemma which is the same as the full sentence candidate.
+  size_t remain_num = 0;
+  for (size_t pos = 0; pos < num; pos++) {
+    if (splid_str_len > 1) {
+      char16 str[kMaxLemmaSize + 1];
+      get_lemma_str(lma_buf[pos].id, str, kMaxLemmaSize + 1);
+      if (utf16_strcmp(str, pfullsent) == 0)
+        continue;
+    } else if (lma_buf[pos].hanzi == pfullsent[0]) {
+      continue;
+    }
+    lma_buf[remain_num++] = lma_buf[pos];
+  }
+  return remain_num;
+}
+
+size_t MatrixSearch::get_lpis_nocache(const uint16* splid_str,
+                                      size_t splid_str_len,
+                                      LmaPsbItem* lma_buf, size_t max_lma_buf,
+                                      size_t max_lpi_num, bool sort_by_psb,
+                                      uint16 *lpi_num) {
   size_t num1 = dict_trie_->get_lpis(splid_str, splid_str_len,
-                                     lma_buf, max_lma_buf);
+                                     lma_buf, max_lpi_num);
   size_t num2 = 0;
   if (NULL != user_dict_) {
     num2 = user_dict_->get_lpis(splid_str, splid_str_len,
-                         lma_buf + num1, max_lma_buf - num1);
+                         lma_buf + num1, max_lpi_num - num1);
   }
 
   size_t num = num1 + num2;
+  *lpi_num = static_cast<uint16>(num);
 
   if (0 == num)
     return 0;
@@ -1702,7 +1896,7 @@ size_t MatrixSearch::get_lpis(const uint16* splid_str, size_t splid_str_len,
     LmaPsbStrItem *lpsis = reinterpret_cast<LmaPsbStrItem*>(lma_buf + num);
     size_t lpsi_num = (max_lma_buf - num) * sizeof(LmaPsbItem) /
         sizeof(LmaPsbStrItem);
-    assert(lpsi_num > num);
+    assert(lpsi_num >= num);
     if (num > lpsi_num) num = lpsi_num;
     lpsi_num = num;
 
@@ -1722,8 +1916,6 @@ size_t MatrixSearch::get_lpis(const uint16* splid_str, size_t splid_str_len,
         }
         continue;
       }
-      if (NULL != pfullsent && utf16_strcmp(lpsis[pos].str, pfullsent) == 0)
-        continue;
 
       lma_buf[remain_num] = lpsis[pos].lpi;
       remain_num++;
@@ -1747,11 +1939,6 @@ size_t MatrixSearch::get_lpis(const uint16* splid_str, size_t splid_str_len,
     size_t remain_num = 0;
     for (size_t pos = 0; pos < num; pos++) {
       if (pos > 0 && lma_buf[pos].hanzi == lma_buf[pos - 1].hanzi) {
-        if (NULL != pfullsent &&
-            static_cast<char16>(0) == pfullsent[1] &&
-            lma_buf[pos].hanzi == pfullsent[0])
-          continue;
-
         if (lma_buf[pos].psb < lma_buf[pos - 1].psb) {
           assert(remain_num > 0);
           assert(lma_buf[remain_num - 1].hanzi == lma_buf[pos].hanzi);
@@ -1759,10 +1946,6 @@ size_t MatrixSearch::get_lpis(const uint16* splid_str, size_t splid_str_len,
         }
         continue;
       }
-      if (NULL != pfullsent &&
-          static_cast<char16>(0) == pfullsent[1] &&
-          lma_buf[pos].hanzi == pfullsent[0])
-          continue;
 
       lma_buf[remain_num] = lma_buf[pos];
       remain_num++;
@@ -21,6 +21,7 @@
 #include <time.h>
 #include "../include/mystdlib.h"
 #include "../include/ngram.h"
+#include "../include/parallel.h"
 
 namespace ime_pinyin {
 
@@ -58,21 +59,52 @@ int qsearch_nearest(double code_book[], double freq, int start, int end) {
     return qsearch_nearest(code_book, freq, mid, end);
 }
 
-size_t update_code_idx(double freqs[], size_t num, double code_book[],
-                       CODEBOOK_TYPE *code_idx) {
+#ifdef ___BUILD_MODEL___
+// The items are split into chunks of this size to be quantized in parallel.
+static const size_t kCodeChunkLen = 4096;
+
+struct CodeTask {
+  double *freqs;
+  size_t num;
+  double *code_book;
+  CODEBOOK_TYPE *code_idx;
+  double *dists;           // The distance of each item to its code.
+  size_t *chunk_changed;   // The number of changed items in each chunk.
+};
+
+// Find the nearest code for the items of a chunk, and their distances to
+// the codes before they are recalculated.
+static void update_code_chunk(void *arg, size_t chunk) {
+  CodeTask *task = static_cast<CodeTask*>(arg);
+  size_t start = chunk * kCodeChunkLen;
+  size_t end = start + kCodeChunkLen < task->num ?
+      start + kCodeChunkLen : task->num;
   size_t changed = 0;
-  for (size_t pos = 0; pos < num; pos++) {
+  for (size_t pos = start; pos < end; pos++) {
     CODEBOOK_TYPE idx;
-    idx = qsearch_nearest(code_book, freqs[pos], 0, kCodeBookSize - 1);
-    if (idx != code_idx[pos])
+    idx = qsearch_nearest(task->code_book, task->freqs[pos], 0,
+                          kCodeBookSize - 1);
+    if (idx != task->code_idx[pos])
       changed++;
-    code_idx[pos] = idx;
+    task->code_idx[pos] = idx;
+    task->dists[pos] = distance(task->freqs[pos], task->code_book[idx]);
   }
+  task->chunk_changed[chunk] = changed;
+}
+
+static size_t update_code_idx(CodeTask *task) {
+  size_t chunk_num = (task->num + kCodeChunkLen - 1) / kCodeChunkLen;
+  parallel_for(chunk_num, update_code_chunk, task);
+
+  size_t changed = 0;
+  for (size_t chunk = 0; chunk < chunk_num; chunk++)
+    changed += task->chunk_changed[chunk];
   return changed;
 }
 
-double recalculate_kernel(double freqs[], size_t num, double code_book[],
-                          CODEBOOK_TYPE *code_idx) {
+// The sums are taken in the order of the items, so that they do not depend
+// on the number of threads.
+static double recalculate_kernel(CodeTask *task) {
   double ret = 0;
 
   size_t *item_num =  new size_t[kCodeBookSize];
@@ -83,16 +115,16 @@ double recalculate_kernel(double freqs[], size_t num, double code_book[],
   assert(cb_new);
   memset(cb_new, 0, sizeof(double) * kCodeBookSize);
 
-  for (size_t pos = 0; pos < num; pos++) {
-    ret += distance(freqs[pos], code_book[code_idx[pos]]);
+  for (size_t pos = 0; pos < task->num; pos++) {
+    ret += task->dists[pos];
 
-    cb_new[code_idx[pos]] += freqs[pos];
-    item_num[code_idx[pos]] += 1;
+    cb_new[task->code_idx[pos]] += task->freqs[pos];
+    item_num[task->code_idx[pos]] += 1;
   }
 
   for (size_t code = 0; code < kCodeBookSize; code++) {
     assert(item_num[code] > 0);
-    code_book[code] = cb_new[code] / item_num[code];
+    task->code_book[code] = cb_new[code] / item_num[code];
   }
 
   delete [] item_num;
@@ -103,12 +135,21 @@ double recalculate_kernel(double freqs[], size_t num, double code_book[],
 
 void iterate_codes(double freqs[], size_t num, double code_book[],
                    CODEBOOK_TYPE *code_idx) {
+  CodeTask task;
+  task.freqs = freqs;
+  task.num = num;
+  task.code_book = code_book;
+  task.code_idx = code_idx;
+  task.dists = new double[num];
+  task.chunk_changed = new size_t[(num + kCodeChunkLen - 1) / kCodeChunkLen];
+  assert(task.dists && task.chunk_changed);
+
   size_t iter_num = 0;
   double delta_last = 0;
   do {
-    size_t changed = update_code_idx(freqs, num, code_book, code_idx);
+    size_t changed = update_code_idx(&task);
 
-    double delta = recalculate_kernel(freqs, num, code_book, code_idx);
+    double delta = recalculate_kernel(&task);
 
     if (kPrintDebug0) {
       printf("---Unigram codebook iteration: %d : %d, %.9f\n",
@@ -121,7 +162,11 @@ void iterate_codes(double freqs[], size_t num, double code_book[],
       break;
     delta_last = delta;
   } while (true);
+
+  delete [] task.dists;
+  delete [] task.chunk_changed;
 }
+#endif  // ___BUILD_MODEL___
 
 
 NGram* NGram::instance_ = NULL;
@@ -131,24 +176,35 @@ NGram::NGram() {
   idx_num_ = 0;
   lma_freq_idx_ = NULL;
   sys_score_compensation_ = 0;
+  score_gen_ = 0;
 
 #ifdef ___BUILD_MODEL___
   freq_codes_df_ = NULL;
 #endif
   freq_codes_ = NULL;
+  own_freq_codes_ = true;
+  own_lma_freq_idx_ = true;
 }
 
 NGram::~NGram() {
-  if (NULL != lma_freq_idx_)
-    free(lma_freq_idx_);
+  free_resource();
 
 #ifdef ___BUILD_MODEL___
   if (NULL != freq_codes_df_)
     free(freq_codes_df_);
 #endif
+}
+
+void NGram::free_resource() {
+  initialized_ = false;
+
+  if (NULL != lma_freq_idx_ && own_lma_freq_idx_)
+    free(lma_freq_idx_);
+  lma_freq_idx_ = NULL;
 
-  if (NULL != freq_codes_)
+  if (NULL != freq_codes_ && own_freq_codes_)
     free(freq_codes_);
+  freq_codes_ = NULL;
 }
 
 NGram& NGram::get_instance() {
@@ -177,52 +233,54 @@ bool NGram::save_ngram(FILE *fp) {
   return true;
 }
 
-bool NGram::load_ngram(FILE *fp) {
-  if (NULL == fp)
+bool NGram::load_ngram(DictReader *reader) {
+  if (NULL == reader)
     return false;
 
   initialized_ = false;
 
-  if (fread(&idx_num_, sizeof(size_t), 1, fp) != 1 )
+  if (reader->read(&idx_num_, sizeof(size_t), 1) != 1 )
     return false;
 
-  if (NULL != lma_freq_idx_)
-    free(lma_freq_idx_);
-
-  if (NULL != freq_codes_)
-    free(freq_codes_);
-
-  lma_freq_idx_ = static_cast<CODEBOOK_TYPE*>
-                  (malloc(idx_num_ * sizeof(CODEBOOK_TYPE)));
-  freq_codes_ = static_cast<LmaScoreType*>
-      (malloc(kCodeBookSize * sizeof(LmaScoreType)));
-
-  if (NULL == lma_freq_idx_ || NULL == freq_codes_)
-    return false;
+  free_resource();
 
-  if (fread(freq_codes_, sizeof(LmaScoreType), kCodeBookSize, fp) !=
-      kCodeBookSize)
+  freq_codes_ = map_or_copy<LmaScoreType>(reader, kCodeBookSize,
+                                          &own_freq_codes_);
+  if (NULL == freq_codes_)
     return false;
 
-  if (fread(lma_freq_idx_, sizeof(CODEBOOK_TYPE), idx_num_, fp) != idx_num_)
+  lma_freq_idx_ = map_or_copy<CODEBOOK_TYPE>(reader, idx_num_,
+                                             &own_lma_freq_idx_);
+  if (NULL == lma_freq_idx_)
     return false;
 
   initialized_ = true;
 
   total_freq_none_sys_ = 0;
+  score_gen_++;
   return true;
 }
 
 void NGram::set_total_freq_none_sys(size_t freq_none_sys) {
   total_freq_none_sys_ = freq_none_sys;
-  if (0 == total_freq_none_sys_) {
-    sys_score_compensation_ = 0;
-  } else {
+  float compensation = 0;
+  if (0 != total_freq_none_sys_) {
     double factor = static_cast<double>(kSysDictTotalFreq) / (
         kSysDictTotalFreq + total_freq_none_sys_);
-    sys_score_compensation_ = static_cast<float>(
-        log(factor) * kLogValueAmplifier);
+    compensation = static_cast<float>(log(factor) * kLogValueAmplifier);
   }
+  if (compensation == sys_score_compensation_)
+    return;
+
+  bool changed = NULL == freq_codes_;
+  for (size_t code = 0; !changed && code < kCodeBookSize; code++) {
+    float score = static_cast<float>(freq_codes_[code]);
+    changed = static_cast<LmaScoreType>(score + sys_score_compensation_) !=
+        static_cast<LmaScoreType>(score + compensation);
+  }
+  sys_score_compensation_ = compensation;
+  if (changed)
+    score_gen_++;
 }
 
 // The caller makes sure this oject is initialized.
@@ -231,6 +289,10 @@ float NGram::get_uni_psb(LemmaIdType lma_id) {
       sys_score_compensation_;
 }
 
+uint32 NGram::get_score_gen() {
+  return score_gen_;
+}
+
 float NGram::convert_psb_to_score(double psb) {
   float score = static_cast<float>(
       log(psb) * static_cast<double>(kLogValueAmplifier));
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <assert.h>
+#include <pthread.h>
+#include <string.h>
+#include <unistd.h>
+#include "../include/parallel.h"
+
+namespace ime_pinyin {
+
+#ifdef ___BUILD_MODEL___
+
+typedef int (*CompareFunc)(const void *, const void *);
+
+// Arrays shorter than this are sorted on the calling thread only.
+static const size_t kMinParallelSortNum = 4096;
+
+// Runs shorter than this are sorted by insertion.
+static const size_t kInsertionSortNum = 8;
+
+static size_t thread_num_ = 0;
+
+void set_parallel_thread_num(size_t num) {
+  thread_num_ = num;
+}
+
+size_t get_parallel_thread_num() {
+  if (0 == thread_num_) {
+    long cpu_num = sysconf(_SC_NPROCESSORS_ONLN);
+    return cpu_num > 0 ? static_cast<size_t>(cpu_num) : 1;
+  }
+  return thread_num_;
+}
+
+struct ParallelTask {
+  ParallelWork work;
+  void *arg;
+  size_t num;
+  size_t next;  // The next index to run, taken atomically.
+};
+
+static void* run_parallel_task(void *p) {
+  ParallelTask *task = static_cast<ParallelTask*>(p);
+  while (true) {
+    size_t index = __sync_fetch_and_add(&task->next, 1);
+    if (index >= task->num)
+      break;
+    task->work(task->arg, index);
+  }
+  return NULL;
+}
+
+void parallel_for(size_t num, ParallelWork work, void *arg) {
+  ParallelTask task = {work, arg, num, 0};
+  size_t thread_num = get_parallel_thread_num();
+  if (thread_num > num)
+    thread_num = num;
+
+  // If a thread cannot be started, the others take its share.
+  pthread_t *threads = NULL;
+  size_t started = 0;
+  if (thread_num > 1) {
+    threads = new pthread_t[thread_num - 1];
+    while (started < thread_num - 1 &&
+           0 == pthread_create(threads + started, NULL, run_parallel_task,
+                               &task)) {
+      started++;
+    }
+  }
+  run_parallel_task(&task);
+  for (size_t i = 0; i < started; i++)
+    pthread_join(threads[i], NULL);
+  delete [] threads;
+}
+
+// Merge the sorted a and b into dst. Items of a go first when they are equal.
+static void merge(const char *a, size_t a_num, const char *b, size_t b_num,
+                  char *dst, size_t es, CompareFunc cmp) {
+  while (a_num > 0 && b_num > 0) {
+    if (cmp(b, a) < 0) {
+      memcpy(dst, b, es);
+      b += es;
+      b_num--;
+    } else {
+      memcpy(dst, a, es);
+      a += es;
+      a_num--;
+    }
+    dst += es;
+  }
+  memcpy(dst, a, a_num * es);
+  memcpy(dst + a_num * es, b, b_num * es);
+}
+
+// Stable sort of n items in p. tmp has room for n items.
+static void merge_sort(char *p, char *tmp, size_t n, size_t es,
+                       CompareFunc cmp) {
+  if (n <= kInsertionSortNum) {
+    for (size_t i = 1; i < n; i++) {
+      size_t j = i;
+      while (j > 0 && cmp(p + i * es, p + (j - 1) * es) < 0)
+        j--;
+      if (j < i) {
+        memcpy(tmp, p + i * es, es);
+        memmove(p + (j + 1) * es, p + j * es, (i - j) * es);
+        memcpy(p + j * es, tmp, es);
+      }
+    }
+    return;
+  }
+
+  size_t half = n / 2;
+  merge_sort(p, tmp, half, es, cmp);
+  merge_sort(p + half * es, tmp + half * es, n - half, es, cmp);
+  if (cmp(p + half * es, p + (half - 1) * es) >= 0)
+    return;
+  memcpy(tmp, p, n * es);
+  merge(tmp, half, tmp + half * es, n - half, p, es, cmp);
+}
+
+struct SortTask {
+  char *src;
+  char *dst;
+  size_t n;
+  size_t es;
+  CompareFunc cmp;
+  size_t chunk_num;
+  // The number of chunks merged so far into each sorted run.
+  size_t run_chunks;
+};
+
+static size_t chunk_start(const SortTask *task, size_t chunk) {
+  if (chunk >= task->chunk_num)
+    return task->n;
+  return task->n / task->chunk_num * chunk +
+      task->n % task->chunk_num * chunk / task->chunk_num;
+}
+
+static void sort_chunk(void *arg, size_t chunk) {
+  SortTask *task = static_cast<SortTask*>(arg);
+  size_t start = chunk_start(task, chunk);
+  size_t end = chunk_start(task, chunk + 1);
+  merge_sort(task->src + start * task->es, task->dst + start * task->es,
+             end - start, task->es, task->cmp);
+}
+
+static void merge_runs(void *arg, size_t pair) {
+  SortTask *task = static_cast<SortTask*>(arg);
+  size_t first = pair * 2 * task->run_chunks;
+  size_t start = chunk_start(task, first);
+  size_t mid = chunk_start(task, first + task->run_chunks);
+  size_t end = chunk_start(task, first + 2 * task->run_chunks);
+  merge(task->src + start * task->es, mid - start,
+        task->src + mid * task->es, end - mid,
+        task->dst + start * task->es, task->es, task->cmp);
+}
+
+void parallel_stable_sort(void *p, size_t n, size_t es,
+                          int (*cmp)(const void *, const void *)) {
+  if (n < 2)
+    return;
+
+  char *tmp = new char[n * es];
+  assert(NULL != tmp);
+
+  SortTask task;
+  task.src = static_cast<char*>(p);
+  task.dst = tmp;
+  task.n = n;
+  task.es = es;
+  task.cmp = cmp;
+  task.chunk_num = n < kMinParallelSortNum ? 1 : get_parallel_thread_num();
+  task.run_chunks = 1;
+
+  parallel_for(task.chunk_num, sort_chunk, &task);
+
+  // Merge the runs pairwise until one is left.
+  while (task.run_chunks < task.chunk_num) {
+    size_t pair_num = (task.chunk_num + 2 * task.run_chunks - 1) /
+        (2 * task.run_chunks);
+    parallel_for(pair_num, merge_runs, &task);
+    char *swap = task.src;
+    task.src = task.dst;
+    task.dst = swap;
+    task.run_chunks *= 2;
+  }
+  if (task.src != p)
+    memcpy(p, task.src, n * es);
+
+  delete [] tmp;
+}
+
+#endif  // ___BUILD_MODEL___
+}  // namespace ime_pinyin
@@ -77,6 +77,20 @@ extern "C" {
       matrix_search->flush_cache();
   }
 
+  int im_import_user_dict(int fd, void (*progress)(void *, size_t, size_t),
+                          void (*lock)(void *, bool), void *arg) {
+    if (NULL == matrix_search)
+      return -1;
+    return matrix_search->import_user_dict(fd, progress, lock, arg);
+  }
+
+  int im_export_user_dict(int fd, void (*progress)(void *, size_t, size_t),
+                          void (*lock)(void *, bool), void *arg) {
+    if (NULL == matrix_search)
+      return -1;
+    return matrix_search->export_user_dict(fd, progress, lock, arg);
+  }
+
   // To be updated.
   size_t im_search(const char* pybuf, size_t pylen) {
     if (NULL == matrix_search)
@@ -101,9 +115,12 @@ extern "C" {
     matrix_search->reset_search();
   }
 
-  // To be removed
   size_t im_add_letter(char ch) {
-    return 0;
+    if (NULL == matrix_search)
+      return 0;
+
+    matrix_search->add_letter(ch);
+    return matrix_search->get_candidate_num();
   }
 
   const char* im_get_sps_str(size_t *decoded_len) {
@@ -659,20 +659,20 @@ bool SpellingTrie::save_spl_trie(FILE *fp) {
   return true;
 }
 
-bool SpellingTrie::load_spl_trie(FILE *fp) {
-  if (NULL == fp)
+bool SpellingTrie::load_spl_trie(DictReader *reader) {
+  if (NULL == reader)
     return false;
 
-  if (fread(&spelling_size_, sizeof(size_t), 1, fp) != 1)
+  if (reader->read(&spelling_size_, sizeof(size_t), 1) != 1)
     return false;
 
-  if (fread(&spelling_num_, sizeof(size_t), 1, fp) != 1)
+  if (reader->read(&spelling_num_, sizeof(size_t), 1) != 1)
     return false;
 
-  if (fread(&score_amplifier_, sizeof(float), 1, fp) != 1)
+  if (reader->read(&score_amplifier_, sizeof(float), 1) != 1)
     return false;
 
-  if (fread(&average_score_, sizeof(unsigned char), 1, fp) != 1)
+  if (reader->read(&average_score_, sizeof(unsigned char), 1) != 1)
     return false;
 
   if (NULL != spelling_buf_)
@@ -682,8 +682,8 @@ bool SpellingTrie::load_spl_trie(FILE *fp) {
   if (NULL == spelling_buf_)
     return false;
 
-  if (fread(spelling_buf_, sizeof(char) * spelling_size_,
-            spelling_num_, fp) != spelling_num_)
+  if (reader->read(spelling_buf_, sizeof(char) * spelling_size_,
+                   spelling_num_) != spelling_num_)
     return false;
 
   return construct(spelling_buf_, spelling_size_, spelling_num_,
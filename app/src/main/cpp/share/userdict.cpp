@@ -17,6 +17,7 @@
 #include "../include/userdict.h"
 #include "../include/splparser.h"
 #include "../include/ngram.h"
+#include "../include/mystdlib.h"
 #include <stdio.h>
 #include <string.h>
 #include <stdlib.h>
@@ -31,6 +32,7 @@
 #include <time.h>
 #include <pthread.h>
 #include <math.h>
+#include <errno.h>
 
 namespace ime_pinyin {
 
@@ -58,6 +60,11 @@ static struct timeval _tv_start_, _tv_end_;
 // XXX File load and write are thread-safe by g_mutex_
 static pthread_mutex_t g_mutex_ = PTHREAD_MUTEX_INITIALIZER;
 static struct timeval g_last_update_ = {0, 0};
+// Bumped whenever an instance writes the dictionary file, by g_mutex_
+static uint32 g_write_gen_ = 0;
+// The instance which journals its changes, by g_mutex_. Others only write
+// back on close as before.
+static const UserDict * g_journal_owner_ = NULL;
 
 inline uint32 UserDict::get_dict_file_size(UserDictInfo * info) {
   return (4 + info->lemma_size + (info->lemma_count << 3)
@@ -137,8 +144,8 @@ inline int64 UserDict::utf16le_atoll(uint16 *s, int len) {
     s++;
   }
 
-  while (*s >= '0' && *s <= '9' && s < endp) {
-    ret += ret * 10 + (*s) - '0';
+  while (s < endp && *s >= '0' && *s <= '9') {
+    ret = ret * 10 + (*s) - '0';
     s++;
   }
   return ret * flag;
@@ -156,14 +163,13 @@ inline int UserDict::utf16le_lltoa(int64 v, uint16 *s, int size) {
   }
 
   uint16 *b = s;
-  while (s < endp && v != 0) {
+  do {
+    if (s >= endp)
+      return 0;
     *(s++) = '0' + (v % 10);
     v = v / 10;
     ++ret_len;
-  }
-
-  if (v != 0)
-    return 0;
+  } while (v != 0);
 
   --s;
 
@@ -221,6 +227,7 @@ inline bool UserDict::is_valid_state() {
 
 UserDict::UserDict()
     : start_id_(0),
+      end_id_(0),
       version_(0),
       lemmas_(NULL),
       offsets_(NULL),
@@ -228,6 +235,9 @@ UserDict::UserDict()
       ids_(NULL),
 #ifdef ___PREDICT_ENABLED___
       predicts_(NULL),
+      predict_runs_(NULL),
+      predict_run_bits_(0),
+      predict_run_num_(0),
 #endif
 #ifdef ___SYNC_ENABLED___
       syncs_(NULL),
@@ -237,6 +247,18 @@ UserDict::UserDict()
       lemma_count_left_(0),
       lemma_size_left_(0),
       dict_file_(NULL),
+      journal_(NULL),
+      journal_replaying_(false),
+      base_hash_(0),
+      write_gen_(0),
+      change_gen_(0),
+      loaded_lemma_size_(0),
+      compaction_(NULL),
+      compacted_(NULL),
+      changes_(NULL),
+      changes_size_(0),
+      changes_capacity_(0),
+      changes_lost_(false),
       state_(USER_DICT_NONE) {
   memset(&dict_info_, 0, sizeof(dict_info_));
   memset(&load_time_, 0, sizeof(load_time_));
@@ -259,6 +281,7 @@ bool UserDict::load_dict(const char *file_name, LemmaIdType start_id,
     return false;
 
   start_id_ = start_id;
+  end_id_ = end_id;
 
   if (false == validate(file_name) && false == reset(file_name)) {
     goto error;
@@ -268,9 +291,12 @@ bool UserDict::load_dict(const char *file_name, LemmaIdType start_id,
   }
 
   state_ = USER_DICT_SYNC;
+  change_gen_++;
 
   gettimeofday(&load_time_, NULL);
 
+  open_journal();
+
 #ifdef ___DEBUG_PERF___
   DEBUG_PERF_END;
   LOGD_PERF("load_dict");
@@ -279,12 +305,23 @@ bool UserDict::load_dict(const char *file_name, LemmaIdType start_id,
  error:
   free((void*)dict_file_);
   start_id_ = 0;
+  end_id_ = 0;
   return false;
 }
 
 bool UserDict::close_dict() {
   if (state_ == USER_DICT_NONE)
     return true;
+
+  cancel_compaction();
+
+  // All changes are in the journal, fold them into the file. If the
+  // journal cannot be written, write back as without it.
+  if (journal_ && journal_->is_writable() &&
+      (journal_->get_records_size() == 0 || compact_journal(true)))
+    state_ = USER_DICT_SYNC;
+  close_journal();
+
   if (state_ == USER_DICT_SYNC)
     goto out;
 
@@ -293,10 +330,9 @@ bool UserDict::close_dict() {
   // To do a safe flush, we have to discard all newly added
   // lemmas and try to reload dict file.
   pthread_mutex_lock(&g_mutex_);
-  if (load_time_.tv_sec > g_last_update_.tv_sec ||
-    (load_time_.tv_sec == g_last_update_.tv_sec &&
-     load_time_.tv_usec > g_last_update_.tv_usec)) {
+  if (write_gen_ == g_write_gen_) {
     write_back();
+    g_write_gen_++;
     gettimeofday(&g_last_update_, NULL);
   }
   pthread_mutex_unlock(&g_mutex_);
@@ -310,6 +346,10 @@ bool UserDict::close_dict() {
   free(ids_);
 #ifdef ___PREDICT_ENABLED___
   free(predicts_);
+  free(predict_runs_);
+#endif
+#ifdef ___SYNC_ENABLED___
+  free(syncs_);
 #endif
 
   version_ = 0;
@@ -325,12 +365,15 @@ bool UserDict::close_dict() {
   ids_ = NULL;
 #ifdef ___PREDICT_ENABLED___
   predicts_ = NULL;
+  predict_runs_ = NULL;
+  predict_run_num_ = 0;
 #endif
 
   memset(&dict_info_, 0, sizeof(dict_info_));
   lemma_count_left_ = 0;
   lemma_size_left_ = 0;
   state_ = USER_DICT_NONE;
+  change_gen_++;
 
   return true;
 }
@@ -340,7 +383,17 @@ size_t UserDict::number_of_lemmas() {
 }
 
 void UserDict::reset_milestones(uint16 from_step, MileStoneHandle from_handle) {
-  return;
+  // A search reset from the first step holds no lemma id of this dictionary,
+  // so the arrays can be replaced.
+  if (0 != from_step || is_valid_state() == false)
+    return;
+  if (NULL != compaction_) {
+    finish_compaction();
+  } else if (needs_reclaim() ||
+             dict_info_.free_count * kUserDictCompactFreeRatio >
+             dict_info_.lemma_count) {
+    start_compaction();
+  }
 }
 
 MileStoneHandle UserDict::extend_dict(MileStoneHandle from_handle,
@@ -514,9 +567,7 @@ size_t UserDict::_get_lpis(const uint16 *splid_str,
     return 0;
 
   if (0 == pthread_mutex_trylock(&g_mutex_)) {
-    if (load_time_.tv_sec < g_last_update_.tv_sec ||
-      (load_time_.tv_sec == g_last_update_.tv_sec &&
-       load_time_.tv_usec < g_last_update_.tv_usec)) {
+    if (write_gen_ != g_write_gen_) {
       // Others updated disk file, have to reload
       pthread_mutex_unlock(&g_mutex_);
       flush_cache();
@@ -756,99 +807,188 @@ int32 UserDict::locate_in_offsets(char16 lemma_str[], uint16 splid_str[],
 }
 
 #ifdef ___PREDICT_ENABLED___
+// Order of predicts_: by the Hanzis, then shorter lemmas first.
+static int compare_words(const uint16 *ws, uint32 nchar, const uint16 *words,
+                         uint32 lemma_len) {
+  uint32 minl = nchar < lemma_len ? nchar : lemma_len;
+  for (uint32 k = 0; k < minl; k++) {
+    if (ws[k] != words[k])
+      return ws[k] < words[k] ? -1 : 1;
+  }
+  if (nchar != lemma_len)
+    return nchar < lemma_len ? -1 : 1;
+  return 0;
+}
+
 uint32 UserDict::locate_where_to_insert_in_predicts(
     const uint16 * words, int lemma_len) {
-  int32 begin = 0;
-  int32 end = dict_info_.lemma_count - 1;
-  int32 middle = end;
+  uint32 begin, end;
+  get_predict_range(words[0], &begin, &end);
+
+  // The first one not before words
+  while (begin < end) {
+    uint32 middle = (begin + end) >> 1;
+    uint32 offset = predicts_[middle] & kUserDictOffsetMask;
+    if (compare_words(get_lemma_word(offset), get_lemma_nchar(offset),
+                      words, lemma_len) < 0)
+      begin = middle + 1;
+    else
+      end = middle;
+  }
+  return begin;
+}
 
-  uint32 last_matched = middle;
+int32 UserDict::locate_first_in_predicts(const uint16 * words, int lemma_len) {
+  // Lemmas with words as prefix follow words itself in order.
+  uint32 first = locate_where_to_insert_in_predicts(words, lemma_len);
+  if (first >= dict_info_.lemma_count)
+    return -1;
+  uint32 offset = predicts_[first] & kUserDictOffsetMask;
+  if (get_lemma_nchar(offset) < lemma_len ||
+      memcmp(get_lemma_word(offset), words, lemma_len << 1) != 0)
+    return -1;
+  return first;
+}
 
-  while (begin <= end) {
-    middle = (begin + end) >> 1;
-    uint32 offset = offsets_[middle];
-    uint8 nchar = get_lemma_nchar(offset);
-    const uint16 * ws = get_lemma_word(offset);
+void UserDict::get_predict_range(char16 hz, uint32 *begin, uint32 *end) {
+  *begin = 0;
+  *end = dict_info_.lemma_count;
+  if (!predict_runs_)
+    return;
+  UserDictPredictRun * run = find_predict_run(hz);
+  if (!run) {
+    // Not found, only the whole array tells where a new run goes.
+    return;
+  }
+  *begin = run->start;
+  *end = run->start + run->count;
+}
 
-    uint32 minl = nchar < lemma_len ? nchar : lemma_len;
-    uint32 k = 0;
-    int cmp = 0;
+struct UserDictPredictSortItem {
+  const uint16 * words;
+  uint32 nchar;
+  uint32 offset;
+};
 
-    for (; k < minl; k++) {
-      if (ws[k] < words[k]) {
-        cmp = -1;
-        break;
-      } else if (ws[k] > words[k]) {
-        cmp = 1;
-        break;
-      }
-    }
-    if (cmp == 0) {
-      if (nchar < lemma_len)
-        cmp = -1;
-      else if (nchar > lemma_len)
-        cmp = 1;
-    }
+static int cmp_predict_sort_item(const void *p1, const void *p2) {
+  const UserDictPredictSortItem * item1 =
+      static_cast<const UserDictPredictSortItem *>(p1);
+  const UserDictPredictSortItem * item2 =
+      static_cast<const UserDictPredictSortItem *>(p2);
+  return compare_words(item1->words, item1->nchar, item2->words,
+                       item2->nchar);
+}
 
-    if (cmp < 0) {
-      begin = middle + 1;
-      last_matched = middle;
-    } else if (cmp > 0) {
-      end = middle - 1;
-    } else {
-      end = middle - 1;
-      last_matched = middle;
-    }
+bool UserDict::sort_predicts() {
+  uint32 i = 1;
+  for (; i < dict_info_.lemma_count; i++) {
+    uint32 prev = predicts_[i - 1] & kUserDictOffsetMask;
+    uint32 offset = predicts_[i] & kUserDictOffsetMask;
+    if (compare_words(get_lemma_word(prev), get_lemma_nchar(prev),
+                      get_lemma_word(offset), get_lemma_nchar(offset)) > 0)
+      break;
   }
+  if (i >= dict_info_.lemma_count)
+    return true;
 
-  return last_matched;
+  UserDictPredictSortItem * items = (UserDictPredictSortItem *)malloc(
+      sizeof(UserDictPredictSortItem) * dict_info_.lemma_count);
+  if (!items)
+    return false;
+  for (i = 0; i < dict_info_.lemma_count; i++) {
+    uint32 offset = predicts_[i] & kUserDictOffsetMask;
+    items[i].words = get_lemma_word(offset);
+    items[i].nchar = get_lemma_nchar(offset);
+    items[i].offset = predicts_[i];
+  }
+  myqsort(items, dict_info_.lemma_count, sizeof(UserDictPredictSortItem),
+          cmp_predict_sort_item);
+  for (i = 0; i < dict_info_.lemma_count; i++)
+    predicts_[i] = items[i].offset;
+  free(items);
+  return true;
 }
 
-int32 UserDict::locate_first_in_predicts(const uint16 * words, int lemma_len) {
-  int32 begin = 0;
-  int32 end = dict_info_.lemma_count - 1;
-  int32 middle = -1;
+void UserDict::build_predict_runs() {
+  free(predict_runs_);
+  predict_runs_ = NULL;
+  predict_run_num_ = 0;
 
-  int32 last_matched = middle;
+  uint32 runs = 0;
+  char16 last_hz = 0;
+  for (uint32 i = 0; i < dict_info_.lemma_count; i++) {
+    char16 hz = *get_lemma_word(predicts_[i] & kUserDictOffsetMask);
+    if (0 == i || hz != last_hz)
+      runs++;
+    last_hz = hz;
+  }
+  // At most half full, and room for the common Hanzis to come
+  predict_run_bits_ = kUserDictPredictRunMinBits;
+  while ((runs << 1) > (1u << predict_run_bits_))
+    predict_run_bits_++;
+  predict_runs_ = (UserDictPredictRun *)calloc(
+      1 << predict_run_bits_, sizeof(UserDictPredictRun));
+  if (!predict_runs_)
+    return;
 
-  while (begin <= end) {
-    middle = (begin + end) >> 1;
-    uint32 offset = offsets_[middle];
-    uint8 nchar = get_lemma_nchar(offset);
-    const uint16 * ws = get_lemma_word(offset);
+  UserDictPredictRun * run = NULL;
+  for (uint32 i = 0; i < dict_info_.lemma_count; i++) {
+    char16 hz = *get_lemma_word(predicts_[i] & kUserDictOffsetMask);
+    if (!run || run->hz != hz) {
+      run = add_predict_run(hz);
+      run->start = i;
+    }
+    run->count++;
+  }
+}
 
-    uint32 minl = nchar < lemma_len ? nchar : lemma_len;
-    uint32 k = 0;
-    int cmp = 0;
+inline static uint32 hash_hz(char16 hz, uint32 bits) {
+  return ((uint32)hz * 0x9e3779b1) >> (32 - bits);
+}
 
-    for (; k < minl; k++) {
-      if (ws[k] < words[k]) {
-        cmp = -1;
-        break;
-      } else if (ws[k] > words[k]) {
-        cmp = 1;
-        break;
-      }
-    }
-    if (cmp == 0) {
-      if (nchar >= lemma_len)
-        last_matched = middle;
-      if (nchar < lemma_len)
-        cmp = -1;
-      else if (nchar > lemma_len)
-        cmp = 1;
-    }
+UserDict::UserDictPredictRun * UserDict::find_predict_run(char16 hz) {
+  uint32 mask = (1 << predict_run_bits_) - 1;
+  for (uint32 i = hash_hz(hz, predict_run_bits_);; i = (i + 1) & mask) {
+    if (predict_runs_[i].hz == hz)
+      return predict_runs_ + i;
+    if (predict_runs_[i].hz == 0)
+      return NULL;
+  }
+}
 
-    if (cmp < 0) {
-      begin = middle + 1;
-    } else if (cmp > 0) {
-      end = middle - 1;
-    } else {
-      end = middle - 1;
-    }
+UserDict::UserDictPredictRun * UserDict::add_predict_run(char16 hz) {
+  uint32 mask = (1 << predict_run_bits_) - 1;
+  uint32 i = hash_hz(hz, predict_run_bits_);
+  while (predict_runs_[i].hz != 0)
+    i = (i + 1) & mask;
+  predict_runs_[i].hz = hz;
+  predict_runs_[i].start = 0;
+  predict_runs_[i].count = 0;
+  predict_run_num_++;
+  return predict_runs_ + i;
+}
+
+void UserDict::insert_to_predict_runs(char16 hz, uint32 pos) {
+  if (!predict_runs_)
+    return;
+  UserDictPredictRun * run = find_predict_run(hz);
+  if (!run && (predict_run_num_ + 1) << 1 > (1u << predict_run_bits_)) {
+    // predicts_ already has the new lemma at pos
+    build_predict_runs();
+    return;
   }
 
-  return last_matched;
+  uint32 size = 1 << predict_run_bits_;
+  for (uint32 i = 0; i < size; i++) {
+    if (predict_runs_[i].hz != 0 && predict_runs_[i].hz != hz &&
+        predict_runs_[i].start >= pos)
+      predict_runs_[i].start++;
+  }
+  if (!run) {
+    run = add_predict_run(hz);
+    run->start = pos;
+  }
+  run->count++;
 }
 
 #endif
@@ -931,7 +1071,9 @@ void UserDict::remove_lemma_from_sync_list(uint32 offset) {
 #ifdef ___PREDICT_ENABLED___
 void UserDict::remove_lemma_from_predict_list(uint32 offset) {
   offset &= kUserDictOffsetMask;
-  uint32 i = 0;
+  // Lemmas of the same Hanzis are next to each other.
+  uint32 i = locate_where_to_insert_in_predicts(get_lemma_word(offset),
+                                                get_lemma_nchar(offset));
   for (; i < dict_info_.lemma_count; i++) {
     unsigned int off = (predicts_[i] & kUserDictOffsetMask);
     if (off == offset) {
@@ -969,6 +1111,9 @@ bool UserDict::remove_lemma_by_offset_index(int offset_index) {
 
   if (state_ < USER_DICT_OFFSET_DIRTY)
     state_ = USER_DICT_OFFSET_DIRTY;
+
+  append_to_journal(UserDictJournal::kRecordRemove, 0, 0, 0, nchar,
+                    get_lemma_spell_ids(offset), get_lemma_word(offset));
   return true;
 }
 
@@ -990,11 +1135,12 @@ bool UserDict::remove_lemma(LemmaIdType lemma_id) {
 
 void UserDict::flush_cache() {
   LemmaIdType start_id = start_id_;
+  LemmaIdType end_id = end_id_;
   const char * file = strdup(dict_file_);
   if (!file)
     return;
   close_dict();
-  load_dict(file, start_id, kUserDictIdEnd);
+  load_dict(file, start_id, end_id);
   free((void*)file);
 #ifdef ___CACHE_ENABLED___
   cache_init();
@@ -1109,6 +1255,7 @@ bool UserDict::load(const char *file, LemmaIdType start_id) {
 #endif
   size_t i;
   int err;
+  uint32 version = kUserDictVersion;
 
   err = fseek(fp, -1 * sizeof(dict_info), SEEK_END);
   if (err) goto error;
@@ -1195,6 +1342,28 @@ bool UserDict::load(const char *file, LemmaIdType start_id) {
     offsets_by_id[i] = offsets[i];
   }
 
+  // Same as the hash of the whole file, which validate() has checked to be
+  // made of these blocks only.
+  base_hash_ = UserDictJournal::hash(UserDictJournal::kHashSeed, &version, 4);
+  base_hash_ = UserDictJournal::hash(base_hash_, lemmas,
+                                     dict_info.lemma_size);
+  base_hash_ = UserDictJournal::hash(base_hash_, offsets,
+                                     dict_info.lemma_count << 2);
+#ifdef ___PREDICT_ENABLED___
+  base_hash_ = UserDictJournal::hash(base_hash_, predicts,
+                                     dict_info.lemma_count << 2);
+#endif
+  base_hash_ = UserDictJournal::hash(base_hash_, scores,
+                                     dict_info.lemma_count << 2);
+#ifdef ___SYNC_ENABLED___
+  base_hash_ = UserDictJournal::hash(base_hash_, syncs,
+                                     dict_info.sync_count << 2);
+#endif
+  base_hash_ = UserDictJournal::hash(base_hash_, &dict_info,
+                                     sizeof(dict_info));
+  write_gen_ = g_write_gen_;
+  loaded_lemma_size_ = dict_info.lemma_size;
+
   lemmas_ = lemmas;
   offsets_ = offsets;
 #ifdef ___SYNC_ENABLED___
@@ -1210,6 +1379,23 @@ bool UserDict::load(const char *file, LemmaIdType start_id) {
   lemma_count_left_ = kUserDictPreAlloc;
   lemma_size_left_ = kUserDictPreAlloc * (2 + (kUserDictAverageNchar << 2));
   memcpy(&dict_info_, &dict_info, sizeof(dict_info));
+#ifdef ___PREDICT_ENABLED___
+  if (!sort_predicts()) {
+    lemmas_ = NULL;
+    offsets_ = NULL;
+#ifdef ___SYNC_ENABLED___
+    syncs_ = NULL;
+    sync_count_size_ = 0;
+#endif
+    offsets_by_id_ = NULL;
+    scores_ = NULL;
+    ids_ = NULL;
+    predicts_ = NULL;
+    memset(&dict_info_, 0, sizeof(dict_info_));
+    goto error;
+  }
+  build_predict_runs();
+#endif
   state_ = USER_DICT_SYNC;
 
   fclose(fp);
@@ -1321,8 +1507,7 @@ void UserDict::write_back_lemma(int fd) {
   if (err == -1)
     return;
   // New lemmas are always appended, no need to write whole lemma block
-  size_t need_write = kUserDictPreAlloc *
-      (2 + (kUserDictAverageNchar << 2)) - lemma_size_left_;
+  size_t need_write = dict_info_.lemma_size - loaded_lemma_size_;
   err = lseek(fd, dict_info_.lemma_size - need_write, SEEK_CUR);
   if (err == -1)
     return;
@@ -1358,6 +1543,489 @@ void UserDict::write_back_all(int fd) {
   write(fd, &dict_info_, sizeof(dict_info_));
 }
 
+bool UserDict::reserve(size_t lemma_count, size_t lemma_size) {
+  if (lemma_count_left_ >= lemma_count && lemma_size_left_ >= lemma_size)
+    return true;
+  size_t count = dict_info_.lemma_count + lemma_count_left_ + lemma_count;
+  size_t size = dict_info_.lemma_size + lemma_size_left_ + lemma_size;
+
+  // A failed realloc() keeps the old block, so blocks grown before a failure
+  // are only larger than needed.
+  uint8 * lemmas = (uint8 *)realloc(lemmas_, size);
+  if (!lemmas)
+    return false;
+  lemmas_ = lemmas;
+
+  uint32 ** arrays[] = {
+    &offsets_,
+#ifdef ___PREDICT_ENABLED___
+    &predicts_,
+#endif
+    &scores_,
+    &ids_,
+    &offsets_by_id_,
+  };
+  for (size_t i = 0; i < sizeof(arrays) / sizeof(arrays[0]); i++) {
+    uint32 * array = (uint32 *)realloc(*arrays[i], count << 2);
+    if (!array)
+      return false;
+    *arrays[i] = array;
+  }
+
+  lemma_count_left_ += lemma_count;
+  lemma_size_left_ += lemma_size;
+  return true;
+}
+
+void UserDict::open_journal() {
+  pthread_mutex_lock(&g_mutex_);
+  bool writable = (NULL == g_journal_owner_);
+  if (writable)
+    g_journal_owner_ = this;
+  pthread_mutex_unlock(&g_mutex_);
+
+  // Others still read the owner's journal, or they would miss the changes
+  // not folded into the file yet.
+  journal_ = new UserDictJournal();
+  if (!journal_->open(dict_file_, base_hash_, writable) ||
+      !replay_journal() || !writable) {
+    close_journal();
+    return;
+  }
+  journal_->release_records();
+  journal_->set_commit_hooks(journal_commit_begin, journal_commit_end, this);
+}
+
+void UserDict::close_journal() {
+  if (!journal_)
+    return;
+  // Waits for the worker to finish its compaction and sync.
+  delete journal_;
+  journal_ = NULL;
+
+  pthread_mutex_lock(&g_mutex_);
+  if (g_journal_owner_ == this)
+    g_journal_owner_ = NULL;
+  pthread_mutex_unlock(&g_mutex_);
+}
+
+bool UserDict::replay_journal() {
+  UserDictJournal::Record record;
+  size_t pos = 0;
+  size_t put_count = 0;
+  size_t put_size = 0;
+  while (journal_->next_record(&pos, &record)) {
+    if (record.type == UserDictJournal::kRecordPut) {
+      put_count++;
+      put_size += 2 + (record.lemma_len << 2);
+    }
+  }
+  // So that _put_lemma() never flushes in the middle.
+  if (!reserve(put_count, put_size))
+    return false;
+
+  journal_replaying_ = true;
+  pos = 0;
+  while (journal_->next_record(&pos, &record))
+    apply_change(record);
+  journal_replaying_ = false;
+  return true;
+}
+
+void UserDict::apply_change(const UserDictJournal::Record &record) {
+  char16 * hzs = const_cast<char16 *>(record.hzs);
+  uint16 * splids = const_cast<uint16 *>(record.splids);
+  int32 off;
+  switch (record.type) {
+    case UserDictJournal::kRecordPut: {
+#ifdef ___SYNC_ENABLED___
+      // Not restored otherwise, _put_lemma() may move syncs_.
+      if (record.args[2]) {
+        uint32 * syncs_bak = syncs_;
+        syncs_ = NULL;
+        _put_lemma(hzs, splids, record.lemma_len, record.args[0],
+                   record.args[1]);
+        syncs_ = syncs_bak;
+        break;
+      }
+#endif
+      _put_lemma(hzs, splids, record.lemma_len, record.args[0],
+                 record.args[1]);
+      break;
+    }
+    case UserDictJournal::kRecordUpdate:
+      off = locate_in_offsets(hzs, splids, record.lemma_len);
+      if (off != -1) {
+        scores_[off] = record.args[0];
+        dict_info_.total_nfreq += (int32)record.args[1];
+        if (state_ < USER_DICT_SCORE_DIRTY)
+          state_ = USER_DICT_SCORE_DIRTY;
+#ifdef ___SYNC_ENABLED___
+        queue_lemma_for_sync(ids_[off]);
+#endif
+      }
+      break;
+    case UserDictJournal::kRecordRemove:
+      off = locate_in_offsets(hzs, splids, record.lemma_len);
+      if (off != -1)
+        remove_lemma_by_offset_index(off);
+      break;
+#ifdef ___SYNC_ENABLED___
+    case UserDictJournal::kRecordClearSync:
+      clear_sync_lemmas(record.args[0], record.args[1]);
+      break;
+#endif
+    case UserDictJournal::kRecordLimit:
+      set_limit(record.args[0], record.args[1], record.args[2]);
+      break;
+    case UserDictJournal::kRecordDefragment:
+      defragment();
+      break;
+    default:
+      break;
+  }
+}
+
+void UserDict::append_to_journal(uint8 type, uint32 arg0, uint32 arg1,
+                                 uint32 arg2, uint8 lemma_len,
+                                 const uint16 *splids, const char16 *hzs) {
+  change_gen_++;
+  if (journal_replaying_)
+    return;
+  uint32 args[3] = {arg0, arg1, arg2};
+  // Without all the changes, the compacted copy has to be dropped.
+  if (NULL != compaction_ &&
+      !log_change(type, args, lemma_len, splids, hzs))
+    changes_lost_ = true;
+  if (!journal_)
+    return;
+  // If the journal cannot be written, close_dict() writes back instead.
+  if (!journal_->append(type, args, lemma_len, splids, hzs))
+    return;
+
+  if (journal_->get_records_size() < kUserDictJournalCompactSize ||
+      journal_->is_compacting())
+    return;
+  // The compaction would be dropped anyway if others have written the file.
+  if (0 != pthread_mutex_trylock(&g_mutex_))
+    return;
+  bool written_by_others = (write_gen_ != g_write_gen_);
+  pthread_mutex_unlock(&g_mutex_);
+  if (!written_by_others)
+    compact_journal(false);
+}
+
+uint8 * UserDict::build_file_image(size_t *size) {
+  *size = get_dict_file_size(&dict_info_);
+  uint8 * image = (uint8 *)malloc(*size);
+  if (!image)
+    return NULL;
+  // Same layout as write_back_all()
+  uint8 * p = image;
+  uint32 version = kUserDictVersion;
+  memcpy(p, &version, 4);
+  p += 4;
+  memcpy(p, lemmas_, dict_info_.lemma_size);
+  p += dict_info_.lemma_size;
+  memcpy(p, offsets_, dict_info_.lemma_count << 2);
+  p += dict_info_.lemma_count << 2;
+#ifdef ___PREDICT_ENABLED___
+  memcpy(p, predicts_, dict_info_.lemma_count << 2);
+  p += dict_info_.lemma_count << 2;
+#endif
+  memcpy(p, scores_, dict_info_.lemma_count << 2);
+  p += dict_info_.lemma_count << 2;
+#ifdef ___SYNC_ENABLED___
+  memcpy(p, syncs_, dict_info_.sync_count << 2);
+  p += dict_info_.sync_count << 2;
+#endif
+  memcpy(p, &dict_info_, sizeof(dict_info_));
+  return image;
+}
+
+bool UserDict::compact_journal(bool closing) {
+  size_t size;
+  uint8 * image = build_file_image(&size);
+  if (!image)
+    return false;
+  // Only this thread appends, so the image has the changes of exactly the
+  // records so far.
+  return journal_->compact(image, size, journal_->get_records_size(),
+                           closing);
+}
+
+bool UserDict::journal_commit_begin(void *arg) {
+  UserDict * dict = static_cast<UserDict *>(arg);
+  pthread_mutex_lock(&g_mutex_);
+  // As in close_dict(), if others have written the file, their changes win.
+  return dict->write_gen_ == g_write_gen_;
+}
+
+void UserDict::journal_commit_end(void *arg, bool committed) {
+  UserDict * dict = static_cast<UserDict *>(arg);
+  if (committed) {
+    dict->write_gen_ = ++g_write_gen_;
+    gettimeofday(&g_last_update_, NULL);
+  }
+  pthread_mutex_unlock(&g_mutex_);
+}
+
+uint32 UserDict::get_change_gen() {
+  if (is_valid_state() && 0 == pthread_mutex_trylock(&g_mutex_)) {
+    bool written_by_others = (write_gen_ != g_write_gen_);
+    pthread_mutex_unlock(&g_mutex_);
+    if (written_by_others)
+      flush_cache();
+  }
+  return change_gen_;
+}
+
+bool UserDict::is_compacting() {
+  return NULL != compaction_;
+}
+
+bool UserDict::log_change(uint8 type, const uint32 args[3], uint8 lemma_len,
+                          const uint16 *splids, const char16 *hzs) {
+  size_t size = sizeof(UserDictChange) + (lemma_len << 2);
+  if (changes_size_ + size > changes_capacity_) {
+    size_t capacity = changes_capacity_ * 2;
+    if (capacity < changes_size_ + size)
+      capacity = changes_size_ + size + (kUserDictPreAlloc << 4);
+    uint8 * changes = (uint8 *)realloc(changes_, capacity);
+    if (!changes)
+      return false;
+    changes_ = changes;
+    changes_capacity_ = capacity;
+  }
+  UserDictChange * change = (UserDictChange *)(changes_ + changes_size_);
+  change->type = type;
+  change->lemma_len = lemma_len;
+  change->reserved = 0;
+  memcpy(change->args, args, sizeof(change->args));
+  uint16 * p = (uint16 *)(change + 1);
+  if (lemma_len > 0) {
+    memcpy(p, splids, lemma_len << 1);
+    memcpy(p + lemma_len, hzs, lemma_len << 1);
+  }
+  changes_size_ += size;
+  return true;
+}
+
+bool UserDict::needs_reclaim() {
+  uint32 ratio = dict_info_.reclaim_ratio;
+  // reclaim() does not clear the dictionary yet.
+  if (ratio == 0 || ratio >= 100 ||
+      dict_info_.lemma_count * ratio / 100 == 0)
+    return false;
+  // As in _put_lemma(), for a lemma of the average length
+  return (dict_info_.limit_lemma_count > 0 &&
+          dict_info_.lemma_count >= dict_info_.limit_lemma_count)
+      || (dict_info_.limit_lemma_size > 0 &&
+          dict_info_.lemma_size + (2 + (kUserDictAverageNchar << 2))
+          > dict_info_.limit_lemma_size);
+}
+
+void UserDict::start_compaction() {
+#ifdef ___DEBUG_PERF___
+  DEBUG_PERF_BEGIN;
+#endif
+  UserDict * copy = new UserDict();
+  if (!copy)
+    return;
+  size_t count = dict_info_.lemma_count + lemma_count_left_;
+  size_t size = dict_info_.lemma_size + lemma_size_left_;
+  copy->total_other_nfreq_ = total_other_nfreq_;
+  copy->load_time_ = load_time_;
+  copy->start_id_ = start_id_;
+  copy->end_id_ = end_id_;
+  copy->version_ = version_;
+  copy->lemma_count_left_ = lemma_count_left_;
+  copy->lemma_size_left_ = lemma_size_left_;
+  memcpy(&copy->dict_info_, &dict_info_, sizeof(dict_info_));
+  copy->state_ = state_;
+
+  copy->lemmas_ = (uint8 *)malloc(size);
+  copy->offsets_ = (uint32 *)malloc(count << 2);
+  copy->scores_ = (uint32 *)malloc(count << 2);
+  copy->ids_ = (uint32 *)malloc(count << 2);
+  copy->offsets_by_id_ = (uint32 *)malloc(count << 2);
+  bool copied = copy->lemmas_ && copy->offsets_ && copy->scores_ &&
+      copy->ids_ && copy->offsets_by_id_;
+#ifdef ___PREDICT_ENABLED___
+  copy->predicts_ = (uint32 *)malloc(count << 2);
+  copied = copied && copy->predicts_;
+#endif
+#ifdef ___SYNC_ENABLED___
+  copy->sync_count_size_ = sync_count_size_;
+  copy->syncs_ = (uint32 *)malloc(sync_count_size_ << 2);
+  copied = copied && copy->syncs_;
+#endif
+  if (!copied) {
+    copy->discard();
+    delete copy;
+    return;
+  }
+  memcpy(copy->lemmas_, lemmas_, dict_info_.lemma_size);
+  memcpy(copy->offsets_, offsets_, dict_info_.lemma_count << 2);
+  memcpy(copy->scores_, scores_, dict_info_.lemma_count << 2);
+  memcpy(copy->ids_, ids_, dict_info_.lemma_count << 2);
+  memcpy(copy->offsets_by_id_, offsets_by_id_, dict_info_.lemma_count << 2);
+#ifdef ___PREDICT_ENABLED___
+  memcpy(copy->predicts_, predicts_, dict_info_.lemma_count << 2);
+#endif
+#ifdef ___SYNC_ENABLED___
+  memcpy(copy->syncs_, syncs_, dict_info_.sync_count << 2);
+#endif
+
+  compaction_ = copy;
+  compacted_ = NULL;
+  changes_size_ = 0;
+  changes_lost_ = false;
+  if (0 != pthread_create(&compaction_thread_, NULL, compaction_main, this)) {
+    compaction_ = NULL;
+    copy->discard();
+    delete copy;
+  }
+#ifdef ___DEBUG_PERF___
+  DEBUG_PERF_END;
+  LOGD_PERF("start_compaction");
+#endif
+}
+
+void *UserDict::compaction_main(void *arg) {
+  UserDict * dict = static_cast<UserDict *>(arg);
+  // Only this thread touches the copy until it is published.
+  UserDict * copy = dict->compaction_;
+  if (copy->needs_reclaim())
+    copy->reclaim();
+  copy->defragment();
+  __atomic_store_n(&dict->compacted_, copy, __ATOMIC_RELEASE);
+  return NULL;
+}
+
+void UserDict::finish_compaction() {
+  UserDict * copy = __atomic_load_n(&compacted_, __ATOMIC_ACQUIRE);
+  if (NULL == copy)
+    return;
+  // The new arrays go to the file with a journal compaction, which has to
+  // wait for the one in progress. Take the copy at a later reset.
+  if (journal_ && journal_->is_writable() && journal_->is_compacting())
+    return;
+#ifdef ___DEBUG_PERF___
+  DEBUG_PERF_BEGIN;
+#endif
+  pthread_join(compaction_thread_, NULL);
+  compaction_ = NULL;
+  compacted_ = NULL;
+
+  // Redo the changes made since the copy was taken.
+  size_t put_count = 0;
+  size_t put_size = 0;
+  size_t pos = 0;
+  while (pos < changes_size_) {
+    UserDictChange * change = (UserDictChange *)(changes_ + pos);
+    if (change->type == UserDictJournal::kRecordPut) {
+      put_count++;
+      put_size += 2 + (change->lemma_len << 2);
+    }
+    pos += sizeof(UserDictChange) + (change->lemma_len << 2);
+  }
+  if (changes_lost_ || !copy->reserve(put_count, put_size)) {
+    copy->discard();
+    delete copy;
+    changes_size_ = 0;
+    return;
+  }
+  copy->journal_replaying_ = true;
+  pos = 0;
+  while (pos < changes_size_) {
+    UserDictChange * change = (UserDictChange *)(changes_ + pos);
+    UserDictJournal::Record record;
+    record.type = change->type;
+    record.lemma_len = change->lemma_len;
+    memcpy(record.args, change->args, sizeof(record.args));
+    record.splids = (uint16 *)(change + 1);
+    record.hzs = record.splids + change->lemma_len;
+    copy->apply_change(record);
+    pos += sizeof(UserDictChange) + (change->lemma_len << 2);
+  }
+  copy->journal_replaying_ = false;
+  changes_size_ = 0;
+
+  // Swap the arrays, the copy frees the old ones.
+  uint8 * lemmas = lemmas_;
+  uint32 * offsets = offsets_;
+  uint32 * scores = scores_;
+  uint32 * ids = ids_;
+  uint32 * offsets_by_id = offsets_by_id_;
+  lemmas_ = copy->lemmas_;
+  offsets_ = copy->offsets_;
+  scores_ = copy->scores_;
+  ids_ = copy->ids_;
+  offsets_by_id_ = copy->offsets_by_id_;
+  copy->lemmas_ = lemmas;
+  copy->offsets_ = offsets;
+  copy->scores_ = scores;
+  copy->ids_ = ids;
+  copy->offsets_by_id_ = offsets_by_id;
+#ifdef ___PREDICT_ENABLED___
+  uint32 * predicts = predicts_;
+  predicts_ = copy->predicts_;
+  copy->predicts_ = predicts;
+  UserDictPredictRun * predict_runs = predict_runs_;
+  predict_runs_ = copy->predict_runs_;
+  copy->predict_runs_ = predict_runs;
+  predict_run_bits_ = copy->predict_run_bits_;
+  predict_run_num_ = copy->predict_run_num_;
+#endif
+#ifdef ___SYNC_ENABLED___
+  uint32 * syncs = syncs_;
+  syncs_ = copy->syncs_;
+  copy->syncs_ = syncs;
+  sync_count_size_ = copy->sync_count_size_;
+#endif
+  memcpy(&dict_info_, &copy->dict_info_, sizeof(dict_info_));
+  lemma_count_left_ = copy->lemma_count_left_;
+  lemma_size_left_ = copy->lemma_size_left_;
+  change_gen_++;
+  // Lemmas are moved, only a whole write back is right.
+  state_ = USER_DICT_DEFRAGMENTED;
+  copy->discard();
+  delete copy;
+#ifdef ___CACHE_ENABLED___
+  cache_init();
+#endif
+
+  // The journal records do not redo the reclaim, fold them into the file.
+  if (journal_ && journal_->is_writable())
+    compact_journal(false);
+#ifdef ___DEBUG_PERF___
+  DEBUG_PERF_END;
+  LOGD_PERF("finish_compaction");
+#endif
+}
+
+void UserDict::cancel_compaction() {
+  if (NULL != compaction_) {
+    pthread_join(compaction_thread_, NULL);
+    compaction_->discard();
+    delete compaction_;
+    compaction_ = NULL;
+    compacted_ = NULL;
+  }
+  free(changes_);
+  changes_ = NULL;
+  changes_size_ = 0;
+  changes_capacity_ = 0;
+  changes_lost_ = false;
+}
+
+void UserDict::discard() {
+  if (state_ != USER_DICT_NONE)
+    state_ = USER_DICT_SYNC;
+  close_dict();
+}
+
 #ifdef ___CACHE_ENABLED___
 bool UserDict::load_cache(UserDictSearchable *searchable,
                           uint32 *offset, uint32 *length) {
@@ -1517,8 +2185,8 @@ void UserDict::defragment(void) {
   size_t first_inuse = 0;
   while (first_freed < dict_info_.lemma_count) {
     // Find first freed offset
-    while ((offsets_[first_freed] & kUserDictOffsetFlagRemove) == 0 &&
-            first_freed < dict_info_.lemma_count) {
+    while (first_freed < dict_info_.lemma_count &&
+           (offsets_[first_freed] & kUserDictOffsetFlagRemove) == 0) {
       first_freed++;
     }
     if (first_freed < dict_info_.lemma_count) {
@@ -1530,8 +2198,8 @@ void UserDict::defragment(void) {
     }
     // Find first inuse offse after first_freed
     first_inuse = first_freed + 1;
-    while ((offsets_[first_inuse] & kUserDictOffsetFlagRemove) &&
-           (first_inuse < dict_info_.lemma_count)) {
+    while ((first_inuse < dict_info_.lemma_count) &&
+           (offsets_[first_inuse] & kUserDictOffsetFlagRemove)) {
       // Save REMOVE flag to lemma flag
       int off = offsets_[first_inuse];
       set_lemma_flag(off, kUserDictLemmaFlagRemove);
@@ -1561,16 +2229,16 @@ void UserDict::defragment(void) {
   first_inuse = 0;
   while (first_freed < dict_info_.lemma_count) {
     // Find first freed offset
-    while ((predicts_[first_freed] & kUserDictOffsetFlagRemove) == 0 &&
-            first_freed < dict_info_.lemma_count) {
+    while (first_freed < dict_info_.lemma_count &&
+           (predicts_[first_freed] & kUserDictOffsetFlagRemove) == 0) {
       first_freed++;
     }
     if (first_freed >= dict_info_.lemma_count)
       break;
     // Find first inuse offse after first_freed
     first_inuse = first_freed + 1;
-    while ((predicts_[first_inuse] & kUserDictOffsetFlagRemove)
-           && (first_inuse < dict_info_.lemma_count)) {
+    while ((first_inuse < dict_info_.lemma_count)
+           && (predicts_[first_inuse] & kUserDictOffsetFlagRemove)) {
       first_inuse++;
     }
     if (first_inuse >= dict_info_.lemma_count) {
@@ -1585,6 +2253,9 @@ void UserDict::defragment(void) {
   }
 #endif
   dict_info_.lemma_count = first_freed;
+#ifdef ___PREDICT_ENABLED___
+  build_predict_runs();
+#endif
   // Fixup lemmas_
   size_t begin = 0;
   size_t end = 0;
@@ -1601,8 +2272,11 @@ void UserDict::defragment(void) {
     }
     break;
   }
-  if (dst >= real_size)
+  if (dst >= real_size) {
+    append_to_journal(UserDictJournal::kRecordDefragment, 0, 0, 0, 0, NULL,
+                      NULL);
     return;
+  }
 
   end = dst;
   while (end < real_size) {
@@ -1672,6 +2346,9 @@ void UserDict::defragment(void) {
 
   state_ = USER_DICT_DEFRAGMENTED;
 
+  append_to_journal(UserDictJournal::kRecordDefragment, 0, 0, 0, 0, NULL,
+                    NULL);
+
 #ifdef ___DEBUG_PERF___
   DEBUG_PERF_END;
   LOGD_PERF("defragment");
@@ -1688,6 +2365,9 @@ void UserDict::clear_sync_lemmas(unsigned int start, unsigned int end) {
   dict_info_.sync_count -= (end - start);
   if (state_ < USER_DICT_SYNC_DIRTY)
     state_ = USER_DICT_SYNC_DIRTY;
+
+  append_to_journal(UserDictJournal::kRecordClearSync, start, end, 0, 0, NULL,
+                    NULL);
 }
 
 int UserDict::get_sync_count() {
@@ -1736,66 +2416,23 @@ int UserDict::put_lemmas_no_sync_from_utf16le_string(char16 * lemmas, int len) {
   char16 *ptr = lemmas;
 
   // Extract pinyin,words,frequence,last_mod_time
-  char16 * p = ptr, * py16 = ptr;
+  char16 * p = ptr;
   char16 * hz16 = NULL;
-  int py16_len = 0;
   uint16 splid[kMaxLemmaSize];
-  int splid_len = 0;
-  int hz16_len = 0;
-  char16 * fr16 = NULL;
-  int fr16_len = 0;
+  uint16 splid_len = 0;
+  uint32 intf = 0;
+  uint64 last_mod = 0;
 
   while (p - ptr < len) {
-    // Pinyin
-    py16 = p;
-    splid_len = 0;
-    while (*p != 0x2c && (p - ptr) < len) {
-      if (*p == 0x20)
-        splid_len++;
-      p++;
-    }
-    splid_len++;
-    if (p - ptr == len)
-      break;
-    py16_len = p - py16;
-    if (kMaxLemmaSize < splid_len) {
-      break;
-    }
-    bool is_pre;
-    int splidl = spl_parser->splstr16_to_idxs_f(
-        py16, py16_len, splid, NULL, kMaxLemmaSize, is_pre);
-    if (splidl != splid_len)
-      break;
-    // Phrase
-    hz16 = ++p;
-    while (*p != 0x2c && (p - ptr) < len) {
-      p++;
-    }
-    hz16_len = p - hz16;
-    if (hz16_len != splid_len)
+    p = parse_lemma_in_utf16le(spl_parser, p, ptr + len, &hz16, splid,
+                               &splid_len, &intf, &last_mod);
+    if (!p)
       break;
-    // Frequency
-    fr16 = ++p;
-    fr16_len = 0;
-    while (*p != 0x2c && (p - ptr) < len) {
-      p++;
-    }
-    fr16_len = p - fr16;
-    uint32 intf = (uint32)utf16le_atoll(fr16, fr16_len);
-    // Last modified time
-    fr16 = ++p;
-    fr16_len = 0;
-    while (*p != 0x3b && (p - ptr) < len) {
-      p++;
-    }
-    fr16_len = p - fr16;
-    uint64 last_mod = utf16le_atoll(fr16, fr16_len);
 
     put_lemma_no_sync(hz16, splid, splid_len, intf, last_mod);
     newly_added++;
-
-    p++;
   }
+  delete spl_parser;
 
 #ifdef ___DEBUG_PERF___
   DEBUG_PERF_END;
@@ -1809,16 +2446,9 @@ int UserDict::get_sync_lemmas_in_utf16le_string_from_beginning(
   int len = 0;
   *count = 0;
 
-  int left_len = size;
-
   if (is_valid_state() == false)
     return len;
 
-  SpellingTrie * spl_trie = &SpellingTrie::get_instance();
-  if (!spl_trie) {
-    return 0;
-  }
-
   uint32 i;
   for (i = 0; i < dict_info_.sync_count; i++) {
     int offset = syncs_[i];
@@ -1827,95 +2457,566 @@ int UserDict::get_sync_lemmas_in_utf16le_string_from_beginning(
     uint16 *wrd = get_lemma_word(offset);
     int score = _get_lemma_score(wrd, spl, nchar);
 
-    static char score_temp[32], *pscore_temp = score_temp;
-    static char16 temp[256], *ptemp = temp;
+    // Write to string
+    int need_len = write_lemma_in_utf16le(offset, score, str + len,
+                                          size - len);
+    if (need_len <= 0)
+      break;
+
+    len += need_len;
+    (*count)++;
+  }
+
+  if (len > 0) {
+    if (state_ < USER_DICT_SYNC_DIRTY)
+      state_ = USER_DICT_SYNC_DIRTY;
+  }
+  return len;
+}
 
-    pscore_temp = score_temp;
-    ptemp = temp;
+#endif
 
-    uint32 j;
-    // Add pinyin
-    for (j = 0; j < nchar; j++) {
-      int ret_len = spl_trie->get_spelling_str16(
-          spl[j], ptemp, temp + sizeof(temp) - ptemp);
-      if (ret_len <= 0)
-        break;
-      ptemp += ret_len;
-      if (ptemp < temp + sizeof(temp) - 1) {
-        *(ptemp++) = ' ';
-      } else {
-        j = 0;
+// Write all of buf, going on after short writes.
+static bool write_fully(int fd, const void *buf, size_t size) {
+  const uint8 *p = static_cast<const uint8*>(buf);
+  while (size > 0) {
+    ssize_t written = write(fd, p, size);
+    if (written < 0) {
+      if (EINTR == errno)
+        continue;
+      return false;
+    }
+    p += written;
+    size -= written;
+  }
+  return true;
+}
+
+char16 * UserDict::parse_lemma_in_utf16le(SpellingParser *spl_parser,
+                                          char16 *p, char16 *end,
+                                          char16 **hzs, uint16 *splids,
+                                          uint16 *lemma_len, uint32 *count,
+                                          uint64 *lmt) {
+  // Pinyin
+  char16 * py16 = p;
+  size_t splid_len = 1;
+  while (p < end && *p != 0x2c) {
+    if (*p == 0x20)
+      splid_len++;
+    p++;
+  }
+  if (p == end || kMaxLemmaSize < splid_len)
+    return NULL;
+  bool is_pre;
+  size_t splidl = spl_parser->splstr16_to_idxs_f(
+      py16, p - py16, splids, NULL, kMaxLemmaSize, is_pre);
+  if (splidl != splid_len)
+    return NULL;
+  // Phrase
+  char16 * hz16 = ++p;
+  while (p < end && *p != 0x2c)
+    p++;
+  if (p == end || (size_t)(p - hz16) != splid_len)
+    return NULL;
+  // Frequency
+  char16 * fr16 = ++p;
+  while (p < end && *p != 0x2c)
+    p++;
+  if (p == end)
+    return NULL;
+  *count = (uint32)utf16le_atoll(fr16, p - fr16);
+  // Last modified time, the last one may end without ';'
+  fr16 = ++p;
+  while (p < end && *p != 0x3b)
+    p++;
+  *lmt = utf16le_atoll(fr16, p - fr16);
+
+  *hzs = hz16;
+  *lemma_len = splid_len;
+  return p < end ? p + 1 : end;
+}
+
+int UserDict::write_lemma_in_utf16le(uint32 offset, uint32 score,
+                                     char16 *str, int size) {
+  return write_lemma_in_utf16le(lemmas_, offset, score, str, size);
+}
+
+int UserDict::write_lemma_in_utf16le(const uint8 *lemmas, uint32 offset,
+                                     uint32 score, char16 *str, int size) {
+  SpellingTrie &spl_trie = SpellingTrie::get_instance();
+  // Same layout as get_lemma_nchar(), get_lemma_spell_ids() and
+  // get_lemma_word()
+  offset &= kUserDictOffsetMask;
+  uint32 nchar = lemmas[offset + 1];
+  const uint16 *spl = (const uint16 *)(lemmas + offset + 2);
+  const uint16 *wrd = spl + nchar;
+  char16 *p = str;
+  char16 *end = str + size;
+
+  // Add pinyin
+  for (uint32 j = 0; j < nchar; j++) {
+    int ret_len = spl_trie.get_spelling_str16(spl[j], p, end - p);
+    if (ret_len <= 0)
+      return 0;
+    p += ret_len;
+    if (p >= end)
+      return 0;
+    *(p++) = (j + 1 < nchar ? ' ' : ',');
+  }
+  // Add phrase
+  if (end - p <= (int)nchar)
+    return 0;
+  memcpy(p, wrd, nchar << 1);
+  p += nchar;
+  *(p++) = ',';
+  // Add frequency
+  int ret_len = utf16le_lltoa(extract_score_freq(score), p, end - p);
+  if (ret_len <= 0 || p + ret_len >= end)
+    return 0;
+  p += ret_len;
+  *(p++) = ',';
+  // Add last modified time
+  ret_len = utf16le_lltoa(extract_score_lmt(score), p, end - p);
+  if (ret_len <= 0 || p + ret_len >= end)
+    return 0;
+  p += ret_len;
+  *(p++) = ';';
+  return p - str;
+}
+
+int UserDict::import_lemmas(int fd, TransferProgress progress,
+                            TransferLock lock, void *arg) {
+  if (is_valid_state() == false)
+    return -1;
+#ifdef ___DEBUG_PERF___
+  DEBUG_PERF_BEGIN;
+#endif
+  SpellingParser * spl_parser = new SpellingParser();
+  char16 * buf = (char16 *)malloc(kUserDictTransferBufferSize << 1);
+  // New lemmas are kept after the ones of the chunk being parsed.
+  size_t max_parsed =
+      kUserDictTransferBufferSize / kUserDictTransferMinLemmaLen + 1;
+  size_t capacity = max_parsed * 2;
+  ImportedLemma * parsed =
+      (ImportedLemma *)malloc(sizeof(ImportedLemma) * capacity);
+  if (!spl_parser || !buf || !parsed) {
+    delete spl_parser;
+    free(buf);
+    free(parsed);
+    return -1;
+  }
+
+  int imported = 0;
+  uint32 kept = 0;
+  size_t bytes = 0;
+  size_t buf_size = 0;
+  bool failed = false;
+  char16 * hzs;
+  while (true) {
+    // The file and the parsing are not the engine's, only putting in is.
+    if (lock)
+      lock(arg, false);
+    if (kept + max_parsed > capacity) {
+      ImportedLemma * grown = (ImportedLemma *)realloc(
+          parsed, sizeof(ImportedLemma) * capacity * 2);
+      if (!grown) {
+        if (lock)
+          lock(arg, true);
+        failed = true;
         break;
       }
+      parsed = grown;
+      capacity *= 2;
     }
-    if (j < nchar) {
-      continue;
+    ssize_t readed = read(fd, (uint8 *)buf + buf_size,
+                          (kUserDictTransferBufferSize << 1) - buf_size);
+    if (readed < 0) {
+      if (lock)
+        lock(arg, true);
+      if (EINTR == errno)
+        continue;
+      failed = true;
+      break;
     }
-    ptemp--;
-    if (ptemp < temp + sizeof(temp) - 1) {
-      *(ptemp++) = ',';
-    } else {
-      continue;
+    bool eof = (0 == readed);
+    if (0 == bytes && readed >= 2 && 0xfeff == buf[0]) {
+      // Byte order mark
+      memmove(buf, buf + 1, readed - 2);
+      readed -= 2;
+      bytes += 2;
     }
-    // Add phrase
-    for (j = 0; j < nchar; j++) {
-      if (ptemp < temp + sizeof(temp) - 1) {
-        *(ptemp++) = wrd[j];
-      } else {
-        break;
+    buf_size += readed;
+    bytes += readed;
+
+    // Only whole lemmas, unless the file ends or a lemma fills the buffer.
+    char16 * p = buf;
+    char16 * end = buf + (buf_size >> 1);
+    char16 * last = end;
+    if (!eof) {
+      while (last > p && *(last - 1) != 0x3b)
+        last--;
+      if (last == p && end == buf + kUserDictTransferBufferSize)
+        last = end;
+    }
+    ImportedLemma * chunk = parsed + kept;
+    uint32 chunk_num = 0;
+    while (p < last) {
+      ImportedLemma * lemma = chunk + chunk_num;
+      uint32 count;
+      char16 * next = parse_lemma_in_utf16le(spl_parser, p, last, &hzs,
+                                             lemma->splids,
+                                             &lemma->lemma_len, &count,
+                                             &lemma->lmt);
+      if (!next) {
+        // Skip the broken lemma
+        while (p < last && *p != 0x3b)
+          p++;
+        if (p < last)
+          p++;
+        continue;
       }
+      p = next;
+      memcpy(lemma->hzs, hzs, lemma->lemma_len << 1);
+      lemma->count = count > kUserDictMaxFrequency ?
+          kUserDictMaxFrequency : count;
+      chunk_num++;
     }
-    if (j < nchar) {
-      continue;
+    // Keep the rest, with an odd byte if any, for the next read.
+    size_t used = (last - buf) << 1;
+    memmove(buf, last, buf_size - used);
+    buf_size -= used;
+
+    if (lock)
+      lock(arg, true);
+    // Others may have used the dictionary in the meantime.
+    if (is_valid_state() == false) {
+      failed = true;
+      break;
     }
-    if (ptemp < temp + sizeof(temp) - 1) {
-      *(ptemp++) = ',';
-    } else {
-      continue;
+    uint32 new_num = update_imported(chunk, chunk_num);
+    imported += chunk_num - new_num;
+    kept += new_num;
+    if (eof) {
+      // Lemmas learnt in the meantime are updated instead.
+      imported += put_imported(parsed, kept);
+      kept = 0;
     }
-    // Add frequency
-    uint32 intf = extract_score_freq(score);
-    int ret_len = utf16le_lltoa(intf, ptemp, temp + sizeof(temp) - ptemp);
-    if (ret_len <= 0)
-      continue;
-    ptemp += ret_len;
-    if (ptemp < temp + sizeof(temp) - 1) {
-      *(ptemp++) = ',';
-    } else {
-      continue;
+
+    if (progress) {
+      if (lock)
+        lock(arg, false);
+      progress(arg, imported + kept, bytes);
+      if (lock)
+        lock(arg, true);
     }
-    // Add last modified time
-    uint64 last_mod = extract_score_lmt(score);
-    ret_len = utf16le_lltoa(last_mod, ptemp, temp + sizeof(temp) - ptemp);
-    if (ret_len <= 0)
+    if (eof)
+      break;
+  }
+  free(parsed);
+  free(buf);
+  delete spl_parser;
+
+  // Write the file once for all, instead of journaling every lemma. The
+  // journal cannot replay the import, so if the file is not written, go on
+  // without it and close_dict() writes back instead.
+  if (is_valid_state() && journal_ && journal_->is_writable()) {
+    journal_->wait_for_compaction();
+    if (!compact_journal(false) || !journal_->wait_for_compaction())
+      close_journal();
+  }
+#ifdef ___DEBUG_PERF___
+  DEBUG_PERF_END;
+  LOGD_PERF("import_lemmas");
+#endif
+  return failed ? -1 : imported;
+}
+
+uint32 UserDict::update_imported(ImportedLemma *lemmas, uint32 num) {
+  uint32 others = 0;
+  for (uint32 i = 0; i < num; i++) {
+    ImportedLemma * lemma = lemmas + i;
+    int32 off = locate_in_offsets(lemma->hzs, lemma->splids,
+                                  lemma->lemma_len);
+    if (off == -1) {
+      if (others != i)
+        lemmas[others] = *lemma;
+      others++;
       continue;
-    ptemp += ret_len;
-    if (ptemp < temp + sizeof(temp) - 1) {
-      *(ptemp++) = ';';
+    }
+    dict_info_.total_nfreq += lemma->count - extract_score_freq(scores_[off]);
+    scores_[off] = build_score(lemma->lmt, lemma->count);
+    if (state_ < USER_DICT_SCORE_DIRTY)
+      state_ = USER_DICT_SCORE_DIRTY;
+  }
+  if (others < num)
+    change_gen_++;
+  return others;
+}
+
+int UserDict::put_imported(ImportedLemma *lemmas, uint32 num) {
+  // The copy would not have the staged lemmas.
+  cancel_compaction();
+
+  uint32 others = update_imported(lemmas, num);
+  int imported = num - others;
+  uint32 staged = 0;
+  size_t staged_size = 0;
+  for (uint32 i = 0; i < others; i++) {
+    ImportedLemma * lemma = lemmas + i;
+    if (stage_imported(lemma->hzs, lemma->splids, lemma->lemma_len,
+                       lemma->count, lemma->lmt, staged, staged_size)) {
+      staged++;
+      staged_size += 2 + (lemma->lemma_len << 2);
+      imported++;
+    }
+  }
+  if (staged > 0 && !sort_in_imported(staged, staged_size))
+    imported -= staged;
+  change_gen_++;
+  return imported;
+}
+
+bool UserDict::stage_imported(char16 lemma_str[], uint16 splids[],
+                              uint16 lemma_len, uint16 count, uint64 lmt,
+                              uint32 staged, size_t staged_size) {
+  uint32 off = dict_info_.lemma_count + staged;
+  size_t offset = dict_info_.lemma_size + staged_size;
+  size_t size = 2 + (lemma_len << 2);
+  if (start_id_ + off > end_id_ || offset > kUserDictOffsetMask)
+    return false;
+  if ((dict_info_.limit_lemma_count > 0 &&
+       off >= dict_info_.limit_lemma_count) ||
+      (dict_info_.limit_lemma_size > 0 &&
+       offset + size > dict_info_.limit_lemma_size))
+    return false;
+  // Grow by about as many as staged, so that they are copied a few times.
+  if ((lemma_count_left_ <= staged ||
+       lemma_size_left_ < staged_size + size) &&
+      !reserve(staged + kUserDictPreAlloc,
+               staged_size + size +
+               kUserDictPreAlloc * (2 + (kUserDictAverageNchar << 2))))
+    return false;
+
+  lemmas_[offset] = 0;
+  lemmas_[offset + 1] = (uint8)lemma_len;
+  memcpy(lemmas_ + offset + 2, splids, lemma_len << 1);
+  memcpy(lemmas_ + offset + 2 + (lemma_len << 1), lemma_str, lemma_len << 1);
+  offsets_[off] = offset;
+  scores_[off] = build_score(lmt, count);
+  ids_[off] = start_id_ + off;
+#ifdef ___PREDICT_ENABLED___
+  predicts_[off] = offset;
+#endif
+  offsets_by_id_[off] = offset;
+  return true;
+}
+
+struct UserDictImportItem {
+  const uint16 * splids;
+  uint32 nchar;
+  // Initial letters, as in UserDictSearchable
+  uint32 signature[kMaxLemmaSize / 4];
+  uint32 offset;
+  uint32 score;
+  uint32 id;
+};
+
+// In the order of offsets_, then by the lemmas, then by the order imported.
+static int cmp_import_item(const void *p1, const void *p2) {
+  const UserDictImportItem * item1 =
+      static_cast<const UserDictImportItem *>(p1);
+  const UserDictImportItem * item2 =
+      static_cast<const UserDictImportItem *>(p2);
+  if (item1->nchar != item2->nchar)
+    return item1->nchar < item2->nchar ? -1 : 1;
+  for (uint32 i = 0; i < item1->nchar; i++) {
+    uint32 off = 8 * (i % 4);
+    uint8 py1 = (item1->signature[i / 4] >> off) & 0xff;
+    uint8 py2 = (item2->signature[i / 4] >> off) & 0xff;
+    if (py1 != py2)
+      return py1 < py2 ? -1 : 1;
+  }
+  // Spelling ids, then Hanzis right after them
+  for (uint32 i = 0; i < (item1->nchar << 1); i++) {
+    if (item1->splids[i] != item2->splids[i])
+      return item1->splids[i] < item2->splids[i] ? -1 : 1;
+  }
+  if (item1->id != item2->id)
+    return item1->id < item2->id ? -1 : 1;
+  return 0;
+}
+
+bool UserDict::sort_in_imported(uint32 staged, size_t staged_size) {
+  uint32 old_count = dict_info_.lemma_count;
+  UserDictImportItem * items = (UserDictImportItem *)malloc(
+      sizeof(UserDictImportItem) * staged);
+  if (!items)
+    return false;
+  UserDictSearchable searchable;
+  for (uint32 i = 0; i < staged; i++) {
+    uint32 offset = offsets_[old_count + i];
+    items[i].splids = get_lemma_spell_ids(offset);
+    items[i].nchar = get_lemma_nchar(offset);
+    prepare_locate(&searchable, items[i].splids, items[i].nchar);
+    memcpy(items[i].signature, searchable.signature,
+           sizeof(items[i].signature));
+    items[i].offset = offset;
+    items[i].score = scores_[old_count + i];
+    items[i].id = ids_[old_count + i];
+  }
+  myqsort(items, staged, sizeof(UserDictImportItem), cmp_import_item);
+
+  // Keep the last one of a lemma imported more than once.
+  for (uint32 i = 0; i < staged; i++) {
+    if (i + 1 < staged && items[i].nchar == items[i + 1].nchar &&
+        0 == memcmp(items[i].splids, items[i + 1].splids,
+                    items[i].nchar << 2)) {
+      items[i].offset |= kUserDictOffsetFlagRemove;
+      dict_info_.free_count++;
+      dict_info_.free_size += 2 + (items[i].nchar << 2);
     } else {
+      dict_info_.total_nfreq += extract_score_freq(items[i].score);
+    }
+  }
+
+  // Merge from the end, the staged ones are all in items now.
+  int64 i = (int64)old_count - 1;
+  int64 j = (int64)staged - 1;
+  int64 k = (int64)old_count + staged - 1;
+  int64 prepared = -1;
+  while (j >= 0) {
+    if (i >= 0) {
+      if (prepared != j) {
+        prepare_locate(&searchable, items[j].splids, items[j].nchar);
+        prepared = j;
+      }
+      uint32 offset = offsets_[i];
+      if (fuzzy_compare_spell_id(get_lemma_spell_ids(offset),
+                                 get_lemma_nchar(offset), &searchable) > 0) {
+        offsets_[k] = offsets_[i];
+        scores_[k] = scores_[i];
+        ids_[k] = ids_[i];
+        i--;
+        k--;
+        continue;
+      }
+    }
+    offsets_[k] = items[j].offset;
+    scores_[k] = items[j].score;
+    ids_[k] = items[j].id;
+    j--;
+    k--;
+  }
+
+#ifdef ___PREDICT_ENABLED___
+  // items is large enough for the predict items.
+  UserDictPredictSortItem * pitems = (UserDictPredictSortItem *)items;
+  uint32 pnum = 0;
+  for (k = (int64)old_count + staged - 1; pnum < staged; k--) {
+    // The staged ones are in offsets_ now, in any order.
+    if (ids_[k] - start_id_ < old_count)
       continue;
+    pitems[pnum].words = get_lemma_word(offsets_[k]);
+    pitems[pnum].nchar = get_lemma_nchar(offsets_[k]);
+    pitems[pnum].offset = offsets_[k];
+    pnum++;
+  }
+  myqsort(pitems, staged, sizeof(UserDictPredictSortItem),
+          cmp_predict_sort_item);
+  i = (int64)old_count - 1;
+  j = (int64)staged - 1;
+  k = (int64)old_count + staged - 1;
+  while (j >= 0) {
+    if (i >= 0) {
+      uint32 offset = predicts_[i];
+      if (compare_words(get_lemma_word(offset), get_lemma_nchar(offset),
+                        pitems[j].words, pitems[j].nchar) > 0) {
+        predicts_[k--] = predicts_[i--];
+        continue;
+      }
     }
+    predicts_[k--] = pitems[j--].offset;
+  }
+#endif
+  free(items);
 
-    // Write to string
-    int need_len = ptemp - temp;
-    if (need_len > left_len)
-      break;
-    memcpy(str + len, temp, need_len * 2);
-    left_len -= need_len;
+  dict_info_.lemma_count += staged;
+  dict_info_.lemma_size += staged_size;
+  lemma_count_left_ -= staged;
+  lemma_size_left_ -= staged_size;
+#ifdef ___PREDICT_ENABLED___
+  build_predict_runs();
+#endif
+  // Lemmas are added in the middle, only a whole write back is right.
+  state_ = USER_DICT_DEFRAGMENTED;
+#ifdef ___CACHE_ENABLED___
+  cache_init();
+#endif
+  return true;
+}
 
-    len += need_len;
-    (*count)++;
+int UserDict::export_lemmas(int fd, TransferProgress progress,
+                            TransferLock lock, void *arg) {
+  if (is_valid_state() == false)
+    return -1;
+  char16 * buf = (char16 *)malloc(kUserDictTransferBufferSize << 1);
+  // A copy of the lemmas, so that they are written without the lock.
+  uint32 lemma_count = dict_info_.lemma_count;
+  uint8 * lemmas = (uint8 *)malloc(dict_info_.lemma_size + 1);
+  uint32 * offsets = (uint32 *)malloc((lemma_count << 2) + 1);
+  uint32 * scores = (uint32 *)malloc((lemma_count << 2) + 1);
+  if (!buf || !lemmas || !offsets || !scores) {
+    free(buf);
+    free(lemmas);
+    free(offsets);
+    free(scores);
+    return -1;
   }
+  memcpy(lemmas, lemmas_, dict_info_.lemma_size);
+  memcpy(offsets, offsets_, lemma_count << 2);
+  memcpy(scores, scores_, lemma_count << 2);
+  if (lock)
+    lock(arg, false);
 
-  if (len > 0) {
-    if (state_ < USER_DICT_SYNC_DIRTY)
-      state_ = USER_DICT_SYNC_DIRTY;
+  int exported = 0;
+  size_t bytes = 0;
+  uint32 i = 0;
+  bool failed = false;
+  while (true) {
+    int len = 0;
+    while (i < lemma_count) {
+      if (offsets[i] & kUserDictOffsetFlagRemove) {
+        i++;
+        continue;
+      }
+      int ret = write_lemma_in_utf16le(lemmas, offsets[i], scores[i],
+                                       buf + len,
+                                       kUserDictTransferBufferSize - len);
+      if (ret <= 0)
+        break;
+      len += ret;
+      exported++;
+      i++;
+    }
+    if (!write_fully(fd, buf, len << 1)) {
+      failed = true;
+      break;
+    }
+    bytes += len << 1;
+    if (progress)
+      progress(arg, exported, bytes);
+    if (i >= lemma_count)
+      break;
   }
-  return len;
+  free(buf);
+  free(lemmas);
+  free(offsets);
+  free(scores);
+  if (lock)
+    lock(arg, true);
+  return failed ? -1 : exported;
 }
 
-#endif
-
 bool UserDict::state(UserDictStat * stat) {
   if (is_valid_state() == false)
     return false;
@@ -1945,11 +3046,18 @@ bool UserDict::state(UserDictStat * stat) {
 
 void UserDict::set_limit(uint32 max_lemma_count,
                          uint32 max_lemma_size, uint32 reclaim_ratio) {
-  dict_info_.limit_lemma_count = max_lemma_count;
-  dict_info_.limit_lemma_size = max_lemma_size;
   if (reclaim_ratio > 100)
     reclaim_ratio = 100;
+  if (dict_info_.limit_lemma_count == max_lemma_count &&
+      dict_info_.limit_lemma_size == max_lemma_size &&
+      dict_info_.reclaim_ratio == reclaim_ratio)
+    return;
+  dict_info_.limit_lemma_count = max_lemma_count;
+  dict_info_.limit_lemma_size = max_lemma_size;
   dict_info_.reclaim_ratio = reclaim_ratio;
+
+  append_to_journal(UserDictJournal::kRecordLimit, max_lemma_count,
+                    max_lemma_size, reclaim_ratio, 0, NULL, NULL);
 }
 
 void UserDict::reclaim() {
@@ -2057,6 +3165,11 @@ LemmaIdType UserDict::_put_lemma(char16 lemma_str[], uint16 splids[],
 #endif
   if (is_valid_state() == false)
     return 0;
+#ifdef ___SYNC_ENABLED___
+  uint32 no_sync = (NULL == syncs_);
+#else
+  uint32 no_sync = 1;
+#endif
   int32 off = locate_in_offsets(lemma_str, splids, lemma_len);
   if (off != -1) {
     int delta_score = count - scores_[off];
@@ -2064,6 +3177,8 @@ LemmaIdType UserDict::_put_lemma(char16 lemma_str[], uint16 splids[],
     scores_[off] = build_score(lmt, count);
     if (state_ < USER_DICT_SCORE_DIRTY)
       state_ = USER_DICT_SCORE_DIRTY;
+    append_to_journal(UserDictJournal::kRecordPut, count, lmt,
+                      no_sync, lemma_len, splids, lemma_str);
 #ifdef ___DEBUG_PERF___
     DEBUG_PERF_END;
     LOGD_PERF("_put_lemma(update)");
@@ -2076,11 +3191,19 @@ LemmaIdType UserDict::_put_lemma(char16 lemma_str[], uint16 splids[],
             dict_info_.lemma_size + (2 + (lemma_len << 2))
             > dict_info_.limit_lemma_size)) {
       // XXX Don't defragment here, it's too time-consuming.
+      // reset_milestones() reclaims in the background instead.
       return 0;
     }
     int flushed = 0;
-    if (lemma_count_left_ == 0 ||
-        lemma_size_left_ < (size_t)(2 + (lemma_len << 2))) {
+    if ((lemma_count_left_ == 0 ||
+         lemma_size_left_ < (size_t)(2 + (lemma_len << 2))) &&
+        // With a journal, there is no need to write the file to get room.
+        (NULL == journal_ ||
+         !reserve(kUserDictPreAlloc,
+                  kUserDictPreAlloc * (2 + (kUserDictAverageNchar << 2))))) {
+      // Room for the replayed lemmas is reserved beforehand.
+      if (journal_replaying_)
+        return 0;
 
       // XXX When there is no space for new lemma, we flush to disk
       // flush_cache() may be called by upper user
@@ -2100,6 +3223,10 @@ LemmaIdType UserDict::_put_lemma(char16 lemma_str[], uint16 splids[],
       queue_lemma_for_sync(id);
     }
 #endif
+    if (id != 0) {
+      append_to_journal(UserDictJournal::kRecordPut, count, lmt,
+                        no_sync, lemma_len, splids, lemma_str);
+    }
     return id;
   }
   return 0;
@@ -2159,6 +3286,8 @@ LemmaIdType UserDict::update_lemma(LemmaIdType lemma_id, int16 delta_count,
 #ifdef ___SYNC_ENABLED___
     queue_lemma_for_sync(ids_[off]);
 #endif
+    append_to_journal(UserDictJournal::kRecordUpdate, scores_[off],
+                      delta_count, 0, lemma_len, splids, lemma_str);
     return ids_[off];
   }
   return 0;
@@ -2170,13 +3299,14 @@ size_t UserDict::get_total_lemma_count() {
 
 void UserDict::set_total_lemma_count_of_others(size_t count) {
   total_other_nfreq_ = count;
+  change_gen_++;
 }
 
 LemmaIdType UserDict::append_a_lemma(char16 lemma_str[], uint16 splids[],
                                    uint16 lemma_len, uint16 count, uint64 lmt) {
   LemmaIdType id = get_max_lemma_id() + 1;
   size_t offset = dict_info_.lemma_size;
-  if (offset > kUserDictOffsetMask)
+  if (offset > kUserDictOffsetMask || id > end_id_)
     return 0;
 
   lemmas_[offset] = 0;
@@ -2191,7 +3321,12 @@ LemmaIdType UserDict::append_a_lemma(char16 lemma_str[], uint16 splids[],
   scores_[off] = build_score(lmt, count);
   ids_[off] = id;
 #ifdef ___PREDICT_ENABLED___
-  predicts_[off] = offset;
+  // Not counted yet, so that it is not searched
+  uint32 j = locate_where_to_insert_in_predicts(
+      (uint16*)&lemmas_[offset + 2 + (lemma_len << 1)], lemma_len);
+  memmove(predicts_ + j + 1, predicts_ + j, (off - j) << 2);
+  predicts_[j] = offset;
+  insert_to_predict_runs(lemma_str[0], j);
 #endif
 
   offsets_by_id_[id - start_id_] = offset;
@@ -2206,15 +3341,19 @@ LemmaIdType UserDict::append_a_lemma(char16 lemma_str[], uint16 splids[],
   UserDictSearchable searchable;
   prepare_locate(&searchable, splids, lemma_len);
 
+  // The first one not before the new lemma
   size_t i = 0;
-  while (i < off) {
-    offset = offsets_[i];
+  size_t end = off;
+  while (i < end) {
+    size_t middle = (i + end) >> 1;
+    offset = offsets_[middle];
     uint32 nchar = get_lemma_nchar(offset);
     uint16 * spl = get_lemma_spell_ids(offset);
 
     if (0 <= fuzzy_compare_spell_id(spl, nchar, &searchable))
-      break;
-    i++;
+      end = middle;
+    else
+      i = middle + 1;
   }
   if (i != off) {
     uint32 temp = offsets_[off];
@@ -2230,17 +3369,6 @@ LemmaIdType UserDict::append_a_lemma(char16 lemma_str[], uint16 splids[],
     ids_[i] = temp;
   }
 
-#ifdef ___PREDICT_ENABLED___
-  uint32 j = 0;
-  uint16 * words_new = get_lemma_word(predicts_[off]);
-  j = locate_where_to_insert_in_predicts(words_new, lemma_len);
-  if (j != off) {
-    uint32 temp = predicts_[off];
-    memmove(predicts_ + j + 1, predicts_ + j, (off - j) << 2);
-    predicts_[j] = temp;
-  }
-#endif
-
   if (state_ < USER_DICT_LEMMA_DIRTY)
     state_ = USER_DICT_LEMMA_DIRTY;
 
@@ -0,0 +1,586 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <assert.h>
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <sys/time.h>
+#include <sys/types.h>
+#include <time.h>
+#include <unistd.h>
+#include "../include/userdictjournal.h"
+
+namespace ime_pinyin {
+
+static const char kJournalInfix[] = ".journal.";
+static const char kTempSuffix[] = ".tmp";
+
+// Write all of buf, going on after short writes.
+static bool write_fully(int fd, const void *buf, size_t size) {
+  const uint8 *p = static_cast<const uint8*>(buf);
+  while (size > 0) {
+    ssize_t written = write(fd, p, size);
+    if (written < 0) {
+      if (EINTR == errno)
+        continue;
+      return false;
+    }
+    p += written;
+    size -= written;
+  }
+  return true;
+}
+
+static bool read_fully(int fd, void *buf, size_t size, off_t offset) {
+  uint8 *p = static_cast<uint8*>(buf);
+  while (size > 0) {
+    ssize_t readed = pread(fd, p, size, offset);
+    if (readed < 0 && EINTR == errno)
+      continue;
+    if (readed <= 0)
+      return false;
+    p += readed;
+    size -= readed;
+    offset += readed;
+  }
+  return true;
+}
+
+// Make a rename or an unlink in the directory of file durable.
+static void sync_dir_of(const char *file) {
+  const char *slash = strrchr(file, '/');
+  char *dir = slash ? strndup(file, slash - file + 1) : strdup(".");
+  if (NULL == dir)
+    return;
+  int fd = open(dir, O_RDONLY);
+  if (fd >= 0) {
+    fsync(fd);
+    close(fd);
+  }
+  free(dir);
+}
+
+UserDictJournal::UserDictJournal()
+    : dict_file_(NULL),
+      file_name_(NULL),
+      fd_(-1),
+      writable_(false),
+      records_(NULL),
+      records_size_(0),
+      worker_started_(false),
+      stopping_(false),
+      size_(0),
+      unsynced_num_(0),
+      image_(NULL),
+      image_size_(0),
+      image_records_size_(0),
+      image_closing_(false),
+      compacted_(false),
+      commit_begin_(NULL),
+      commit_end_(NULL),
+      commit_arg_(NULL) {
+  pthread_mutex_init(&mutex_, NULL);
+  pthread_cond_init(&cond_, NULL);
+}
+
+UserDictJournal::~UserDictJournal() {
+  close();
+  pthread_cond_destroy(&cond_);
+  pthread_mutex_destroy(&mutex_);
+}
+
+uint64 UserDictJournal::hash(uint64 h, const void *data, size_t size) {
+  // FNV-1a
+  const uint8 *p = static_cast<const uint8*>(data);
+  for (size_t i = 0; i < size; i++) {
+    h ^= p[i];
+    h *= 0x100000001b3ULL;
+  }
+  return h;
+}
+
+uint32 UserDictJournal::checksum(const uint8 *data, size_t size) {
+  uint32 h = 0x811c9dc5;
+  for (size_t i = 0; i < size; i++) {
+    h ^= data[i];
+    h *= 0x01000193;
+  }
+  return h;
+}
+
+char *UserDictJournal::get_file_name(const char *dict_file, uint64 base_hash) {
+  size_t len = strlen(dict_file) + sizeof(kJournalInfix) + 16;
+  char *name = static_cast<char*>(malloc(len));
+  if (NULL != name) {
+    snprintf(name, len, "%s%s%016llx", dict_file, kJournalInfix,
+             static_cast<unsigned long long>(base_hash));
+  }
+  return name;
+}
+
+size_t UserDictJournal::scan_records(const uint8 *buf, size_t size) {
+  size_t pos = 0;
+  while (pos + sizeof(RecordHeader) + sizeof(uint32) <= size) {
+    const RecordHeader *header = reinterpret_cast<const RecordHeader*>(
+        buf + pos);
+    size_t record_size = sizeof(RecordHeader) + (header->lemma_len << 2) +
+        sizeof(uint32);
+    if (header->size != record_size || header->lemma_len > kMaxLemmaSize ||
+        pos + record_size > size)
+      break;
+    uint32 sum;
+    memcpy(&sum, buf + pos + record_size - sizeof(uint32), sizeof(uint32));
+    if (sum != checksum(buf + pos, record_size - sizeof(uint32)))
+      break;
+    pos += record_size;
+  }
+  return pos;
+}
+
+bool UserDictJournal::open(const char *dict_file, uint64 base_hash,
+                           bool writable) {
+  close();
+
+  dict_file_ = strdup(dict_file);
+  file_name_ = get_file_name(dict_file, base_hash);
+  if (NULL == dict_file_ || NULL == file_name_) {
+    close();
+    return false;
+  }
+
+  fd_ = ::open(file_name_, writable ? O_RDWR | O_CREAT : O_RDONLY, 0600);
+  if (fd_ < 0) {
+    close();
+    return false;
+  }
+
+  struct stat st;
+  if (0 != fstat(fd_, &st)) {
+    close();
+    return false;
+  }
+  size_t file_size = st.st_size;
+
+  FileHeader header;
+  bool valid = file_size >= sizeof(header) &&
+      read_fully(fd_, &header, sizeof(header), 0) &&
+      kMagic == header.magic && kVersion == header.version &&
+      base_hash == header.base_hash;
+  if (valid && file_size > sizeof(header)) {
+    records_ = static_cast<uint8*>(malloc(file_size - sizeof(header)));
+    if (NULL == records_ ||
+        !read_fully(fd_, records_, file_size - sizeof(header),
+                    sizeof(header))) {
+      close();
+      return false;
+    }
+    records_size_ = scan_records(records_, file_size - sizeof(header));
+  }
+
+  if (writable) {
+    if (!valid) {
+      header.magic = kMagic;
+      header.version = kVersion;
+      header.base_hash = base_hash;
+      if (0 != ftruncate(fd_, 0) || 0 != lseek(fd_, 0, SEEK_SET) ||
+          !write_fully(fd_, &header, sizeof(header))) {
+        close();
+        return false;
+      }
+    } else if (sizeof(header) + records_size_ < file_size) {
+      // The process died while writing the last record.
+      if (0 != ftruncate(fd_, sizeof(header) + records_size_)) {
+        close();
+        return false;
+      }
+    }
+    if (lseek(fd_, sizeof(header) + records_size_, SEEK_SET) < 0) {
+      close();
+      return false;
+    }
+    size_ = records_size_;
+    delete_stale_journals();
+
+    writable_ = true;
+    stopping_ = false;
+    if (0 != pthread_create(&worker_, NULL, worker_main, this)) {
+      close();
+      return false;
+    }
+    worker_started_ = true;
+  } else {
+    ::close(fd_);
+    fd_ = -1;
+  }
+  return true;
+}
+
+void UserDictJournal::delete_stale_journals() {
+  const char *slash = strrchr(dict_file_, '/');
+  const char *base_name = slash ? slash + 1 : dict_file_;
+  char *dir = slash ? strndup(dict_file_, slash - dict_file_ + 1) :
+      strdup("./");
+  size_t prefix_len = strlen(base_name) + strlen(kJournalInfix);
+  char *prefix = static_cast<char*>(malloc(prefix_len + 1));
+  if (NULL == dir || NULL == prefix) {
+    free(dir);
+    free(prefix);
+    return;
+  }
+  snprintf(prefix, prefix_len + 1, "%s%s", base_name, kJournalInfix);
+  const char *own_name = file_name_ + (base_name - dict_file_);
+
+  DIR *d = opendir(dir);
+  if (NULL != d) {
+    struct dirent *entry;
+    while (NULL != (entry = readdir(d))) {
+      if (0 != strncmp(entry->d_name, prefix, prefix_len) ||
+          0 == strcmp(entry->d_name, own_name))
+        continue;
+      size_t len = strlen(dir) + strlen(entry->d_name) + 1;
+      char *path = static_cast<char*>(malloc(len));
+      if (NULL != path) {
+        snprintf(path, len, "%s%s", dir, entry->d_name);
+        unlink(path);
+        free(path);
+      }
+    }
+    closedir(d);
+  }
+
+  // Left by a compaction which did not finish.
+  size_t len = strlen(dict_file_) + sizeof(kTempSuffix);
+  char *tmp = static_cast<char*>(malloc(len));
+  if (NULL != tmp) {
+    snprintf(tmp, len, "%s%s", dict_file_, kTempSuffix);
+    unlink(tmp);
+    free(tmp);
+  }
+
+  free(dir);
+  free(prefix);
+}
+
+void UserDictJournal::close() {
+  if (worker_started_) {
+    pthread_mutex_lock(&mutex_);
+    stopping_ = true;
+    pthread_cond_broadcast(&cond_);
+    pthread_mutex_unlock(&mutex_);
+    pthread_join(worker_, NULL);
+    worker_started_ = false;
+  }
+  // An empty journal is not needed by the next open.
+  if (writable_ && 0 == size_)
+    unlink(file_name_);
+  if (fd_ >= 0) {
+    ::close(fd_);
+    fd_ = -1;
+  }
+  free(image_);
+  image_ = NULL;
+  release_records();
+  free(dict_file_);
+  dict_file_ = NULL;
+  free(file_name_);
+  file_name_ = NULL;
+  writable_ = false;
+  stopping_ = false;
+  size_ = 0;
+  unsynced_num_ = 0;
+}
+
+bool UserDictJournal::is_writable() {
+  pthread_mutex_lock(&mutex_);
+  bool writable = writable_;
+  pthread_mutex_unlock(&mutex_);
+  return writable;
+}
+
+bool UserDictJournal::next_record(size_t *pos, Record *record) {
+  if (*pos >= records_size_)
+    return false;
+  const RecordHeader *header = reinterpret_cast<const RecordHeader*>(
+      records_ + *pos);
+  record->type = header->type;
+  record->lemma_len = header->lemma_len;
+  memcpy(record->args, header->args, sizeof(record->args));
+  record->splids = reinterpret_cast<const uint16*>(header + 1);
+  record->hzs = record->splids + header->lemma_len;
+  *pos += header->size;
+  return true;
+}
+
+void UserDictJournal::release_records() {
+  free(records_);
+  records_ = NULL;
+  records_size_ = 0;
+}
+
+bool UserDictJournal::append(uint8 type, const uint32 args[3],
+                             uint8 lemma_len, const uint16 *splids,
+                             const char16 *hzs) {
+  if (lemma_len > kMaxLemmaSize)
+    return false;
+
+  uint8 buf[sizeof(RecordHeader) + (kMaxLemmaSize << 2) + sizeof(uint32)];
+  RecordHeader *header = reinterpret_cast<RecordHeader*>(buf);
+  size_t record_size = sizeof(RecordHeader) + (lemma_len << 2) +
+      sizeof(uint32);
+  header->size = record_size;
+  header->type = type;
+  header->lemma_len = lemma_len;
+  memcpy(header->args, args, sizeof(header->args));
+  memcpy(buf + sizeof(RecordHeader), splids, lemma_len << 1);
+  memcpy(buf + sizeof(RecordHeader) + (lemma_len << 1), hzs, lemma_len << 1);
+  uint32 sum = checksum(buf, record_size - sizeof(uint32));
+  memcpy(buf + record_size - sizeof(uint32), &sum, sizeof(uint32));
+
+  pthread_mutex_lock(&mutex_);
+  if (!writable_) {
+    pthread_mutex_unlock(&mutex_);
+    return false;
+  }
+  if (!write_fully(fd_, buf, record_size)) {
+    // Drop the partial record. The changes from now on are only written
+    // back by UserDict::close_dict().
+    ftruncate(fd_, sizeof(FileHeader) + size_);
+    writable_ = false;
+    pthread_mutex_unlock(&mutex_);
+    return false;
+  }
+  size_ += record_size;
+  if (++unsynced_num_ >= kSyncRecordNum)
+    pthread_cond_broadcast(&cond_);
+  pthread_mutex_unlock(&mutex_);
+  return true;
+}
+
+size_t UserDictJournal::get_records_size() {
+  pthread_mutex_lock(&mutex_);
+  size_t size = size_;
+  pthread_mutex_unlock(&mutex_);
+  return size;
+}
+
+bool UserDictJournal::is_compacting() {
+  pthread_mutex_lock(&mutex_);
+  bool compacting = NULL != image_;
+  pthread_mutex_unlock(&mutex_);
+  return compacting;
+}
+
+bool UserDictJournal::wait_for_compaction() {
+  pthread_mutex_lock(&mutex_);
+  while (NULL != image_)
+    pthread_cond_wait(&cond_, &mutex_);
+  bool committed = compacted_;
+  pthread_mutex_unlock(&mutex_);
+  return committed;
+}
+
+void UserDictJournal::set_commit_hooks(CommitBegin begin, CommitEnd end,
+                                       void *arg) {
+  commit_begin_ = begin;
+  commit_end_ = end;
+  commit_arg_ = arg;
+}
+
+bool UserDictJournal::compact(uint8 *image, size_t image_size,
+                              size_t records_size, bool closing) {
+  pthread_mutex_lock(&mutex_);
+  if (!writable_) {
+    pthread_mutex_unlock(&mutex_);
+    free(image);
+    return false;
+  }
+  // The worker clears image_ when it finishes a compaction.
+  if (closing) {
+    while (NULL != image_)
+      pthread_cond_wait(&cond_, &mutex_);
+  } else if (NULL != image_) {
+    pthread_mutex_unlock(&mutex_);
+    free(image);
+    return false;
+  }
+  // Always compact on the worker, the only thread which replaces fd_.
+  image_ = image;
+  image_size_ = image_size;
+  image_records_size_ = records_size;
+  image_closing_ = closing;
+  pthread_cond_broadcast(&cond_);
+  if (!closing) {
+    pthread_mutex_unlock(&mutex_);
+    return true;
+  }
+  while (NULL != image_)
+    pthread_cond_wait(&cond_, &mutex_);
+  bool committed = compacted_;
+  pthread_mutex_unlock(&mutex_);
+  return committed;
+}
+
+bool UserDictJournal::do_compact(uint8 *image, size_t image_size,
+                                 size_t records_size, bool closing) {
+  size_t len = strlen(dict_file_) + sizeof(kTempSuffix);
+  char *tmp = static_cast<char*>(malloc(len));
+  if (NULL == tmp)
+    return false;
+  snprintf(tmp, len, "%s%s", dict_file_, kTempSuffix);
+
+  int tmp_fd = ::open(tmp, O_WRONLY | O_CREAT | O_TRUNC, 0600);
+  if (tmp_fd < 0) {
+    free(tmp);
+    return false;
+  }
+  bool written = write_fully(tmp_fd, image, image_size) && 0 == fsync(tmp_fd);
+  ::close(tmp_fd);
+  uint64 new_hash = hash(kHashSeed, image, image_size);
+  char *new_name = get_file_name(dict_file_, new_hash);
+  if (!written || NULL == new_name) {
+    unlink(tmp);
+    free(tmp);
+    free(new_name);
+    return false;
+  }
+
+  if (NULL != commit_begin_ && !commit_begin_(commit_arg_)) {
+    commit_end_(commit_arg_, false);
+    unlink(tmp);
+    free(tmp);
+    free(new_name);
+    return false;
+  }
+
+  // The records appended since the image was taken go to the new journal,
+  // and nothing can be appended until the new journal takes over.
+  pthread_mutex_lock(&mutex_);
+  bool committed = false;
+  char *old_name = file_name_;
+  // Nothing is appended after the compaction on close.
+  bool new_journal = !closing || records_size < size_;
+  int new_fd = -1;
+  bool copied = true;
+  if (new_journal) {
+    new_fd = ::open(new_name, O_RDWR | O_CREAT | O_TRUNC, 0600);
+    FileHeader header;
+    header.magic = kMagic;
+    header.version = kVersion;
+    header.base_hash = new_hash;
+    copied = new_fd >= 0 && write_fully(new_fd, &header, sizeof(header));
+    uint8 buf[4096];
+    for (size_t pos = records_size; copied && pos < size_;
+         pos += sizeof(buf)) {
+      size_t size = size_ - pos < sizeof(buf) ? size_ - pos : sizeof(buf);
+      copied = read_fully(fd_, buf, size, sizeof(header) + pos) &&
+          write_fully(new_fd, buf, size);
+    }
+  }
+  // The rename is the commit point: before it the old file and journal are
+  // in use, after it the new ones.
+  if (copied && 0 == rename(tmp, dict_file_)) {
+    ::close(fd_);
+    fd_ = new_fd;
+    size_ -= records_size;
+    // Make the copied records durable with the next sync.
+    unsynced_num_ = size_ > 0 ? kSyncRecordNum : 0;
+    file_name_ = new_name;
+    writable_ = new_journal;
+    committed = true;
+  } else if (new_fd >= 0) {
+    ::close(new_fd);
+    unlink(new_name);
+  }
+  pthread_mutex_unlock(&mutex_);
+
+  if (NULL != commit_end_)
+    commit_end_(commit_arg_, committed);
+
+  if (committed) {
+    sync_dir_of(dict_file_);
+    // Only after the rename is durable, or a crash could leave the old file
+    // without its journal.
+    unlink(old_name);
+    free(old_name);
+  } else {
+    unlink(tmp);
+    free(new_name);
+  }
+  free(tmp);
+  return committed;
+}
+
+void *UserDictJournal::worker_main(void *arg) {
+  static_cast<UserDictJournal*>(arg)->run_worker();
+  return NULL;
+}
+
+void UserDictJournal::run_worker() {
+  bool timed_out = false;
+  pthread_mutex_lock(&mutex_);
+  while (true) {
+    if (NULL != image_) {
+      uint8 *image = image_;
+      size_t image_size = image_size_;
+      size_t records_size = image_records_size_;
+      bool closing = image_closing_;
+      pthread_mutex_unlock(&mutex_);
+      bool committed = do_compact(image, image_size, records_size, closing);
+      pthread_mutex_lock(&mutex_);
+      compacted_ = committed;
+      free(image_);
+      image_ = NULL;
+      pthread_cond_broadcast(&cond_);
+      continue;
+    }
+
+    // Group commit: one sync for the records appended since the last one.
+    if (unsynced_num_ > 0 &&
+        (unsynced_num_ >= kSyncRecordNum || timed_out || stopping_)) {
+      int fd = fd_;
+      unsynced_num_ = 0;
+      timed_out = false;
+      pthread_mutex_unlock(&mutex_);
+      // Only this thread replaces fd_, so it stays open.
+      fdatasync(fd);
+      pthread_mutex_lock(&mutex_);
+      continue;
+    }
+
+    if (stopping_)
+      break;
+
+    if (unsynced_num_ > 0) {
+      struct timeval now;
+      gettimeofday(&now, NULL);
+      struct timespec deadline;
+      uint64 nsec = (uint64)now.tv_usec * 1000 +
+          (uint64)kSyncIntervalMs * 1000000;
+      deadline.tv_sec = now.tv_sec + nsec / 1000000000;
+      deadline.tv_nsec = nsec % 1000000000;
+      if (ETIMEDOUT == pthread_cond_timedwait(&cond_, &mutex_, &deadline))
+        timed_out = true;
+    } else {
+      pthread_cond_wait(&cond_, &mutex_);
+    }
+  }
+  pthread_mutex_unlock(&mutex_);
+}
+}  // namespace ime_pinyin
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * Class used to load a soft keyboard or a soft keyboard template from the
+ * files compiled from the xml at build time, see {@link SkbLayoutFormat}. It
+ * builds the same objects as {@link XmlKeyboardLoader}, without parsing
+ * attributes or looking up the same drawable twice.
+ * 从构建时预编译的二进制文件中加载软键盘模版和软键盘，得到的对象与XmlKeyboardLoader相同。
+ *
+ * @ClassName BinaryKeyboardLoader
+ */
+public class BinaryKeyboardLoader {
+	/**
+	 * Resource ids of the "type/name" references, shared by all loaders.
+	 * 资源引用对应的资源ID
+	 */
+	private static final HashMap<String, Integer> sResIds = new HashMap<String, Integer>();
+
+	private Context mContext;
+
+	private Resources mResources;
+
+	/** String table of the file being loaded. 当前文件的字符串表 */
+	private String mStrings[];
+
+	/**
+	 * Drawables loaded from the file being loaded, by string index. Keys only
+	 * set the bounds of a drawable right before drawing it, so they can share
+	 * it. 当前文件中已经加载的图片
+	 */
+	private Drawable mDrawables[];
+
+	/** The template of the keyboard being loaded. 当前软键盘的模版 */
+	private SkbTemplate mSkbTemplate;
+
+	/**
+	 * Whether the keyboards loaded get their own copies of the default keys
+	 * of the template. A keyboard loaded off the main thread needs them, as
+	 * laying it out moves its keys. 是否为加载的软键盘复制模版中的默认按键
+	 */
+	private boolean mCopyDefaultKeys;
+
+	public BinaryKeyboardLoader(Context context) {
+		mContext = context;
+		mResources = mContext.getResources();
+	}
+
+	/**
+	 * @param copyDefaultKeys
+	 *            whether the keyboards loaded get their own copies of the
+	 *            default keys of the template, see {@link #mCopyDefaultKeys}.
+	 */
+	public void setCopyDefaultKeys(boolean copyDefaultKeys) {
+		mCopyDefaultKeys = copyDefaultKeys;
+	}
+
+	/**
+	 * 加载预编译的软键盘模版
+	 *
+	 * @param resourceId
+	 *            模版的xml文件资源ID
+	 * @return the template, or null if it is not compiled or cannot be read.
+	 */
+	public SkbTemplate loadSkbTemplate(int resourceId) {
+		if (null == mContext || 0 == resourceId) {
+			return null;
+		}
+		DataInputStream in = open(resourceId, SkbLayoutFormat.KIND_TEMPLATE);
+		if (null == in) {
+			return null;
+		}
+		try {
+			mSkbTemplate = new SkbTemplate(resourceId);
+			Drawable skbBg = getDrawable(in.readShort());
+			Drawable balloonBg = getDrawable(in.readShort());
+			Drawable popupBg = getDrawable(in.readShort());
+			if (null == skbBg || null == balloonBg || null == popupBg) {
+				return null;
+			}
+			mSkbTemplate.setBackgrounds(skbBg, balloonBg, popupBg);
+			float xMargin = in.readFloat();
+			float yMargin = in.readFloat();
+			mSkbTemplate.setMargins(xMargin, yMargin);
+
+			int keyTypeNum = in.readByte();
+			for (int id = 0; id < keyTypeNum; id++) {
+				Drawable bg = getDrawable(in.readShort());
+				Drawable hlBg = getDrawable(in.readShort());
+				SoftKeyType keyType = mSkbTemplate.createKeyType(id, bg, hlBg);
+				keyType.setColors(in.readInt(), in.readInt(), in.readInt());
+				mSkbTemplate.addKeyType(keyType);
+			}
+
+			int iconNum = in.readByte();
+			for (int i = 0; i < iconNum; i++) {
+				int keyCode = in.readInt();
+				Drawable icon = getDrawable(in.readShort());
+				Drawable iconPopup = getDrawable(in.readShort());
+				mSkbTemplate.addDefaultKeyIcons(keyCode, icon, iconPopup);
+			}
+
+			int keyNum = in.readByte();
+			for (int i = 0; i < keyNum; i++) {
+				int keyId = in.readInt();
+				SoftKey softKey = readSoftKey(in);
+				if (null == softKey) {
+					return null;
+				}
+				mSkbTemplate.addDefaultKey(keyId, softKey);
+			}
+			return mSkbTemplate;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * 加载预编译的软键盘
+	 *
+	 * @param resourceId
+	 *            软键盘的xml文件资源ID
+	 * @param skbWidth
+	 * @param skbHeight
+	 * @return the keyboard, or null if it is not compiled or cannot be read.
+	 */
+	public SoftKeyboard loadKeyboard(int resourceId, int skbWidth, int skbHeight) {
+		if (null == mContext) {
+			return null;
+		}
+		DataInputStream in = open(resourceId, SkbLayoutFormat.KIND_KEYBOARD);
+		if (null == in) {
+			return null;
+		}
+		try {
+			int skbTemplateId = getResourceId(in.readShort());
+			mSkbTemplate = SkbPool.getInstance().getSkbTemplate(skbTemplateId,
+					mContext);
+			if (null == mSkbTemplate) {
+				return null;
+			}
+
+			int flags = in.readByte();
+			SoftKeyboard softKeyboard = new SoftKeyboard(resourceId,
+					mSkbTemplate, skbWidth, skbHeight);
+			softKeyboard.setFlags((flags & SkbLayoutFormat.FLAG_CACHE) != 0,
+					(flags & SkbLayoutFormat.FLAG_STICKY) != 0,
+					(flags & SkbLayoutFormat.FLAG_QWERTY) != 0,
+					(flags & SkbLayoutFormat.FLAG_QWERTY_UPPERCASE) != 0);
+			float xMargin = in.readFloat();
+			float yMargin = in.readFloat();
+			Drawable skbBg = getDrawable(in.readShort());
+			Drawable popupBg = getDrawable(in.readShort());
+			Drawable balloonBg = getDrawable(in.readShort());
+			if (null != skbBg) {
+				softKeyboard.setSkbBackground(skbBg);
+			}
+			if (null != popupBg) {
+				softKeyboard.setPopupBackground(popupBg);
+			}
+			if (null != balloonBg) {
+				softKeyboard.setKeyBalloonBackground(balloonBg);
+			}
+			softKeyboard.setKeyMargins(xMargin, yMargin);
+
+			int rowNum = in.readShort();
+			for (int row = 0; row < rowNum; row++) {
+				int rowId = in.readInt();
+				float yPos = in.readFloat();
+				softKeyboard.beginNewRow(rowId, yPos);
+				int itemNum = in.readShort();
+				for (int i = 0; i < itemNum; i++) {
+					SoftKey softKey;
+					if (SkbLayoutFormat.ITEM_DEFAULT_KEY == in.readByte()) {
+						softKey = mSkbTemplate.getDefaultKey(in.readInt(),
+								mCopyDefaultKeys);
+					} else {
+						softKey = readSoftKey(in);
+					}
+					if (null == softKey) {
+						return null;
+					}
+					softKeyboard.addSoftKey(softKey);
+				}
+			}
+			softKeyboard.setSkbCoreSize(skbWidth, skbHeight);
+			return softKeyboard;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * 读取一个按键，包括它的变换状态。
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	private SoftKey readSoftKey(DataInputStream in) throws IOException {
+		int flags = in.readByte();
+		int keyCode = in.readInt();
+		String keyLabel = getString(in.readShort());
+		Drawable keyIcon = getDrawable(in.readShort());
+		Drawable keyIconPopup = getDrawable(in.readShort());
+		int popupSkbId = getResourceId(in.readShort());
+		int keyType = in.readByte();
+		float left = in.readFloat();
+		float top = in.readFloat();
+		float right = in.readFloat();
+		float bottom = in.readFloat();
+
+		if (null == keyLabel && null == keyIcon) {
+			keyIcon = mSkbTemplate.getDefaultKeyIcon(keyCode);
+			keyIconPopup = mSkbTemplate.getDefaultKeyIconPopup(keyCode);
+			if (null == keyIcon || null == keyIconPopup)
+				return null;
+		}
+
+		SoftKey softKey;
+		if ((flags & SkbLayoutFormat.KEY_TOGGLE) != 0) {
+			SoftKeyToggle toggleKey = new SoftKeyToggle();
+			SoftKeyToggle.ToggleState rootState = null;
+			SoftKeyToggle.ToggleState lastState = null;
+			int stateNum = in.readByte();
+			for (int i = 0; i < stateNum; i++) {
+				SoftKeyToggle.ToggleState state = toggleKey.createToggleState();
+				state.setStateId(in.readByte() & 0xff);
+				int keyTypeId = in.readByte();
+				state.mKeyType = null;
+				if (keyTypeId >= 0) {
+					state.mKeyType = mSkbTemplate.getKeyType(keyTypeId);
+				}
+				state.mKeyCode = in.readInt();
+				state.mKeyLabel = getString(in.readShort());
+				state.mKeyIcon = getDrawable(in.readShort());
+				state.mKeyIconPopup = getDrawable(in.readShort());
+				int stateFlags = in.readByte();
+				state.setStateFlags((stateFlags & SkbLayoutFormat.KEY_REPEAT) != 0,
+						(stateFlags & SkbLayoutFormat.KEY_BALLOON) != 0);
+				state.mNextState = null;
+				if (null == lastState) {
+					rootState = state;
+				} else {
+					lastState.mNextState = state;
+				}
+				lastState = state;
+			}
+			if (!toggleKey.setToggleStates(rootState)) {
+				return null;
+			}
+			softKey = toggleKey;
+		} else {
+			softKey = new SoftKey();
+		}
+
+		softKey.setKeyAttribute(keyCode, keyLabel,
+				(flags & SkbLayoutFormat.KEY_REPEAT) != 0,
+				(flags & SkbLayoutFormat.KEY_BALLOON) != 0);
+		softKey.setPopupSkbId(popupSkbId);
+		softKey.setKeyType(mSkbTemplate.getKeyType(keyType), keyIcon,
+				keyIconPopup);
+		softKey.setKeyDimensions(left, top, right, bottom);
+		return softKey;
+	}
+
+	/**
+	 * 打开xml资源对应的预编译文件，并读取文件头和字符串表。
+	 *
+	 * @param resourceId
+	 * @param kind
+	 * @return the stream positioned after the string table, or null if there
+	 *         is no such file or it is of another version or kind.
+	 */
+	private DataInputStream open(int resourceId, byte kind) {
+		InputStream asset;
+		try {
+			String entryName = mResources.getResourceEntryName(resourceId);
+			asset = mContext.getAssets().open(
+					SkbLayoutFormat.getAssetPath(entryName));
+		} catch (Resources.NotFoundException e) {
+			return null;
+		} catch (IOException e) {
+			// Not compiled, the xml will be parsed.
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				asset));
+		try {
+			if (in.readInt() != SkbLayoutFormat.MAGIC
+					|| in.readShort() != SkbLayoutFormat.VERSION
+					|| in.readByte() != kind) {
+				close(in);
+				return null;
+			}
+			int stringNum = in.readShort();
+			mStrings = new String[stringNum];
+			for (int i = 0; i < stringNum; i++) {
+				mStrings[i] = in.readUTF();
+			}
+			mDrawables = new Drawable[stringNum];
+			return in;
+		} catch (IOException e) {
+			close(in);
+			return null;
+		}
+	}
+
+	private static void close(DataInputStream in) {
+		try {
+			in.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private String getString(int index) {
+		if (SkbLayoutFormat.NO_STRING == index) {
+			return null;
+		}
+		return mStrings[index];
+	}
+
+	/**
+	 * 获取资源引用对应的资源ID
+	 *
+	 * @param index
+	 *            "type/name"在字符串表中的位置
+	 * @return the resource id, or 0 if there is no such resource.
+	 */
+	private int getResourceId(int index) {
+		if (SkbLayoutFormat.NO_STRING == index) {
+			return 0;
+		}
+		String ref = mStrings[index];
+		synchronized (sResIds) {
+			Integer resId = sResIds.get(ref);
+			if (null == resId) {
+				int slash = ref.indexOf('/');
+				resId = mResources.getIdentifier(ref.substring(slash + 1),
+						ref.substring(0, slash), mContext.getPackageName());
+				sResIds.put(ref, resId);
+			}
+			return resId;
+		}
+	}
+
+	private Drawable getDrawable(int index) {
+		if (SkbLayoutFormat.NO_STRING == index) {
+			return null;
+		}
+		Drawable drawable = mDrawables[index];
+		if (null == drawable) {
+			int resId = getResourceId(index);
+			if (0 == resId) {
+				return null;
+			}
+			drawable = mResources.getDrawable(resId);
+			mDrawables[index] = drawable;
+		}
+		return drawable;
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+
+/**
+ * Candidate store backed by a direct {@link ByteBuffer}, so that the native
+ * engine can write a whole page of candidates into it without creating a
+ * jstring for each one, and {@link CandidateView} can measure and draw them
+ * from a char array without creating a String for each one.
+ * 候选词缓冲区。本地引擎直接把一页候选词写进该直接缓冲区，候选词视图直接从字符数组测量和绘制，不需要为每个候选词创建String。
+ * 
+ * The layout of the buffer, in native byte order, is:
+ * 
+ * <pre>
+ * int   maxCount
+ * int   maxChars
+ * int   count
+ * int   offsets[maxCount + 1]   offsets[i] is the start of item i in chars
+ * char  chars[maxChars]         UTF-16 code units, not null-terminated
+ * </pre>
+ * 
+ * The layout is shared with nativeImGetChoiceBuffer() in
+ * com_android_inputmethod_pinyin_PinyinDecoderService.cpp.
+ * 
+ * @ClassName CandidateBuffer
+ */
+public class CandidateBuffer {
+	private static final int HEADER_MAX_COUNT = 0;
+	private static final int HEADER_MAX_CHARS = 1;
+	private static final int HEADER_COUNT = 2;
+	private static final int HEADER_OFFSETS = 3;
+
+	/**
+	 * Initial capacity, enough for several pages. 初始容量
+	 */
+	private static final int INIT_MAX_COUNT = 64;
+	private static final int INIT_MAX_CHARS = 512;
+
+	/**
+	 * The largest capacity kept by {@link #clear()}. Paging far into a long
+	 * list grows the buffer beyond it, and the next list starts again from the
+	 * initial capacity, so one long list does not keep a big buffer alive.
+	 * {@link #clear()}保留的最大容量
+	 */
+	private static final int MAX_RETAINED_COUNT = INIT_MAX_COUNT * 4;
+	private static final int MAX_RETAINED_CHARS = INIT_MAX_CHARS * 4;
+
+	private ByteBuffer mBuffer;
+	private IntBuffer mInts;
+	private CharBuffer mChars;
+	private int mMaxCount;
+	private int mMaxChars;
+
+	/**
+	 * Changed by every {@link #clear()}, so that what is cached for the items,
+	 * like their widths, can be dropped with the list. 每次清空时改变
+	 */
+	private int mGeneration;
+
+	/**
+	 * Reused array returned by {@link #getChars(int)}. 重复使用的字符数组
+	 */
+	private char mItemChars[] = new char[32];
+
+	public CandidateBuffer() {
+		allocate(INIT_MAX_COUNT, INIT_MAX_CHARS);
+	}
+
+	private void allocate(int maxCount, int maxChars) {
+		int charsStart = (HEADER_OFFSETS + maxCount + 1) * 4;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(charsStart + maxChars
+				* 2);
+		buffer.order(ByteOrder.nativeOrder());
+		IntBuffer ints = buffer.asIntBuffer();
+		buffer.position(charsStart);
+		CharBuffer chars = buffer.slice().order(ByteOrder.nativeOrder())
+				.asCharBuffer();
+		buffer.position(0);
+
+		int count = 0;
+		if (null != mBuffer) {
+			// Keep the items already in the old buffer.
+			count = size();
+			for (int i = 0; i <= count; i++) {
+				ints.put(HEADER_OFFSETS + i, offset(i));
+			}
+			for (int i = 0; i < offset(count); i++) {
+				chars.put(i, mChars.get(i));
+			}
+		} else {
+			ints.put(HEADER_OFFSETS, 0);
+		}
+		ints.put(HEADER_MAX_COUNT, maxCount);
+		ints.put(HEADER_MAX_CHARS, maxChars);
+		ints.put(HEADER_COUNT, count);
+
+		mBuffer = buffer;
+		mInts = ints;
+		mChars = chars;
+		mMaxCount = maxCount;
+		mMaxChars = maxChars;
+	}
+
+	/**
+	 * Double the capacity, keeping the items. 容量加倍，保留已有的候选词。
+	 */
+	void grow() {
+		allocate(mMaxCount * 2, mMaxChars * 2);
+	}
+
+	/**
+	 * The direct buffer shared with the native engine. 与本地引擎共享的直接缓冲区
+	 * 
+	 * @return
+	 */
+	ByteBuffer getByteBuffer() {
+		return mBuffer;
+	}
+
+	private int offset(int i) {
+		return mInts.get(HEADER_OFFSETS + i);
+	}
+
+	/**
+	 * Remove all items. The buffer is kept for reuse, unless it has grown
+	 * beyond the retained capacity. 清空，缓冲区保留重用。
+	 */
+	public void clear() {
+		mGeneration++;
+		if (mMaxCount > MAX_RETAINED_COUNT || mMaxChars > MAX_RETAINED_CHARS) {
+			mBuffer = null;
+			allocate(INIT_MAX_COUNT, INIT_MAX_CHARS);
+			return;
+		}
+		mInts.put(HEADER_COUNT, 0);
+	}
+
+	/**
+	 * The current list. Items are only appended to it, so item i does not
+	 * change while this stays the same. 当前列表的版本号
+	 * 
+	 * @return
+	 */
+	int getGeneration() {
+		return mGeneration;
+	}
+
+	public int size() {
+		return mInts.get(HEADER_COUNT);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * 获取第i个候选词的长度
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public int length(int i) {
+		checkIndex(i);
+		return offset(i + 1) - offset(i);
+	}
+
+	/**
+	 * Copy item i into a reused array, and return that array. The array is
+	 * only valid until the next call; the item's length is {@link #length(int)}.
+	 * 把第i个候选词复制到重复使用的字符数组中，并返回该数组。
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public char[] getChars(int i) {
+		int len = length(i);
+		if (mItemChars.length < len) {
+			mItemChars = new char[len * 2];
+		}
+		mChars.position(offset(i));
+		mChars.get(mItemChars, 0, len);
+		return mItemChars;
+	}
+
+	/**
+	 * Get item i as a String. It allocates, so do not call it when drawing.
+	 * 获取第i个候选词的String对象。
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public String get(int i) {
+		return new String(getChars(i), 0, length(i));
+	}
+
+	/**
+	 * Append one item. 增加一个候选词
+	 * 
+	 * @param item
+	 */
+	public void add(CharSequence item) {
+		int count = size();
+		int start = offset(count);
+		int len = item.length();
+		while (count >= mMaxCount || start + len > mMaxChars) {
+			grow();
+		}
+		for (int i = 0; i < len; i++) {
+			mChars.put(start + i, item.charAt(i));
+		}
+		mInts.put(HEADER_OFFSETS + count + 1, start + len);
+		mInts.put(HEADER_COUNT, count + 1);
+	}
+
+	/**
+	 * 增加多个候选词
+	 * 
+	 * @param items
+	 */
+	public void addAll(List<String> items) {
+		for (int i = 0; i < items.size(); i++) {
+			add(items.get(i));
+		}
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size()) {
+			throw new IndexOutOfBoundsException("Invalid index " + i
+					+ ", size is " + size());
+		}
+	}
+}
@@ -16,7 +16,7 @@
 
 package com.creativept.pinyindemo2;
 
-import java.util.Vector;
+import java.util.ArrayList;
 
 import android.content.Context;
 import android.content.res.Configuration;
@@ -25,6 +25,7 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.FontMetricsInt;
 import android.graphics.RectF;
+import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.util.AttributeSet;
@@ -196,6 +197,25 @@ public class CandidateView extends View {
 	 */
 	private float mSuspensionPointsWidth;
 
+	/**
+	 * Measured widths of the first {@link #mCandWidthsNum} candidates in the
+	 * list, for the text size and typeface they were measured with. Pages are
+	 * calculated in order, so the measured ones are always the first ones.
+	 * 候选词宽度缓存，每个候选词列表只测量一次。
+	 */
+	private float mCandWidths[] = new float[64];
+	private int mCandWidthsNum;
+	private int mCandWidthsGeneration;
+	private float mCandWidthsTextSize;
+	private Typeface mCandWidthsTypeface;
+
+	/**
+	 * The width of the part returned by
+	 * {@link #getLimitedCandidateForDrawing(char[], int, float)}.
+	 * 省略号前面部分的宽度
+	 */
+	private float mLimitedCandidateWidth;
+
 	/**
 	 * Rectangle used to draw the active candidate. 活动（高亮）候选词的区域
 	 */
@@ -220,7 +240,7 @@ public class CandidateView extends View {
 	/**
 	 * Rectangles for the candidates in this page. 在本页候选词的区域向量列表
 	 **/
-	private Vector<RectF> mCandRects;
+	private ArrayList<RectF> mCandRects;
 
 	/**
 	 * FontMetricsInt used to measure the size of candidates. 候选词的字体测量对象
@@ -277,7 +297,7 @@ public class CandidateView extends View {
 		mFootnotePaint.setColor(r.getColor(R.color.footnote_color));
 		mActiveCellRect = new RectF();
 
-		mCandRects = new Vector<RectF>();
+		mCandRects = new ArrayList<RectF>();
 	}
 
 	@Override
@@ -321,6 +341,7 @@ public class CandidateView extends View {
 			return;
 		mDecInfo = decInfo;
 		mPageNoCalculated = -1;
+		mCandWidthsNum = 0;
 
 		// 根据候选词来源设置候选词使用的颜色和文本大小
 		if (mDecInfo.candidatesFromApp()) {
@@ -506,6 +527,13 @@ public class CandidateView extends View {
 		if (pageNo == mPageNoCalculated)
 			return true;
 
+		long start = LatencyStats.start();
+		boolean calculated = calculatePageImpl(pageNo);
+		LatencyStats.end(LatencyStats.CALCULATE_PAGE, start);
+		return calculated;
+	}
+
+	private boolean calculatePageImpl(int pageNo) {
 		// 计算候选词区域宽度和高度
 		mContentWidth = getMeasuredWidth() - getPaddingLeft()
 				- getPaddingRight();
@@ -538,8 +566,8 @@ public class CandidateView extends View {
 			xPos += mSeparatorDrawable.getIntrinsicWidth();
 			while (xPos < mContentWidth && pStart + pSize < candSize) {
 				int itemPos = pStart + pSize;
-				String itemStr = mDecInfo.mCandidatesList.get(itemPos);
-				float itemWidth = mCandidatesPaint.measureText(itemStr);
+				int itemLen = mDecInfo.mCandidatesList.length(itemPos);
+				float itemWidth = getCandidateWidth(itemPos);
 				if (itemWidth < MIN_ITEM_WIDTH)
 					itemWidth = MIN_ITEM_WIDTH;
 
@@ -549,7 +577,7 @@ public class CandidateView extends View {
 					xPos += itemWidth;
 					lastItemWidth = itemWidth;
 					pSize++;
-					charNum += itemStr.length();
+					charNum += itemLen;
 				} else {
 					break;
 				}
@@ -583,6 +611,7 @@ public class CandidateView extends View {
 
 	@Override
 	protected void onDraw(Canvas canvas) {
+		long start = LatencyStats.start();
 		super.onDraw(canvas);
 		// The invisible candidate view(the one which is not in foreground) can
 		// also be called to drawn, but its decoding result and candidate list
@@ -601,7 +630,7 @@ public class CandidateView extends View {
 			mActiveCandInPage = pSize - 1;
 		}
 
-		mCandRects.removeAllElements();
+		mCandRects.clear();
 
 		float xPos = getPaddingLeft();
 		int yPos = (getMeasuredHeight() - (mFmiCandidates.bottom - mFmiCandidates.top))
@@ -615,8 +644,12 @@ public class CandidateView extends View {
 				footnoteSize = mFootnotePaint.measureText(footnote);
 				assert (footnoteSize < candMargin);
 			}
-			String cand = mDecInfo.mCandidatesList.get(pStart + i);
-			float candidateWidth = mCandidatesPaint.measureText(cand);
+			// Measuring may reuse the array returned by getChars(), so get
+			// the width first.
+			float candidateWidth = getCandidateWidth(pStart + i);
+			// Draw from the candidate buffer, no String is created.
+			char cand[] = mDecInfo.mCandidatesList.getChars(pStart + i);
+			int candLen = mDecInfo.mCandidatesList.length(pStart + i);
 			float centerOffset = 0;
 			if (candidateWidth < MIN_ITEM_WIDTH) {
 				centerOffset = (MIN_ITEM_WIDTH - candidateWidth) / 2;
@@ -637,7 +670,7 @@ public class CandidateView extends View {
 
 			if (mCandRects.size() < pSize)
 				mCandRects.add(new RectF());
-			mCandRects.elementAt(i).set(xPos - 1, yPos + mFmiCandidates.top,
+			mCandRects.get(i).set(xPos - 1, yPos + mFmiCandidates.top,
 					xPos + itemTotalWidth + 1, yPos + mFmiCandidates.bottom);
 
 			// Draw footnote
@@ -649,9 +682,10 @@ public class CandidateView extends View {
 
 			// Left margin
 			xPos += candMargin;
+			int drawLen = candLen;
 			if (candidateWidth > mContentWidth - xPos - centerOffset) {
-				cand = getLimitedCandidateForDrawing(cand, mContentWidth - xPos
-						- centerOffset);
+				drawLen = getLimitedCandidateForDrawing(cand, candLen,
+						mContentWidth - xPos - centerOffset);
 			}
 			if (mActiveCandInPage == i && mEnableActiveHighlight) {
 				mCandidatesPaint.setColor(mActiveCandidateColor);
@@ -659,7 +693,13 @@ public class CandidateView extends View {
 				mCandidatesPaint.setColor(mNormalCandidateColor);
 			}
 			// 画候选词
-			canvas.drawText(cand, xPos + centerOffset, yPos, mCandidatesPaint);
+			canvas.drawText(cand, 0, drawLen, xPos + centerOffset, yPos,
+					mCandidatesPaint);
+			if (drawLen < candLen) {
+				// 画省略号
+				canvas.drawText(SUSPENSION_POINTS, xPos + centerOffset
+						+ mLimitedCandidateWidth, yPos, mCandidatesPaint);
+			}
 
 			// Candidate and right margin
 			xPos += candidateWidth + candMargin;
@@ -674,27 +714,78 @@ public class CandidateView extends View {
 			mArrowUpdater.updateArrowStatus();
 			mUpdateArrowStatusWhenDraw = false;
 		}
+		LatencyStats.end(LatencyStats.DRAW_CANDIDATES, start);
+	}
+
+	/**
+	 * Get the width of a candidate in the list, measuring it and the ones
+	 * before it if they are not in the cache yet. The cache is dropped when
+	 * the list, the text size or the typeface changes.
+	 * 获取候选词的宽度，不在缓存中时测量。
+	 * 
+	 * @param candPos
+	 *            position of the candidate in the list.
+	 * @return
+	 */
+	private float getCandidateWidth(int candPos) {
+		CandidateBuffer cands = mDecInfo.mCandidatesList;
+		if (mCandWidthsGeneration != cands.getGeneration()
+				|| mCandWidthsTextSize != mCandidatesPaint.getTextSize()
+				|| mCandWidthsTypeface != mCandidatesPaint.getTypeface()) {
+			mCandWidthsNum = 0;
+			mCandWidthsGeneration = cands.getGeneration();
+			mCandWidthsTextSize = mCandidatesPaint.getTextSize();
+			mCandWidthsTypeface = mCandidatesPaint.getTypeface();
+		}
+		if (candPos >= mCandWidthsNum) {
+			if (candPos >= mCandWidths.length) {
+				float widths[] = new float[Math.max(candPos + 1,
+						mCandWidths.length * 2)];
+				System.arraycopy(mCandWidths, 0, widths, 0, mCandWidthsNum);
+				mCandWidths = widths;
+			}
+			for (int i = mCandWidthsNum; i <= candPos; i++) {
+				mCandWidths[i] = mCandidatesPaint.measureText(
+						cands.getChars(i), 0, cands.length(i));
+			}
+			mCandWidthsNum = candPos + 1;
+		}
+		return mCandWidths[candPos];
 	}
 
 	/**
-	 * 截取要显示的候选词短语+省略号
+	 * 计算要显示的候选词短语的长度，后面再加上省略号。The longest prefix which fits
+	 * is found by a binary search, as a prefix is never narrower than a
+	 * shorter one. Its width is put into {@link #mLimitedCandidateWidth}.
 	 * 
 	 * @param rawCandidate
+	 * @param rawLen
 	 * @param widthToDraw
-	 * @return
+	 * @return the number of chars to draw before the suspension points.
 	 */
-	private String getLimitedCandidateForDrawing(String rawCandidate,
+	private int getLimitedCandidateForDrawing(char rawCandidate[], int rawLen,
 			float widthToDraw) {
-		int subLen = rawCandidate.length();
-		if (subLen <= 1)
-			return rawCandidate;
-		do {
-			subLen--;
-			float width = mCandidatesPaint.measureText(rawCandidate, 0, subLen);
-			if (width + mSuspensionPointsWidth <= widthToDraw || 1 >= subLen) {
-				return rawCandidate.substring(0, subLen) + SUSPENSION_POINTS;
+		if (rawLen <= 1) {
+			mLimitedCandidateWidth = mCandidatesPaint.measureText(rawCandidate,
+					0, rawLen);
+			return rawLen;
+		}
+		// At least one char is drawn, even if it does not fit.
+		int low = 1;
+		int high = rawLen - 1;
+		float lowWidth = mCandidatesPaint.measureText(rawCandidate, 0, low);
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			float width = mCandidatesPaint.measureText(rawCandidate, 0, mid);
+			if (width + mSuspensionPointsWidth <= widthToDraw) {
+				low = mid;
+				lowWidth = width;
+			} else {
+				high = mid - 1;
 			}
-		} while (true);
+		}
+		mLimitedCandidateWidth = lowWidth;
+		return low;
 	}
 
 	/**
@@ -738,7 +829,7 @@ public class CandidateView extends View {
 		float nearestDis = Float.MAX_VALUE;
 		int nearest = -1;
 		for (int i = 0; i < pageSize; i++) {
-			RectF r = mCandRects.elementAt(i);
+			RectF r = mCandRects.get(i);
 			if (r.left < x && r.right > x && r.top < y && r.bottom > y) {
 				return i;
 			}
@@ -834,7 +925,7 @@ public class CandidateView extends View {
 	private void showBalloon(int candPos, boolean delayedShow) {
 		mBalloonHint.removeTimer();
 
-		RectF r = mCandRects.elementAt(candPos);
+		RectF r = mCandRects.get(candPos);
 		int desired_width = (int) (r.right - r.left);
 		int desired_height = (int) (r.bottom - r.top);
 		mBalloonHint.setBalloonConfig(
@@ -340,8 +340,8 @@ public class CandidatesContainer extends RelativeLayout implements
 		mCurrentPage--;
 		int activeCandInPage = cv.getActiveCandiatePosInPage();
 		if (animLeftRight)
-			activeCandInPage = mDecInfo.mPageStart.elementAt(mCurrentPage + 1)
-					- mDecInfo.mPageStart.elementAt(mCurrentPage) - 1;
+			activeCandInPage = mDecInfo.mPageStart.get(mCurrentPage + 1)
+					- mDecInfo.mPageStart.get(mCurrentPage) - 1;
 
 		cvNext.showPage(mCurrentPage, activeCandInPage, enableActiveHighlight);
 		loadAnimation(animLeftRight, false);
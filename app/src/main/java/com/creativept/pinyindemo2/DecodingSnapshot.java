@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The decoding state of the engine after one search/delSearch/choose step,
+ * together with the first candidates, so that the IME can update itself with
+ * one call to the decoder service instead of one call per field.
+ * 一次解码操作后的引擎状态快照，包含拼写开始位置、拼音字符串、解码长度、固定长度、完整句子和前N个候选词。
+ */
+public class DecodingSnapshot implements Parcelable {
+	/**
+	 * Do not change the engine state, only read it.
+	 */
+	public static final int OP_NONE = 0;
+
+	/**
+	 * Operation: search the given Pinyin string. 查询拼音字符串
+	 */
+	public static final int OP_SEARCH = 1;
+
+	/**
+	 * Operation: delete at the given position and search again. 删除后查询
+	 */
+	public static final int OP_DEL_SEARCH = 2;
+
+	/**
+	 * Operation: choose the given candidate. 选择候选词
+	 */
+	public static final int OP_CHOOSE = 3;
+
+	/**
+	 * Operation: append the given letter to the Pinyin string kept by the
+	 * engine and search. 在引擎保存的拼音字符串末尾增加字母后查询
+	 */
+	public static final int OP_ADD_LETTER = 4;
+
+	/**
+	 * The total number of choices returned by the operation. 候选词总数
+	 */
+	public int mTotalChoicesNum;
+
+	/**
+	 * The starting position for each spelling. The first one is the number of
+	 * the real starting position elements. 每个拼写的开始位置
+	 */
+	public int mSplStart[];
+
+	/**
+	 * The Pinyin string kept by the engine. 引擎保存的拼音字符串
+	 */
+	public String mPyStr;
+
+	/**
+	 * The length of the Pinyin string successfully decoded. 成功解码的长度
+	 */
+	public int mDecodedLen;
+
+	/**
+	 * Number of characters which have been fixed. 固定的字符的数量
+	 */
+	public int mFixedLen;
+
+	/**
+	 * The first full sentence choice. 第一个完整句子
+	 */
+	public String mFullSent;
+
+	/**
+	 * The first candidates. The first one has its fixed part removed, the
+	 * same as what imGetChoiceList() returns. 前N个候选词
+	 */
+	public List<String> mCandidates;
+
+	public DecodingSnapshot() {
+		mSplStart = new int[0];
+		mPyStr = "";
+		mFullSent = "";
+		mCandidates = new ArrayList<String>();
+	}
+
+	private DecodingSnapshot(Parcel in) {
+		mTotalChoicesNum = in.readInt();
+		mSplStart = in.createIntArray();
+		mPyStr = in.readString();
+		mDecodedLen = in.readInt();
+		mFixedLen = in.readInt();
+		mFullSent = in.readString();
+		mCandidates = in.createStringArrayList();
+	}
+
+	public int describeContents() {
+		return 0;
+	}
+
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeInt(mTotalChoicesNum);
+		dest.writeIntArray(mSplStart);
+		dest.writeString(mPyStr);
+		dest.writeInt(mDecodedLen);
+		dest.writeInt(mFixedLen);
+		dest.writeString(mFullSent);
+		dest.writeStringList(mCandidates);
+	}
+
+	public static final Parcelable.Creator<DecodingSnapshot> CREATOR = new Parcelable.Creator<DecodingSnapshot>() {
+		public DecodingSnapshot createFromParcel(Parcel in) {
+			return new DecodingSnapshot(in);
+		}
+
+		public DecodingSnapshot[] newArray(int size) {
+			return new DecodingSnapshot[size];
+		}
+	};
+}
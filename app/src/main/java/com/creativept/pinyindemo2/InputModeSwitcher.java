@@ -454,6 +454,34 @@ public class InputModeSwitcher {
 		return 0;
 	}
 
+	/**
+	 * Get the soft keyboard layouts the user can switch to from the current
+	 * one with the keys of the keyboard, most likely first. The phone
+	 * keyboard switches its own states only.
+	 * 获取从当前软键盘可以切换到的软键盘布局文件资源ID，可能性大的在前。
+	 * 
+	 * @return
+	 */
+	public int[] getNextSkbLayouts() {
+		int layout = (mInputMode & MASK_SKB_LAYOUT);
+
+		switch (layout) {
+		case MASK_SKB_LAYOUT_QWERTY:
+			return new int[] { R.xml.skb_sym1, R.xml.skb_smiley,
+					R.xml.skb_sym2 };
+		case MASK_SKB_LAYOUT_SYMBOL1:
+			return new int[] { R.xml.skb_sym2, R.xml.skb_qwerty,
+					R.xml.skb_smiley };
+		case MASK_SKB_LAYOUT_SYMBOL2:
+			return new int[] { R.xml.skb_sym1, R.xml.skb_qwerty,
+					R.xml.skb_smiley };
+		case MASK_SKB_LAYOUT_SMILEY:
+			return new int[] { R.xml.skb_qwerty, R.xml.skb_sym1,
+					R.xml.skb_sym2 };
+		}
+		return new int[0];
+	}
+
 	/**
 	 * 切换硬键盘的语言模式，返回切换后的语言模式的图标。
 	 * 先设置新的输入法语言是中文模式，再判断当前的输入法语言模式是否是中文模式，是的话，就改成英文模式。
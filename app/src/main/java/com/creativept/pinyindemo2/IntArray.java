@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+/**
+ * A growable array of ints, used for the page index of the candidates. It
+ * is not synchronized, and {@link #clear()} keeps the array, so paging does
+ * not box integers or allocate once the array is big enough.
+ * 可增长的int数组，用于候选词的分页索引。不加锁，清空时保留数组，分页时不需要装箱和分配内存。
+ *
+ * @ClassName IntArray
+ */
+public class IntArray {
+	private static final int INIT_CAPACITY = 16;
+
+	private int mValues[];
+	private int mSize;
+
+	public IntArray() {
+		mValues = new int[INIT_CAPACITY];
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * 获取第i个值
+	 *
+	 * @param i
+	 * @return
+	 */
+	public int get(int i) {
+		if (i < 0 || i >= mSize) {
+			throw new IndexOutOfBoundsException("Invalid index " + i
+					+ ", size is " + mSize);
+		}
+		return mValues[i];
+	}
+
+	/**
+	 * Append a value, doubling the array if it is full. 在末尾增加一个值
+	 *
+	 * @param value
+	 */
+	public void add(int value) {
+		if (mSize == mValues.length) {
+			int values[] = new int[mValues.length * 2];
+			System.arraycopy(mValues, 0, values, 0, mSize);
+			mValues = values;
+		}
+		mValues[mSize++] = value;
+	}
+
+	/**
+	 * Remove all values. The array is kept for reuse. 清空，数组保留重用。
+	 */
+	public void clear() {
+		mSize = 0;
+	}
+}
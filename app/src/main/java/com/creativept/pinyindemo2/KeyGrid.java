@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+/**
+ * Grid index over the key rectangles of a soft keyboard, used to find the key
+ * at a touch point. The keyboard area is divided into cells, and each cell
+ * keeps the keys which overlap it, and the keys whose centers may be the
+ * nearest to a point in it. A query only looks at the lists of one cell, and
+ * gives the same key as scanning all of them: the first key containing the
+ * point, otherwise the first key with the nearest center.
+ * 软键盘按键区域的网格索引，用于查找触摸点所在的按键。每个格子保存与它重叠的按键，以及中心点可能离格子中的点最近的按键。
+ *
+ * Keys are given by their index, in the order they are scanned.
+ *
+ * @ClassName KeyGrid
+ */
+public class KeyGrid {
+	/**
+	 * Number of cells in each direction. A QWERTY keyboard has about 10 keys
+	 * in a row and 4 rows, so each key covers a few cells.
+	 */
+	private static final int GRID_COLUMNS = 32;
+	private static final int GRID_ROWS = 16;
+
+	private int mWidth;
+	private int mHeight;
+
+	private int mKeyNum;
+	private int mLeft[];
+	private int mTop[];
+	private int mRight[];
+	private int mBottom[];
+	private int mCenterX[];
+	private int mCenterY[];
+
+	/**
+	 * Keys overlapping cell i are mHitKeys[mHitStart[i]] to
+	 * mHitKeys[mHitStart[i + 1] - 1]. 与格子重叠的按键
+	 */
+	private int mHitStart[];
+	private int mHitKeys[];
+
+	/**
+	 * Keys which may be the nearest to a point in cell i, in the same way.
+	 * 可能离格子中的点最近的按键
+	 */
+	private int mNearStart[];
+	private int mNearKeys[];
+
+	/**
+	 * Build the index. A key contains the points from (left, top) to (right,
+	 * bottom), right and bottom excluded.
+	 *
+	 * @param width
+	 *            width of the area covered by the cells.
+	 * @param height
+	 *            height of the area covered by the cells.
+	 */
+	public void build(int left[], int top[], int right[], int bottom[],
+			int keyNum, int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mKeyNum = keyNum;
+		mLeft = left;
+		mTop = top;
+		mRight = right;
+		mBottom = bottom;
+		mCenterX = new int[keyNum];
+		mCenterY = new int[keyNum];
+		for (int i = 0; i < keyNum; i++) {
+			mCenterX[i] = (left[i] + right[i]) / 2;
+			mCenterY[i] = (top[i] + bottom[i]) / 2;
+		}
+
+		int cellNum = GRID_COLUMNS * GRID_ROWS;
+		mHitStart = new int[cellNum + 1];
+		mNearStart = new int[cellNum + 1];
+		IntArray hitKeys = new IntArray();
+		IntArray nearKeys = new IntArray();
+		for (int row = 0; row < GRID_ROWS; row++) {
+			// The points which map to this cell, see getCell().
+			int y0 = firstPointInCell(row, height, GRID_ROWS);
+			int y1 = firstPointInCell(row + 1, height, GRID_ROWS) - 1;
+			for (int col = 0; col < GRID_COLUMNS; col++) {
+				int x0 = firstPointInCell(col, width, GRID_COLUMNS);
+				int x1 = firstPointInCell(col + 1, width, GRID_COLUMNS) - 1;
+				int cell = row * GRID_COLUMNS + col;
+				mHitStart[cell] = hitKeys.size();
+				mNearStart[cell] = nearKeys.size();
+				if (x0 > x1 || y0 > y1) {
+					continue;
+				}
+				addCellKeys(x0, y0, x1, y1, hitKeys, nearKeys);
+			}
+		}
+		mHitStart[cellNum] = hitKeys.size();
+		mNearStart[cellNum] = nearKeys.size();
+		mHitKeys = toArray(hitKeys);
+		mNearKeys = toArray(nearKeys);
+	}
+
+	private void addCellKeys(int x0, int y0, int x1, int y1, IntArray hitKeys,
+			IntArray nearKeys) {
+		// Every point in the cell is at most this far from some key's center,
+		// so a key farther than this from the whole cell is never the nearest.
+		long bound = Long.MAX_VALUE;
+		for (int i = 0; i < mKeyNum; i++) {
+			if (mLeft[i] <= x1 && mRight[i] > x0 && mTop[i] <= y1
+					&& mBottom[i] > y0) {
+				hitKeys.add(i);
+			}
+			long dx = Math.max(Math.abs(mCenterX[i] - x0),
+					Math.abs(mCenterX[i] - x1));
+			long dy = Math.max(Math.abs(mCenterY[i] - y0),
+					Math.abs(mCenterY[i] - y1));
+			if (dx * dx + dy * dy < bound) {
+				bound = dx * dx + dy * dy;
+			}
+		}
+		for (int i = 0; i < mKeyNum; i++) {
+			long dx = distanceToRange(mCenterX[i], x0, x1);
+			long dy = distanceToRange(mCenterY[i], y0, y1);
+			if (dx * dx + dy * dy <= bound) {
+				nearKeys.add(i);
+			}
+		}
+	}
+
+	/**
+	 * Find the key at a point.
+	 *
+	 * @return the index of the first key containing the point, otherwise the
+	 *         first one with the nearest center, or -1 if there are no keys.
+	 */
+	public int findKey(int x, int y) {
+		if (x < 0 || x >= mWidth || y < 0 || y >= mHeight) {
+			// Outside the cells, only when the finger moves out of the
+			// keyboard.
+			return scanKeys(x, y);
+		}
+		int cell = (int) ((long) y * GRID_ROWS / mHeight) * GRID_COLUMNS
+				+ (int) ((long) x * GRID_COLUMNS / mWidth);
+		for (int pos = mHitStart[cell]; pos < mHitStart[cell + 1]; pos++) {
+			int i = mHitKeys[pos];
+			if (contains(i, x, y)) {
+				return i;
+			}
+		}
+		int nearest = -1;
+		long nearestDis = Long.MAX_VALUE;
+		for (int pos = mNearStart[cell]; pos < mNearStart[cell + 1]; pos++) {
+			int i = mNearKeys[pos];
+			long dis = distance(i, x, y);
+			if (dis < nearestDis) {
+				nearestDis = dis;
+				nearest = i;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Find the key at a point by looking at all of them.
+	 *
+	 * @see #findKey(int, int)
+	 */
+	public int scanKeys(int x, int y) {
+		for (int i = 0; i < mKeyNum; i++) {
+			if (contains(i, x, y)) {
+				return i;
+			}
+		}
+		int nearest = -1;
+		long nearestDis = Long.MAX_VALUE;
+		for (int i = 0; i < mKeyNum; i++) {
+			long dis = distance(i, x, y);
+			if (dis < nearestDis) {
+				nearestDis = dis;
+				nearest = i;
+			}
+		}
+		return nearest;
+	}
+
+	private boolean contains(int i, int x, int y) {
+		return mLeft[i] <= x && mTop[i] <= y && mRight[i] > x
+				&& mBottom[i] > y;
+	}
+
+	private long distance(int i, int x, int y) {
+		long dx = mCenterX[i] - x;
+		long dy = mCenterY[i] - y;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * The smallest point p in [0, size) with p * cellNum / size >= cell.
+	 */
+	private static int firstPointInCell(int cell, int size, int cellNum) {
+		return (int) (((long) cell * size + cellNum - 1) / cellNum);
+	}
+
+	private static int distanceToRange(int v, int low, int high) {
+		if (v < low) {
+			return low - v;
+		}
+		if (v > high) {
+			return v - high;
+		}
+		return 0;
+	}
+
+	private static int[] toArray(IntArray values) {
+		int array[] = new int[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+}
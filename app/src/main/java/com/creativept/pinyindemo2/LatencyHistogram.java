@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A histogram of latencies in microseconds, which can be recorded from any
+ * thread without a lock. 耗时直方图，单位微秒，记录时不加锁。
+ *
+ * Values below {@link #SUB_BUCKET_NUM} have a bucket each, larger ones have
+ * {@link #SUB_BUCKET_NUM} buckets for each power of two, so a percentile is
+ * at most 1/8 above the real value. Values from {@link #MAX_VALUE} on all go
+ * into the last bucket.
+ *
+ * @ClassName LatencyHistogram
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/**
+	 * Buckets for each power of two. 每个2的幂的桶数
+	 */
+	static final int SUB_BUCKET_NUM = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The highest bit of the largest value with its own bucket, about 67
+	 * seconds.
+	 */
+	private static final int MAX_VALUE_BIT = 26;
+
+	static final long MAX_VALUE = 1L << (MAX_VALUE_BIT + 1);
+
+	private static final int BUCKET_NUM = (MAX_VALUE_BIT - SUB_BUCKET_BITS + 2)
+			* SUB_BUCKET_NUM;
+
+	private final AtomicIntegerArray mCounts = new AtomicIntegerArray(
+			BUCKET_NUM);
+	private final AtomicLong mMax = new AtomicLong();
+
+	/**
+	 * Record a latency. 记录一次耗时
+	 *
+	 * @param micros
+	 *            the latency in microseconds, negative values are taken as 0.
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		mCounts.incrementAndGet(getBucket(micros));
+
+		long max = mMax.get();
+		while (micros > max && !mMax.compareAndSet(max, micros)) {
+			max = mMax.get();
+		}
+	}
+
+	/**
+	 * The number of recorded latencies. 记录的次数
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKET_NUM; i++) {
+			count += mCounts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * The largest recorded latency. 最大耗时
+	 */
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * Get the latency below which the given fraction of the recorded ones
+	 * are. The result is the upper bound of the bucket it falls in, but not
+	 * more than {@link #getMax()}. 获取百分位耗时
+	 *
+	 * @param fraction
+	 *            between 0 and 1, 0.95 for p95.
+	 * @return 0 if nothing is recorded.
+	 */
+	public long getPercentile(double fraction) {
+		// The buckets are read one by one while other threads may record, so
+		// the count is taken from the same reads.
+		int counts[] = new int[BUCKET_NUM];
+		long count = 0;
+		for (int i = 0; i < BUCKET_NUM; i++) {
+			counts[i] = mCounts.get(i);
+			count += counts[i];
+		}
+		if (0 == count) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(fraction * count);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKET_NUM; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(getBucketEnd(i) - 1, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Drop all recorded latencies. Latencies recorded at the same time may be
+	 * partly kept. 清空
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_NUM; i++) {
+			mCounts.set(i, 0);
+		}
+		mMax.set(0);
+	}
+
+	static int getBucket(long value) {
+		if (value < SUB_BUCKET_NUM) {
+			return (int) value;
+		}
+		if (value >= MAX_VALUE) {
+			return BUCKET_NUM - 1;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKET_NUM
+				+ (int) (value >> shift) - SUB_BUCKET_NUM;
+	}
+
+	/**
+	 * The smallest value after the given bucket.
+	 */
+	static long getBucketEnd(int bucket) {
+		if (bucket < SUB_BUCKET_NUM) {
+			return bucket + 1;
+		}
+		int shift = bucket / SUB_BUCKET_NUM - 1;
+		return (long) (SUB_BUCKET_NUM + bucket % SUB_BUCKET_NUM + 1) << shift;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import java.util.Locale;
+
+/**
+ * Always-on latency histograms of the stages between a key press and the
+ * drawn candidates, so that regressions can be found on real devices. A stage
+ * costs two System.nanoTime() calls and an atomic increment. The statistics
+ * can be dumped from {@link SettingsActivity}.
+ * 从按键到显示候选词各阶段的耗时直方图，一直开启，可以在设置页面导出。
+ *
+ * <pre>
+ * long start = LatencyStats.start();
+ * ...
+ * LatencyStats.end(LatencyStats.PREPARE_PAGE, start);
+ * </pre>
+ *
+ * @ClassName LatencyStats
+ */
+public final class LatencyStats {
+	/**
+	 * PinyinIME.processKey(), the whole handling of a key event.
+	 */
+	public static final int PROCESS_KEY = 0;
+
+	/**
+	 * DecodingInfo.chooseDecodingCandidate(), searching or choosing.
+	 */
+	public static final int CHOOSE_CANDIDATE = 1;
+
+	/**
+	 * The calls of {@link PinyinDecoder}, through the binder or in process.
+	 */
+	public static final int DECODER_RESET_SEARCH = 2;
+	public static final int DECODER_DECODE = 3;
+	public static final int DECODER_GET_CHOICES = 4;
+	public static final int DECODER_GET_PREDICTS_NUM = 5;
+	public static final int DECODER_GET_PREDICTS = 6;
+
+	/**
+	 * DecodingInfo.preparePage(), including fetching more candidates.
+	 */
+	public static final int PREPARE_PAGE = 7;
+
+	/**
+	 * CandidateView.calculatePage(), when the page is not calculated yet.
+	 */
+	public static final int CALCULATE_PAGE = 8;
+
+	/**
+	 * CandidateView.onDraw() with candidates to draw.
+	 */
+	public static final int DRAW_CANDIDATES = 9;
+
+	/**
+	 * From the first key typed after the IME is created to its first
+	 * candidates, including the wait for the engine to open. Recorded once
+	 * per IME, with {@link #record(int, long)}.
+	 */
+	public static final int TIME_TO_FIRST_CANDIDATE = 10;
+
+	private static final String STAGE_NAMES[] = { "processKey",
+			"chooseDecodingCandidate", "imResetSearch", "imDecode",
+			"imGetChoices", "imGetPredictsNum", "imGetPredictList",
+			"preparePage", "calculatePage", "onDraw",
+			"timeToFirstCandidate" };
+
+	private static final LatencyHistogram mHistograms[] =
+			new LatencyHistogram[STAGE_NAMES.length];
+
+	static {
+		for (int i = 0; i < mHistograms.length; i++) {
+			mHistograms[i] = new LatencyHistogram();
+		}
+	}
+
+	private LatencyStats() {
+	}
+
+	/**
+	 * The start time of a stage, to be passed to {@link #end(int, long)}.
+	 * 阶段开始时间
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the latency of a stage since its start. 记录阶段耗时
+	 *
+	 * @param stage
+	 *            one of the stage constants.
+	 * @param startNanos
+	 *            returned by {@link #start()}.
+	 */
+	public static void end(int stage, long startNanos) {
+		mHistograms[stage].record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * Record a latency measured by the caller. 记录调用者测得的耗时
+	 *
+	 * @param stage
+	 *            one of the stage constants.
+	 * @param micros
+	 */
+	public static void record(int stage, long micros) {
+		mHistograms[stage].record(micros);
+	}
+
+	public static LatencyHistogram getHistogram(int stage) {
+		return mHistograms[stage];
+	}
+
+	public static void reset() {
+		for (int i = 0; i < mHistograms.length; i++) {
+			mHistograms[i].reset();
+		}
+	}
+
+	/**
+	 * A table of the count, p50, p95, p99 and max latency of each stage, in
+	 * microseconds. 各阶段的次数和百分位耗时表
+	 */
+	public static String dump() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%-24s %8s %8s %8s %8s %8s\n",
+				"stage", "count", "p50", "p95", "p99", "max"));
+		for (int i = 0; i < mHistograms.length; i++) {
+			LatencyHistogram histogram = mHistograms[i];
+			sb.append(String.format(Locale.US,
+					"%-24s %8d %8d %8d %8d %8d\n", STAGE_NAMES[i],
+					histogram.getCount(), histogram.getPercentile(0.5),
+					histogram.getPercentile(0.95),
+					histogram.getPercentile(0.99), histogram.getMax()));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import android.content.Context;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Decoding backend which calls the JNI functions of
+ * {@link PinyinDecoderService} directly in the IME's process, without binding
+ * the service and without any Parcel marshalling.
+ * 进程内解码后端，直接调用本地函数，不需要绑定服务，也没有Parcel的序列化。
+ * 
+ * The engine is opened in the background, so the decoder cannot be used until
+ * {@link #isReady()} returns true.
+ * 引擎在后台线程中打开，isReady()返回true之前不能使用。
+ * 
+ * The latency of each call is recorded in {@link LatencyStats}, as for
+ * {@link RemotePinyinDecoder}.
+ * 
+ * @ClassName LocalPinyinDecoder
+ */
+public class LocalPinyinDecoder implements PinyinDecoder {
+	private Future<Boolean> mEngineFuture;
+
+	/**
+	 * Start opening the engine. onReady is run on the calling thread when it
+	 * is done, whether the engine is opened or not. 开始打开引擎，完成后在调用线程运行onReady
+	 * 
+	 * @param context
+	 * @param onReady
+	 *            can be null, otherwise the calling thread must have a Looper.
+	 */
+	public LocalPinyinDecoder(Context context, Runnable onReady) {
+		mEngineFuture = PinyinDecoderService.openEngineAsync(context,
+				null == onReady ? null : new Handler(), onReady);
+	}
+
+	/**
+	 * 引擎是否已经打开成功
+	 * 
+	 * @return false if the engine is still being opened or failed to open.
+	 */
+	public boolean isReady() {
+		return null != mEngineFuture && mEngineFuture.isDone()
+				&& PinyinDecoderService.waitForEngine(mEngineFuture);
+	}
+
+	/**
+	 * Block until the engine is opened or failed to open. Never call it on
+	 * the main thread. 等待引擎打开完成，不要在主线程调用。
+	 * 
+	 * @return whether the engine is opened.
+	 */
+	public boolean awaitReady() {
+		return PinyinDecoderService.waitForEngine(mEngineFuture);
+	}
+
+	public void imResetSearch() {
+		long start = LatencyStats.start();
+		PinyinDecoderService.nativeImResetSearch();
+		LatencyStats.end(LatencyStats.DECODER_RESET_SEARCH, start);
+	}
+
+	public DecodingSnapshot imDecode(int op, byte[] pyBuf, int arg,
+			boolean is_pos_in_splid, boolean clear_fixed_this_step,
+			int candidatesNum) {
+		// The candidates are fetched into the CandidateBuffer without
+		// creating Strings, see imGetChoiceBuffer().
+		long start = LatencyStats.start();
+		DecodingSnapshot snapshot = PinyinDecoderService.decode(op, pyBuf,
+				arg, is_pos_in_splid, clear_fixed_this_step, 0);
+		LatencyStats.end(LatencyStats.DECODER_DECODE, start);
+		return snapshot;
+	}
+
+	public int imGetChoiceBuffer(int choicesStart, int choicesNum,
+			int sentFixedLen, CandidateBuffer buffer) {
+		long start = LatencyStats.start();
+		int added = 0;
+		while (added < choicesNum) {
+			int num = PinyinDecoderService.nativeImGetChoiceBuffer(
+					buffer.getByteBuffer(), choicesStart + added, choicesNum
+							- added, sentFixedLen);
+			added += num;
+			if (added < choicesNum) {
+				if (0 == num && buffer.isEmpty()) {
+					break;
+				}
+				// The buffer is full.
+				buffer.grow();
+			}
+		}
+		LatencyStats.end(LatencyStats.DECODER_GET_CHOICES, start);
+		return added;
+	}
+
+	public List<String> imGetChoiceList(int choicesStart, int choicesNum,
+			int sentFixedLen) {
+		long start = LatencyStats.start();
+		List<String> choiceList = new ArrayList<String>(choicesNum);
+		for (int i = choicesStart; i < choicesStart + choicesNum; i++) {
+			String retStr = PinyinDecoderService.nativeImGetChoice(i);
+			if (0 == i)
+				retStr = retStr.substring(sentFixedLen);
+			choiceList.add(retStr);
+		}
+		LatencyStats.end(LatencyStats.DECODER_GET_CHOICES, start);
+		return choiceList;
+	}
+
+	public int imGetPredictsNum(String fixedStr) {
+		long start = LatencyStats.start();
+		int num = PinyinDecoderService.nativeImGetPredictsNum(fixedStr);
+		LatencyStats.end(LatencyStats.DECODER_GET_PREDICTS_NUM, start);
+		return num;
+	}
+
+	public List<String> imGetPredictList(int predictsStart, int predictsNum) {
+		long start = LatencyStats.start();
+		List<String> predictList = new ArrayList<String>(predictsNum);
+		for (int i = predictsStart; i < predictsStart + predictsNum; i++) {
+			predictList.add(PinyinDecoderService.nativeImGetPredictItem(i));
+		}
+		LatencyStats.end(LatencyStats.DECODER_GET_PREDICTS, start);
+		return predictList;
+	}
+
+	public void close() {
+		if (null != mEngineFuture) {
+			PinyinDecoderService.closeEngineAsync(mEngineFuture);
+			mEngineFuture = null;
+		}
+	}
+}
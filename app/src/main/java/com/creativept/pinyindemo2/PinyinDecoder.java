@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import android.os.RemoteException;
+
+import java.util.List;
+
+/**
+ * The decoding backend used by the IME. It can either run the engine in the
+ * IME's own process ({@link LocalPinyinDecoder}), or go through the
+ * {@link IPinyinDecoderService} binder of {@link PinyinDecoderService}
+ * ({@link RemotePinyinDecoder}). 解码后端接口，可以在进程内直接调用本地引擎，也可以通过远程服务调用。
+ * 
+ * @ClassName PinyinDecoder
+ */
+public interface PinyinDecoder {
+	/**
+	 * Whether the backend can decode now. The other methods must not be called
+	 * until it returns true. 后端是否可以解码了
+	 */
+	boolean isReady();
+
+	/**
+	 * 重置拼音查询
+	 */
+	void imResetSearch() throws RemoteException;
+
+	/**
+	 * 执行查询、删除查询或者选择候选词，并返回解码后的状态和前candidatesNum个候选词。
+	 * 
+	 * @see IPinyinDecoderService#imDecode(int, byte[], int, boolean, boolean,
+	 *      int)
+	 */
+	DecodingSnapshot imDecode(int op, byte[] pyBuf, int arg,
+			boolean is_pos_in_splid, boolean clear_fixed_this_step,
+			int candidatesNum) throws RemoteException;
+
+	/**
+	 * 获取候选词列表。choicesStart位置的候选词从sentFixedLen开始截取。
+	 */
+	List<String> imGetChoiceList(int choicesStart, int choicesNum,
+			int sentFixedLen) throws RemoteException;
+
+	/**
+	 * 把候选词追加到候选词缓冲区中。choicesStart位置的候选词从sentFixedLen开始截取。
+	 * 
+	 * @return 追加的候选词个数
+	 */
+	int imGetChoiceBuffer(int choicesStart, int choicesNum,
+			int sentFixedLen, CandidateBuffer buffer) throws RemoteException;
+
+	/**
+	 * 根据字符串 fixedStr 获取预报的候选词数量
+	 */
+	int imGetPredictsNum(String fixedStr) throws RemoteException;
+
+	/**
+	 * 获取预报候选词列表
+	 */
+	List<String> imGetPredictList(int predictsStart, int predictsNum)
+			throws RemoteException;
+
+	/**
+	 * Release the backend. 释放解码后端
+	 */
+	void close();
+}
@@ -17,16 +17,30 @@
 package com.creativept.pinyindemo2;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.content.res.AssetFileDescriptor;
+import android.os.Debug;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * This class is used to separate the input method kernel in an individual
@@ -38,7 +52,16 @@ import java.util.Vector;
  * @author keanbin
  */
 public class PinyinDecoderService extends Service {
-	native static boolean nativeImOpenDecoder(byte fn_sys_dict[],
+	/*
+	 * The engine is one per process, used by the binder threads of the
+	 * service and by the IME's main thread through LocalPinyinDecoder, so
+	 * the JNI functions are synchronized on this class, which is the lock of
+	 * the engine. The transfers of the user dictionary take the lock in
+	 * their native code, and release it while they read or write the file.
+	 * 本地引擎由服务的binder线程和输入法主线程共用，JNI函数都在此类上同步。
+	 */
+
+	native static synchronized boolean nativeImOpenDecoder(byte fn_sys_dict[],
 			byte fn_usr_dict[]);
 
 	/**
@@ -50,7 +73,7 @@ public class PinyinDecoderService extends Service {
 	 * @param fn_usr_dict
 	 * @return
 	 */
-	native static boolean nativeImOpenDecoderFd(FileDescriptor fd,
+	native static synchronized boolean nativeImOpenDecoderFd(FileDescriptor fd,
 			long startOffset, long length, byte fn_usr_dict[]);
 
 	/**
@@ -59,14 +82,15 @@ public class PinyinDecoderService extends Service {
 	 * @param maxSpsLen
 	 * @param maxHzsLen
 	 */
-	native static void nativeImSetMaxLens(int maxSpsLen, int maxHzsLen);
+	native static synchronized void nativeImSetMaxLens(int maxSpsLen,
+			int maxHzsLen);
 
 	/**
 	 * JNI函数：关闭解码器
 	 * 
 	 * @return
 	 */
-	native static boolean nativeImCloseDecoder();
+	native static synchronized boolean nativeImCloseDecoder();
 
 	/**
 	 * JNI函数：根据拼音查询候选词
@@ -75,7 +99,7 @@ public class PinyinDecoderService extends Service {
 	 * @param pyLen
 	 * @return
 	 */
-	native static int nativeImSearch(byte pyBuf[], int pyLen);
+	native static synchronized int nativeImSearch(byte pyBuf[], int pyLen);
 
 	/**
 	 * JNI函数：删除指定位置的拼音后进行查询
@@ -85,22 +109,22 @@ public class PinyinDecoderService extends Service {
 	 * @param clear_fixed_this_step
 	 * @return
 	 */
-	native static int nativeImDelSearch(int pos, boolean is_pos_in_splid,
-			boolean clear_fixed_this_step);
+	native static synchronized int nativeImDelSearch(int pos,
+			boolean is_pos_in_splid, boolean clear_fixed_this_step);
 
 	/**
 	 * JNI函数：重置拼音查询，应该是清除之前查询的数据
 	 */
-	native static void nativeImResetSearch();
+	native static synchronized void nativeImResetSearch();
 
 	/**
-	 * JNI函数：增加字母。
+	 * JNI函数：在引擎保存的拼音字符串末尾增加字母并查询，结果和用新的字符串调用
+	 * {@link #nativeImSearch(byte[], int)} 一样。
 	 * 
-	 * @备注 目前没有使用。
 	 * @param ch
-	 * @return
+	 * @return the number of candidates.
 	 */
-	native static int nativeImAddLetter(byte ch);
+	native static synchronized int nativeImAddLetter(byte ch);
 
 	/**
 	 * JNI函数：获取拼音字符串
@@ -108,7 +132,7 @@ public class PinyinDecoderService extends Service {
 	 * @param decoded
 	 * @return
 	 */
-	native static String nativeImGetPyStr(boolean decoded);
+	native static synchronized String nativeImGetPyStr(boolean decoded);
 
 	/**
 	 * JNI函数：获取拼音字符串的长度
@@ -116,14 +140,14 @@ public class PinyinDecoderService extends Service {
 	 * @param decoded
 	 * @return
 	 */
-	native static int nativeImGetPyStrLen(boolean decoded);
+	native static synchronized int nativeImGetPyStrLen(boolean decoded);
 
 	/**
 	 * JNI函数：获取每个拼写的开始位置，猜测：第一个元素是拼写的总数量？
 	 * 
 	 * @return
 	 */
-	native static int[] nativeImGetSplStart();
+	native static synchronized int[] nativeImGetSplStart();
 
 	/**
 	 * JNI函数：获取指定位置的候选词
@@ -131,7 +155,21 @@ public class PinyinDecoderService extends Service {
 	 * @param choiceId
 	 * @return
 	 */
-	native static String nativeImGetChoice(int choiceId);
+	native static synchronized String nativeImGetChoice(int choiceId);
+
+	/**
+	 * JNI函数：把从choicesStart开始的choicesNum个候选词追加到直接缓冲区buf中，返回追加的个数。缓冲区满了就提前返回。
+	 * 
+	 * @see CandidateBuffer
+	 * @param buf
+	 * @param choicesStart
+	 * @param choicesNum
+	 * @param sentFixedLen
+	 *            第0个候选词从sentFixedLen开始截取
+	 * @return
+	 */
+	native static synchronized int nativeImGetChoiceBuffer(ByteBuffer buf,
+			int choicesStart, int choicesNum, int sentFixedLen);
 
 	/**
 	 * JNI函数：获取候选词的数量
@@ -139,7 +177,7 @@ public class PinyinDecoderService extends Service {
 	 * @param choiceId
 	 * @return
 	 */
-	native static int nativeImChoose(int choiceId);
+	native static synchronized int nativeImChoose(int choiceId);
 
 	/**
 	 * JNI函数：取消最后的选择
@@ -147,14 +185,14 @@ public class PinyinDecoderService extends Service {
 	 * @备注 目前没有使用
 	 * @return
 	 */
-	native static int nativeImCancelLastChoice();
+	native static synchronized int nativeImCancelLastChoice();
 
 	/**
 	 * JNI函数：获取固定字符的长度
 	 * 
 	 * @return
 	 */
-	native static int nativeImGetFixedLen();
+	native static synchronized int nativeImGetFixedLen();
 
 	/**
 	 * JNI函数：取消输入
@@ -162,7 +200,7 @@ public class PinyinDecoderService extends Service {
 	 * @备注 目前没有使用
 	 * @return
 	 */
-	native static boolean nativeImCancelInput();
+	native static synchronized boolean nativeImCancelInput();
 
 	/**
 	 * JNI函数：刷新缓存
@@ -170,7 +208,7 @@ public class PinyinDecoderService extends Service {
 	 * @备注 目前没有使用
 	 * @return
 	 */
-	native static boolean nativeImFlushCache();
+	native static synchronized boolean nativeImFlushCache();
 
 	/**
 	 * JNI函数：根据字符串 fixedStr 获取预报的候选词
@@ -178,7 +216,7 @@ public class PinyinDecoderService extends Service {
 	 * @param fixedStr
 	 * @return
 	 */
-	native static int nativeImGetPredictsNum(String fixedStr);
+	native static synchronized int nativeImGetPredictsNum(String fixedStr);
 
 	/**
 	 * JNI函数：获取指定位置的预报候选词
@@ -186,7 +224,55 @@ public class PinyinDecoderService extends Service {
 	 * @param predictNo
 	 * @return
 	 */
-	native static String nativeImGetPredictItem(int predictNo);
+	native static synchronized String nativeImGetPredictItem(int predictNo);
+
+	/**
+	 * Progress of {@link #nativeImImportUserDict} and
+	 * {@link #nativeImExportUserDict}, called on the calling thread after
+	 * every chunk of the file. 用户词典导入导出的进度
+	 */
+	interface TransferListener {
+		/**
+		 * @param lemmas
+		 *            the lemmas transferred so far. 已导入或导出的词数
+		 * @param bytes
+		 *            the bytes of the file read or written so far. 已读写的字节数
+		 */
+		void onProgress(int lemmas, long bytes);
+	}
+
+	/**
+	 * JNI函数：从文件导入用户词典。The file is in the sync format,
+	 * "pinyin,hanzis,frequency,last modified time;" in UTF-16LE, and is read
+	 * from its current position in chunks, so the text is never held in
+	 * memory. It is not synchronized: the native code takes the lock of the
+	 * engine only to update the lemmas of each chunk, then to sort in the new
+	 * ones and write the dictionary at the end, so decoding goes on while the
+	 * file is read. The engine must not be closed during the call.
+	 * 读文件时不持有引擎的锁，解码不用等待导入完成。
+	 * 
+	 * @param fd
+	 * @param listener
+	 *            can be null. It is called without the lock of the engine.
+	 * @return the number of lemmas imported, or -1 if the file could not be
+	 *         read to the end. 导入的词数
+	 */
+	native static int nativeImImportUserDict(FileDescriptor fd,
+			TransferListener listener);
+
+	/**
+	 * JNI函数：把用户词典导出到文件，格式同
+	 * {@link #nativeImImportUserDict(FileDescriptor, TransferListener)}。
+	 * The lemmas are copied under the lock of the engine, then written
+	 * without it.
+	 * 
+	 * @param fd
+	 * @param listener
+	 *            can be null. It is called without the lock of the engine.
+	 * @return the number of lemmas exported, or -1 on a write error. 导出的词数
+	 */
+	native static int nativeImExportUserDict(FileDescriptor fd,
+			TransferListener listener);
 
 	// Sync related
 	/**
@@ -197,7 +283,8 @@ public class PinyinDecoderService extends Service {
 	 * @param tomerge
 	 * @return
 	 */
-	native static String nativeSyncUserDict(byte[] user_dict, String tomerge);
+	native static synchronized String nativeSyncUserDict(byte[] user_dict,
+			String tomerge);
 
 	/**
 	 * JNI函数：开始用户词典同步
@@ -206,7 +293,7 @@ public class PinyinDecoderService extends Service {
 	 * @param user_dict
 	 * @return
 	 */
-	native static boolean nativeSyncBegin(byte[] user_dict);
+	native static synchronized boolean nativeSyncBegin(byte[] user_dict);
 
 	/**
 	 * JNI函数：同步结束
@@ -214,7 +301,7 @@ public class PinyinDecoderService extends Service {
 	 * @备注 目前没有使用
 	 * @return
 	 */
-	native static boolean nativeSyncFinish();
+	native static synchronized boolean nativeSyncFinish();
 
 	/**
 	 * JNI函数：同步获取Lemmas
@@ -222,7 +309,7 @@ public class PinyinDecoderService extends Service {
 	 * @备注 目前没有使用
 	 * @return
 	 */
-	native static String nativeSyncGetLemmas();
+	native static synchronized String nativeSyncGetLemmas();
 
 	/**
 	 * JNI函数：同步存入Lemmas
@@ -231,7 +318,7 @@ public class PinyinDecoderService extends Service {
 	 * @param tomerge
 	 * @return
 	 */
-	native static int nativeSyncPutLemmas(String tomerge);
+	native static synchronized int nativeSyncPutLemmas(String tomerge);
 
 	/**
 	 * JNI函数：同步获取最后的数量
@@ -239,7 +326,7 @@ public class PinyinDecoderService extends Service {
 	 * @备注 目前没有使用
 	 * @return
 	 */
-	native static int nativeSyncGetLastCount();
+	native static synchronized int nativeSyncGetLastCount();
 
 	/**
 	 * JNI函数：同步获取总数量
@@ -247,7 +334,7 @@ public class PinyinDecoderService extends Service {
 	 * @备注 目前没有使用
 	 * @return
 	 */
-	native static int nativeSyncGetTotalCount();
+	native static synchronized int nativeSyncGetTotalCount();
 
 	/**
 	 * JNI函数：同步清空最后获取
@@ -255,7 +342,7 @@ public class PinyinDecoderService extends Service {
 	 * @备注 目前没有使用
 	 * @return
 	 */
-	native static boolean nativeSyncClearLastGot();
+	native static synchronized boolean nativeSyncClearLastGot();
 
 	/**
 	 * JNI函数：同步获取容量
@@ -263,7 +350,7 @@ public class PinyinDecoderService extends Service {
 	 * @备注 目前没有使用
 	 * @return
 	 */
-	native static int nativeSyncGetCapacity();
+	native static synchronized int nativeSyncGetCapacity();
 
 	/**
 	 * 最大的文件路径长度
@@ -275,11 +362,36 @@ public class PinyinDecoderService extends Service {
 	 */
 	private static boolean inited = false;
 
+	/**
+	 * 引擎的引用计数
+	 */
+	private static int mEngineRefCount = 0;
+
+	/**
+	 * Opens and closes the engine off the main thread. It runs one task at a
+	 * time, so a close never overtakes the open it is paired with.
+	 * 在后台线程中打开和关闭引擎，任务按顺序执行
+	 */
+	private static ExecutorService mEngineExecutor;
+
+	/**
+	 * Guards mEngineExecutor. It is not the lock of the engine, which the
+	 * main thread must not wait for while opening it.
+	 */
+	private static final Object mEngineExecutorLock = new Object();
+
 	/**
 	 * 用户的词典文件
 	 */
 	private String mUsr_dict_file;
 
+	/**
+	 * The service's open of the engine, done or still running. Its result
+	 * tells whether the service holds a reference of the engine.
+	 * 该服务打开引擎的结果，为true时服务持有引擎的引用
+	 */
+	private Future<Boolean> mEngineFuture;
+
 	// 导入本地函数库
 	static {
 		try {
@@ -297,73 +409,341 @@ public class PinyinDecoderService extends Service {
 	 * @return
 	 */
 	private boolean getUsrDictFileName(byte usr_dict[]) {
+		return getUsrDictFileName(mUsr_dict_file, usr_dict);
+	}
+
+	private static boolean getUsrDictFileName(String usrDictFile,
+			byte usr_dict[]) {
 		if (null == usr_dict) {
 			return false;
 		}
 
-		for (int i = 0; i < mUsr_dict_file.length(); i++)
-			usr_dict[i] = (byte) mUsr_dict_file.charAt(i);
-		usr_dict[mUsr_dict_file.length()] = 0;
+		for (int i = 0; i < usrDictFile.length(); i++)
+			usr_dict[i] = (byte) usrDictFile.charAt(i);
+		usr_dict[usrDictFile.length()] = 0;
 
 		return true;
 	}
 
+	/**
+	 * Run one decoding operation and collect the resulting engine state in a
+	 * snapshot. 执行一次解码操作，并把解码后的引擎状态收集到快照中。
+	 * It holds the lock of the engine throughout, so the snapshot is of one
+	 * state of the engine.
+	 * 
+	 * @param op
+	 *            one of {@link DecodingSnapshot#OP_NONE},
+	 *            {@link DecodingSnapshot#OP_SEARCH},
+	 *            {@link DecodingSnapshot#OP_DEL_SEARCH},
+	 *            {@link DecodingSnapshot#OP_CHOOSE} and
+	 *            {@link DecodingSnapshot#OP_ADD_LETTER}.
+	 * @param pyBuf
+	 *            Pinyin string for {@link DecodingSnapshot#OP_SEARCH}.
+	 * @param arg
+	 *            Pinyin length for searching, position for deleting,
+	 *            candidate id for choosing, or the letter to add.
+	 * @param is_pos_in_splid
+	 * @param clear_fixed_this_step
+	 * @param candidatesNum
+	 *            the maximum number of candidates to put into the snapshot.
+	 * @return
+	 */
+	static synchronized DecodingSnapshot decode(int op, byte[] pyBuf, int arg,
+			boolean is_pos_in_splid, boolean clear_fixed_this_step,
+			int candidatesNum) {
+		DecodingSnapshot snapshot = new DecodingSnapshot();
+		int totalChoicesNum = 0;
+		if (DecodingSnapshot.OP_SEARCH == op) {
+			totalChoicesNum = nativeImSearch(pyBuf, arg);
+		} else if (DecodingSnapshot.OP_DEL_SEARCH == op) {
+			totalChoicesNum = nativeImDelSearch(arg, is_pos_in_splid,
+					clear_fixed_this_step);
+		} else if (DecodingSnapshot.OP_CHOOSE == op) {
+			totalChoicesNum = nativeImChoose(arg);
+		} else if (DecodingSnapshot.OP_ADD_LETTER == op) {
+			totalChoicesNum = nativeImAddLetter((byte) arg);
+		}
+		snapshot.mTotalChoicesNum = totalChoicesNum;
+		if (totalChoicesNum < 0) {
+			return snapshot;
+		}
+
+		snapshot.mSplStart = nativeImGetSplStart();
+		snapshot.mPyStr = nativeImGetPyStr(false);
+		snapshot.mDecodedLen = nativeImGetPyStrLen(true);
+		snapshot.mFullSent = nativeImGetChoice(0);
+		snapshot.mFixedLen = nativeImGetFixedLen();
+
+		if (candidatesNum > totalChoicesNum) {
+			candidatesNum = totalChoicesNum;
+		}
+		for (int i = 0; i < candidatesNum; i++) {
+			if (0 == i) {
+				// The full sentence is the first candidate, so reuse it.
+				snapshot.mCandidates.add(snapshot.mFullSent
+						.substring(snapshot.mFixedLen));
+			} else {
+				snapshot.mCandidates.add(nativeImGetChoice(i));
+			}
+		}
+		return snapshot;
+	}
+
 	/**
 	 * 初始化拼音引擎
+	 * 
+	 * @param context
+	 * @param usrDictFile
+	 *            用户词典的文件路径
+	 * @return
 	 */
-	private void initPinyinEngine() {
+	private static boolean initPinyinEngine(Context context, String usrDictFile) {
 		byte usr_dict[];
 		usr_dict = new byte[MAX_PATH_FILE_LENGTH];
 
 		// Here is how we open a built-in dictionary for access through
 		// a file descriptor...
 		// 获取词库 R.raw.dict_pinyin 的文件描述符
-		AssetFileDescriptor afd = getResources().openRawResourceFd(
+		AssetFileDescriptor afd = context.getResources().openRawResourceFd(
 				R.raw.dict_pinyin);
 		if (Environment.getInstance().needDebug()) {
 			Log.i("foo", "Dict: start=" + afd.getStartOffset() + ", length="
 					+ afd.getLength() + ", fd=" + afd.getParcelFileDescriptor());
 		}
-		if (getUsrDictFileName(usr_dict)) {
+		boolean ret = false;
+		if (getUsrDictFileName(usrDictFile, usr_dict)) {
+			// The system dictionary is mapped read-only at the offset of the
+			// resource, so PSS should grow by much less than its length.
+			// 系统词库以只读方式映射，PSS的增长应远小于词库长度
+			long startTime = 0;
+			long startPss = 0;
+			if (Environment.getInstance().needDebug()) {
+				startTime = SystemClock.elapsedRealtime();
+				startPss = Debug.getPss();
+			}
 			// JNI函数：打开解码器
-			inited = nativeImOpenDecoderFd(afd.getFileDescriptor(),
+			ret = nativeImOpenDecoderFd(afd.getFileDescriptor(),
 					afd.getStartOffset(), afd.getLength(), usr_dict);
+			if (Environment.getInstance().needDebug()) {
+				Log.i("foo", "Open decoder: ret=" + ret + ", time="
+						+ (SystemClock.elapsedRealtime() - startTime)
+						+ "ms, pss delta=" + (Debug.getPss() - startPss) + "kB");
+			}
 		}
 		try {
 			afd.close();
 		} catch (IOException e) {
 		}
+		return ret;
 	}
 
-	@Override
-	public void onCreate() {
-		super.onCreate();
-		// 获取用户词典"usr_dict.dat"的路径。"usr_dict.dat"放在file目录下。
-		// 猜测：调用getFileStreamPath("usr_dict.dat")，如果"usr_dict.dat"不存在，会调用openFileOutput（）创建该文件。
-		mUsr_dict_file = getFileStreamPath("usr_dict.dat").getPath();
+	/**
+	 * 获取用户词典"usr_dict.dat"的路径。"usr_dict.dat"放在file目录下。
+	 * 
+	 * @param context
+	 * @return
+	 */
+	static String getUsrDictPath(Context context) {
+		String usrDictFile = context.getFileStreamPath("usr_dict.dat")
+				.getPath();
 		// This is a hack to make sure our "files" directory has been
 		// created.
 		try {
-			openFileOutput("dummy", 0).close();
+			context.openFileOutput("dummy", 0).close();
 		} catch (FileNotFoundException e) {
 		} catch (IOException e) {
 		}
+		return usrDictFile;
+	}
+
+	/**
+	 * Open the decoding engine. The engine is a process-wide singleton in the
+	 * native library, so it is shared by the service and the in-process
+	 * decoder, and it is only opened by the first user. Every successful call
+	 * must be paired with one {@link #closeEngine()}.
+	 * 打开解码引擎。本地引擎在进程内只有一个，服务和进程内解码器共用，使用引用计数。
+	 * 
+	 * @param context
+	 * @return
+	 */
+	static synchronized boolean openEngine(Context context) {
+		if (mEngineRefCount > 0) {
+			mEngineRefCount++;
+			return true;
+		}
+		inited = initPinyinEngine(context, getUsrDictPath(context));
+		if (inited) {
+			mEngineRefCount++;
+		}
+		return inited;
+	}
+
+	/**
+	 * Close the decoding engine when its last user goes away. 关闭解码引擎
+	 */
+	static synchronized void closeEngine() {
+		if (mEngineRefCount <= 0) {
+			return;
+		}
+		if (--mEngineRefCount == 0) {
+			// JNI函数：关闭解码器
+			nativeImCloseDecoder();
+			inited = false;
+		}
+	}
+
+	private static ExecutorService getEngineExecutor() {
+		synchronized (mEngineExecutorLock) {
+			if (null == mEngineExecutor) {
+				mEngineExecutor = Executors.newSingleThreadExecutor();
+			}
+			return mEngineExecutor;
+		}
+	}
+
+	/**
+	 * Open the decoding engine in the background, see
+	 * {@link #openEngine(Context)}. When it is done, onReady is posted to
+	 * handler whether the engine is opened or not. If the result is true, the
+	 * future must be passed to {@link #closeEngineAsync(Future)} once.
+	 * 在后台线程打开解码引擎，完成后把onReady发送给handler。
+	 * 
+	 * @param context
+	 * @param handler
+	 *            can be null if onReady is null.
+	 * @param onReady
+	 * @return the readiness of the engine. 引擎是否就绪的Future
+	 */
+	static Future<Boolean> openEngineAsync(final Context context,
+			final Handler handler, final Runnable onReady) {
+		FutureTask<Boolean> task = new FutureTask<Boolean>(
+				new Callable<Boolean>() {
+					public Boolean call() {
+						return openEngine(context);
+					}
+				}) {
+			@Override
+			protected void done() {
+				// Posted after the result is set, so onReady sees it.
+				if (null != onReady) {
+					handler.post(onReady);
+				}
+			}
+		};
+		getEngineExecutor().execute(task);
+		return task;
+	}
+
+	/**
+	 * Release the reference taken by {@link #openEngineAsync}, after the open
+	 * is done. 在打开完成后，释放引擎的引用
+	 * 
+	 * @param engineFuture
+	 */
+	static void closeEngineAsync(final Future<Boolean> engineFuture) {
+		getEngineExecutor().execute(new Runnable() {
+			public void run() {
+				if (waitForEngine(engineFuture)) {
+					closeEngine();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Post onReady to handler once the open of the engine is done, whether
+	 * the engine is opened or not. 引擎打开完成后把onReady发送给handler
+	 * 
+	 * @param engineFuture
+	 * @param handler
+	 * @param onReady
+	 */
+	static void runWhenEngineDone(final Future<Boolean> engineFuture,
+			final Handler handler, final Runnable onReady) {
+		// The executor runs in order, so the open is done before this.
+		getEngineExecutor().execute(new Runnable() {
+			public void run() {
+				waitForEngine(engineFuture);
+				handler.post(onReady);
+			}
+		});
+	}
+
+	/**
+	 * Wait until the open of the engine is done. Never call it on the main
+	 * thread. 等待引擎打开完成，不要在主线程调用。
+	 * 
+	 * @param engineFuture
+	 * @return whether the engine is opened.
+	 */
+	static boolean waitForEngine(Future<Boolean> engineFuture) {
+		if (null == engineFuture) {
+			return false;
+		}
+		try {
+			return engineFuture.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e("PinyinDecoderService", "Failed to open the engine",
+					e.getCause());
+		}
+		return false;
+	}
 
-		initPinyinEngine();
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		// The directory of the user dictionary is created when the engine is
+		// opened, see getUsrDictPath().
+		mUsr_dict_file = getFileStreamPath("usr_dict.dat").getPath();
+		mEngineFuture = openEngineAsync(this, null, null);
 	}
 
 	@Override
 	public void onDestroy() {
-		// JNI函数：关闭解码器
-		nativeImCloseDecoder();
-		inited = false;
+		if (null != mEngineFuture) {
+			closeEngineAsync(mEngineFuture);
+			mEngineFuture = null;
+		}
 		super.onDestroy();
 	}
 
 	/**
 	 * 给外部调用的接口
 	 */
-	private final IPinyinDecoderService.Stub mBinder = new IPinyinDecoderService.Stub() {
+	private final DecoderBinder mBinder = new DecoderBinder();
+
+	/**
+	 * The binder of the service. A client in the service's process gets this
+	 * object itself from onServiceConnected(), and its calls do not go through
+	 * onTransact(), so such a client must not call it before
+	 * {@link #getEngineFuture()} is done.
+	 * 服务的binder。同一进程的客户端直接调用本对象，不经过onTransact()，
+	 * 所以要等getEngineFuture()完成后才能调用。
+	 */
+	class DecoderBinder extends IPinyinDecoderService.Stub {
+
+		/**
+		 * @return the service's open of the engine, or null after the service
+		 *         is destroyed. 该服务打开引擎的Future
+		 */
+		Future<Boolean> getEngineFuture() {
+			return mEngineFuture;
+		}
+
+		/**
+		 * Every call from another process reaches the engine, so wait until
+		 * it is opened. This blocks a binder thread instead of the main thread
+		 * of the service.
+		 * 所有远程调用都要用到引擎，在binder线程中等待引擎打开完成。
+		 */
+		@Override
+		public boolean onTransact(int code, Parcel data, Parcel reply,
+				int flags) throws RemoteException {
+			waitForEngine(mEngineFuture);
+			return super.onTransact(code, data, reply, flags);
+		}
 
 		/**
 		 * 返回12345
@@ -403,9 +783,7 @@ public class PinyinDecoderService extends Service {
 		}
 
 		/**
-		 * 增加字母。
-		 * 
-		 * @备注 目前没有使用。
+		 * 增加字母并查询。
 		 */
 		public int imAddLetter(byte ch) {
 			return nativeImAddLetter(ch);
@@ -492,6 +870,16 @@ public class PinyinDecoderService extends Service {
 			return nativeImGetFixedLen();
 		}
 
+		/**
+		 * 执行查询、删除查询或者选择候选词，并一次性返回解码后的状态和前candidatesNum个候选词。
+		 */
+		public DecodingSnapshot imDecode(int op, byte[] pyBuf, int arg,
+				boolean is_pos_in_splid, boolean clear_fixed_this_step,
+				int candidatesNum) {
+			return decode(op, pyBuf, arg, is_pos_in_splid,
+					clear_fixed_this_step, candidatesNum);
+		}
+
 		/**
 		 * 取消输入
 		 * 
@@ -535,6 +923,46 @@ public class PinyinDecoderService extends Service {
 			return predictList;
 		}
 
+		/**
+		 * Import lemmas from the file into the user dictionary. Decoding, in
+		 * the service or in the IME's process, goes on while the file is
+		 * read. 从文件导入用户词典，读文件时解码不用等待
+		 */
+		public int importUserDict(ParcelFileDescriptor pfd,
+				IUserDictTransferListener listener) {
+			// The engine is used without its lock during the transfer, so
+			// hold a reference of it until the end.
+			if (!openEngine(PinyinDecoderService.this)) {
+				closeQuietly(pfd);
+				return -1;
+			}
+			try {
+				return nativeImImportUserDict(pfd.getFileDescriptor(),
+						wrapListener(listener));
+			} finally {
+				closeEngine();
+				closeQuietly(pfd);
+			}
+		}
+
+		/**
+		 * 把用户词典导出到文件
+		 */
+		public int exportUserDict(ParcelFileDescriptor pfd,
+				IUserDictTransferListener listener) {
+			if (!openEngine(PinyinDecoderService.this)) {
+				closeQuietly(pfd);
+				return -1;
+			}
+			try {
+				return nativeImExportUserDict(pfd.getFileDescriptor(),
+						wrapListener(listener));
+			} finally {
+				closeEngine();
+				closeQuietly(pfd);
+			}
+		}
+
 		/**
 		 * 同步到用户词典，猜测：是不是记住用户的常用词。
 		 * 
@@ -627,7 +1055,33 @@ public class PinyinDecoderService extends Service {
 		public int imSyncGetCapacity() {
 			return nativeSyncGetCapacity();
 		}
-	};
+	}
+
+	/**
+	 * Pass the progress of a transfer on to the remote listener. 把进度转给远程的监听者
+	 */
+	private static TransferListener wrapListener(
+			final IUserDictTransferListener listener) {
+		if (null == listener) {
+			return null;
+		}
+		return new TransferListener() {
+			public void onProgress(int lemmas, long bytes) {
+				try {
+					listener.onProgress(lemmas, bytes);
+				} catch (RemoteException e) {
+					// The caller is gone, finish the transfer anyway.
+				}
+			}
+		};
+	}
+
+	private static void closeQuietly(ParcelFileDescriptor pfd) {
+		try {
+			pfd.close();
+		} catch (IOException e) {
+		}
+	}
 
 	@Override
 	public IBinder onBind(Intent intent) {
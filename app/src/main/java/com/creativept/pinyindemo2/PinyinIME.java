@@ -28,6 +28,7 @@ import android.inputmethodservice.InputMethodService;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.GestureDetector;
@@ -48,7 +49,7 @@ import android.widget.PopupWindow;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
+import java.util.concurrent.Future;
 
 /**
  * Main class of the Pinyin input method. 输入法服务
@@ -65,6 +66,15 @@ public class PinyinIME extends InputMethodService {
 	 */
 	private static final boolean SIMULATE_KEY_DELETE = true;
 
+	/**
+	 * If it is true, the decoding engine is opened in the IME's own process and
+	 * called directly, otherwise IME binds {@link PinyinDecoderService} and
+	 * decodes through its binder interface. The service is still available to
+	 * other clients like the IME syncer in either case.
+	 * 是否在输入法进程内直接使用解码引擎，而不是绑定远程服务。
+	 */
+	private static final boolean USE_IN_PROCESS_DECODER = true;
+
 	/**
 	 * Necessary environment configurations like screen size for this IME.
 	 * 该对象保存了布局的一些尺寸，它的类是单例模式。
@@ -213,8 +223,8 @@ public class PinyinIME extends InputMethodService {
 			Log.d(TAG, "onDestroy.");
 		}
 
-		// 解绑定词库解码远程服务PinyinDecoderService
-		unbindService(mPinyinDecoderServiceConnection);
+		// 关闭解码引擎，解绑定词库解码远程服务PinyinDecoderService
+		stopPinyinDecoderService();
 
 		// 释放设置类的引用
 		Settings.releaseInstance();
@@ -280,13 +290,22 @@ public class PinyinIME extends InputMethodService {
 	}
 
 	/**
-	 * 按键处理函数
+	 * 按键处理函数，并记录耗时。
 	 * 
 	 * @param event
 	 * @param realAction
 	 * @return
 	 */
 	private boolean processKey(KeyEvent event, boolean realAction) {
+		long start = LatencyStats.start();
+		try {
+			return processKeyImpl(event, realAction);
+		} finally {
+			LatencyStats.end(LatencyStats.PROCESS_KEY, start);
+		}
+	}
+
+	private boolean processKeyImpl(KeyEvent event, boolean realAction) {
 		if (ImeState.STATE_BYPASS == mImeState)
 			return false;
 
@@ -1179,28 +1198,109 @@ public class PinyinIME extends InputMethodService {
 	}
 
 	/**
-	 * 绑定词库解码远程服务PinyinDecoderService
+	 * 打开解码引擎。如果 USE_IN_PROCESS_DECODER 为true，就在本进程内直接打开引擎，否则绑定词库解码远程服务PinyinDecoderService。
+	 * The engine is opened in the background, keys typed in the meantime are
+	 * buffered by {@link DecodingInfo} until {@link #onDecoderReady()}.
 	 * 
 	 * @return
 	 */
 	private boolean startPinyinDecoderService() {
-		if (null == mDecInfo.mIPinyinDecoderService) {
-			Intent serviceIntent = new Intent();
-			serviceIntent.setClass(this, PinyinDecoderService.class);
+		if (null == mDecInfo.mPinyinDecoder) {
+			if (USE_IN_PROCESS_DECODER) {
+				mDecInfo.mPinyinDecoder = new LocalPinyinDecoder(this,
+						mLocalDecoderOpened);
+				return true;
+			}
+			return bindPinyinDecoderService();
+		}
+		return true;
+	}
+
+	/**
+	 * 绑定词库解码远程服务PinyinDecoderService
+	 * 
+	 * @return
+	 */
+	private boolean bindPinyinDecoderService() {
+		Intent serviceIntent = new Intent();
+		serviceIntent.setClass(this, PinyinDecoderService.class);
+
+		if (null == mPinyinDecoderServiceConnection) {
+			mPinyinDecoderServiceConnection = new PinyinDecoderServiceConnection();
+		}
+
+		// Bind service
+		if (bindService(serviceIntent, mPinyinDecoderServiceConnection,
+				Context.BIND_AUTO_CREATE)) {
+			return true;
+		} else {
+			return false;
+		}
+	}
 
-			if (null == mPinyinDecoderServiceConnection) {
-				mPinyinDecoderServiceConnection = new PinyinDecoderServiceConnection();
+	/**
+	 * Run when the in-process engine is opened or failed to open.
+	 * 进程内引擎打开完成后运行，失败时绑定远程服务。
+	 */
+	private final Runnable mLocalDecoderOpened = new Runnable() {
+		public void run() {
+			PinyinDecoder decoder = mDecInfo.mPinyinDecoder;
+			if (!(decoder instanceof LocalPinyinDecoder)) {
+				// Stopped in the meantime.
+				return;
+			}
+			if (decoder.isReady()) {
+				onDecoderReady();
+				return;
 			}
+			Log.w(TAG, "In-process decoder failed, bind the service.");
+			decoder.close();
+			mDecInfo.mPinyinDecoder = null;
+			bindPinyinDecoderService();
+		}
+	};
 
-			// Bind service
-			if (bindService(serviceIntent, mPinyinDecoderServiceConnection,
-					Context.BIND_AUTO_CREATE)) {
-				return true;
+	/**
+	 * Run when the engine of the service in this process is opened or failed
+	 * to open. 同一进程的服务打开引擎完成后运行
+	 */
+	private final Runnable mRemoteDecoderOpened = new Runnable() {
+		public void run() {
+			PinyinDecoder decoder = mDecInfo.mPinyinDecoder;
+			if (!(decoder instanceof RemotePinyinDecoder)) {
+				// Stopped in the meantime.
+				return;
+			}
+			if (decoder.isReady()) {
+				onDecoderReady();
 			} else {
-				return false;
+				Log.e(TAG, "The decoding service failed to open its engine.");
 			}
 		}
-		return true;
+	};
+
+	/**
+	 * The decoder can be used now. Search the keys typed before, if any.
+	 * 解码器就绪，对之前缓存的按键进行查询。
+	 */
+	private void onDecoderReady() {
+		if (mDecInfo.replayPendingSearch()) {
+			chooseAndUpdate(-1);
+		}
+	}
+
+	/**
+	 * 关闭解码引擎，解绑定词库解码远程服务PinyinDecoderService
+	 */
+	private void stopPinyinDecoderService() {
+		if (null != mDecInfo.mPinyinDecoder) {
+			mDecInfo.mPinyinDecoder.close();
+			mDecInfo.mPinyinDecoder = null;
+		}
+		if (null != mPinyinDecoderServiceConnection) {
+			unbindService(mPinyinDecoderServiceConnection);
+			mPinyinDecoderServiceConnection = null;
+		}
 	}
 
 	@Override
@@ -1886,8 +1986,22 @@ public class PinyinIME extends InputMethodService {
 	 */
 	public class PinyinDecoderServiceConnection implements ServiceConnection {
 		public void onServiceConnected(ComponentName name, IBinder service) {
-			mDecInfo.mIPinyinDecoderService = IPinyinDecoderService.Stub
-					.asInterface(service);
+			// A binder in this process is called directly, so the engine
+			// must be opened before it is used.
+			Future<Boolean> engineFuture = null;
+			if (service instanceof PinyinDecoderService.DecoderBinder) {
+				engineFuture = ((PinyinDecoderService.DecoderBinder) service)
+						.getEngineFuture();
+			}
+			mDecInfo.mPinyinDecoder = new RemotePinyinDecoder(
+					IPinyinDecoderService.Stub.asInterface(service),
+					engineFuture);
+			if (mDecInfo.mPinyinDecoder.isReady()) {
+				onDecoderReady();
+			} else if (null != engineFuture) {
+				PinyinDecoderService.runWhenEngineDone(engineFuture,
+						new Handler(), mRemoteDecoderOpened);
+			}
 		}
 
 		public void onServiceDisconnected(ComponentName name) {
@@ -1985,9 +2099,10 @@ public class PinyinIME extends InputMethodService {
 		private int mCursorPos;
 
 		/**
-		 * Remote Pinyin-to-Hanzi decoding engine service. 解码引擎远程服务
+		 * Pinyin-to-Hanzi decoding engine, either in-process or through the
+		 * remote service. 解码引擎后端，进程内或者远程服务
 		 */
-		private IPinyinDecoderService mIPinyinDecoderService;
+		private PinyinDecoder mPinyinDecoder;
 
 		/**
 		 * The complication information suggested by application. 应用的并发建议信息
@@ -2004,17 +2119,17 @@ public class PinyinIME extends InputMethodService {
 		/**
 		 * Candidate list. The first one is the full-sentence candidate. 候选词列表
 		 */
-		public List<String> mCandidatesList = new Vector<String>();
+		public CandidateBuffer mCandidatesList = new CandidateBuffer();
 
 		/**
 		 * Element i stores the starting position of page i. 页的开始位置
 		 */
-		public Vector<Integer> mPageStart = new Vector<Integer>();
+		public IntArray mPageStart = new IntArray();
 
 		/**
 		 * Element i stores the number of characters to page i. 每一页的数量
 		 */
-		public Vector<Integer> mCnToPage = new Vector<Integer>();
+		public IntArray mCnToPage = new IntArray();
 
 		/**
 		 * The position to delete in Pinyin string. If it is less than 0, IME
@@ -2032,6 +2147,40 @@ public class PinyinIME extends InputMethodService {
 		 */
 		public boolean mIsPosInSpl;
 
+		/**
+		 * Whether the keys in {@link #mSurface} were typed before the decoder
+		 * was ready, and have not been searched yet. 引擎就绪前输入的拼音是否还没有查询
+		 */
+		private boolean mSearchPending;
+
+		/**
+		 * Whether {@link #mSurface} is the Pinyin string kept by the engine,
+		 * apart from {@link #mAppendedLetter}. mSurface和引擎保存的拼音字符串是否一致
+		 */
+		private boolean mSurfaceSynced;
+
+		/**
+		 * The letter typed at the end of a synced {@link #mSurface} since the
+		 * last decoding, or 0. The engine only needs this letter to search the
+		 * new string. 上次解码后在末尾输入的字母，没有则为0
+		 */
+		private char mAppendedLetter;
+
+		/**
+		 * Uptime of the first key typed after the IME is created, or -1 once
+		 * its candidates are shown. 输入法创建后第一个按键的时间
+		 */
+		private long mFirstKeyTime = -1;
+
+		/**
+		 * Milliseconds from the first key typed after the IME is created to
+		 * its first candidates, including the wait for the engine to open, or
+		 * -1 if there have been no candidates yet. It is recorded in
+		 * {@link LatencyStats#TIME_TO_FIRST_CANDIDATE}.
+		 * 从第一个按键到第一次出现候选词的时间
+		 */
+		private long mTimeToFirstCandidate = -1;
+
 		public DecodingInfo() {
 			mSurface = new StringBuffer();
 			mSurfaceDecodedLen = 0;
@@ -2051,10 +2200,43 @@ public class PinyinIME extends InputMethodService {
 			mComposingStrDisplay = "";
 			mActiveCmpsLen = 0;
 			mActiveCmpsDisplayLen = 0;
+			mSearchPending = false;
+			mSurfaceSynced = false;
+			mAppendedLetter = 0;
 
 			resetCandidates();
 		}
 
+		/**
+		 * Whether the decoder can be used. 解码器是否就绪
+		 * 
+		 * @return
+		 */
+		public boolean isDecoderReady() {
+			return null != mPinyinDecoder && mPinyinDecoder.isReady();
+		}
+
+		/**
+		 * Prepare to search the keys typed before the decoder was ready. The
+		 * whole Pinyin string is then searched at once by
+		 * {@link #chooseDecodingCandidate(int)}. 准备一次性查询引擎就绪前输入的拼音
+		 * 
+		 * @return false if there is nothing to search.
+		 */
+		public boolean replayPendingSearch() {
+			if (!mSearchPending || !isDecoderReady()) {
+				return false;
+			}
+			mSearchPending = false;
+			mSurfaceSynced = false;
+			mAppendedLetter = 0;
+			try {
+				mPinyinDecoder.imResetSearch();
+			} catch (RemoteException e) {
+			}
+			return true;
+		}
+
 		/**
 		 * 候选词列表是否为空
 		 * 
@@ -2087,11 +2269,30 @@ public class PinyinIME extends InputMethodService {
 				mSurface.delete(0, mSurface.length());
 				mSurfaceDecodedLen = 0;
 				mCursorPos = 0;
-				try {
-					mIPinyinDecoderService.imResetSearch();
-				} catch (RemoteException e) {
+				mSurfaceSynced = false;
+				mAppendedLetter = 0;
+				if (isDecoderReady()) {
+					try {
+						mPinyinDecoder.imResetSearch();
+						mSurfaceSynced = true;
+					} catch (RemoteException e) {
+					}
 				}
 			}
+			if (mFirstKeyTime < 0 && mTimeToFirstCandidate < 0) {
+				mFirstKeyTime = SystemClock.uptimeMillis();
+			}
+			// Only one letter typed at the end can be added to the engine's
+			// string, anything else needs a new search.
+			// 只有在末尾输入的一个字母可以增量查询，其它情况重新查询整个字符串。
+			if (mSurfaceSynced && 0 == mAppendedLetter
+					&& mCursorPos == mSurface.length()
+					&& ((ch >= 'a' && ch <= 'z') || ch == '\'')) {
+				mAppendedLetter = ch;
+			} else {
+				mSurfaceSynced = false;
+				mAppendedLetter = 0;
+			}
 			mSurface.insert(mCursorPos, ch);
 			mCursorPos++;
 		}
@@ -2295,53 +2496,129 @@ public class PinyinIME extends InputMethodService {
 		 * @param candId
 		 */
 		private void chooseDecodingCandidate(int candId) {
+			long start = LatencyStats.start();
+			chooseDecodingCandidateImpl(candId);
+			LatencyStats.end(LatencyStats.CHOOSE_CANDIDATE, start);
+		}
+
+		private void chooseDecodingCandidateImpl(int candId) {
 			if (mImeState != ImeState.STATE_PREDICT) {
+				if (!isDecoderReady()) {
+					updateDecInfoForPending();
+					return;
+				}
 				resetCandidates();
-				int totalChoicesNum = 0;
+				DecodingSnapshot snapshot = null;
 				try {
 					if (candId < 0) {
 						//输入的长度
 						if (length() == 0) {
-							totalChoicesNum = 0;
+							snapshot = mPinyinDecoder.imDecode(
+									DecodingSnapshot.OP_NONE, null, 0, false,
+									false, 0);
 						} else {
-							if (mPyBuf == null)
-								mPyBuf = new byte[PY_STRING_MAX];
-							for (int i = 0; i < length(); i++)
-								mPyBuf[i] = (byte) charAt(i);
-							mPyBuf[length()] = 0;
+							if (mPosDelSpl < 0 && 0 != mAppendedLetter) {
+								// 只把新输入的字母交给引擎
+								snapshot = mPinyinDecoder.imDecode(
+										DecodingSnapshot.OP_ADD_LETTER, null,
+										mAppendedLetter, false, false,
+										MAX_PAGE_SIZE_DISPLAY);
+							} else if (mPosDelSpl < 0) {
+								if (mPyBuf == null)
+									mPyBuf = new byte[PY_STRING_MAX];
+								for (int i = 0; i < length(); i++)
+									mPyBuf[i] = (byte) charAt(i);
+								mPyBuf[length()] = 0;
 
-							if (mPosDelSpl < 0) {
 								//查询候选词
-								totalChoicesNum = mIPinyinDecoderService
-										.imSearch(mPyBuf, length());
+								snapshot = mPinyinDecoder.imDecode(
+										DecodingSnapshot.OP_SEARCH, mPyBuf,
+										length(), false, false,
+										MAX_PAGE_SIZE_DISPLAY);
 							} else {
 								boolean clear_fixed_this_step = true;
 								if (ImeState.STATE_COMPOSING == mImeState) {
 									clear_fixed_this_step = false;
 								}
-								totalChoicesNum = mIPinyinDecoderService
-										.imDelSearch(mPosDelSpl, mIsPosInSpl,
-												clear_fixed_this_step);
+								snapshot = mPinyinDecoder.imDecode(
+										DecodingSnapshot.OP_DEL_SEARCH, null,
+										mPosDelSpl, mIsPosInSpl,
+										clear_fixed_this_step,
+										MAX_PAGE_SIZE_DISPLAY);
 								mPosDelSpl = -1;
 							}
 						}
 					} else {
-						totalChoicesNum = mIPinyinDecoderService
-								.imChoose(candId);
+						snapshot = mPinyinDecoder.imDecode(
+								DecodingSnapshot.OP_CHOOSE, null, candId,
+								false, false, MAX_PAGE_SIZE_DISPLAY);
 					}
 				} catch (RemoteException e) {
+					Log.w(TAG, "PinyinDecoderService died", e);
+				}
+				mAppendedLetter = 0;
+				// mSurface is replaced by the engine's string below.
+				mSurfaceSynced = null != snapshot
+						&& snapshot.mTotalChoicesNum >= 0;
+				updateDecInfoForSearch(snapshot);
+
+				if (mFirstKeyTime >= 0 && mTotalChoicesNum > 0) {
+					mTimeToFirstCandidate = SystemClock.uptimeMillis()
+							- mFirstKeyTime;
+					mFirstKeyTime = -1;
+					LatencyStats.record(LatencyStats.TIME_TO_FIRST_CANDIDATE,
+							mTimeToFirstCandidate * 1000);
+					if (mEnvironment.needDebug()) {
+						Log.d(TAG, "Time to first candidate: "
+								+ mTimeToFirstCandidate + "ms");
+					}
 				}
-				updateDecInfoForSearch(totalChoicesNum);
 			}
 		}
 
 		/**
-		 * 更新查询词库后的信息
+		 * Keep the typed keys until the decoder is ready, and show them
+		 * without candidates as one spelling. Deleting a key only changes
+		 * {@link #mSurface}, and nothing can be chosen.
+		 * 引擎就绪前只缓存输入的拼音，显示为一个没有候选词的拼写。
+		 */
+		private void updateDecInfoForPending() {
+			resetCandidates();
+			if (mPosDelSpl >= 0) {
+				// Nothing is fixed, so it is a position in mSurface.
+				if (mPosDelSpl < mSurface.length()) {
+					mSurface.deleteCharAt(mPosDelSpl);
+				}
+				mPosDelSpl = -1;
+			}
+			if (mCursorPos > mSurface.length())
+				mCursorPos = mSurface.length();
+			mSearchPending = mSurface.length() > 0;
+			mSurfaceSynced = false;
+			mAppendedLetter = 0;
+
+			mSurfaceDecodedLen = mSurface.length();
+			mFullSent = "";
+			mFixedLen = 0;
+			mSplStart = new int[] { 1, 0, mSurface.length() };
+			mComposingStr = mSurface.toString();
+			mActiveCmpsLen = mComposingStr.length();
+			mComposingStrDisplay = mComposingStr;
+			mActiveCmpsDisplayLen = mComposingStr.length();
+			mFinishSelection = false;
+		}
+
+		/**
+		 * 更新查询词库后的信息。所有的信息都来自同一次解码调用返回的快照。
 		 * 
-		 * @param totalChoicesNum
+		 * @param snapshot
 		 */
-		private void updateDecInfoForSearch(int totalChoicesNum) {
-			mTotalChoicesNum = totalChoicesNum;
+		private void updateDecInfoForSearch(DecodingSnapshot snapshot) {
+			if (null == snapshot) {
+				mTotalChoicesNum = 0;
+				return;
+			}
+			mTotalChoicesNum = snapshot.mTotalChoicesNum;
 			if (mTotalChoicesNum < 0) {
 				mTotalChoicesNum = 0;
 				return;
@@ -2350,15 +2627,15 @@ public class PinyinIME extends InputMethodService {
 			try {
 				String pyStr;
 
-				mSplStart = mIPinyinDecoderService.imGetSplStart();
+				mSplStart = snapshot.mSplStart;
 				// 获取拼音字符串
-				pyStr = mIPinyinDecoderService.imGetPyStr(false);
-				mSurfaceDecodedLen = mIPinyinDecoderService.imGetPyStrLen(true);
+				pyStr = snapshot.mPyStr;
+				mSurfaceDecodedLen = snapshot.mDecodedLen;
 				assert (mSurfaceDecodedLen <= pyStr.length());
 				//获取第一个候选词
-				mFullSent = mIPinyinDecoderService.imGetChoice(0);
+				mFullSent = snapshot.mFullSent;
 				//获取固定字符的长度
-				mFixedLen = mIPinyinDecoderService.imGetFixedLen();
+				mFixedLen = snapshot.mFixedLen;
 
 				// Update the surface string to the one kept by engine.
 				mSurface.replace(0, mSurface.length(), pyStr);
@@ -2399,8 +2676,12 @@ public class PinyinIME extends InputMethodService {
 				} else {
 					mFinishSelection = false;
 				}
-			} catch (RemoteException e) {
-				Log.w(TAG, "PinyinDecoderService died", e);
+
+				// The first candidates came with the snapshot, so page 0 does
+				// not need another call to the service.
+				if (!mFinishSelection) {
+					mCandidatesList.addAll(snapshot.mCandidates);
+				}
 			} catch (Exception e) {
 				mTotalChoicesNum = 0;
 				mComposingStr = "";
@@ -2431,6 +2712,8 @@ public class PinyinIME extends InputMethodService {
 
 			mSurface.replace(0, mSurface.length(), "");
 			mCursorPos = 0;
+			mSurfaceSynced = false;
+			mAppendedLetter = 0;
 			mFullSent = tmp;
 			mFixedLen = tmp.length();
 			mComposingStr = mFullSent;
@@ -2455,9 +2738,9 @@ public class PinyinIME extends InputMethodService {
 		}
 
 		/**
-		 * 从缓存中获取一页的候选词，然后放进mCandidatesList中。三种不同的获取方式：1、mIPinyinDecoderService.
-		 * imGetChoiceList
-		 * （）；2、mIPinyinDecoderService.imGetPredictList；3、从mAppCompletions[]取。
+		 * 从缓存中获取一页的候选词，然后放进mCandidatesList中。三种不同的获取方式：1、mPinyinDecoder.
+		 * imGetChoiceBuffer
+		 * （）；2、mPinyinDecoder.imGetPredictList；3、从mAppCompletions[]取。
 		 */
 		private void getCandiagtesForCache() {
 			int fetchStart = mCandidatesList.size();
@@ -2465,15 +2748,20 @@ public class PinyinIME extends InputMethodService {
 			if (fetchSize > MAX_PAGE_SIZE_DISPLAY) {
 				fetchSize = MAX_PAGE_SIZE_DISPLAY;
 			}
+			if (fetchSize <= 0) {
+				return;
+			}
 			try {
 				List<String> newList = null;
 				if (ImeState.STATE_INPUT == mImeState
 						|| ImeState.STATE_IDLE == mImeState
 						|| ImeState.STATE_COMPOSING == mImeState) {
-					newList = mIPinyinDecoderService.imGetChoiceList(
-							fetchStart, fetchSize, mFixedLen);
+					// Decoding candidates go into the buffer directly.
+					mPinyinDecoder.imGetChoiceBuffer(fetchStart, fetchSize,
+							mFixedLen, mCandidatesList);
+					return;
 				} else if (ImeState.STATE_PREDICT == mImeState) {
-					newList = mIPinyinDecoderService.imGetPredictList(
+					newList = mPinyinDecoder.imGetPredictList(
 							fetchStart, fetchSize);
 				} else if (ImeState.STATE_APP_COMPLETION == mImeState) {
 					newList = new ArrayList<String>();
@@ -2520,6 +2808,13 @@ public class PinyinIME extends InputMethodService {
 		 * @return
 		 */
 		public boolean preparePage(int pageNo) {
+			long start = LatencyStats.start();
+			boolean prepared = preparePageImpl(pageNo);
+			LatencyStats.end(LatencyStats.PREPARE_PAGE, start);
+			return prepared;
+		}
+
+		private boolean preparePageImpl(int pageNo) {
 			// If the page number is less than 0, return false
 			if (pageNo < 0)
 				return false;
@@ -2535,7 +2830,7 @@ public class PinyinIME extends InputMethodService {
 			}
 
 			// If cached items is enough for page pageNo.
-			if (mCandidatesList.size() - mPageStart.elementAt(pageNo) >= MAX_PAGE_SIZE_DISPLAY) {
+			if (mCandidatesList.size() - mPageStart.get(pageNo) >= MAX_PAGE_SIZE_DISPLAY) {
 				return true;
 			}
 
@@ -2544,7 +2839,7 @@ public class PinyinIME extends InputMethodService {
 
 			// Try to find if there are available new items to display.
 			// If no new item, return false;
-			if (mPageStart.elementAt(pageNo) >= mCandidatesList.size()) {
+			if (mPageStart.get(pageNo) >= mCandidatesList.size()) {
 				return false;
 			}
 
@@ -2566,9 +2861,9 @@ public class PinyinIME extends InputMethodService {
 			if (Settings.getPrediction()) {
 				String preEdit = history.toString();
 				int predictNum = 0;
-				if (null != preEdit) {
+				if (null != preEdit && isDecoderReady()) {
 					try {
-						mTotalChoicesNum = mIPinyinDecoderService
+						mTotalChoicesNum = mPinyinDecoder
 								.imGetPredictsNum(preEdit);
 					} catch (RemoteException e) {
 						return;
@@ -2603,8 +2898,8 @@ public class PinyinIME extends InputMethodService {
 		public int getCurrentPageSize(int currentPage) {
 			if (mPageStart.size() <= currentPage + 1)
 				return 0;
-			return mPageStart.elementAt(currentPage + 1)
-					- mPageStart.elementAt(currentPage);
+			return mPageStart.get(currentPage + 1)
+					- mPageStart.get(currentPage);
 		}
 
 		/**
@@ -2616,7 +2911,7 @@ public class PinyinIME extends InputMethodService {
 		public int getCurrentPageStart(int currentPage) {
 			if (mPageStart.size() < currentPage + 1)
 				return mTotalChoicesNum;
-			return mPageStart.elementAt(currentPage);
+			return mPageStart.get(currentPage);
 		}
 
 		/**
@@ -2628,7 +2923,7 @@ public class PinyinIME extends InputMethodService {
 		public boolean pageForwardable(int currentPage) {
 			if (mPageStart.size() <= currentPage + 1)
 				return false;
-			if (mPageStart.elementAt(currentPage + 1) >= mTotalChoicesNum) {
+			if (mPageStart.get(currentPage + 1) >= mTotalChoicesNum) {
 				return false;
 			}
 			return true;
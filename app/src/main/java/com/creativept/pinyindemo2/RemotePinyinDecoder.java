@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import android.os.RemoteException;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Decoding backend which goes through the binder interface of
+ * {@link PinyinDecoderService}. 通过远程服务调用的解码后端。
+ * 
+ * The latency of each call is recorded in {@link LatencyStats}.
+ * 
+ * @ClassName RemotePinyinDecoder
+ */
+public class RemotePinyinDecoder implements PinyinDecoder {
+	private IPinyinDecoderService mService;
+
+	/**
+	 * The service's open of the engine if the service is in this process,
+	 * otherwise null. 服务在本进程时为其打开引擎的Future，否则为null
+	 */
+	private Future<Boolean> mEngineFuture;
+
+	/**
+	 * @param service
+	 * @param engineFuture
+	 *            the service's open of the engine if its binder is in this
+	 *            process, see {@link PinyinDecoderService.DecoderBinder}.
+	 *            Null for a service in another process, which waits for its
+	 *            engine before it handles a call.
+	 */
+	public RemotePinyinDecoder(IPinyinDecoderService service,
+			Future<Boolean> engineFuture) {
+		mService = service;
+		mEngineFuture = engineFuture;
+	}
+
+	/**
+	 * A call to a binder in this process does not wait for the engine, so it
+	 * is not ready until the service's open is done and succeeded.
+	 * 同一进程的binder调用不会等待引擎，要等服务打开引擎成功后才就绪。
+	 */
+	public boolean isReady() {
+		return null == mEngineFuture || (mEngineFuture.isDone()
+				&& PinyinDecoderService.waitForEngine(mEngineFuture));
+	}
+
+	public void imResetSearch() throws RemoteException {
+		long start = LatencyStats.start();
+		try {
+			mService.imResetSearch();
+		} finally {
+			LatencyStats.end(LatencyStats.DECODER_RESET_SEARCH, start);
+		}
+	}
+
+	public DecodingSnapshot imDecode(int op, byte[] pyBuf, int arg,
+			boolean is_pos_in_splid, boolean clear_fixed_this_step,
+			int candidatesNum) throws RemoteException {
+		long start = LatencyStats.start();
+		try {
+			return mService.imDecode(op, pyBuf, arg, is_pos_in_splid,
+					clear_fixed_this_step, candidatesNum);
+		} finally {
+			LatencyStats.end(LatencyStats.DECODER_DECODE, start);
+		}
+	}
+
+	public List<String> imGetChoiceList(int choicesStart, int choicesNum,
+			int sentFixedLen) throws RemoteException {
+		long start = LatencyStats.start();
+		try {
+			return mService.imGetChoiceList(choicesStart, choicesNum,
+					sentFixedLen);
+		} finally {
+			LatencyStats.end(LatencyStats.DECODER_GET_CHOICES, start);
+		}
+	}
+
+	public int imGetChoiceBuffer(int choicesStart, int choicesNum,
+			int sentFixedLen, CandidateBuffer buffer) throws RemoteException {
+		// A direct buffer cannot cross the binder, so copy the list.
+		List<String> choiceList = imGetChoiceList(choicesStart, choicesNum,
+				sentFixedLen);
+		buffer.addAll(choiceList);
+		return choiceList.size();
+	}
+
+	public int imGetPredictsNum(String fixedStr) throws RemoteException {
+		long start = LatencyStats.start();
+		try {
+			return mService.imGetPredictsNum(fixedStr);
+		} finally {
+			LatencyStats.end(LatencyStats.DECODER_GET_PREDICTS_NUM, start);
+		}
+	}
+
+	public List<String> imGetPredictList(int predictsStart, int predictsNum)
+			throws RemoteException {
+		long start = LatencyStats.start();
+		try {
+			return mService.imGetPredictList(predictsStart, predictsNum);
+		} finally {
+			LatencyStats.end(LatencyStats.DECODER_GET_PREDICTS, start);
+		}
+	}
+
+	public void close() {
+		// The connection is owned by whoever bound the service.
+	}
+}
@@ -26,7 +26,12 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
+import android.util.Log;
+import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -44,6 +49,11 @@ public class SettingsActivity extends PreferenceActivity implements
 	private CheckBoxPreference mVibratePref;
 	private CheckBoxPreference mPredictionPref;
 
+	/**
+	 * The file the decoding latencies are dumped to. 解码耗时导出文件名
+	 */
+	private static final String LATENCY_FILE_NAME = "decode_latency.txt";
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -60,6 +70,16 @@ public class SettingsActivity extends PreferenceActivity implements
 
 		prefSet.setOnPreferenceChangeListener(this);
 
+		prefSet.findPreference(getString(R.string.setting_latency_key))
+				.setOnPreferenceClickListener(
+						new Preference.OnPreferenceClickListener() {
+							public boolean onPreferenceClick(
+									Preference preference) {
+								dumpLatency();
+								return true;
+							}
+						});
+
 		Settings.getInstance(PreferenceManager
 				.getDefaultSharedPreferences(getApplicationContext()));
 
@@ -105,6 +125,41 @@ public class SettingsActivity extends PreferenceActivity implements
 		mPredictionPref.setChecked(Settings.getPrediction());
 	}
 
+	/**
+	 * Write the decoding latencies of {@link LatencyStats} to the app's
+	 * external files directory, where adb can pull it, and to the log.
+	 * 把解码耗时导出到文件和日志
+	 */
+	private void dumpLatency() {
+		String dump = LatencyStats.dump();
+		Log.i(TAG, "Decoding latencies in microseconds:\n" + dump);
+
+		File dir = getExternalFilesDir(null);
+		if (null == dir) {
+			dir = getFilesDir();
+		}
+		File file = new File(dir, LATENCY_FILE_NAME);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			out.write(dump.getBytes("UTF-8"));
+			Toast.makeText(this,
+					getString(R.string.setting_latency_dumped, file.getPath()),
+					Toast.LENGTH_LONG).show();
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write " + file, e);
+			Toast.makeText(this, R.string.setting_latency_failed,
+					Toast.LENGTH_SHORT).show();
+		} finally {
+			if (null != out) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
 	/**
 	 * 设置PreferenceScreen
 	 * 
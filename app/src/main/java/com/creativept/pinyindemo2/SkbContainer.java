@@ -22,6 +22,7 @@ import android.inputmethodservice.InputMethodService;
 import android.os.Handler;
 import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.GestureDetector;
 import android.view.Gravity;
 import android.view.MotionEvent;
@@ -35,6 +36,8 @@ import android.widget.ViewFlipper;
  * The top container to host soft keyboard view(s). 软键盘View的集装箱，主持一个软件盘View。
  */
 public class SkbContainer extends RelativeLayout implements OnTouchListener {
+	private static final String TAG = "SkbContainer";
+
 	/**
 	 * For finger touch, user tends to press the bottom part of the target key,
 	 * or he/she even presses the area out of it, so it is necessary to make a
@@ -337,6 +340,17 @@ public class SkbContainer extends RelativeLayout implements OnTouchListener {
 		}
 		mMajorView.setBalloonHint(mBalloonOnKey, mBalloonPopup, false);
 		mMajorView.invalidate();
+
+		// Load the keyboards the user may switch to next in the background, so
+		// that the switch only lays out their keys.
+		skbPool.prefetchSoftKeyboards(mInputModeSwitcher.getNextSkbLayouts(),
+				screenWidth, skbHeight, mContext);
+		if (mEnvironment.needDebug()) {
+			Log.d(TAG, "Skb pool: hit " + skbPool.getHitCount() + ", miss "
+					+ skbPool.getMissCount() + ", prefetch hit "
+					+ skbPool.getPrefetchHitCount() + "/"
+					+ skbPool.getPrefetchCount());
+		}
 	}
 
 	/**
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of soft keyboards rendered with no key pressed, so that
+ * SoftKeyboardView only draws the pressed key on top of a bitmap. A layer is
+ * identified by the keyboard xml id, its size, the key text sizes and the
+ * state of its keys. Layers are evicted in least recently used order when
+ * their total size goes over the budget. It is only used from the UI thread.
+ * 软键盘图层缓存：保存没有按键按下时的软键盘图像，视图只需要在上面画按下的按键。超出内存预算时，淘汰最久没有使用的图层。
+ *
+ * @ClassName SkbLayerCache
+ */
+public class SkbLayerCache {
+	/**
+	 * The memory budget in bytes.
+	 */
+	private final long mBudget;
+
+	/**
+	 * Total bytes of the bitmaps in {@link #mLayers}.
+	 */
+	private long mSize;
+
+	private final LinkedHashMap<Key, Bitmap> mLayers = new LinkedHashMap<Key, Bitmap>(
+			16, 0.75f, true);
+
+	/**
+	 * The last evicted bitmap, used again by {@link #obtain(int, int)} if the
+	 * size matches. Switching between keyboards of the same size then does not
+	 * allocate. 最后一个被淘汰的位图，尺寸相同时可以重用。
+	 */
+	private Bitmap mSpare;
+
+	public SkbLayerCache(long budget) {
+		mBudget = budget;
+	}
+
+	/**
+	 * Get the layer for a key, and mark it as the most recently used.
+	 *
+	 * @return the layer, or null if it is not cached.
+	 */
+	public Bitmap get(Key key) {
+		return mLayers.get(key);
+	}
+
+	/**
+	 * Get a bitmap to render a layer of the given size into. Its content is
+	 * cleared.
+	 *
+	 * @return the bitmap, or null if such a layer does not fit in the budget.
+	 */
+	public Bitmap obtain(int width, int height) {
+		if (width <= 0 || height <= 0 || (long) width * height * 4 > mBudget) {
+			return null;
+		}
+		Bitmap bitmap = mSpare;
+		mSpare = null;
+		if (null != bitmap && bitmap.getWidth() == width
+				&& bitmap.getHeight() == height) {
+			bitmap.eraseColor(0);
+			return bitmap;
+		}
+		return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * Add a layer rendered into a bitmap from {@link #obtain(int, int)}, and
+	 * evict old layers until the cache fits in the budget. The key is copied.
+	 */
+	public void put(Key key, Bitmap bitmap) {
+		Bitmap old = mLayers.put(key.copy(), bitmap);
+		if (null != old) {
+			mSize -= old.getByteCount();
+		}
+		mSize += bitmap.getByteCount();
+
+		Iterator<Map.Entry<Key, Bitmap>> it = mLayers.entrySet().iterator();
+		while (mSize > mBudget && it.hasNext()) {
+			Bitmap evicted = it.next().getValue();
+			if (evicted == bitmap) {
+				continue;
+			}
+			it.remove();
+			mSize -= evicted.getByteCount();
+			mSpare = evicted;
+		}
+	}
+
+	/**
+	 * Drop all layers, for example when the configuration changes.
+	 */
+	public void clear() {
+		mLayers.clear();
+		mSize = 0;
+		mSpare = null;
+	}
+
+	public int getLayerNum() {
+		return mLayers.size();
+	}
+
+	public long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * Identifies a layer. A soft keyboard keeps one key and updates it before
+	 * each lookup. 图层的标识
+	 */
+	public static class Key {
+		int mSkbXmlId;
+		int mWidth;
+		int mHeight;
+		int mNormalKeyTextSize;
+		int mFunctionKeyTextSize;
+
+		/**
+		 * The state of each key, see {@link SoftKeyboard#getLayerKey(int, int)}
+		 * . Only the first mStatesNum are used.
+		 */
+		int mStates[] = new int[0];
+		int mStatesNum;
+
+		/**
+		 * Make sure {@link #mStates} holds at least num values.
+		 */
+		void ensureStates(int num) {
+			if (mStates.length < num) {
+				mStates = new int[num];
+			}
+		}
+
+		Key copy() {
+			Key key = new Key();
+			key.mSkbXmlId = mSkbXmlId;
+			key.mWidth = mWidth;
+			key.mHeight = mHeight;
+			key.mNormalKeyTextSize = mNormalKeyTextSize;
+			key.mFunctionKeyTextSize = mFunctionKeyTextSize;
+			key.mStates = Arrays.copyOf(mStates, mStatesNum);
+			key.mStatesNum = mStatesNum;
+			return key;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			if (mSkbXmlId != key.mSkbXmlId || mWidth != key.mWidth
+					|| mHeight != key.mHeight
+					|| mNormalKeyTextSize != key.mNormalKeyTextSize
+					|| mFunctionKeyTextSize != key.mFunctionKeyTextSize
+					|| mStatesNum != key.mStatesNum) {
+				return false;
+			}
+			for (int i = 0; i < mStatesNum; i++) {
+				if (mStates[i] != key.mStates[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = mSkbXmlId;
+			hash = hash * 31 + mWidth;
+			hash = hash * 31 + mHeight;
+			hash = hash * 31 + mNormalKeyTextSize;
+			hash = hash * 31 + mFunctionKeyTextSize;
+			for (int i = 0; i < mStatesNum; i++) {
+				hash = hash * 31 + mStates[i];
+			}
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+/**
+ * The binary format of precompiled soft keyboard layouts. The skbcompiler
+ * module writes one file per layout xml file at build time, and
+ * {@link BinaryKeyboardLoader} reads them instead of parsing the xml. It has
+ * no Android dependencies, so that the compiler shares these definitions.
+ * 预编译软键盘布局的二进制格式。构建时由skbcompiler模块把每个布局xml文件编译成一个二进制文件，运行时由BinaryKeyboardLoader读取。
+ *
+ * All numbers are big-endian, as written by DataOutputStream. A file is:
+ *
+ * <pre>
+ * int    MAGIC
+ * short  VERSION
+ * byte   KIND_TEMPLATE or KIND_KEYBOARD
+ * short  string number, then each string by writeUTF()
+ * ...    the template or the keyboard
+ * </pre>
+ *
+ * Strings are referred to by their index in the string table, or
+ * {@link #NO_STRING}. Besides labels, the table holds resource references as
+ * "type/name", such as "drawable/normal_key_bg", which are resolved to ids at
+ * run time because resource ids are only assigned when the apk is packaged.
+ * Integers, colors and toggle state ids given as resources are resolved by the
+ * compiler, and positions are fractions of the keyboard size, as in
+ * {@link SoftKey#mLeftF}.
+ *
+ * A template is:
+ *
+ * <pre>
+ * short  skb_bg, balloon_bg, popup_bg
+ * float  key_xmargin, key_ymargin
+ * byte   key type number, then for each type, in id order:
+ *          short bg, short hlbg, int color, int color_highlight,
+ *          int color_balloon
+ * byte   key icon number, then for each: int code, short icon,
+ *          short icon_popup
+ * byte   default key number, then for each: int id, key
+ * </pre>
+ *
+ * A keyboard is:
+ *
+ * <pre>
+ * short  skb_template
+ * byte   FLAG_CACHE | FLAG_STICKY | FLAG_QWERTY | FLAG_QWERTY_UPPERCASE
+ * float  key_xmargin, key_ymargin
+ * short  skb_bg, popup_bg, balloon_bg
+ * short  row number, then for each row:
+ *          int row_id, float y position, short item number, then for
+ *          each item: ITEM_DEFAULT_KEY and int id, or ITEM_KEY and key
+ * </pre>
+ *
+ * A key is:
+ *
+ * <pre>
+ * byte   KEY_TOGGLE | KEY_REPEAT | KEY_BALLOON
+ * int    code
+ * short  label, icon, icon_popup, popup_skb
+ * byte   key_type
+ * float  left, top, right, bottom
+ * if KEY_TOGGLE, byte state number, then for each state:
+ *          byte state_id, byte key_type or -1, int code, short label,
+ *          short icon, short icon_popup, byte KEY_REPEAT | KEY_BALLOON
+ * </pre>
+ *
+ * A key with neither label nor icon uses the default icons of the template
+ * for its code, as in the xml.
+ *
+ * @ClassName SkbLayoutFormat
+ */
+public class SkbLayoutFormat {
+	/** "SKBL" */
+	public static final int MAGIC = 0x534b424c;
+
+	/**
+	 * Changed whenever the layout of the file changes. Files of another
+	 * version are not read, and the xml is parsed instead.
+	 */
+	public static final short VERSION = 1;
+
+	public static final byte KIND_TEMPLATE = 1;
+	public static final byte KIND_KEYBOARD = 2;
+
+	/** Index of a missing string. 表示没有字符串 */
+	public static final short NO_STRING = -1;
+
+	/** Keyboard flags. 软键盘标志 */
+	public static final int FLAG_CACHE = 0x01;
+	public static final int FLAG_STICKY = 0x02;
+	public static final int FLAG_QWERTY = 0x04;
+	public static final int FLAG_QWERTY_UPPERCASE = 0x08;
+
+	/** A row item referring to a default key of the template. 模版中的默认按键 */
+	public static final byte ITEM_DEFAULT_KEY = 1;
+
+	/** A row item defining a key. 新定义的按键 */
+	public static final byte ITEM_KEY = 2;
+
+	/** Key flags. 按键标志 */
+	public static final int KEY_TOGGLE = 0x01;
+	public static final int KEY_REPEAT = 0x02;
+	public static final int KEY_BALLOON = 0x04;
+
+	/** Directory of the compiled files in the assets. 编译后的文件在assets中的目录 */
+	public static final String ASSET_DIR = "skb";
+
+	/** Suffix of the compiled files. 编译后的文件的后缀 */
+	public static final String FILE_SUFFIX = ".skbl";
+
+	private SkbLayoutFormat() {
+	}
+
+	/**
+	 * The asset path of the compiled file for a layout xml resource.
+	 *
+	 * @param entryName
+	 *            the name of the xml resource, such as "skb_qwerty".
+	 */
+	public static String getAssetPath(String entryName) {
+		return ASSET_DIR + "/" + entryName + FILE_SUFFIX;
+	}
+}
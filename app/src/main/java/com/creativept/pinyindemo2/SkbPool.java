@@ -18,13 +18,28 @@ package com.creativept.pinyindemo2;
 
 import android.content.Context;
 
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Class used to cache previously loaded soft keyboard layouts.
  */
 /**
- * 软键盘内存池，该类采用单例模式，它有两个向量列表：软键盘模版列表、软键盘列表。
+ * 软键盘内存池，该类采用单例模式，它有两个哈希表：软键盘模版表、软键盘表。
+ * 
+ * Soft keyboards are cached by cache id, xml id and size, so that the
+ * keyboards of both orientations are kept, and evicted in least recently used
+ * order when their estimated memory cost goes over a budget.
+ * 软键盘按缓存ID、xml文件ID和尺寸缓存，横屏和竖屏的软键盘都会保留。超出内存预算时，淘汰最久没有使用的软键盘。
+ * 
+ * Keyboards can be loaded ahead on a background thread, see
+ * {@link #prefetchSoftKeyboards}, so the methods of the pool are
+ * synchronized. 软键盘可以在后台线程预先加载，所以内存池的方法是同步的。
  * 
  * @ClassName SkbPool
  * @author keanbin
@@ -32,10 +47,67 @@ import java.util.Vector;
 public class SkbPool {
 	private static SkbPool mInstance = null;
 
-	private Vector<SkbTemplate> mSkbTemplates = new Vector<SkbTemplate>();
-	private Vector<SoftKeyboard> mSoftKeyboards = new Vector<SoftKeyboard>();
+	/**
+	 * Upper bound of the estimated memory cost of the cached soft keyboards,
+	 * see {@link SoftKeyboard#getMemoryCost()}. All the keyboards of the IME,
+	 * in both orientations, take about a third of it.
+	 * 缓存的软键盘估计占用的内存上限
+	 */
+	private static final long MAX_SKB_CACHE_COST = 256 * 1024;
+
+	/** Templates by their xml id. 软键盘模版表 */
+	private HashMap<Integer, SkbTemplate> mSkbTemplates = new HashMap<Integer, SkbTemplate>();
+
+	/** Soft keyboards in least recently used order. 软键盘表 */
+	private LinkedHashMap<SkbKey, SoftKeyboard> mSoftKeyboards = new LinkedHashMap<SkbKey, SoftKeyboard>(
+			16, 0.75f, true);
+
+	/** Used to look up {@link #mSoftKeyboards} without allocating. */
+	private SkbKey mLookupKey = new SkbKey();
+
+	/** Total cost of the keyboards in {@link #mSoftKeyboards}. */
+	private long mSkbCacheCost;
+
+	/** Statistics of {@link #getSoftKeyboard}. 软键盘缓存的命中、未命中和淘汰次数 */
+	private int mHitCount;
+	private int mMissCount;
+	private int mEvictionCount;
+
+	/**
+	 * Keyboards loaded by {@link #prefetchSoftKeyboards}, and the first hits
+	 * on them. 预先加载的软键盘数和它们的首次命中数
+	 */
+	private int mPrefetchCount;
+	private int mPrefetchHitCount;
+
+	/** Prefetched keyboards not used yet. 还没有使用的预先加载的软键盘 */
+	private HashSet<SkbKey> mPrefetched = new HashSet<SkbKey>();
+
+	/** Prefetches queued or running. 等待或者正在进行的预先加载 */
+	private HashSet<SkbKey> mPrefetchPending = new HashSet<SkbKey>();
+
+	/**
+	 * Loads keyboards ahead, one at a time. 在后台线程预先加载软键盘
+	 */
+	private static ExecutorService mPrefetchExecutor;
+
+	/**
+	 * Upper bound of the memory used by rendered keyboard layers. A full
+	 * screen wide keyboard takes about 3MB on a 1080p screen, so a few layers
+	 * fit. 软键盘图层缓存的内存上限
+	 */
+	private static final long MAX_LAYER_CACHE_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * Rendered soft keyboards, see {@link SkbLayerCache}. 软键盘图层缓存
+	 */
+	private SkbLayerCache mLayerCache;
 
 	private SkbPool() {
+		// Keep the layers to a small part of the heap.
+		long budget = Math.min(Runtime.getRuntime().maxMemory() / 8,
+				MAX_LAYER_CACHE_BYTES);
+		mLayerCache = new SkbLayerCache(budget);
 	}
 
 	public static SkbPool getInstance() {
@@ -44,32 +116,73 @@ public class SkbPool {
 		return mInstance;
 	}
 
-	public void resetCachedSkb() {
+	/**
+	 * Drop all cached keyboards. A configuration change does not need it,
+	 * keyboards of other sizes are kept apart.
+	 */
+	public synchronized void resetCachedSkb() {
 		mSoftKeyboards.clear();
+		mPrefetched.clear();
+		mSkbCacheCost = 0;
+		mLayerCache.clear();
+	}
+
+	public SkbLayerCache getLayerCache() {
+		return mLayerCache;
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	public synchronized int getCachedSkbNum() {
+		return mSoftKeyboards.size();
+	}
+
+	public synchronized long getCachedSkbCost() {
+		return mSkbCacheCost;
+	}
+
+	public synchronized int getPrefetchCount() {
+		return mPrefetchCount;
+	}
+
+	public synchronized int getPrefetchHitCount() {
+		return mPrefetchHitCount;
 	}
 
 	/**
-	 * 获取软件盘模版。逻辑简介：首先先从mSkbTemplates列表中获取，如果没有获取到，
-	 * 就调用XmlKeyboardLoader解析资源文件ID为skbTemplateId的软键盘模版xml文件
-	 * ，生成一个模版，并加入mSkbTemplates列表中。
+	 * 获取软件盘模版。逻辑简介：首先先从mSkbTemplates表中获取，如果没有获取到，
+	 * 就调用BinaryKeyboardLoader加载预编译的模版，如果没有预编译的模版，就调用XmlKeyboardLoader解析资源文件ID为skbTemplateId的软键盘模版xml文件
+	 * ，生成一个模版，并加入mSkbTemplates表中。
 	 * 
 	 * @param skbTemplateId
 	 * @param context
 	 * @return
 	 */
-	public SkbTemplate getSkbTemplate(int skbTemplateId, Context context) {
-		for (int i = 0; i < mSkbTemplates.size(); i++) {
-			SkbTemplate t = mSkbTemplates.elementAt(i);
-			if (t.getSkbTemplateId() == skbTemplateId) {
-				return t;
-			}
+	public synchronized SkbTemplate getSkbTemplate(int skbTemplateId,
+			Context context) {
+		SkbTemplate t = mSkbTemplates.get(skbTemplateId);
+		if (null != t) {
+			return t;
 		}
 
 		if (null != context) {
-			XmlKeyboardLoader xkbl = new XmlKeyboardLoader(context);
-			SkbTemplate t = xkbl.loadSkbTemplate(skbTemplateId);
+			t = new BinaryKeyboardLoader(context).loadSkbTemplate(skbTemplateId);
+			if (null == t) {
+				XmlKeyboardLoader xkbl = new XmlKeyboardLoader(context);
+				t = xkbl.loadSkbTemplate(skbTemplateId);
+			}
 			if (null != t) {
-				mSkbTemplates.add(t);
+				mSkbTemplates.put(skbTemplateId, t);
 				return t;
 			}
 		}
@@ -79,9 +192,9 @@ public class SkbPool {
 	// Try to find the keyboard in the pool with the cache id. If there is no
 	// keyboard found, try to load it with the given xml id.
 	/**
-	 * 获取软件盘。逻辑简介：首先先从mSoftKeyboards列表中获取，如果没有获取到，
-	 * 就调用XmlKeyboardLoader解析资源文件ID为skbXmlId的软键盘xml文件
-	 * ，生成一个软键盘，并加入mSoftKeyboards列表中。
+	 * 获取软件盘。逻辑简介：首先先从mSoftKeyboards表中获取，如果没有获取到，
+	 * 就调用BinaryKeyboardLoader加载预编译的软键盘，如果没有预编译的软键盘，就调用XmlKeyboardLoader解析资源文件ID为skbXmlId的软键盘xml文件
+	 * ，生成一个软键盘，并加入mSoftKeyboards表中。
 	 * 
 	 * @param skbCacheId
 	 * @param skbXmlId
@@ -90,27 +203,194 @@ public class SkbPool {
 	 * @param context
 	 * @return
 	 */
-	public SoftKeyboard getSoftKeyboard(int skbCacheId, int skbXmlId,
+	public synchronized SoftKeyboard getSoftKeyboard(int skbCacheId, int skbXmlId,
 			int skbWidth, int skbHeight, Context context) {
-		for (int i = 0; i < mSoftKeyboards.size(); i++) {
-			SoftKeyboard skb = mSoftKeyboards.elementAt(i);
-			if (skb.getCacheId() == skbCacheId && skb.getSkbXmlId() == skbXmlId) {
-				skb.setSkbCoreSize(skbWidth, skbHeight);
-				skb.setNewlyLoadedFlag(false);
-				return skb;
+		mLookupKey.set(skbCacheId, skbXmlId, skbWidth, skbHeight);
+		SoftKeyboard skb = mSoftKeyboards.get(mLookupKey);
+		if (null != skb) {
+			mHitCount++;
+			if (mPrefetched.remove(mLookupKey)) {
+				mPrefetchHitCount++;
 			}
+			// The default keys of the template are shared with keyboards of
+			// other sizes.
+			skb.relayoutKeys();
+			skb.setNewlyLoadedFlag(false);
+			return skb;
 		}
+		mMissCount++;
 		if (null != context) {
-			XmlKeyboardLoader xkbl = new XmlKeyboardLoader(context);
-			SoftKeyboard skb = xkbl.loadKeyboard(skbXmlId, skbWidth, skbHeight);
+			skb = new BinaryKeyboardLoader(context).loadKeyboard(skbXmlId,
+					skbWidth, skbHeight);
+			if (null == skb) {
+				XmlKeyboardLoader xkbl = new XmlKeyboardLoader(context);
+				skb = xkbl.loadKeyboard(skbXmlId, skbWidth, skbHeight);
+			}
 			if (skb != null) {
 				if (skb.getCacheFlag()) {
 					skb.setCacheId(skbCacheId);
-					mSoftKeyboards.add(skb);
+					putSoftKeyboard(new SkbKey(skbCacheId, skbXmlId, skbWidth,
+							skbHeight), skb);
 				}
 			}
 			return skb;
 		}
 		return null;
 	}
+
+	private static synchronized ExecutorService getPrefetchExecutor() {
+		if (null == mPrefetchExecutor) {
+			mPrefetchExecutor = Executors.newSingleThreadExecutor();
+		}
+		return mPrefetchExecutor;
+	}
+
+	/**
+	 * Load the keyboards into the pool on a background thread, so that
+	 * switching to them later only lays out the keys again. Keyboards already
+	 * in the pool or being prefetched are skipped, and a keyboard loaded by
+	 * {@link #getSoftKeyboard} in the meantime is kept over the prefetched
+	 * one. 在后台线程把软键盘加载到内存池中。
+	 * 
+	 * The cache id of each keyboard is its xml id, as
+	 * {@link SkbContainer} uses them.
+	 * 
+	 * @param skbXmlIds
+	 * @param skbWidth
+	 * @param skbHeight
+	 * @param context
+	 */
+	public synchronized void prefetchSoftKeyboards(int skbXmlIds[],
+			final int skbWidth, final int skbHeight, Context context) {
+		final Context appContext = context.getApplicationContext();
+		for (final int skbXmlId : skbXmlIds) {
+			final SkbKey key = new SkbKey(skbXmlId, skbXmlId, skbWidth,
+					skbHeight);
+			if (mSoftKeyboards.containsKey(key)
+					|| !mPrefetchPending.add(key)) {
+				continue;
+			}
+			getPrefetchExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						prefetchSoftKeyboard(key, appContext);
+					} finally {
+						synchronized (SkbPool.this) {
+							mPrefetchPending.remove(key);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Load a keyboard on the prefetch thread, without holding the pool, and
+	 * publish it. 在预先加载线程加载一个软键盘，然后加入内存池
+	 * 
+	 * @param key
+	 * @param context
+	 */
+	private void prefetchSoftKeyboard(SkbKey key, Context context) {
+		synchronized (this) {
+			if (mSoftKeyboards.containsKey(key)) {
+				return;
+			}
+		}
+		// The template is taken from the pool under its lock. Its default keys
+		// are shared with the keyboards used on the main thread, so this one
+		// gets its own copies to lay out.
+		BinaryKeyboardLoader bkbl = new BinaryKeyboardLoader(context);
+		bkbl.setCopyDefaultKeys(true);
+		SoftKeyboard skb = bkbl.loadKeyboard(key.mXmlId, key.mWidth,
+				key.mHeight);
+		if (null == skb) {
+			XmlKeyboardLoader xkbl = new XmlKeyboardLoader(context);
+			xkbl.setCopyDefaultKeys(true);
+			skb = xkbl.loadKeyboard(key.mXmlId, key.mWidth, key.mHeight);
+		}
+		if (null == skb || !skb.getCacheFlag()) {
+			return;
+		}
+		skb.setCacheId(key.mCacheId);
+		synchronized (this) {
+			if (mSoftKeyboards.containsKey(key)) {
+				return;
+			}
+			putSoftKeyboard(key, skb);
+			mPrefetched.add(key);
+			mPrefetchCount++;
+		}
+	}
+
+	/**
+	 * 把软键盘加入mSoftKeyboards表中，并淘汰最久没有使用的软键盘，直到总的内存占用不超过上限。
+	 * 
+	 * @param key
+	 * @param skb
+	 */
+	private void putSoftKeyboard(SkbKey key, SoftKeyboard skb) {
+		SoftKeyboard old = mSoftKeyboards.put(key, skb);
+		if (null != old) {
+			mSkbCacheCost -= old.getMemoryCost();
+		}
+		mSkbCacheCost += skb.getMemoryCost();
+
+		Iterator<Map.Entry<SkbKey, SoftKeyboard>> it = mSoftKeyboards
+				.entrySet().iterator();
+		while (mSkbCacheCost > MAX_SKB_CACHE_COST && it.hasNext()) {
+			Map.Entry<SkbKey, SoftKeyboard> entry = it.next();
+			SoftKeyboard evicted = entry.getValue();
+			if (evicted == skb) {
+				continue;
+			}
+			it.remove();
+			mPrefetched.remove(entry.getKey());
+			mSkbCacheCost -= evicted.getMemoryCost();
+			mEvictionCount++;
+		}
+	}
+
+	/**
+	 * Identifies a cached soft keyboard. 软键盘在缓存中的标识
+	 */
+	private static class SkbKey {
+		int mCacheId;
+		int mXmlId;
+		int mWidth;
+		int mHeight;
+
+		SkbKey() {
+		}
+
+		SkbKey(int cacheId, int xmlId, int width, int height) {
+			set(cacheId, xmlId, width, height);
+		}
+
+		void set(int cacheId, int xmlId, int width, int height) {
+			mCacheId = cacheId;
+			mXmlId = xmlId;
+			mWidth = width;
+			mHeight = height;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SkbKey)) {
+				return false;
+			}
+			SkbKey key = (SkbKey) o;
+			return mCacheId == key.mCacheId && mXmlId == key.mXmlId
+					&& mWidth == key.mWidth && mHeight == key.mHeight;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = mCacheId;
+			hash = hash * 31 + mXmlId;
+			hash = hash * 31 + mWidth;
+			hash = hash * 31 + mHeight;
+			return hash;
+		}
+	}
 }
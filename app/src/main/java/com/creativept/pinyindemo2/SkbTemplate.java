@@ -195,6 +195,24 @@ public class SkbTemplate {
 		mKeyRecords.add(pos, keyRecord);
 	}
 
+	/**
+	 * The default key with the id, shared by all the keyboards of the
+	 * template. 模版中的默认按键，由各个软键盘共享
+	 * 
+	 * @param keyId
+	 * @param copy
+	 *            whether to return a copy of the key which is not shared,
+	 *            see {@link SoftKey#copy()}.
+	 * @return
+	 */
+	public SoftKey getDefaultKey(int keyId, boolean copy) {
+		SoftKey softKey = getDefaultKey(keyId);
+		if (copy && null != softKey) {
+			return softKey.copy();
+		}
+		return softKey;
+	}
+
 	public SoftKey getDefaultKey(int keyId) {
 		int size = mKeyRecords.size();
 		int pos = 0;
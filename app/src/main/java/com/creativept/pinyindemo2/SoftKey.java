@@ -24,7 +24,7 @@ import android.graphics.drawable.Drawable;
  * 
  * @see com.creativept.pinyindemo2.SoftKeyToggle
  */
-public class SoftKey {
+public class SoftKey implements Cloneable {
 	protected static final int KEYMASK_REPEAT = 0x10000000;
 	protected static final int KEYMASK_BALLOON = 0x20000000;
 
@@ -84,6 +84,15 @@ public class SoftKey {
 	public int mTop;
 	public int mBottom;
 
+	/**
+	 * Width of the label as drawn by SoftKeyboardView, and the label and text
+	 * size it was measured with. The label changes with the case and the
+	 * toggle state. 按键文本宽度的缓存，以及测量时的文本和文本大小
+	 */
+	String mMeasuredLabel;
+	int mMeasuredTextSize;
+	float mMeasuredLabelWidth;
+
 	/**
 	 * 设置按键的类型、图标、弹出图标
 	 * 
@@ -294,6 +303,21 @@ public class SoftKey {
 		return false;
 	}
 
+	/**
+	 * A copy of this key which can be laid out on its own. The type, the
+	 * icons, the label and the toggle states are shared with this key.
+	 * 复制按键，可以单独调整位置，类型、图标、文本和变换状态与原按键共享。
+	 * 
+	 * @return
+	 */
+	public SoftKey copy() {
+		try {
+			return (SoftKey) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
 	@Override
 	public String toString() {
 		String str = "\n";
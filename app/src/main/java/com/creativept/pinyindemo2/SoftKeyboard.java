@@ -36,6 +36,12 @@ public class SoftKeyboard {
 	 * */
 	private int mSkbXmlId;
 
+	/** Estimated sizes used by {@link #getMemoryCost()}. 估计的内存占用 */
+	private static final int SKB_BASE_COST = 6 * 1024;
+	private static final int KEY_ROW_COST = 64;
+	private static final int KEY_COST = 160;
+	private static final int TOGGLE_KEY_COST = KEY_COST + 4 * 48;
+
 	/**
 	 * Do we need to cache this soft keyboard? 是否缓存这个软件盘？
 	 */
@@ -127,6 +133,30 @@ public class SoftKeyboard {
 
 	private Rect mTmpRect = new Rect();
 
+	/**
+	 * Index of the keys in the enabled rows, used by
+	 * {@link #mapToKey(int, int)}. It is built by
+	 * {@link #setSkbCoreSize(int, int)}, and again when the keys or the enabled
+	 * rows change. 可用行中按键的网格索引，用于查找触摸点所在的按键。
+	 */
+	private KeyGrid mKeyGrid = new KeyGrid();
+
+	/**
+	 * The keys in {@link #mKeyGrid}, by their index. 网格索引中的按键
+	 */
+	private SoftKey mGridKeys[];
+
+	/**
+	 * Whether {@link #mKeyGrid} needs to be built again. 网格索引是否需要重建
+	 */
+	private boolean mKeyGridDirty = true;
+
+	/**
+	 * Identifies the rendered layer of this keyboard in its current state, see
+	 * {@link #getLayerKey(int, int)}. 当前状态下的软键盘图层的标识
+	 */
+	private SkbLayerCache.Key mLayerKey = new SkbLayerCache.Key();
+
 	public SoftKeyboard(int skbXmlId, SkbTemplate skbTemplate, int skbWidth,
 			int skbHeight) {
 		mSkbXmlId = skbXmlId;
@@ -182,6 +212,7 @@ public class SoftKeyboard {
 	public void reset() {
 		if (null != mKeyRows)
 			mKeyRows.clear();
+		mKeyGridDirty = true;
 	}
 
 	public void setNewlyLoadedFlag(boolean newlyLoadedFlag) {
@@ -207,6 +238,7 @@ public class SoftKeyboard {
 		keyRow.mBottomF = yStartingPos;
 		keyRow.mSoftKeys = new ArrayList<SoftKey>();
 		mKeyRows.add(keyRow);
+		mKeyGridDirty = true;
 	}
 
 	/**
@@ -225,6 +257,7 @@ public class SoftKeyboard {
 
 		softKey.setSkbCoreSize(mSkbCoreWidth, mSkbCoreHeight);
 		softKeys.add(softKey);
+		mKeyGridDirty = true;
 
 		// 根据加入的按键的top和bottom，调整行的top和bottom
 		if (softKey.mTopF < keyRow.mTopF) {
@@ -266,6 +299,56 @@ public class SoftKeyboard {
 		}
 		mSkbCoreWidth = skbCoreWidth;
 		mSkbCoreHeight = skbCoreHeight;
+		buildKeyGrid();
+	}
+
+	/**
+	 * Lay out the keys again for the current size. The default keys of the
+	 * template are shared by the keyboards, so a keyboard of another size may
+	 * have moved them since this keyboard was used.
+	 * 按当前尺寸重新调整按键的位置，模版中的默认按键是各个软键盘共享的，可能被其他尺寸的软键盘改变了。
+	 */
+	public void relayoutKeys() {
+		if (null == mKeyRows) {
+			return;
+		}
+		for (int row = 0; row < mKeyRows.size(); row++) {
+			List<SoftKey> softKeys = mKeyRows.get(row).mSoftKeys;
+			for (int i = 0; i < softKeys.size(); i++) {
+				SoftKey softKey = softKeys.get(i);
+				if (softKey.mLeft != (int) (softKey.mLeftF * mSkbCoreWidth)
+						|| softKey.mRight != (int) (softKey.mRightF * mSkbCoreWidth)
+						|| softKey.mTop != (int) (softKey.mTopF * mSkbCoreHeight)
+						|| softKey.mBottom != (int) (softKey.mBottomF * mSkbCoreHeight)) {
+					softKey.setSkbCoreSize(mSkbCoreWidth, mSkbCoreHeight);
+					mKeyGridDirty = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Estimate the memory taken by this keyboard, used by {@link SkbPool} to
+	 * bound its cache. Drawables are shared with the template and not counted.
+	 * 估计软键盘占用的内存，不包括与模版共享的Drawable。
+	 * 
+	 * @return the estimated size in bytes.
+	 */
+	public int getMemoryCost() {
+		// The object, its rows and the arrays of the key grid.
+		int cost = SKB_BASE_COST;
+		if (null == mKeyRows) {
+			return cost;
+		}
+		for (int row = 0; row < mKeyRows.size(); row++) {
+			List<SoftKey> softKeys = mKeyRows.get(row).mSoftKeys;
+			cost += KEY_ROW_COST;
+			for (int i = 0; i < softKeys.size(); i++) {
+				cost += softKeys.get(i) instanceof SoftKeyToggle ? TOGGLE_KEY_COST
+						: KEY_COST;
+			}
+		}
+		return cost;
 	}
 
 	public int getSkbCoreWidth() {
@@ -345,9 +428,10 @@ public class SoftKeyboard {
 	}
 
 	/**
-	 * 根据坐标查找按键，如果坐标在某个按键区域内，就返回这个按键，如果坐标不在所有的按键区域内，返回离它最近的按键。
+	 * 根据坐标查找按键，如果坐标在某个按键区域内，就返回这个按键，如果坐标不在所有的按键区域内，返回离它最近的按键。只查找可用行中的按键。
+	 * The keys are looked up in {@link #mKeyGrid}, so the time does not
+	 * depend on the number of keys.
 	 * 
-	 * @优化 可以在判断坐标在某个按键区域内的时候，并且加上判断离它最近的按键，这样就只需要一次遍历就行了。
 	 * @param x
 	 * @param y
 	 * @return
@@ -356,54 +440,112 @@ public class SoftKeyboard {
 		if (null == mKeyRows) {
 			return null;
 		}
-		// If the position is inside the rectangle of a certain key, return that
-		// key.
+		if (mKeyGridDirty) {
+			buildKeyGrid();
+		}
+		int key = mKeyGrid.findKey(x, y);
+		if (key < 0) {
+			return null;
+		}
+		return mGridKeys[key];
+	}
+
+	/**
+	 * Build {@link #mKeyGrid} from the keys in the enabled rows, in the order
+	 * {@link #mapToKey(int, int)} used to scan them. 用可用行中的按键建立网格索引
+	 */
+	private void buildKeyGrid() {
+		int keyNum = 0;
 		int rowNum = mKeyRows.size();
+		for (int row = 0; row < rowNum; row++) {
+			KeyRow keyRow = mKeyRows.get(row);
+			if (KeyRow.ALWAYS_SHOW_ROW_ID == keyRow.mRowId
+					|| keyRow.mRowId == mEnabledRowId) {
+				keyNum += keyRow.mSoftKeys.size();
+			}
+		}
+
+		SoftKey keys[] = new SoftKey[keyNum];
+		int left[] = new int[keyNum];
+		int top[] = new int[keyNum];
+		int right[] = new int[keyNum];
+		int bottom[] = new int[keyNum];
+		int i = 0;
 		for (int row = 0; row < rowNum; row++) {
 			KeyRow keyRow = mKeyRows.get(row);
 			if (KeyRow.ALWAYS_SHOW_ROW_ID != keyRow.mRowId
 					&& keyRow.mRowId != mEnabledRowId)
 				continue;
-			if (keyRow.mTop > y && keyRow.mBottom <= y)
-				continue;
-
 			List<SoftKey> softKeys = keyRow.mSoftKeys;
-			int keyNum = softKeys.size();
-			for (int i = 0; i < keyNum; i++) {
-				SoftKey sKey = softKeys.get(i);
-				if (sKey.mLeft <= x && sKey.mTop <= y && sKey.mRight > x
-						&& sKey.mBottom > y) {
-					return sKey;
-				}
+			int num = softKeys.size();
+			for (int pos = 0; pos < num; pos++, i++) {
+				SoftKey sKey = softKeys.get(pos);
+				keys[i] = sKey;
+				left[i] = sKey.mLeft;
+				top[i] = sKey.mTop;
+				right[i] = sKey.mRight;
+				bottom[i] = sKey.mBottom;
 			}
 		}
+		mKeyGrid.build(left, top, right, bottom, keyNum, mSkbCoreWidth,
+				mSkbCoreHeight);
+		mGridKeys = keys;
+		mKeyGridDirty = false;
+	}
 
-		// If the position is outside the rectangles of all keys, find the
-		// nearest one.
-		SoftKey nearestKey = null;
-		float nearestDis = Float.MAX_VALUE;
+	/**
+	 * Get the key of the layer for this keyboard as it is shown now, with no
+	 * key pressed. Besides the size and the text sizes, it holds the enabled
+	 * row and, for each key shown, its toggle state and whether its label is
+	 * in uppercase. The returned object is reused by later calls.
+	 * 获取软键盘当前状态下的图层标识，返回的对象会被重用。
+	 * 
+	 * @param normalKeyTextSize
+	 * @param functionKeyTextSize
+	 * @return
+	 */
+	public SkbLayerCache.Key getLayerKey(int normalKeyTextSize,
+			int functionKeyTextSize) {
+		SkbLayerCache.Key key = mLayerKey;
+		key.mSkbXmlId = mSkbXmlId;
+		key.mWidth = mSkbCoreWidth;
+		key.mHeight = mSkbCoreHeight;
+		key.mNormalKeyTextSize = normalKeyTextSize;
+		key.mFunctionKeyTextSize = functionKeyTextSize;
+
+		int keyNum = 0;
+		int rowNum = getRowNum();
+		for (int row = 0; row < rowNum; row++) {
+			keyNum += mKeyRows.get(row).mSoftKeys.size();
+		}
+		key.ensureStates(keyNum + 1);
+		int states[] = key.mStates;
+		int statesNum = 0;
+		states[statesNum++] = mEnabledRowId;
 		for (int row = 0; row < rowNum; row++) {
 			KeyRow keyRow = mKeyRows.get(row);
 			if (KeyRow.ALWAYS_SHOW_ROW_ID != keyRow.mRowId
 					&& keyRow.mRowId != mEnabledRowId)
 				continue;
-			if (keyRow.mTop > y && keyRow.mBottom <= y)
-				continue;
-
 			List<SoftKey> softKeys = keyRow.mSoftKeys;
-			int keyNum = softKeys.size();
-			for (int i = 0; i < keyNum; i++) {
+			int num = softKeys.size();
+			for (int i = 0; i < num; i++) {
 				SoftKey sKey = softKeys.get(i);
-				int disx = (sKey.mLeft + sKey.mRight) / 2 - x; // 按键x坐标的中心点到x之间的距离
-				int disy = (sKey.mTop + sKey.mBottom) / 2 - y; // 按键y坐标的中心点到y之间的距离
-				float dis = disx * disx + disy * disy;
-				if (dis < nearestDis) {
-					nearestDis = dis;
-					nearestKey = sKey;
+				int state = 0;
+				if (sKey instanceof SoftKeyToggle) {
+					state = ((SoftKeyToggle) sKey).getToggleStateId() << 1;
+				}
+				// changeCase() only changes the labels of letter keys.
+				String label = sKey.getKeyLabel();
+				if (null != label && label.length() > 0
+						&& Character.isUpperCase(label.charAt(0))) {
+					state |= 1;
 				}
+				states[statesNum++] = state;
 			}
 		}
-		return nearestKey;
+		key.mStatesNum = statesNum;
+		return key;
 	}
 
 	/**
@@ -565,8 +707,9 @@ public class SoftKeyboard {
 				break;
 			}
 		}
-		if (enabled) {
+		if (enabled && mEnabledRowId != rowId) {
 			mEnabledRowId = rowId;
+			mKeyGridDirty = true;
 		}
 		return enabled;
 	}
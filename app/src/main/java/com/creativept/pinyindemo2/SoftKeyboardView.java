@@ -17,10 +17,12 @@
 package com.creativept.pinyindemo2;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.FontMetricsInt;
 import android.graphics.Rect;
+import android.graphics.Region;
 import android.graphics.drawable.Drawable;
 import android.os.Vibrator;
 import android.util.AttributeSet;
@@ -110,12 +112,25 @@ public class SoftKeyboardView extends View {
 
 	/**
 	 * The dirty rectangle used to mark the area to re-draw during key press and
-	 * release. Currently, whenever we can invalidate(Rect), view will call
-	 * onDraw() and we MUST draw the whole view. This dirty information is for
-	 * future use. 该区域用于标记按键按下和释放后需要重绘的区域，目前没有作用，是为了以后保留的。
+	 * release, in view coordinates. onDraw() only draws the keys inside the
+	 * clip, so a key press only repaints the keys it touches.
+	 * 该区域用于标记按键按下和释放后需要重绘的区域（视图坐标）。onDraw()只画裁剪区域内的按键。
 	 */
 	private Rect mDirtyRect = new Rect();
 
+	/** The clip of the canvas in onDraw(), in keyboard coordinates. 画布的裁剪区域 */
+	private Rect mClipRect = new Rect();
+
+	/** The text size mPaint is set to. mPaint当前的文本大小 */
+	private int mPaintTextSize;
+
+	/**
+	 * Canvas used to render layers for {@link SkbLayerCache}, and its bounds.
+	 * 用于渲染软键盘图层的画布
+	 */
+	private Canvas mLayerCanvas = new Canvas();
+	private Rect mLayerRect = new Rect();
+
 	private Paint mPaint;
 	private FontMetricsInt mFmi;
 	private boolean mDimSkb;
@@ -128,6 +143,7 @@ public class SoftKeyboardView extends View {
 
 		mPaint = new Paint();
 		mPaint.setAntiAlias(true);
+		mPaintTextSize = (int) mPaint.getTextSize();
 		mFmi = mPaint.getFontMetricsInt();
 	}
 
@@ -234,11 +250,7 @@ public class SoftKeyboardView extends View {
 			mBalloonOnKey.delayedDismiss(balloonDelay);
 		} else {
 			if (null != mSoftKeyDown) {
-				if (mDirtyRect.isEmpty()) {
-					mDirtyRect.set(mSoftKeyDown.mLeft, mSoftKeyDown.mTop,
-							mSoftKeyDown.mRight, mSoftKeyDown.mBottom);
-				}
-				invalidate(mDirtyRect);
+				invalidateKey(mSoftKeyDown);
 			} else {
 				invalidate();
 			}
@@ -337,9 +349,7 @@ public class SoftKeyboardView extends View {
 			showBalloon(mBalloonOnKey, mHintLocationToSkbContainer, movePress);
 		} else {
 			// 设置界面局部刷新，只刷新按键区域
-			mDirtyRect.union(mSoftKeyDown.mLeft, mSoftKeyDown.mTop,
-					mSoftKeyDown.mRight, mSoftKeyDown.mBottom);
-			invalidate(mDirtyRect);
+			invalidateKey(mSoftKeyDown);
 		}
 
 		// TODO 下面这个气泡和上面的气泡有什么区别？
@@ -400,9 +410,7 @@ public class SoftKeyboardView extends View {
 		if (null != mBalloonOnKey) {
 			mBalloonOnKey.delayedDismiss(BalloonHint.TIME_DELAY_DISMISS);
 		} else {
-			mDirtyRect.union(mSoftKeyDown.mLeft, mSoftKeyDown.mTop,
-					mSoftKeyDown.mRight, mSoftKeyDown.mBottom);
-			invalidate(mDirtyRect);
+			invalidateKey(mSoftKeyDown);
 		}
 
 		if (mSoftKeyDown.needBalloon()) {
@@ -434,8 +442,9 @@ public class SoftKeyboardView extends View {
 		}
 
 		// The current key needs to be updated.
-		mDirtyRect.union(mSoftKeyDown.mLeft, mSoftKeyDown.mTop,
-				mSoftKeyDown.mRight, mSoftKeyDown.mBottom);
+		if (null == mBalloonOnKey) {
+			invalidateKey(mSoftKeyDown);
+		}
 
 		if (mRepeatForLongPress) {
 			// 如果mMovingNeverHidePopupBalloon为true，那么就不销毁气泡，否则，先销毁在进入按键处理函数。
@@ -445,8 +454,6 @@ public class SoftKeyboardView extends View {
 
 			if (null != mBalloonOnKey) {
 				mBalloonOnKey.delayedDismiss(0);
-			} else {
-				invalidate(mDirtyRect);
 			}
 
 			if (mSoftKeyDown.needBalloon()) {
@@ -463,6 +470,19 @@ public class SoftKeyboardView extends View {
 		}
 	}
 
+	/**
+	 * 刷新按键所在的区域
+	 * 
+	 * @param softKey
+	 */
+	private void invalidateKey(SoftKey softKey) {
+		// Key coordinates are relative to the padding, see onDraw().
+		mDirtyRect.set(softKey.mLeft, softKey.mTop, softKey.mRight,
+				softKey.mBottom);
+		mDirtyRect.offset(getPaddingLeft(), getPaddingTop());
+		invalidate(mDirtyRect);
+	}
+
 	/**
 	 * 震动
 	 */
@@ -507,14 +527,87 @@ public class SoftKeyboardView extends View {
 		// 画布水平移动padding，使得画布的原点（0，0）相对于父视图移动了(getPaddingLeft(),
 		// getPaddingTop())。
 		canvas.translate(getPaddingLeft(), getPaddingTop());
+		// Keys outside the clip are not drawn. When a key is pressed or
+		// released, only its own rectangle is invalidated.
+		if (!canvas.getClipBounds(mClipRect)) {
+			return;
+		}
 
 		Environment env = Environment.getInstance();
 		mNormalKeyTextSize = env.getKeyTextSize(false);
 		mFunctionKeyTextSize = env.getKeyTextSize(true);
-		// Draw the last soft keyboard
-		int rowNum = mSoftKeyboard.getRowNum();
 		int keyXMargin = mSoftKeyboard.getKeyXMargin();
 		int keyYMargin = mSoftKeyboard.getKeyYMargin();
+		SoftKey pressedKey = mKeyPressed ? mSoftKeyDown : null;
+
+		// Draw the keyboard with no key pressed from its cached layer, and
+		// the pressed key on top of it.
+		Bitmap layer = getLayer(keyXMargin, keyYMargin);
+		if (null != layer) {
+			if (null != pressedKey) {
+				canvas.save();
+				canvas.clipRect(pressedKey.mLeft, pressedKey.mTop,
+						pressedKey.mRight, pressedKey.mBottom,
+						Region.Op.DIFFERENCE);
+				canvas.drawBitmap(layer, 0, 0, null);
+				canvas.restore();
+				drawSoftKey(canvas, pressedKey, keyXMargin, keyYMargin, true);
+			} else {
+				canvas.drawBitmap(layer, 0, 0, null);
+			}
+		} else {
+			drawKeys(canvas, mClipRect, keyXMargin, keyYMargin, pressedKey);
+		}
+
+		// 清空画布
+		if (mDimSkb) {
+			mPaint.setColor(0xa0000000);
+			canvas.drawRect(0, 0, getWidth(), getHeight(), mPaint);
+		}
+	}
+
+	/**
+	 * 获取没有按键按下时的软键盘图层，如果缓存中没有，就渲染一个并加入缓存。
+	 * 
+	 * @param keyXMargin
+	 * @param keyYMargin
+	 * @return the layer, or null if the keyboard is too big to be cached.
+	 */
+	private Bitmap getLayer(int keyXMargin, int keyYMargin) {
+		SkbLayerCache cache = SkbPool.getInstance().getLayerCache();
+		SkbLayerCache.Key key = mSoftKeyboard.getLayerKey(mNormalKeyTextSize,
+				mFunctionKeyTextSize);
+		Bitmap layer = cache.get(key);
+		if (null != layer) {
+			return layer;
+		}
+		int width = mSoftKeyboard.getSkbCoreWidth();
+		int height = mSoftKeyboard.getSkbCoreHeight();
+		layer = cache.obtain(width, height);
+		if (null == layer) {
+			return null;
+		}
+		mLayerCanvas.setBitmap(layer);
+		mLayerRect.set(0, 0, width, height);
+		drawKeys(mLayerCanvas, mLayerRect, keyXMargin, keyYMargin, null);
+		cache.put(key, layer);
+		return layer;
+	}
+
+	/**
+	 * 画出可用行中与裁剪区域相交的按键
+	 * 
+	 * @param canvas
+	 * @param clip
+	 *            裁剪区域
+	 * @param keyXMargin
+	 * @param keyYMargin
+	 * @param pressedKey
+	 *            按下的按键，可以为null
+	 */
+	private void drawKeys(Canvas canvas, Rect clip, int keyXMargin,
+			int keyYMargin, SoftKey pressedKey) {
+		int rowNum = mSoftKeyboard.getRowNum();
 		for (int row = 0; row < rowNum; row++) {
 			KeyRow keyRow = mSoftKeyboard.getKeyRowForDisplay(row);
 			if (null == keyRow)
@@ -523,22 +616,15 @@ public class SoftKeyboardView extends View {
 			int keyNum = softKeys.size();
 			for (int i = 0; i < keyNum; i++) {
 				SoftKey softKey = softKeys.get(i);
-				if (SoftKeyType.KEYTYPE_ID_NORMAL_KEY == softKey.mKeyType.mKeyTypeId) {
-					mPaint.setTextSize(mNormalKeyTextSize);
-				} else {
-					mPaint.setTextSize(mFunctionKeyTextSize);
+				if (softKey.mRight <= clip.left || softKey.mLeft >= clip.right
+						|| softKey.mBottom <= clip.top
+						|| softKey.mTop >= clip.bottom) {
+					continue;
 				}
-				drawSoftKey(canvas, softKey, keyXMargin, keyYMargin);
+				drawSoftKey(canvas, softKey, keyXMargin, keyYMargin,
+						softKey == pressedKey);
 			}
 		}
-
-		// 清空画布
-		if (mDimSkb) {
-			mPaint.setColor(0xa0000000);
-			canvas.drawRect(0, 0, getWidth(), getHeight(), mPaint);
-		}
-
-		mDirtyRect.setEmpty();
 	}
 
 	/**
@@ -548,12 +634,14 @@ public class SoftKeyboardView extends View {
 	 * @param softKey
 	 * @param keyXMargin
 	 * @param keyYMargin
+	 * @param pressed
+	 *            是否画成按下的状态
 	 */
 	private void drawSoftKey(Canvas canvas, SoftKey softKey, int keyXMargin,
-			int keyYMargin) {
+			int keyYMargin, boolean pressed) {
 		Drawable bg;
 		int textColor;
-		if (mKeyPressed && softKey == mSoftKeyDown) {
+		if (pressed) {
 			bg = softKey.getKeyHlBg();
 			textColor = softKey.getColorHl();
 		} else {
@@ -582,9 +670,27 @@ public class SoftKeyboardView extends View {
 					softKey.mBottom - marginBottom);
 			icon.draw(canvas);
 		} else if (null != keyLabel) {
+			int textSize;
+			if (SoftKeyType.KEYTYPE_ID_NORMAL_KEY == softKey.mKeyType.mKeyTypeId) {
+				textSize = mNormalKeyTextSize;
+			} else {
+				textSize = mFunctionKeyTextSize;
+			}
+			if (textSize != mPaintTextSize) {
+				mPaint.setTextSize(textSize);
+				mPaintTextSize = textSize;
+			}
+			// The label only changes with the case or the toggle state, so its
+			// width is measured once.
+			if (keyLabel != softKey.mMeasuredLabel
+					|| textSize != softKey.mMeasuredTextSize) {
+				softKey.mMeasuredLabel = keyLabel;
+				softKey.mMeasuredTextSize = textSize;
+				softKey.mMeasuredLabelWidth = mPaint.measureText(keyLabel);
+			}
 			mPaint.setColor(textColor);
 			float x = softKey.mLeft
-					+ (softKey.width() - mPaint.measureText(keyLabel)) / 2.0f;
+					+ (softKey.width() - softKey.mMeasuredLabelWidth) / 2.0f;
 			int fontHeight = mFmi.bottom - mFmi.top;
 			float marginY = (softKey.height() - fontHeight) / 2.0f;
 			float y = softKey.mTop + marginY - mFmi.top + mFmi.bottom / 1.5f;
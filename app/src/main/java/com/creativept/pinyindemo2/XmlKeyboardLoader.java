@@ -303,6 +303,13 @@ public class XmlKeyboardLoader {
 
 	String mAttrTmp;
 
+	/**
+	 * Whether the keyboards loaded get their own copies of the default keys
+	 * of the template. A keyboard loaded off the main thread needs them, as
+	 * laying it out moves its keys. 是否为加载的软键盘复制模版中的默认按键
+	 */
+	private boolean mCopyDefaultKeys;
+
 	/**
 	 * 标签的公共属性
 	 * 
@@ -347,6 +354,15 @@ public class XmlKeyboardLoader {
 		mResources = mContext.getResources();
 	}
 
+	/**
+	 * @param copyDefaultKeys
+	 *            whether the keyboards loaded get their own copies of the
+	 *            default keys of the template, see {@link #mCopyDefaultKeys}.
+	 */
+	public void setCopyDefaultKeys(boolean copyDefaultKeys) {
+		mCopyDefaultKeys = copyDefaultKeys;
+	}
+
 	/**
 	 * 解析软键盘模版xml文件，生成一个软键盘模版对象。
 	 * 
@@ -624,7 +640,8 @@ public class XmlKeyboardLoader {
 
 						int keyId = this.getInteger(xrp, XMLATTR_ID, -1);
 						if (keyId >= 0) {
-							softKey = mSkbTemplate.getDefaultKey(keyId);
+							softKey = mSkbTemplate.getDefaultKey(keyId,
+									mCopyDefaultKeys);
 						} else {
 							softKey = getSoftKey(xrp, attrKey);
 						}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+/**
+ * Constants shared by the decoder, the same as dictdef.h.
+ * 词库和解码器共用的常量，与dictdef.h一致。
+ * 
+ * @ClassName DictDef
+ */
+final class DictDef {
+	static final int MAX_LEMMA_SIZE = 8;
+	static final int MAX_PINYIN_SIZE = 6;
+	static final int HALF_SPELLING_ID_NUM = 29;
+	static final int FULL_SPL_ID_START = HALF_SPELLING_ID_NUM + 1;
+	static final int MAX_SEARCH_STEPS = 40;
+	static final int MAX_PREDICT_SIZE = MAX_LEMMA_SIZE - 1;
+
+	/**
+	 * A lemma id occupies 3 bytes in storage. 词条ID占3字节
+	 */
+	static final int LEMMA_ID_SIZE = 3;
+	static final int LEMMA_ID_COMPOSING = 0xffffff;
+
+	static final int SYS_DICT_ID_END = 16000000;
+	static final int USER_DICT_ID_START = 16000001;
+	static final int USER_DICT_ID_END = 16500000;
+
+	/**
+	 * The header of a version 2 dictionary, see DictFileHeader in dictdef.h.
+	 * 第2版词库的文件头
+	 */
+	static final int DICT_FILE_MAGIC = 0x54445950;
+	static final int DICT_FILE_VERSION = 2;
+	static final int DICT_FILE_HEADER_SIZE = 16;
+
+	/**
+	 * A LmaNodeGE1 number which is kept in the LmaNodeGE1Wide list.
+	 * 节点中放不下的数量，保存在LmaNodeGE1Wide列表中
+	 */
+	static final int LMA_NODE_GE1_NUM_WIDE = 0xff;
+
+	private DictDef() {
+	}
+
+	static boolean isSystemLemma(int lmaId) {
+		return 0 < lmaId && lmaId <= SYS_DICT_ID_END;
+	}
+
+	static boolean isComposingLemma(int lmaId) {
+		return LEMMA_ID_COMPOSING == lmaId;
+	}
+}
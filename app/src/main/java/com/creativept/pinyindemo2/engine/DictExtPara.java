@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+import static com.creativept.pinyindemo2.engine.DictDef.MAX_SEARCH_STEPS;
+
+/**
+ * Parameters used to extend a dictionary match by one spelling id, the same
+ * as DictExtPara in searchutility.h.
+ * 扩展词典匹配时使用的参数。
+ *
+ * @ClassName DictExtPara
+ */
+final class DictExtPara {
+	/**
+	 * Spelling ids from the root to the one being extended. 从根开始的拼音ID
+	 */
+	final int mSplIds[] = new int[MAX_SEARCH_STEPS];
+
+	/**
+	 * Number of ids which have been extended; mSplIds[mSplIdsExtended] is the
+	 * one to extend. 已扩展的拼音ID个数
+	 */
+	int mSplIdsExtended;
+
+	/**
+	 * Length of the Pinyin string of the id to extend. 待扩展拼音的字符串长度
+	 */
+	int mExtLen;
+
+	boolean mSplIdEndSplit;
+
+	/**
+	 * The full ids of the id to extend: [mIdStart, mIdStart + mIdNum).
+	 * 待扩展ID对应的全拼ID范围
+	 */
+	int mIdStart;
+	int mIdNum;
+}
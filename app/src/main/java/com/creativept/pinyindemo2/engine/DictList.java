@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+import static com.creativept.pinyindemo2.engine.DictDef.MAX_LEMMA_SIZE;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * The Hanzi strings of all system lemmas, the same as dictlist.cpp. Lemmas
+ * with the same length are stored together, so the string of a lemma is
+ * found from its id without any index. The buffers are views of the
+ * dictionary, not copies.
+ * 系统词条的汉字串，与dictlist.cpp一致。缓冲区是词库的视图而不是拷贝。
+ *
+ * @ClassName DictList
+ */
+final class DictList {
+	private int mScisNum;
+	private CharBuffer mScisHz;
+	private CharBuffer mBuf;
+
+	private final int mStartPos[] = new int[MAX_LEMMA_SIZE + 1];
+	private final int mStartId[] = new int[MAX_LEMMA_SIZE + 1];
+
+	boolean load(DictReader reader) {
+		mScisNum = reader.readSizeT();
+		for (int i = 0; i <= MAX_LEMMA_SIZE; i++) {
+			mStartPos[i] = reader.readSizeT();
+		}
+		for (int i = 0; i <= MAX_LEMMA_SIZE; i++) {
+			mStartId[i] = reader.readSizeT();
+		}
+		mScisHz = reader.slice(mScisNum * 2).asCharBuffer();
+		// The spelling ids of the single chars are only used to add lemmas
+		// to the user dictionary.
+		reader.slice(mScisNum * 2);
+		ByteBuffer buf = reader.slice(mStartPos[MAX_LEMMA_SIZE] * 2);
+		mBuf = buf.asCharBuffer();
+		return mScisNum > 0;
+	}
+
+	/**
+	 * Copy the string of a lemma into strBuf[start], null-terminated, and
+	 * return its length; return 0 if the id is invalid or the buffer (of
+	 * strMax chars, including the terminator) is too small.
+	 * 获取词条的汉字串。
+	 */
+	int getLemmaStr(int idLemma, char strBuf[], int start, int strMax) {
+		if (idLemma >= mStartId[MAX_LEMMA_SIZE] || strMax <= 1) {
+			return 0;
+		}
+
+		// Find the range.
+		for (int i = 0; i < MAX_LEMMA_SIZE; i++) {
+			if (i + 1 > strMax - 1) {
+				return 0;
+			}
+			if (mStartId[i] <= idLemma && mStartId[i + 1] > idLemma) {
+				int pos = mStartPos[i] + (idLemma - mStartId[i]) * (i + 1);
+				for (int len = 0; len <= i; len++) {
+					strBuf[start + len] = mBuf.get(pos + len);
+				}
+				strBuf[start + i + 1] = 0;
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+import static com.creativept.pinyindemo2.engine.DictDef.DICT_FILE_HEADER_SIZE;
+import static com.creativept.pinyindemo2.engine.DictDef.DICT_FILE_MAGIC;
+import static com.creativept.pinyindemo2.engine.DictDef.DICT_FILE_VERSION;
+import static com.creativept.pinyindemo2.engine.DictDef.MAX_LEMMA_SIZE;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Sequential reader of the dict_pinyin binary. The file is written with
+ * fwrite() of the engine's structs, so every count is a size_t: 4 bytes in the
+ * dictionary shipped in res/raw (built for 32-bit devices), 8 bytes in one
+ * built on a 64-bit host. A version 2 file has a header with the width, in a
+ * version 1 file it is detected from the first field.
+ * 词库二进制文件的顺序读取器，自动识别size_t是4字节还是8字节。
+ * 
+ * @ClassName DictReader
+ */
+final class DictReader {
+	private final ByteBuffer mBuf;
+
+	/**
+	 * sizeof(size_t) of the engine that wrote the file. 写入文件时size_t的字节数
+	 */
+	final int mSizeT;
+
+	/**
+	 * The format version, 0 if the file is not supported. 词库格式版本
+	 */
+	final int mVersion;
+
+	DictReader(ByteBuffer buf) {
+		mBuf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int pos = mBuf.position();
+		if (DICT_FILE_MAGIC == mBuf.getInt(pos)) {
+			int version = mBuf.getInt(pos + 4);
+			mSizeT = mBuf.getInt(pos + 8);
+			int maxLemmaSize = mBuf.getInt(pos + 12);
+			boolean valid = version >= 2 && version <= DICT_FILE_VERSION
+					&& (4 == mSizeT || 8 == mSizeT) && MAX_LEMMA_SIZE == maxLemmaSize;
+			mVersion = valid ? version : 0;
+			mBuf.position(pos + DICT_FILE_HEADER_SIZE);
+		} else {
+			// The file starts with the spelling item size and number. Both
+			// are small, so with a 64-bit size_t the high half of the first
+			// one is 0, while with a 32-bit size_t it is the non-zero
+			// spelling number.
+			mSizeT = 0 == mBuf.getInt(pos + 4) ? 8 : 4;
+			mVersion = 1;
+		}
+	}
+
+	int readSizeT() {
+		long value = 4 == mSizeT ? mBuf.getInt() & 0xffffffffL : mBuf.getLong();
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Bad dictionary field " + value);
+		}
+		return (int) value;
+	}
+
+	float readFloat() {
+		return mBuf.getFloat();
+	}
+
+	int readUnsignedByte() {
+		return mBuf.get() & 0xff;
+	}
+
+	/**
+	 * Return the next len bytes as a little-endian view, and skip them.
+	 * 返回接下来len字节的视图，并跳过这些字节。
+	 */
+	ByteBuffer slice(int len) {
+		ByteBuffer dup = mBuf.duplicate();
+		dup.limit(dup.position() + len);
+		ByteBuffer slice = dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+		mBuf.position(mBuf.position() + len);
+		return slice;
+	}
+
+	/**
+	 * The size of a struct whose largest member is a size_t, the same as the
+	 * padding the compiler adds.
+	 */
+	int alignToSizeT(int size) {
+		return (size + mSizeT - 1) / mSizeT * mSizeT;
+	}
+}
@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+import static com.creativept.pinyindemo2.engine.DictDef.FULL_SPL_ID_START;
+import static com.creativept.pinyindemo2.engine.DictDef.LEMMA_ID_SIZE;
+import static com.creativept.pinyindemo2.engine.DictDef.LMA_NODE_GE1_NUM_WIDE;
+import static com.creativept.pinyindemo2.engine.DictDef.MAX_LEMMA_SIZE;
+import static com.creativept.pinyindemo2.engine.DictDef.SYS_DICT_ID_END;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The system dictionary, the same as dicttrie.cpp. The lemma trie is read in
+ * place from the dictionary buffer: the root and first level nodes are
+ * LmaNodeLE0 structs, deeper nodes are LmaNodeGE1 structs, and lemma ids are
+ * 3-byte little-endian integers. A version 2 dictionary also has a list of
+ * LmaNodeGE1Wide structs, for the nodes with too many sons or homophonies.
+ * 系统词库，与dicttrie.cpp一致。词条Trie树直接从词库缓冲区中读取。
+ *
+ * @ClassName DictTrie
+ */
+public final class DictTrie {
+	private static final int MAX_MILE_STONE = 100;
+	private static final int MAX_PARSING_MARK = 600;
+	/**
+	 * The most the parsing marks and mile stones can grow to.
+	 * 解析标记和里程碑最多扩充到的长度
+	 */
+	private static final int MAX_MILE_STONE_LEN = MAX_MILE_STONE * 16;
+	private static final int MAX_PARSING_MARK_LEN = MAX_PARSING_MARK * 16;
+	private static final int FIRST_VALID_MILE_STONE_HANDLE = 1;
+
+	/**
+	 * Size of the node buffers in {@link #getLpis}. 节点缓冲区大小
+	 */
+	private static final int MAX_EXTENDBUF_LEN = 200;
+
+	/**
+	 * sizeof(LmaNodeGE1): three uint16 and four uint8 fields.
+	 */
+	private static final int GE1_SIZE = 10;
+
+	/**
+	 * sizeof(LmaNodeGE1Wide): one uint32 and two uint16 fields.
+	 */
+	private static final int GE1_WIDE_SIZE = 8;
+
+	final SpellingTrie mSplTrie = new SpellingTrie();
+	final DictList mDictList = new DictList();
+	final NGram mNGram = new NGram();
+
+	private ByteBuffer mRoot;
+	private ByteBuffer mNodesGe1;
+	private ByteBuffer mGe1Wides;
+	private int mGe1WideNum;
+	private ByteBuffer mLmaIdxBuf;
+	private int mLe0Size;
+	private int mLe0SplIdxOff;
+	private int mLmaNodeNumLe0;
+	private int mLmaIdxBufLen;
+	private int mSplidLe0Index[];
+
+	// Parsing marks and mile stones, see dicttrie.h.
+	private int mMarkNodeOffset[] = new int[MAX_PARSING_MARK];
+	private int mMarkNodeNum[] = new int[MAX_PARSING_MARK];
+	private int mParsingMarksPos;
+	private int mMileStoneMarkStart[] = new int[MAX_MILE_STONE];
+	private int mMileStoneMarkNum[] = new int[MAX_MILE_STONE];
+	private int mMileStonesPos;
+
+	// The node buffers of getLpis().
+	private final int mNodeBuf1[] = new int[MAX_EXTENDBUF_LEN];
+	private final int mNodeBuf2[] = new int[MAX_EXTENDBUF_LEN];
+
+	/**
+	 * Load the dictionary. The buffer is used in place, so it should be a
+	 * mapped or otherwise read-only buffer which outlives this object.
+	 * 加载词库。缓冲区被直接使用，不会被拷贝。
+	 *
+	 * @param buf the dict_pinyin binary, from its first byte.
+	 * @return true if the dictionary is valid.
+	 */
+	public boolean load(ByteBuffer buf) {
+		DictReader reader = new DictReader(buf);
+		if (0 == reader.mVersion || !mSplTrie.load(reader) || !mDictList.load(reader) || !loadTrie(reader)
+				|| !mNGram.load(reader)) {
+			return false;
+		}
+		return mLmaIdxBufLen / LEMMA_ID_SIZE <= SYS_DICT_ID_END;
+	}
+
+	private boolean loadTrie(DictReader reader) {
+		mLmaNodeNumLe0 = reader.readSizeT();
+		int lmaNodeNumGe1 = reader.readSizeT();
+		mLmaIdxBufLen = reader.readSizeT();
+		int topLmasNum = reader.readSizeT();
+		if (topLmasNum >= mLmaIdxBufLen) {
+			return false;
+		}
+		mGe1WideNum = reader.mVersion >= 2 ? reader.readSizeT() : 0;
+		mGe1Wides = reader.slice(mGe1WideNum * GE1_WIDE_SIZE);
+
+		// LmaNodeLE0 is two size_t offsets and three uint16 fields.
+		mLe0SplIdxOff = 2 * reader.mSizeT;
+		mLe0Size = reader.alignToSizeT(mLe0SplIdxOff + 6);
+		mRoot = reader.slice(mLmaNodeNumLe0 * mLe0Size);
+		mNodesGe1 = reader.slice(lmaNodeNumGe1 * GE1_SIZE);
+		mLmaIdxBuf = reader.slice(mLmaIdxBufLen);
+
+		int bufSize = mSplTrie.getSpellingNum() + 1;
+		if (mLmaNodeNumLe0 > bufSize) {
+			return false;
+		}
+		mSplidLe0Index = new int[bufSize];
+
+		// The quick index for the first level sons.
+		int lastSplid = FULL_SPL_ID_START;
+		int lastPos = 0;
+		for (int i = 1; i < mLmaNodeNumLe0; i++) {
+			int splIdx = le0SplIdx(i);
+			for (int splid = lastSplid; splid < splIdx; splid++) {
+				mSplidLe0Index[splid - FULL_SPL_ID_START] = lastPos;
+			}
+			mSplidLe0Index[splIdx - FULL_SPL_ID_START] = i;
+			lastSplid = splIdx;
+			lastPos = i;
+		}
+		for (int splid = lastSplid + 1; splid < bufSize + FULL_SPL_ID_START; splid++) {
+			mSplidLe0Index[splid - FULL_SPL_ID_START] = lastPos + 1;
+		}
+
+		resetMilestones(0, FIRST_VALID_MILE_STONE_HANDLE);
+		return true;
+	}
+
+	// Accessors of the LmaNodeLE0 structs.
+
+	private int le0SonFirstOff(int node) {
+		return readSizeT(mRoot, node * mLe0Size);
+	}
+
+	private int le0HomoIdxBufOff(int node) {
+		return readSizeT(mRoot, node * mLe0Size + mLe0SplIdxOff / 2);
+	}
+
+	private int le0SplIdx(int node) {
+		return mRoot.getChar(node * mLe0Size + mLe0SplIdxOff);
+	}
+
+	private int le0NumOfSon(int node) {
+		return mRoot.getChar(node * mLe0Size + mLe0SplIdxOff + 2);
+	}
+
+	private int le0NumOfHomo(int node) {
+		return mRoot.getChar(node * mLe0Size + mLe0SplIdxOff + 4);
+	}
+
+	private int readSizeT(ByteBuffer buf, int off) {
+		// Offsets are far below 2^31, the low half is enough for a 64-bit
+		// size_t.
+		return buf.getInt(off);
+	}
+
+	// Accessors of the LmaNodeGE1 structs.
+
+	private int ge1SonOffset(int node) {
+		int off = node * GE1_SIZE;
+		return mNodesGe1.getChar(off) + ((mNodesGe1.get(off + 8) & 0xff) << 16);
+	}
+
+	private int ge1HomoIdxBufOffset(int node) {
+		int off = node * GE1_SIZE;
+		return mNodesGe1.getChar(off + 2) + ((mNodesGe1.get(off + 9) & 0xff) << 16);
+	}
+
+	private int ge1SplIdx(int node) {
+		return mNodesGe1.getChar(node * GE1_SIZE + 4);
+	}
+
+	private int ge1NumOfSon(int node) {
+		int num = mNodesGe1.get(node * GE1_SIZE + 6) & 0xff;
+		if (LMA_NODE_GE1_NUM_WIDE != num) {
+			return num;
+		}
+		int wide = findGe1Wide(node);
+		return wide < 0 ? num : mGe1Wides.getChar(wide * GE1_WIDE_SIZE + 4);
+	}
+
+	private int ge1NumOfHomo(int node) {
+		int num = mNodesGe1.get(node * GE1_SIZE + 7) & 0xff;
+		if (LMA_NODE_GE1_NUM_WIDE != num) {
+			return num;
+		}
+		int wide = findGe1Wide(node);
+		return wide < 0 ? num : mGe1Wides.getChar(wide * GE1_WIDE_SIZE + 6);
+	}
+
+	/**
+	 * The position of the LmaNodeGE1Wide of a node, -1 if there is none.
+	 */
+	private int findGe1Wide(int node) {
+		int begin = 0;
+		int end = mGe1WideNum;
+		while (begin < end) {
+			int middle = (begin + end) >>> 1;
+			if (mGe1Wides.getInt(middle * GE1_WIDE_SIZE) < node) {
+				begin = middle + 1;
+			} else {
+				end = middle;
+			}
+		}
+		if (begin < mGe1WideNum && mGe1Wides.getInt(begin * GE1_WIDE_SIZE) == node) {
+			return begin;
+		}
+		return -1;
+	}
+
+	/**
+	 * Given numOfSon sons from sonFirst sorted by spelling id, return the
+	 * position of the first one whose spelling id is not less than splid,
+	 * numOfSon if there is none. 二分查找第一个拼音ID不小于splid的子节点
+	 */
+	private int findSon(int sonFirst, int numOfSon, int splid) {
+		int begin = 0;
+		int end = numOfSon;
+		while (begin < end) {
+			int middle = (begin + end) >>> 1;
+			if (ge1SplIdx(sonFirst + middle) < splid) {
+				begin = middle + 1;
+			} else {
+				end = middle;
+			}
+		}
+		return begin;
+	}
+
+	private int getLemmaId(int idOffset) {
+		int off = idOffset * LEMMA_ID_SIZE;
+		return (mLmaIdxBuf.get(off) & 0xff) | ((mLmaIdxBuf.get(off + 1) & 0xff) << 8)
+				| ((mLmaIdxBuf.get(off + 2) & 0xff) << 16);
+	}
+
+	private int fillLpiBuffer(LmaPsbItems items, int start, int lpiMax, int homoBufOff,
+			int numOfHomo, int lmaLen) {
+		int lpiNum = 0;
+		for (int homo = 0; homo < numOfHomo; homo++) {
+			int id = getLemmaId(homoBufOff + homo);
+			items.set(start + lpiNum, id, lmaLen, mNGram.getUniPsb(id));
+			lpiNum++;
+			if (lpiNum >= lpiMax) {
+				break;
+			}
+		}
+		return lpiNum;
+	}
+
+	void resetMilestones(int fromStep, int fromHandle) {
+		if (0 == fromStep) {
+			mParsingMarksPos = 0;
+			mMileStonesPos = FIRST_VALID_MILE_STONE_HANDLE;
+		} else if (fromHandle > 0 && fromHandle < mMileStonesPos) {
+			mMileStonesPos = fromHandle;
+			mParsingMarksPos = mMileStoneMarkStart[fromHandle];
+		}
+	}
+
+	/**
+	 * Extend a dictionary match. The lemmas found are written to items from
+	 * 0, and their number is returned through {@link #mLpiNum}.
+	 * 扩展一个词典匹配，返回新的里程碑句柄，找到的词条写入items。
+	 *
+	 * @return the new mile stone handle, 0 if nothing matched.
+	 */
+	int extendDict(int fromHandle, DictExtPara dep, LmaPsbItems items, int lpiMax,
+			LpiCache lpiCache) {
+		mLpiNum = 0;
+		// From LmaNodeLE0 (root) to LmaNodeLE0.
+		if (0 == fromHandle) {
+			return extendDict0(dep, items, lpiMax, lpiCache);
+		}
+		// From LmaNodeLE0 to LmaNodeGE1, or from LmaNodeGE1 to LmaNodeGE1.
+		return extendDictGe1(fromHandle, dep, items, lpiMax, 1 == dep.mSplIdsExtended);
+	}
+
+	/**
+	 * Number of items written by the last {@link #extendDict}.
+	 */
+	int mLpiNum;
+
+	private int extendDict0(DictExtPara dep, LmaPsbItems items, int lpiMax, LpiCache lpiCache) {
+		int retHandle = 0;
+
+		int splid = dep.mSplIds[dep.mSplIdsExtended];
+		int idStart = dep.mIdStart;
+		int idNum = dep.mIdNum;
+		boolean cached = lpiCache.isCached(splid);
+
+		int sonStart = mSplidLe0Index[idStart - FULL_SPL_ID_START];
+		int sonEnd = mSplidLe0Index[idStart + idNum - FULL_SPL_ID_START];
+		for (int sonPos = sonStart; sonPos < sonEnd; sonPos++) {
+			if (!cached && mLpiNum < lpiMax) {
+				boolean needLpi = true;
+				if (mSplTrie.isHalfIdYunmu(splid) && sonPos != sonStart) {
+					needLpi = false;
+				}
+				if (needLpi) {
+					mLpiNum += fillLpiBuffer(items, mLpiNum, lpiMax - mLpiNum,
+							le0HomoIdxBufOff(sonPos), le0NumOfHomo(sonPos), 1);
+				}
+			}
+
+			int sonSplIdx = le0SplIdx(sonPos);
+			// If necessary, fill in a new mile stone.
+			if (sonSplIdx == idStart) {
+				if (reserveParsingMark()) {
+					mMarkNodeOffset[mParsingMarksPos] = sonPos;
+					mMarkNodeNum[mParsingMarksPos] = idNum & 0xff;
+					mMileStoneMarkStart[mMileStonesPos] = mParsingMarksPos;
+					mMileStoneMarkNum[mMileStonesPos] = 1;
+					retHandle = mMileStonesPos;
+					mParsingMarksPos++;
+					mMileStonesPos++;
+				}
+			}
+
+			if (sonSplIdx >= idStart + idNum - 1) {
+				break;
+			}
+		}
+		return retHandle;
+	}
+
+	/**
+	 * Make sure there is room for one more parsing mark and for the mile stone
+	 * at mMileStonesPos. The lists grow when they are full, because a larger
+	 * dictionary matches more nodes for a spelling.
+	 * 确保还有一个解析标记和当前里程碑的空间，满时扩充。
+	 *
+	 * @return false if the lists have reached their largest length.
+	 */
+	private boolean reserveParsingMark() {
+		if (mParsingMarksPos >= mMarkNodeOffset.length) {
+			if (mMarkNodeOffset.length >= MAX_PARSING_MARK_LEN) {
+				return false;
+			}
+			int len = mMarkNodeOffset.length * 2;
+			mMarkNodeOffset = Arrays.copyOf(mMarkNodeOffset, len);
+			mMarkNodeNum = Arrays.copyOf(mMarkNodeNum, len);
+		}
+		if (mMileStonesPos >= mMileStoneMarkStart.length) {
+			if (mMileStoneMarkStart.length >= MAX_MILE_STONE_LEN) {
+				return false;
+			}
+			int len = mMileStoneMarkStart.length * 2;
+			mMileStoneMarkStart = Arrays.copyOf(mMileStoneMarkStart, len);
+			mMileStoneMarkNum = Arrays.copyOf(mMileStoneMarkNum, len);
+		}
+		return true;
+	}
+
+	private int extendDictGe1(int fromHandle, DictExtPara dep, LmaPsbItems items, int lpiMax,
+			boolean fromLe0) {
+		int retVal = 0;
+		int idStart = dep.mIdStart;
+		int idNum = dep.mIdNum;
+		int lmaLen = fromLe0 ? 2 : dep.mSplIdsExtended + 1;
+
+		int markStart = mMileStoneMarkStart[fromHandle];
+		int markNum = mMileStoneMarkNum[fromHandle];
+		for (int hPos = 0; hPos < markNum; hPos++) {
+			int nodeOffset = mMarkNodeOffset[markStart + hPos];
+			int extNum = mMarkNodeNum[markStart + hPos];
+			for (int extPos = 0; extPos < extNum; extPos++) {
+				int node = nodeOffset + extPos;
+				int sonFirst;
+				int numOfSon;
+				if (fromLe0) {
+					sonFirst = le0SonFirstOff(node);
+					numOfSon = le0NumOfSon(node);
+				} else {
+					sonFirst = ge1SonOffset(node);
+					numOfSon = ge1NumOfSon(node);
+				}
+				int foundStart = 0;
+				int foundNum = 0;
+				for (int sonPos = findSon(sonFirst, numOfSon, idStart); sonPos < numOfSon;
+						sonPos++) {
+					int son = sonFirst + sonPos;
+					int sonSplIdx = ge1SplIdx(son);
+					if (sonSplIdx >= idStart && sonSplIdx < idStart + idNum) {
+						if (mLpiNum < lpiMax) {
+							mLpiNum += fillLpiBuffer(items, mLpiNum, lpiMax - mLpiNum,
+									ge1HomoIdxBufOffset(son), ge1NumOfHomo(son), lmaLen);
+						}
+						// If necessary, fill in the new DTMI.
+						if (0 == foundNum) {
+							foundStart = sonPos;
+						}
+						foundNum++;
+					}
+					if (sonSplIdx >= idStart + idNum - 1 || sonPos == numOfSon - 1) {
+						if (foundNum > 0) {
+							// Only count the marks which are kept.
+							if (reserveParsingMark()) {
+								mMarkNodeOffset[mParsingMarksPos] = sonFirst + foundStart;
+								mMarkNodeNum[mParsingMarksPos] = foundNum & 0xff;
+								if (0 == retVal) {
+									mMileStoneMarkStart[mMileStonesPos] = mParsingMarksPos;
+								}
+								mParsingMarksPos++;
+								retVal++;
+							}
+						}
+						break;
+					}
+				}
+			}
+		}
+
+		if (retVal > 0) {
+			mMileStoneMarkNum[mMileStonesPos] = retVal;
+			return mMileStonesPos++;
+		}
+		return 0;
+	}
+
+	/**
+	 * Get all lemmas matching the spelling id string, which may contain half
+	 * ids. The result is written to items from start.
+	 * 获取与拼音ID串匹配的所有词条。
+	 *
+	 * @return the number of lemmas.
+	 */
+	int getLpis(int splidStr[], int splidStart, int splidStrLen, LmaPsbItems items, int start,
+			int maxLmaBuf) {
+		if (splidStrLen > MAX_LEMMA_SIZE) {
+			return 0;
+		}
+
+		int nodeFr[] = mNodeBuf1;
+		int nodeTo[] = mNodeBuf2;
+		int nodeFrNum = 1;
+		int nodeToNum = 0;
+		nodeFr[0] = 0;
+
+		int splPos = 0;
+		while (splPos < splidStrLen) {
+			int idStart = splidStr[splidStart + splPos];
+			int idNum = 1;
+			// If it is a half id.
+			if (mSplTrie.isHalfId(idStart)) {
+				int halfId = idStart;
+				idStart = mSplTrie.halfToFullStart(halfId);
+				idNum = mSplTrie.halfToFullNum(halfId);
+			}
+
+			if (0 == splPos) {
+				// From LmaNodeLE0 (root) to LmaNodeLE0 nodes.
+				int sonStart = mSplidLe0Index[idStart - FULL_SPL_ID_START];
+				int sonEnd = mSplidLe0Index[idStart + idNum - FULL_SPL_ID_START];
+				for (int sonPos = sonStart; sonPos < sonEnd; sonPos++) {
+					if (nodeToNum < MAX_EXTENDBUF_LEN) {
+						nodeTo[nodeToNum] = sonPos;
+						nodeToNum++;
+					}
+					// idStart + idNum - 1 is the last one, which has just been
+					// recorded.
+					if (le0SplIdx(sonPos) >= idStart + idNum - 1) {
+						break;
+					}
+				}
+			} else {
+				// From LmaNodeLE0 or LmaNodeGE1 to LmaNodeGE1 nodes.
+				for (int nodeFrPos = 0; nodeFrPos < nodeFrNum; nodeFrPos++) {
+					int node = nodeFr[nodeFrPos];
+					int sonFirst;
+					int numOfSon;
+					if (1 == splPos) {
+						sonFirst = le0SonFirstOff(node);
+						numOfSon = le0NumOfSon(node);
+					} else {
+						sonFirst = ge1SonOffset(node);
+						numOfSon = ge1NumOfSon(node);
+					}
+					for (int sonPos = findSon(sonFirst, numOfSon, idStart); sonPos < numOfSon;
+							sonPos++) {
+						int son = sonFirst + sonPos;
+						int sonSplIdx = ge1SplIdx(son);
+						if (sonSplIdx >= idStart && sonSplIdx < idStart + idNum) {
+							if (nodeToNum < MAX_EXTENDBUF_LEN) {
+								nodeTo[nodeToNum] = son;
+								nodeToNum++;
+							}
+						}
+						if (sonSplIdx >= idStart + idNum - 1) {
+							break;
+						}
+					}
+				}
+			}
+
+			splPos++;
+			if (splPos >= splidStrLen || 0 == nodeToNum) {
+				break;
+			}
+			// Prepare the nodes for next extending.
+			int tmp[] = nodeFr;
+			nodeFr = nodeTo;
+			nodeTo = tmp;
+			nodeFrNum = nodeToNum;
+			nodeToNum = 0;
+		}
+
+		if (0 == nodeToNum) {
+			return 0;
+		}
+
+		// If the length is 1, and the splid is a one-char Yunmu like 'a', 'o',
+		// 'e', only those candidates for the full matched one-char id will be
+		// returned.
+		if (1 == splidStrLen && mSplTrie.isHalfIdYunmu(splidStr[splidStart])) {
+			nodeToNum = 1;
+		}
+
+		int lmaNum = 0;
+		for (int nodePos = 0; nodePos < nodeToNum; nodePos++) {
+			int node = nodeTo[nodePos];
+			int numOfHomo;
+			int homoOff;
+			int lmaLen;
+			if (splPos <= 1) {
+				// Get from LmaNodeLE0 nodes.
+				numOfHomo = le0NumOfHomo(node);
+				homoOff = le0HomoIdxBufOff(node);
+				lmaLen = 1;
+			} else {
+				numOfHomo = ge1NumOfHomo(node);
+				homoOff = ge1HomoIdxBufOffset(node);
+				lmaLen = splidStrLen;
+			}
+			for (int homoPos = 0; homoPos < numOfHomo; homoPos++) {
+				int id = getLemmaId(homoOff + homoPos);
+				items.set(start + lmaNum + homoPos, id, lmaLen, mNGram.getUniPsb(id));
+				if (lmaNum + homoPos >= maxLmaBuf - 1) {
+					break;
+				}
+			}
+
+			lmaNum += numOfHomo;
+			if (lmaNum >= maxLmaBuf) {
+				lmaNum = maxLmaBuf;
+				break;
+			}
+		}
+		return lmaNum;
+	}
+
+	int getLemmaStr(int idLemma, char strBuf[], int start, int strMax) {
+		return mDictList.getLemmaStr(idLemma, strBuf, start, strMax);
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+import static com.creativept.pinyindemo2.engine.DictDef.MAX_LEMMA_SIZE;
+
+/**
+ * A buffer of LmaPsbItem (lemma id, length, score and Hanzi for single-char
+ * lemmas) kept in parallel arrays, with the stable sorts the native engine
+ * gets from glibc's qsort().
+ * 词条ID、长度、分数和单字汉字的缓冲区，使用并行数组存放，排序与本地引擎一致（稳定排序）。
+ *
+ * @ClassName LmaPsbItems
+ */
+final class LmaPsbItems {
+	static final int CMP_PSB = 0;
+	static final int CMP_UNIFIED_PSB = 1;
+	static final int CMP_HANZI = 2;
+
+	/**
+	 * Compare the lemma strings in {@link #mStr}. 按词条字符串比较
+	 */
+	static final int CMP_STR = 3;
+
+	private static final int STR_SIZE = MAX_LEMMA_SIZE + 1;
+
+	final int mId[];
+	final int mLmaLen[];
+	final int mPsb[];
+	final char mHanzi[];
+
+	/**
+	 * Null-terminated lemma strings used by {@link #CMP_STR}, STR_SIZE chars
+	 * for each item. 词条字符串，供按字符串排序使用
+	 */
+	final char mStr[];
+
+	private final int mCapacity;
+	private final int mIdx[];
+	private final int mIdxTmp[];
+	private final int mTmp[];
+	private final char mStrTmp[];
+
+	LmaPsbItems(int capacity) {
+		mCapacity = capacity;
+		mId = new int[capacity];
+		mLmaLen = new int[capacity];
+		mPsb = new int[capacity];
+		mHanzi = new char[capacity];
+		mStr = new char[capacity * STR_SIZE];
+		mIdx = new int[capacity];
+		mIdxTmp = new int[capacity];
+		mTmp = new int[capacity];
+		mStrTmp = new char[capacity * STR_SIZE];
+	}
+
+	int capacity() {
+		return mCapacity;
+	}
+
+	void set(int pos, int id, int lmaLen, int psb) {
+		mId[pos] = id;
+		mLmaLen[pos] = lmaLen;
+		mPsb[pos] = psb;
+	}
+
+	void copy(int from, LmaPsbItems dst, int to) {
+		dst.mId[to] = mId[from];
+		dst.mLmaLen[to] = mLmaLen[from];
+		dst.mPsb[to] = mPsb[from];
+		dst.mHanzi[to] = mHanzi[from];
+	}
+
+	int strOffset(int pos) {
+		return pos * STR_SIZE;
+	}
+
+	private int compare(int a, int b, int mode) {
+		switch (mode) {
+		case CMP_PSB:
+			return mPsb[a] - mPsb[b];
+		case CMP_UNIFIED_PSB:
+			// The real unified psb is psb1 / lma_len1 and psb2 / lma_len2,
+			// but psb1 * lma_len2 and psb2 * lma_len1 give better precision.
+			long up1 = (long) mPsb[a] * mLmaLen[b];
+			long up2 = (long) mPsb[b] * mLmaLen[a];
+			return up1 < up2 ? -1 : (up1 > up2 ? 1 : 0);
+		case CMP_HANZI:
+			return mHanzi[a] - mHanzi[b];
+		default:
+			int offA = a * STR_SIZE;
+			int offB = b * STR_SIZE;
+			for (int i = 0; i < STR_SIZE; i++) {
+				char c1 = mStr[offA + i];
+				char c2 = mStr[offB + i];
+				if (c1 != c2 || 0 == c1) {
+					return c1 - c2;
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Stable sort of the items [start, start + num).
+	 * 对[start, start + num)进行稳定排序。
+	 */
+	void sort(int start, int num, int mode) {
+		if (num < 2) {
+			return;
+		}
+		for (int i = 0; i < num; i++) {
+			mIdx[i] = start + i;
+		}
+		mergeSort(0, num, mode);
+
+		permute(mId, start, num);
+		permute(mLmaLen, start, num);
+		permute(mPsb, start, num);
+		for (int i = 0; i < num; i++) {
+			mTmp[i] = mHanzi[mIdx[i]];
+		}
+		for (int i = 0; i < num; i++) {
+			mHanzi[start + i] = (char) mTmp[i];
+		}
+		if (CMP_STR == mode) {
+			for (int i = 0; i < num; i++) {
+				System.arraycopy(mStr, mIdx[i] * STR_SIZE, mStrTmp, i * STR_SIZE, STR_SIZE);
+			}
+			System.arraycopy(mStrTmp, 0, mStr, start * STR_SIZE, num * STR_SIZE);
+		}
+	}
+
+	private void permute(int values[], int start, int num) {
+		for (int i = 0; i < num; i++) {
+			mTmp[i] = values[mIdx[i]];
+		}
+		System.arraycopy(mTmp, 0, values, start, num);
+	}
+
+	private void mergeSort(int from, int to, int mode) {
+		if (to - from < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(from, mid, mode);
+		mergeSort(mid, to, mode);
+		if (compare(mIdx[mid - 1], mIdx[mid], mode) <= 0) {
+			return;
+		}
+		int i = from;
+		int j = mid;
+		int k = from;
+		while (i < mid && j < to) {
+			if (compare(mIdx[j], mIdx[i], mode) < 0) {
+				mIdxTmp[k++] = mIdx[j++];
+			} else {
+				mIdxTmp[k++] = mIdx[i++];
+			}
+		}
+		while (i < mid) {
+			mIdxTmp[k++] = mIdx[i++];
+		}
+		while (j < to) {
+			mIdxTmp[k++] = mIdx[j++];
+		}
+		System.arraycopy(mIdxTmp, from, mIdx, from, to - from);
+	}
+}
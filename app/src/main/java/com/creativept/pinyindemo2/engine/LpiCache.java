@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+import static com.creativept.pinyindemo2.engine.DictDef.FULL_SPL_ID_START;
+
+/**
+ * Caches the best lemmas for each half spelling id extended from the root,
+ * the same as lpicache.cpp. The native cache is a process-wide singleton;
+ * this one belongs to one {@link MatrixSearch}, which gives the same result
+ * because the system dictionary never changes.
+ * 缓存从根节点扩展的每个声母ID的最佳词条，与lpicache.cpp一致。
+ *
+ * @ClassName LpiCache
+ */
+final class LpiCache {
+	private static final int MAX_LPI_CACHE_PER_ID = 15;
+
+	private final LmaPsbItems mItems = new LmaPsbItems(FULL_SPL_ID_START * MAX_LPI_CACHE_PER_ID);
+	private final int mLen[] = new int[FULL_SPL_ID_START];
+
+	boolean isCached(int splId) {
+		return splId < FULL_SPL_ID_START && 0 != mLen[splId];
+	}
+
+	/**
+	 * Cache the first items and return how many are cached.
+	 */
+	int putCache(int splId, LmaPsbItems items, int lpiNum) {
+		int num = Math.min(MAX_LPI_CACHE_PER_ID, lpiNum);
+		int base = splId * MAX_LPI_CACHE_PER_ID;
+		for (int pos = 0; pos < num; pos++) {
+			items.copy(pos, mItems, base + pos);
+		}
+		mLen[splId] = num;
+		return num;
+	}
+
+	int getCache(int splId, LmaPsbItems items, int lpiMax) {
+		int num = Math.min(lpiMax, mLen[splId]);
+		int base = splId * MAX_LPI_CACHE_PER_ID;
+		for (int pos = 0; pos < num; pos++) {
+			mItems.copy(base + pos, items, pos);
+		}
+		return num;
+	}
+}
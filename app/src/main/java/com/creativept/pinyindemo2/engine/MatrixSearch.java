@@ -0,0 +1,1558 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+import static com.creativept.pinyindemo2.engine.DictDef.LEMMA_ID_COMPOSING;
+import static com.creativept.pinyindemo2.engine.DictDef.MAX_LEMMA_SIZE;
+import static com.creativept.pinyindemo2.engine.DictDef.MAX_PINYIN_SIZE;
+import static com.creativept.pinyindemo2.engine.DictDef.MAX_SEARCH_STEPS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pure-Java port of the native decoder, the same as matrixsearch.cpp, so that
+ * decoding can be profiled and tested on the JVM. The system dictionary is
+ * used in place from a (usually memory-mapped) {@link ByteBuffer}, and the
+ * MatrixNode, DictMatchInfo and MatrixRow pools are parallel primitive arrays
+ * indexed by pool position.
+ * 本地解码器（matrixsearch.cpp）的纯Java移植，便于在JVM上分析和测试解码逻辑。系统词库直接从（通常是内存映射的）缓冲区中读取，
+ * 各个节点池使用按池位置索引的并行基本类型数组。
+ *
+ * Not ported: the user dictionary (and so learning in {@link #choose(int)}),
+ * and prediction. With no user dictionary the candidates are the same as
+ * those of the native engine opened without a user dictionary.
+ * 未移植用户词库（因此选择候选词时不会学习）和联想。
+ *
+ * @ClassName MatrixSearch
+ */
+public class MatrixSearch {
+	private static final int MAX_ROW_NUM = MAX_SEARCH_STEPS;
+
+	/**
+	 * The maximum buffer to store LmaPsbItems. 词条缓冲区大小
+	 */
+	private static final int MAX_LMA_PSB_ITEMS = 1450;
+
+	/**
+	 * How many nodes for each step. 每一步最多保留的节点数
+	 */
+	private static final int MAX_NODE_A_ROW = 5;
+
+	private static final int MTRX_ND_POOL_SIZE = 200;
+	private static final int DMI_POOL_SIZE = 800;
+
+	private static final float PRUMING_SCORE = 8000.0f;
+
+	/**
+	 * sizeof(LmaPsbItem) and sizeof(LmaPsbStrItem) of the native engine with
+	 * a 64-bit size_t; get_lpis() is limited by their ratio. With a 32-bit
+	 * size_t LmaPsbStrItem is 28 bytes.
+	 */
+	private static final int LMA_PSB_ITEM_SIZE = 8;
+	private static final int LMA_PSB_STR_ITEM_SIZE = 32;
+
+	private final DictTrie mDictTrie;
+	private final SpellingTrie mSplTrie;
+	private final SpellingParser mSplParser;
+	private final LpiCache mLpiCache = new LpiCache();
+
+	private boolean mXiAnEnabled;
+
+	/**
+	 * Pinyin string. Max length: MAX_ROW_NUM - 1. 拼音字符串
+	 */
+	private final byte mPys[] = new byte[MAX_ROW_NUM];
+	private int mPysDecodedLen;
+
+	/**
+	 * The new string for {@link #addLetter(byte)} when it falls back to
+	 * {@link #search(byte[], int)}.
+	 */
+	private final byte mAddLetterBuf[] = new byte[MAX_ROW_NUM + 1];
+
+	// MatrixNode pool. A node refers to other nodes and DMI nodes by position,
+	// -1 means none.
+	private final int mMtrxId[] = new int[MTRX_ND_POOL_SIZE];
+	private final float mMtrxScore[] = new float[MTRX_ND_POOL_SIZE];
+	private final int mMtrxFrom[] = new int[MTRX_ND_POOL_SIZE];
+	private final int mMtrxDmiFr[] = new int[MTRX_ND_POOL_SIZE];
+	private final int mMtrxStep[] = new int[MTRX_ND_POOL_SIZE];
+	private int mMtrxNdPoolUsed;
+
+	// DictMatchInfo pool.
+	private final int mDmiHandle[] = new int[DMI_POOL_SIZE];
+	private final int mDmiFr[] = new int[DMI_POOL_SIZE];
+	private final int mDmiSplId[] = new int[DMI_POOL_SIZE];
+	private final int mDmiDictLevel[] = new int[DMI_POOL_SIZE];
+	private final boolean mDmiIsCPhrase[] = new boolean[DMI_POOL_SIZE];
+	private final int mDmiSplstrLen[] = new int[DMI_POOL_SIZE];
+	private final boolean mDmiAllFullId[] = new boolean[DMI_POOL_SIZE];
+	private int mDmiPoolUsed;
+
+	// MatrixRow array; the first row is for starting.
+	private final int mRowMtrxNdPos[] = new int[MAX_ROW_NUM];
+	private final int mRowDmiPos[] = new int[MAX_ROW_NUM];
+	private final int mRowMtrxNdNum[] = new int[MAX_ROW_NUM];
+	private final int mRowDmiNum[] = new int[MAX_ROW_NUM];
+	private final boolean mRowDmiHasFullId[] = new boolean[MAX_ROW_NUM];
+	private final int mRowMtrxNdFixed[] = new int[MAX_ROW_NUM];
+
+	private final DictExtPara mDep = new DictExtPara();
+
+	// The starting positions and lemma ids for the full sentence candidate.
+	private int mLmaIdNum;
+	private final int mLmaStart[] = new int[MAX_ROW_NUM];
+	private final int mLmaId[] = new int[MAX_ROW_NUM];
+	private int mFixedLmas;
+	private final boolean mFixedLmasNo1[] = new boolean[MAX_ROW_NUM];
+
+	// Composing phrase, see ComposingPhrase in matrixsearch.h.
+	private final int mCPhraseSplIds[] = new int[MAX_ROW_NUM];
+	private final int mCPhraseSplStart[] = new int[MAX_ROW_NUM];
+	private final char mCPhraseChnStr[] = new char[MAX_ROW_NUM];
+	private final int mCPhraseSublmaStart[] = new int[MAX_ROW_NUM];
+	private int mCPhraseSublmaNum;
+	private int mCPhraseLength;
+
+	private boolean mDmiCPhrase;
+
+	// The starting positions and spelling ids for the first full sentence
+	// candidate.
+	private int mSplIdNum;
+	private final int mSplStart[] = new int[MAX_ROW_NUM];
+	private final int mSplId[] = new int[MAX_ROW_NUM];
+	private int mFixedHzs;
+
+	private final LmaPsbItems mLpiItems = new LmaPsbItems(MAX_LMA_PSB_ITEMS);
+	private int mLpiTotal;
+
+	// Scratch buffers.
+	private final char mStrBuf[] = new char[MAX_LEMMA_SIZE + 1];
+	private final char mFullSent[] = new char[MAX_LEMMA_SIZE + 1];
+	private final int mIdxs[] = new int[MAX_ROW_NUM];
+	private int mRetStrLen;
+
+	/**
+	 * Create a decoder on a loaded system dictionary. A dictionary can be
+	 * shared by several decoders on the same thread.
+	 * 基于已加载的系统词库创建解码器。
+	 */
+	public MatrixSearch(DictTrie dictTrie) {
+		mDictTrie = dictTrie;
+		mSplTrie = dictTrie.mSplTrie;
+		mSplParser = new SpellingParser(mSplTrie);
+		resetSearch0();
+	}
+
+	/**
+	 * Map a dictionary file read-only and load it.
+	 * 以只读方式映射词库文件并加载。
+	 *
+	 * @param channel the file, it may be closed after this call.
+	 * @param offset the start of dict_pinyin in the file, for example the
+	 *        start offset of an AssetFileDescriptor.
+	 * @param length the length of dict_pinyin.
+	 * @return the loaded dictionary, or null if it is not valid.
+	 */
+	public static DictTrie loadDict(FileChannel channel, long offset, long length)
+			throws IOException {
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		DictTrie dictTrie = new DictTrie();
+		return dictTrie.load(buf) ? dictTrie : null;
+	}
+
+	public void setXiAnSwitch(boolean xiAnEnabled) {
+		mXiAnEnabled = xiAnEnabled;
+	}
+
+	public boolean getXiAnSwitch() {
+		return mXiAnEnabled;
+	}
+
+	/**
+	 * Reset the search space. 重置查询空间
+	 */
+	public void resetSearch() {
+		// Forget the string too, so that addLetter() starts a new one.
+		mPys[0] = 0;
+		resetSearch0();
+	}
+
+	private void resetSearch0() {
+		mPysDecodedLen = 0;
+		mMtrxNdPoolUsed = 0;
+		mDmiPoolUsed = 0;
+
+		// Get a MatrixNode from the pool and make it a starting node.
+		mRowMtrxNdPos[0] = mMtrxNdPoolUsed;
+		mRowMtrxNdNum[0] = 1;
+		mMtrxNdPoolUsed += 1;
+
+		int node = mRowMtrxNdPos[0];
+		mMtrxId[node] = 0;
+		mMtrxScore[node] = 0;
+		mMtrxFrom[node] = -1;
+		mMtrxStep[node] = 0;
+		mMtrxDmiFr[node] = -1;
+
+		mRowDmiPos[0] = 0;
+		mRowDmiNum[0] = 0;
+		mRowDmiHasFullId[0] = true;
+		mRowMtrxNdFixed[0] = node;
+
+		mLmaStart[0] = 0;
+		mFixedLmas = 0;
+		mSplStart[0] = 0;
+		mFixedHzs = 0;
+
+		mDictTrie.resetMilestones(0, 0);
+	}
+
+	private boolean resetSearch(int chPos, boolean clearFixedThisStep, boolean clearDmiThisStep,
+			boolean clearMtrxThisStep) {
+		if (chPos > mPysDecodedLen || chPos >= MAX_ROW_NUM) {
+			return false;
+		}
+
+		if (0 == chPos) {
+			resetSearch0();
+			return true;
+		}
+
+		// Prepare mile stones of this step to clear.
+		int handleToClear = -1;
+		if (clearDmiThisStep && mRowDmiNum[chPos] > 0) {
+			handleToClear = mDmiHandle[mRowDmiPos[chPos]];
+		}
+		// If there are more steps, and this step is not allowed to clear, find
+		// milestones of next step.
+		if (mPysDecodedLen > chPos && !clearDmiThisStep) {
+			handleToClear = -1;
+			if (mRowDmiNum[chPos + 1] > 0) {
+				handleToClear = mDmiHandle[mRowDmiPos[chPos + 1]];
+			}
+		}
+		if (handleToClear >= 0) {
+			mDictTrie.resetMilestones(chPos, handleToClear);
+		}
+
+		mPysDecodedLen = chPos;
+
+		if (clearDmiThisStep) {
+			mDmiPoolUsed = mRowDmiPos[chPos - 1] + mRowDmiNum[chPos - 1];
+			mRowDmiNum[chPos] = 0;
+		} else {
+			mDmiPoolUsed = mRowDmiPos[chPos] + mRowDmiNum[chPos];
+		}
+
+		if (clearMtrxThisStep) {
+			mMtrxNdPoolUsed = mRowMtrxNdPos[chPos - 1] + mRowMtrxNdNum[chPos - 1];
+			mRowMtrxNdNum[chPos] = 0;
+		} else {
+			mMtrxNdPoolUsed = mRowMtrxNdPos[chPos] + mRowMtrxNdNum[chPos];
+		}
+
+		// Modify mFixedHzs.
+		if (mFixedHzs > 0 && (LEMMA_ID_COMPOSING != mLmaId[0]
+				|| mSplStart[mCPhraseLength] <= chPos)) {
+			int fixedChPos = chPos;
+			if (clearFixedThisStep) {
+				fixedChPos = fixedChPos > 0 ? fixedChPos - 1 : 0;
+			}
+			while (mRowMtrxNdFixed[fixedChPos] < 0 && fixedChPos > 0) {
+				fixedChPos--;
+			}
+
+			mFixedLmas = 0;
+			mFixedHzs = 0;
+			if (fixedChPos > 0) {
+				while (mSplStart[mFixedHzs] < fixedChPos) {
+					mFixedHzs++;
+				}
+				while (mLmaStart[mFixedLmas] < mFixedHzs) {
+					mFixedLmas++;
+				}
+			}
+
+			// Re-search the Pinyin string for the unlocked lemma which was
+			// previously fixed.
+			handleToClear = -1;
+			if (clearDmiThisStep && chPos == fixedChPos && mRowDmiNum[fixedChPos] > 0) {
+				handleToClear = mDmiHandle[mRowDmiPos[fixedChPos]];
+			}
+			if (mPysDecodedLen > fixedChPos && !clearDmiThisStep) {
+				handleToClear = -1;
+				if (mRowDmiNum[fixedChPos + 1] > 0) {
+					handleToClear = mDmiHandle[mRowDmiPos[fixedChPos + 1]];
+				}
+			}
+			if (handleToClear >= 0) {
+				mDictTrie.resetMilestones(fixedChPos, handleToClear);
+			}
+
+			mPysDecodedLen = fixedChPos;
+
+			if (clearDmiThisStep && chPos == fixedChPos) {
+				mDmiPoolUsed = mRowDmiPos[fixedChPos - 1] + mRowDmiNum[fixedChPos - 1];
+				mRowDmiNum[fixedChPos] = 0;
+			} else {
+				mDmiPoolUsed = mRowDmiPos[fixedChPos] + mRowDmiNum[fixedChPos];
+			}
+
+			if (clearMtrxThisStep && chPos == fixedChPos) {
+				mMtrxNdPoolUsed = mRowMtrxNdPos[fixedChPos - 1] + mRowMtrxNdNum[fixedChPos - 1];
+				mRowMtrxNdNum[fixedChPos] = 0;
+			} else {
+				mMtrxNdPoolUsed = mRowMtrxNdPos[fixedChPos] + mRowMtrxNdNum[fixedChPos];
+			}
+
+			for (int rePos = fixedChPos; rePos < chPos; rePos++) {
+				addChar(mPys[rePos]);
+			}
+		} else if (mFixedHzs > 0 && LEMMA_ID_COMPOSING == mLmaId[0]) {
+			for (int subpos = 0; subpos < mCPhraseSublmaNum; subpos++) {
+				int splposBegin = mCPhraseSublmaStart[subpos];
+				int splposEnd = mCPhraseSublmaStart[subpos + 1];
+				for (int splpos = splposBegin; splpos < splposEnd; splpos++) {
+					// If chPos is in this spelling.
+					int splStart = mCPhraseSplStart[splpos];
+					int splEnd = mCPhraseSplStart[splpos + 1];
+					if (chPos >= splStart && chPos < splEnd) {
+						// Clear everything after this position.
+						mCPhraseChnStr[splpos] = 0;
+						mCPhraseSublmaStart[subpos + 1] = splpos;
+						mCPhraseSublmaNum = subpos + 1;
+						mCPhraseLength = splpos;
+						if (splpos == splposBegin) {
+							mCPhraseSublmaNum = subpos;
+						}
+					}
+				}
+			}
+
+			// Extend the composing phrase.
+			resetSearch0();
+			extendComposingPhrase(mSplStart[mCPhraseLength]);
+		}
+		return true;
+	}
+
+	/**
+	 * Decode the first cPyLen chars again, matching only the composing
+	 * phrase, and fix it as the first lemma.
+	 */
+	private void extendComposingPhrase(int cPyLen) {
+		mDmiCPhrase = true;
+		for (int cPyPos = 0; cPyPos < cPyLen; cPyPos++) {
+			addChar(mPys[cPyPos]);
+		}
+		mDmiCPhrase = false;
+
+		mLmaIdNum = 1;
+		mFixedLmas = 1;
+		mFixedLmasNo1[0] = false; // A composing string is always modified.
+		mFixedHzs = mCPhraseLength;
+		mLmaStart[1] = mFixedHzs;
+		mLmaId[0] = LEMMA_ID_COMPOSING;
+		int step = mSplStart[mFixedHzs];
+		mRowMtrxNdFixed[step] = mRowMtrxNdPos[step];
+	}
+
+	private void delInPys(int start, int len) {
+		while (start < MAX_ROW_NUM - len && 0 != mPys[start]) {
+			mPys[start] = mPys[start + len];
+			start++;
+		}
+	}
+
+	/**
+	 * Search a Pinyin string. 查询拼音字符串
+	 *
+	 * @param py the Pinyin string, only the first pyLen chars are used.
+	 * @return the position successfully parsed.
+	 */
+	public int search(byte py[], int pyLen) {
+		if (null == py) {
+			return 0;
+		}
+		// If the search Pinyin string is too long, it will be truncated.
+		if (pyLen > MAX_ROW_NUM - 1) {
+			pyLen = MAX_ROW_NUM - 1;
+		}
+
+		// Compare the new string with the previous one. Find their prefix to
+		// increase search efficiency.
+		int chPos;
+		for (chPos = 0; chPos < mPysDecodedLen; chPos++) {
+			if (chPos >= pyLen || 0 == py[chPos] || py[chPos] != mPys[chPos]) {
+				break;
+			}
+		}
+
+		boolean clearFix = chPos != mPysDecodedLen;
+		resetSearch(chPos, clearFix, false, false);
+
+		System.arraycopy(py, chPos, mPys, chPos, pyLen - chPos);
+		mPys[pyLen] = 0;
+
+		return searchFrom(chPos, pyLen);
+	}
+
+	/**
+	 * Append a letter to the Pinyin string and search, the same as
+	 * {@link #search(byte[], int)} with the whole new string.
+	 * 在拼音字符串末尾添加一个字母并查询，结果与用整个新字符串查询相同。
+	 *
+	 * @return the position successfully parsed.
+	 */
+	public int addLetter(byte ch) {
+		int pyLen = 0;
+		while (pyLen < MAX_ROW_NUM && 0 != mPys[pyLen]) {
+			pyLen++;
+		}
+
+		// If the string is not decoded to its end, or it is full, search()
+		// handles it the same as a new string.
+		if (pyLen != mPysDecodedLen || pyLen >= MAX_ROW_NUM - 1) {
+			System.arraycopy(mPys, 0, mAddLetterBuf, 0, pyLen);
+			mAddLetterBuf[pyLen] = ch;
+			return search(mAddLetterBuf, pyLen + 1);
+		}
+
+		// The whole string is the common prefix.
+		resetSearch(pyLen, false, false, false);
+
+		mPys[pyLen] = ch;
+		mPys[pyLen + 1] = 0;
+
+		return searchFrom(pyLen, pyLen + 1);
+	}
+
+	/**
+	 * Decode {@link #mPys} from chPos, the common part of search() and
+	 * addLetter().
+	 */
+	private int searchFrom(int chPos, int pyLen) {
+		while (0 != mPys[chPos]) {
+			if (!addChar(mPys[chPos])) {
+				mPysDecodedLen = chPos;
+				break;
+			}
+			chPos++;
+		}
+
+		// Get spelling ids and starting positions.
+		getSplStartId();
+
+		// If there are too many spellings, remove the last letter until the
+		// spelling number is acceptable.
+		while (mSplIdNum > 9) {
+			pyLen--;
+			resetSearch(pyLen, false, false, false);
+			mPys[pyLen] = 0;
+			getSplStartId();
+		}
+
+		prepareCandidates();
+		return chPos;
+	}
+
+	/**
+	 * Delete something in the Pinyin string and search again.
+	 * 删除拼音字符串中的内容，然后重新查询。
+	 *
+	 * @param pos the position of the char, or of the spelling id if
+	 *        isPosInSplid is true.
+	 * @return the new length of the Pinyin string parsed successfully.
+	 */
+	public int delSearch(int pos, boolean isPosInSplid, boolean clearFixedThisStep) {
+		int resetPos = pos;
+
+		// Out of range for both Pinyin mode and Spelling id mode.
+		if (mPysDecodedLen <= pos) {
+			delInPys(pos, 1);
+
+			resetPos = mPysDecodedLen;
+			// Decode the string after the un-decoded position.
+			while (0 != mPys[resetPos]) {
+				if (!addChar(mPys[resetPos])) {
+					mPysDecodedLen = resetPos;
+					break;
+				}
+				resetPos++;
+			}
+			getSplStartId();
+			prepareCandidates();
+			return mPysDecodedLen;
+		}
+
+		// Spelling id mode, but out of range.
+		if (isPosInSplid && mSplIdNum <= pos) {
+			return mPysDecodedLen;
+		}
+
+		// Pinyin mode by default.
+		int cPyLen = 0; // The length of composing phrase's Pinyin.
+		int delPyLen = 1;
+		if (!isPosInSplid) {
+			// Pinyin mode is only allowed to delete beyond the fixed lemmas.
+			if (mFixedLmas > 0 && pos < mSplStart[mLmaStart[mFixedLmas]]) {
+				return mPysDecodedLen;
+			}
+
+			delInPys(pos, 1);
+
+			// If the deleted character is just the one after the last fixed
+			// lemma, and all fixed lemmas have been merged, unlock the last
+			// sub lemma by decoding the modified composing phrase again.
+			if (pos == mSplStart[mLmaStart[mFixedLmas]] && LEMMA_ID_COMPOSING == mLmaId[0]
+					&& clearFixedThisStep) {
+				mCPhraseSublmaNum--;
+				mCPhraseLength = mCPhraseSublmaStart[mCPhraseSublmaNum];
+				resetPos = mSplStart[mCPhraseLength];
+				cPyLen = resetPos;
+			}
+		} else {
+			delPyLen = mSplStart[pos + 1] - mSplStart[pos];
+
+			delInPys(mSplStart[pos], delPyLen);
+
+			if (pos >= mLmaStart[mFixedLmas]) {
+				cPyLen = 0;
+				resetPos = mSplStart[pos + 1] - delPyLen;
+			} else {
+				cPyLen = mSplStart[mLmaStart[mFixedLmas]] - delPyLen;
+				resetPos = cPyLen;
+				if (cPyLen > 0) {
+					mergeFixedLmas(pos);
+				}
+			}
+		}
+
+		if (cPyLen > 0) {
+			// The composing phrase is valid, reset all search space, and begin
+			// a new search which will only extend the composing phrase.
+			resetSearch0();
+			extendComposingPhrase(cPyLen);
+		} else {
+			// Reseting search only clears mPysDecodedLen, but the string is
+			// kept.
+			resetSearch(resetPos, clearFixedThisStep, false, false);
+		}
+
+		// Decode the string after the delete position.
+		while (0 != mPys[resetPos]) {
+			if (!addChar(mPys[resetPos])) {
+				mPysDecodedLen = resetPos;
+				break;
+			}
+			resetPos++;
+		}
+
+		getSplStartId();
+		prepareCandidates();
+		return mPysDecodedLen;
+	}
+
+	/**
+	 * Get the number of candidates, called after search().
+	 * 获取候选词数量。
+	 */
+	public int getCandidateNum() {
+		if (0 == mPysDecodedLen || 0 == mRowMtrxNdNum[mPysDecodedLen]) {
+			return 0;
+		}
+		return 1 + mLpiTotal;
+	}
+
+	/**
+	 * Get one candidate. If the full sentence candidate is available, it is
+	 * the first one. 获取一个候选词，第一个是完整句子。
+	 *
+	 * @return the candidate, or null if the id is not valid.
+	 */
+	public String getCandidate(int candId) {
+		char buf[] = new char[MAX_ROW_NUM + 1];
+		int len = getCandidate(candId, buf, buf.length);
+		return len < 0 ? null : new String(buf, 0, len);
+	}
+
+	/**
+	 * Copy one candidate to candStr, null-terminated.
+	 * 把一个候选词拷贝到candStr中。
+	 *
+	 * @return the length of the candidate, or -1 if it is not available.
+	 */
+	public int getCandidate(int candId, char candStr[], int maxLen) {
+		if (0 == mPysDecodedLen || null == candStr) {
+			return -1;
+		}
+
+		if (0 == candId) {
+			return getCandidate0(candStr, maxLen, false) ? mRetStrLen : -1;
+		} else {
+			candId--;
+		}
+
+		// For this case: the current sentence is a word only, and the user
+		// fixed it, so the result will be fixed to the sentence space, and
+		// mLpiTotal will be set to 0.
+		if (0 == mLpiTotal) {
+			return getCandidate0(candStr, maxLen, false) ? mRetStrLen : -1;
+		}
+
+		int sLen = mLpiItems.mLmaLen[candId];
+		if (sLen > 1) {
+			sLen = getLemmaStr(mLpiItems.mId[candId], mStrBuf, 0, MAX_LEMMA_SIZE + 1);
+		} else {
+			// For a single character, Hanzi is ready.
+			mStrBuf[0] = mLpiItems.mHanzi[candId];
+			mStrBuf[1] = 0;
+		}
+
+		if (sLen > 0 && maxLen > sLen) {
+			System.arraycopy(mStrBuf, 0, candStr, 0, sLen);
+			candStr[sLen] = 0;
+			return sLen;
+		}
+		return -1;
+	}
+
+	/**
+	 * Choose a candidate. The decoder will do a search after the fixed
+	 * position. 选择一个候选词，解码器会在固定位置之后重新查询。
+	 *
+	 * @return the number of candidates after choosing.
+	 */
+	public int choose(int candId) {
+		if (0 == mPysDecodedLen) {
+			return 0;
+		}
+
+		if (0 == candId) {
+			mFixedHzs = mSplIdNum;
+			int step = mSplStart[mFixedHzs];
+			mRowMtrxNdFixed[step] = mRowMtrxNdPos[step];
+			for (int pos = mFixedLmas; pos < mLmaIdNum; pos++) {
+				mFixedLmasNo1[pos] = true;
+			}
+			mFixedLmas = mLmaIdNum;
+			mLpiTotal = 0; // Clean all other candidates.
+			return 1;
+		} else {
+			candId--;
+		}
+
+		// It is not the full sentence candidate. Find the length of it.
+		int idChosen = mLpiItems.mId[candId];
+		int scoreChosen = mLpiItems.mPsb[candId];
+		int candLen = mLpiItems.mLmaLen[candId];
+
+		// Fix the chosen item.
+		int stepFr = mSplStart[mFixedHzs];
+		int stepTo = mSplStart[mFixedHzs + candLen];
+
+		// Save the length of the original string.
+		int pysDecodedLen = mPysDecodedLen;
+
+		// Reset the space of the fixed part.
+		resetSearch(stepTo, false, false, true);
+
+		// For the last character of the fixed part, the previous DMI
+		// information will be kept, while the MTRX information will be
+		// re-extended, and only one node will be extended.
+		mRowMtrxNdNum[stepTo] = 0;
+
+		mLpiItems.set(0, idChosen, candLen, scoreChosen);
+		int stepToDmiFr = matchDmi(stepTo, mSplId, mFixedHzs, candLen);
+
+		// The chosen item is extended alone, it is the only one in the buffer
+		// now because the other candidates are prepared again below.
+		extendMtrxNd(mRowMtrxNdFixed[stepFr], mLpiItems, 1, stepToDmiFr, stepTo);
+
+		mRowMtrxNdFixed[stepTo] = mRowMtrxNdPos[stepTo];
+		mMtrxNdPoolUsed = mRowMtrxNdPos[stepTo] + mRowMtrxNdNum[stepTo];
+
+		mFixedLmasNo1[mFixedLmas] = idChosen == mLmaId[mFixedLmas];
+		mLmaId[mFixedLmas] = idChosen;
+		mLmaStart[mFixedLmas + 1] = mLmaStart[mFixedLmas] + candLen;
+		mFixedLmas++;
+		mFixedHzs = mFixedHzs + candLen;
+
+		while (stepTo != pysDecodedLen) {
+			addChar(mPys[stepTo]);
+			stepTo++;
+		}
+
+		if (mFixedHzs < mSplIdNum) {
+			prepareCandidates();
+		} else {
+			mLpiTotal = 0;
+		}
+		return getCandidateNum();
+	}
+
+	/**
+	 * Cancel the last choosing operation. 取消最后一次选择
+	 *
+	 * @return the new number of candidates.
+	 */
+	public int cancelLastChoice() {
+		if (0 == mPysDecodedLen) {
+			return 0;
+		}
+
+		if (mFixedHzs > 0) {
+			int stepEnd = mSplStart[mFixedHzs];
+			int endNode = mRowMtrxNdFixed[stepEnd];
+			int stepStart = mMtrxStep[mMtrxFrom[endNode]];
+
+			if (stepStart > 0) {
+				mFixedHzs -= mDmiDictLevel[mMtrxDmiFr[endNode]];
+			} else {
+				mFixedHzs = 0;
+			}
+
+			resetSearch(stepStart, false, false, false);
+
+			while (0 != mPys[stepStart]) {
+				addChar(mPys[stepStart]);
+				stepStart++;
+			}
+
+			prepareCandidates();
+		}
+		return getCandidateNum();
+	}
+
+	/**
+	 * Get the number of fixed Hanzis. 获取固定的汉字数
+	 */
+	public int getFixedLen() {
+		if (0 == mPysDecodedLen) {
+			return 0;
+		}
+		return mFixedHzs;
+	}
+
+	/**
+	 * Get the Pinyin string kept by the decoder. 获取解码器保存的拼音字符串
+	 *
+	 * @param decoded if true, only the part decoded successfully.
+	 */
+	public String getPyStr(boolean decoded) {
+		int len = mPysDecodedLen;
+		if (!decoded) {
+			len = 0;
+			while (len < MAX_ROW_NUM && 0 != mPys[len]) {
+				len++;
+			}
+		}
+		char str[] = new char[len];
+		for (int i = 0; i < len; i++) {
+			str[i] = (char) mPys[i];
+		}
+		return new String(str);
+	}
+
+	public int getDecodedLen() {
+		return mPysDecodedLen;
+	}
+
+	/**
+	 * Get the spelling boundaries of the first sentence candidate, in the
+	 * same layout as PinyinDecoderService.nativeImGetSplStart(): element 0 is
+	 * the number of spellings n, then n + 1 starting positions.
+	 * 获取第一个完整句子的拼音边界。
+	 */
+	public int[] getSplStart() {
+		getSplStartId();
+		int ret[] = new int[mSplIdNum + 2];
+		ret[0] = mSplIdNum;
+		for (int i = 0; i <= mSplIdNum; i++) {
+			ret[i + 1] = mSplStart[i];
+		}
+		return ret;
+	}
+
+	private boolean prepareAddChar(byte ch) {
+		if (mPysDecodedLen >= MAX_ROW_NUM - 1
+				|| (!SpellingParser.isValidToParse(ch) && ch != '\'')) {
+			return false;
+		}
+		if (mDmiPoolUsed >= DMI_POOL_SIZE) {
+			return false;
+		}
+
+		mPys[mPysDecodedLen] = ch;
+		mPysDecodedLen++;
+
+		int row = mPysDecodedLen;
+		mRowMtrxNdPos[row] = mMtrxNdPoolUsed;
+		mRowMtrxNdNum[row] = 0;
+		mRowDmiPos[row] = mDmiPoolUsed;
+		mRowDmiNum[row] = 0;
+		mRowDmiHasFullId[row] = false;
+		return true;
+	}
+
+	private boolean isSplitAt(int pos) {
+		return !SpellingParser.isValidToParse(mPys[pos - 1]);
+	}
+
+	private void fillDmi(int dmi, int handle, int dmiFr, int splId, int dictLevel,
+			boolean splidEndSplit, int splstrLen, boolean allFullId) {
+		mDmiHandle[dmi] = handle;
+		mDmiFr[dmi] = dmiFr;
+		mDmiSplId[dmi] = splId;
+		mDmiDictLevel[dmi] = dictLevel;
+		mDmiSplstrLen[dmi] = splstrLen;
+		mDmiAllFullId[dmi] = allFullId;
+		mDmiIsCPhrase[dmi] = false;
+	}
+
+	private boolean addChar(byte ch) {
+		if (!prepareAddChar(ch)) {
+			return false;
+		}
+		return addCharQwerty();
+	}
+
+	private boolean addCharQwerty() {
+		final int curRow = mPysDecodedLen;
+		mRowMtrxNdNum[curRow] = 0;
+
+		boolean splMatched = false;
+		int longestExt = 0;
+		// Extend the search matrix, from the oldest unfixed row. extLen means
+		// extending length.
+		for (int extLen = MAX_PINYIN_SIZE + 1; extLen > 0; extLen--) {
+			if (extLen > curRow - mSplStart[mFixedHzs]) {
+				continue;
+			}
+
+			// Refer to dmi_has_full_id in matrixsearch.h: prevent the unwise
+			// extending of "shoud ou" but allow "heng ao", "lang a", etc.
+			if (extLen > 1 && 0 != longestExt && !mRowDmiHasFullId[curRow - extLen]) {
+				if (mXiAnEnabled) {
+					continue;
+				} else {
+					break;
+				}
+			}
+
+			int oldrow = curRow - extLen;
+
+			// 0. If that row is before the last fixed step, ignore.
+			if (mSplStart[mFixedHzs] > oldrow) {
+				continue;
+			}
+
+			// 1. Check if that old row has valid MatrixNode. If no, means that
+			// row is not a boundary, either a word boundary or a spelling
+			// boundary. If it is for extending composing phrase, it's OK to
+			// ignore the 0.
+			if (0 == mRowMtrxNdNum[oldrow] && !mDmiCPhrase) {
+				continue;
+			}
+
+			// 2. Get spelling id(s) for the last extLen chars.
+			int splIdx = mSplParser.getSplIdByStr(mPys, oldrow, extLen);
+			if (mSplParser.mIsPre) {
+				splMatched = true;
+			}
+			if (0 == splIdx) {
+				continue;
+			}
+
+			boolean splidEndSplit = isSplitAt(oldrow + extLen);
+
+			// 3. Extend the DMI nodes of that old row; the extra one is to
+			// extend from the root.
+			int dmiEnd = mRowDmiPos[oldrow] + mRowDmiNum[oldrow];
+			for (int dmiPos = mRowDmiPos[oldrow]; dmiPos < dmiEnd + 1; dmiPos++) {
+				int dmi = dmiPos;
+				if (dmiPos == dmiEnd) {
+					dmi = -1; // The last one, -1 means extending from the root.
+				} else {
+					// If the dmi is covered by the fixed arrange, ignore it.
+					if (mFixedHzs > 0
+							&& curRow - extLen - mDmiSplstrLen[dmi] < mSplStart[mFixedHzs]) {
+						continue;
+					}
+					// If it is not in mode for composing phrase, and the
+					// source DMI node is marked for composing phrase, ignore
+					// this node.
+					if (mDmiIsCPhrase[dmi] && !mDmiCPhrase) {
+						continue;
+					}
+				}
+
+				// For example, if "gao" is extended, "g ao" is not allowed.
+				// or "zh" has been passed, "z h" is not allowed.
+				// Both word and word-connection will be prevented.
+				if (longestExt > extLen) {
+					if (dmi < 0 && !mRowDmiHasFullId[oldrow]) {
+						continue;
+					}
+					// "z h" is not allowed.
+					if (dmi >= 0 && mSplTrie.isHalfId(mDmiSplId[dmi])) {
+						continue;
+					}
+				}
+
+				DictExtPara dep = mDep;
+				dep.mSplIdsExtended = 0;
+				if (dmi >= 0) {
+					int prevIdsNum = mDmiDictLevel[dmi];
+					if ((!mDmiCPhrase && prevIdsNum >= MAX_LEMMA_SIZE)
+							|| (mDmiCPhrase && prevIdsNum >= MAX_ROW_NUM)) {
+						continue;
+					}
+
+					int d = dmi;
+					while (true) {
+						dep.mSplIds[--prevIdsNum] = mDmiSplId[d];
+						if (-1 == mDmiFr[d]) {
+							break;
+						}
+						d = mDmiFr[d];
+					}
+					dep.mSplIdsExtended = mDmiDictLevel[dmi];
+				}
+				dep.mSplIds[dep.mSplIdsExtended] = splIdx;
+				dep.mExtLen = extLen;
+				dep.mSplIdEndSplit = splidEndSplit;
+
+				dep.mIdNum = 1;
+				dep.mIdStart = splIdx;
+				if (mSplTrie.isHalfId(splIdx)) {
+					// Get the full id list.
+					dep.mIdStart = mSplTrie.halfToFullStart(splIdx);
+					dep.mIdNum = mSplTrie.halfToFullNum(splIdx);
+				}
+
+				int newDmiNum = extendDmi(dep, dmi);
+
+				if (newDmiNum > 0) {
+					if (mDmiCPhrase) {
+						mDmiIsCPhrase[mDmiPoolUsed] = true;
+					}
+					mRowDmiNum[curRow] += newDmiNum;
+					mDmiPoolUsed += newDmiNum;
+
+					if (!mSplTrie.isHalfId(splIdx)) {
+						mRowDmiHasFullId[curRow] = true;
+					}
+				}
+
+				// If get candidate lemmas, try to extend the path.
+				if (mLpiTotal > 0) {
+					int frRow = dmi < 0 ? oldrow : oldrow - mDmiSplstrLen[dmi];
+					int mtrxNdEnd = mRowMtrxNdPos[frRow] + mRowMtrxNdNum[frRow];
+					for (int mtrxNd = mRowMtrxNdPos[frRow]; mtrxNd < mtrxNdEnd; mtrxNd++) {
+						extendMtrxNd(mtrxNd, mLpiItems, mLpiTotal, mDmiPoolUsed - newDmiNum, curRow);
+						if (0 == longestExt) {
+							longestExt = extLen;
+						}
+					}
+				}
+			}
+		}
+		mMtrxNdPoolUsed += mRowMtrxNdNum[curRow];
+
+		if (mDmiCPhrase) {
+			return true;
+		}
+		return 0 != mRowMtrxNdNum[curRow] || splMatched;
+	}
+
+	private void prepareCandidates() {
+		// Get candidates from the first un-fixed step.
+		int lmaSizeMax = MAX_LEMMA_SIZE;
+		if (lmaSizeMax > mSplIdNum - mFixedHzs) {
+			lmaSizeMax = mSplIdNum - mFixedHzs;
+		}
+		int lmaSize = lmaSizeMax;
+
+		// If the full sentence candidate's unfixed part may be the same with a
+		// normal lemma, remove the lemma candidate in this case.
+		boolean hasFullSent = getCandidate0(mFullSent, MAX_LEMMA_SIZE + 1, true);
+		// If the unfixed part contains more than one ids, it is not necessary
+		// to compare it with the lemmas.
+		if (hasFullSent && mRetStrLen > MAX_LEMMA_SIZE) {
+			hasFullSent = false;
+		}
+
+		mLpiTotal = 0;
+		int lpiNumFullMatch = 0; // Number of items which are fully-matched.
+		while (lmaSize > 0) {
+			int lmaNum = getLpis(mSplId, mFixedHzs, lmaSize, mLpiTotal,
+					MAX_LMA_PSB_ITEMS - mLpiTotal, hasFullSent, lmaSize == lmaSizeMax);
+			if (lmaNum > 0) {
+				mLpiTotal += lmaNum;
+				// For next lemma candidates which are not the longest, it is
+				// not necessary to compare with the full sentence candidate.
+				hasFullSent = false;
+			}
+			if (lmaSize == lmaSizeMax) {
+				lpiNumFullMatch = mLpiTotal;
+			}
+			lmaSize--;
+		}
+
+		// Sort those partially-matched items by their unified scores.
+		mLpiItems.sort(lpiNumFullMatch, mLpiTotal - lpiNumFullMatch, LmaPsbItems.CMP_UNIFIED_PSB);
+	}
+
+	private void mergeFixedLmas(int delSplPos) {
+		if (0 == mFixedLmas) {
+			return;
+		}
+		// Update spelling segmentation information first.
+		mSplIdNum -= 1;
+		int delPyLen = mSplStart[delSplPos + 1] - mSplStart[delSplPos];
+		for (int pos = delSplPos; pos <= mSplIdNum; pos++) {
+			mSplStart[pos] = mSplStart[pos + 1] - delPyLen;
+			if (pos == mSplIdNum) {
+				break;
+			}
+			mSplId[pos] = mSplId[pos + 1];
+		}
+
+		// Begin to merge.
+		int phraseLen = 0;
+
+		// Update the spelling ids to the composing phrase.
+		System.arraycopy(mSplId, 0, mCPhraseSplIds, 0, mSplIdNum);
+		System.arraycopy(mSplStart, 0, mCPhraseSplStart, 0, mSplIdNum + 1);
+
+		// If composing phrase has not been created, first merge all fixed
+		// lemmas into a composing phrase without deletion.
+		if (mFixedLmas > 1 || LEMMA_ID_COMPOSING != mLmaId[0]) {
+			int bp = 1; // Begin position of real fixed lemmas.
+			// There is no existing composing phrase.
+			if (LEMMA_ID_COMPOSING != mLmaId[0]) {
+				mCPhraseSublmaNum = 0;
+				bp = 0;
+			}
+
+			int subNum = mCPhraseSublmaNum;
+			for (int pos = bp; pos <= mFixedLmas; pos++) {
+				mCPhraseSublmaStart[subNum + pos - bp] = mLmaStart[pos];
+				if (mLmaStart[pos] > delSplPos) {
+					mCPhraseSublmaStart[subNum + pos - bp] -= 1;
+				}
+				if (pos == mFixedLmas) {
+					break;
+				}
+				int lmaLen = getLemmaStr(mLmaId[pos], mCPhraseChnStr,
+						mCPhraseSublmaStart[subNum] + phraseLen, MAX_ROW_NUM - phraseLen);
+				phraseLen += lmaLen;
+			}
+			mCPhraseLength = phraseLen; // Will be deleted by 1.
+			mCPhraseSublmaNum += mFixedLmas - bp;
+		} else {
+			for (int pos = 0; pos <= mCPhraseSublmaNum; pos++) {
+				if (mCPhraseSublmaStart[pos] > delSplPos) {
+					mCPhraseSublmaStart[pos] -= 1;
+				}
+			}
+			phraseLen = mCPhraseLength;
+		}
+
+		if (1 == phraseLen) {
+			// After the only one is deleted, nothing will be left.
+			mFixedLmas = 0;
+			return;
+		}
+
+		// Delete the Chinese character in the merged phrase. The corresponding
+		// elements in spl_ids and spl_start of the phrase have been deleted.
+		for (int pos = 0; pos < mCPhraseSublmaStart[mCPhraseSublmaNum] - delSplPos; pos++) {
+			mCPhraseChnStr[delSplPos + pos] = mCPhraseChnStr[delSplPos + pos + 1];
+		}
+		mCPhraseLength -= 1;
+
+		// If the deleted spelling id is in a sub lemma which contains more
+		// than one id, delASub will be false; but if the deleted id is in a sub
+		// lemma which only contains 1 id, the whole sub lemma needs to be
+		// deleted, so delASub will be true.
+		boolean delASub = false;
+		for (int pos = 1; pos <= mCPhraseSublmaNum; pos++) {
+			if (mCPhraseSublmaStart[pos - 1] == mCPhraseSublmaStart[pos]) {
+				delASub = true;
+			}
+			if (delASub) {
+				mCPhraseSublmaStart[pos - 1] = mCPhraseSublmaStart[pos];
+			}
+		}
+		if (delASub) {
+			mCPhraseSublmaNum -= 1;
+		}
+	}
+
+	/**
+	 * Get spelling start positions and ids of the best path into mSplIdNum,
+	 * mSplStart and mSplId, and lemma information into mLmaIdNum, mLmaStart and
+	 * mLmaId. mFixedHzs is also updated.
+	 */
+	private void getSplStartId() {
+		mLmaIdNum = 0;
+		mLmaStart[0] = 0;
+		mSplIdNum = 0;
+		mSplStart[0] = 0;
+		if (0 == mPysDecodedLen || 0 == mRowMtrxNdNum[mPysDecodedLen]) {
+			return;
+		}
+
+		// Calculate number of lemmas and spellings. Only scan the part which
+		// is not fixed.
+		mLmaIdNum = mFixedLmas;
+		mSplIdNum = mFixedHzs;
+
+		int mtrxNd = mRowMtrxNdPos[mPysDecodedLen];
+		while (0 != mtrxNd) {
+			if (mFixedHzs > 0 && mMtrxStep[mtrxNd] <= mSplStart[mFixedHzs]) {
+				break;
+			}
+
+			// Update the spelling segmentation information.
+			int wordSplstrLen = 0;
+			int dmiFr = mMtrxDmiFr[mtrxNd];
+			if (-1 != dmiFr) {
+				wordSplstrLen = mDmiSplstrLen[dmiFr];
+			}
+			while (-1 != dmiFr) {
+				mSplStart[mSplIdNum + 1] = mMtrxStep[mtrxNd]
+						- (wordSplstrLen - mDmiSplstrLen[dmiFr]);
+				mSplId[mSplIdNum] = mDmiSplId[dmiFr];
+				mSplIdNum++;
+				dmiFr = mDmiFr[dmiFr];
+			}
+
+			// Update the lemma segmentation information.
+			mLmaStart[mLmaIdNum + 1] = mSplIdNum;
+			mLmaId[mLmaIdNum] = mMtrxId[mtrxNd];
+			mLmaIdNum++;
+
+			mtrxNd = mMtrxFrom[mtrxNd];
+		}
+
+		// Reverse the result of spelling info.
+		for (int pos = mFixedHzs; pos < mFixedHzs + (mSplIdNum - mFixedHzs + 1) / 2; pos++) {
+			if (mSplIdNum + mFixedHzs - pos != pos + 1) {
+				swap(mSplStart, pos + 1, mSplIdNum - pos + mFixedHzs);
+				swap(mSplId, pos, mSplIdNum + mFixedHzs - pos - 1);
+			}
+		}
+
+		// Reverse the result of lemma info.
+		for (int pos = mFixedLmas; pos < mFixedLmas + (mLmaIdNum - mFixedLmas + 1) / 2; pos++) {
+			if (mLmaIdNum + mFixedLmas - pos > pos + 1) {
+				swap(mLmaStart, pos + 1, mLmaIdNum - pos + mFixedLmas);
+				swap(mLmaId, pos, mLmaIdNum - 1 - pos + mFixedLmas);
+			}
+		}
+
+		for (int pos = mFixedLmas + 1; pos <= mLmaIdNum; pos++) {
+			if (pos < mLmaIdNum) {
+				mLmaStart[pos] = mLmaStart[pos - 1] + (mLmaStart[pos] - mLmaStart[pos + 1]);
+			} else {
+				mLmaStart[pos] = mLmaStart[pos - 1] + mLmaStart[pos] - mLmaStart[mFixedLmas];
+			}
+		}
+
+		// Find the last fixed position.
+		mFixedHzs = 0;
+		for (int pos = mSplIdNum; pos > 0; pos--) {
+			if (mRowMtrxNdFixed[mSplStart[pos]] >= 0) {
+				mFixedHzs = pos;
+				break;
+			}
+		}
+	}
+
+	private static void swap(int values[], int i, int j) {
+		int tmp = values[i];
+		values[i] = values[j];
+		values[j] = tmp;
+	}
+
+	/**
+	 * Extend a DMI node with a spelling id; -1 extends the root of the
+	 * dictionary. mLpiItems and mLpiTotal get the lemmas found.
+	 * 用一个拼音ID扩展DMI节点，找到的词条放在mLpiItems中。
+	 *
+	 * @return 1 if a new DMI is filled in at mDmiPoolUsed, otherwise 0.
+	 */
+	private int extendDmi(DictExtPara dep, int dmiS) {
+		if (mDmiPoolUsed >= DMI_POOL_SIZE) {
+			return 0;
+		}
+		if (mDmiCPhrase) {
+			return extendDmiC(dep, dmiS);
+		}
+
+		int splid = dep.mSplIds[dep.mSplIdsExtended];
+		boolean cached = false;
+		if (0 == dep.mSplIdsExtended) {
+			cached = mLpiCache.isCached(splid);
+		}
+
+		int retVal = 0;
+		mLpiTotal = 0;
+
+		int fromHandle = 0;
+		if (0 != dep.mSplIdsExtended) {
+			fromHandle = mDmiHandle[dmiS];
+		}
+
+		// Begin extending in the system dictionary.
+		int handle = 0;
+		if (fromHandle > 0 || dmiS < 0) {
+			handle = mDictTrie.extendDict(fromHandle, dep, mLpiItems, MAX_LMA_PSB_ITEMS, mLpiCache);
+		}
+		if (handle > 0) {
+			mLpiTotal = mDictTrie.mLpiNum;
+		}
+
+		if (0 != handle) {
+			if (mDmiPoolUsed >= DMI_POOL_SIZE) {
+				return 0;
+			}
+			int dmiAdd = mDmiPoolUsed;
+			if (dmiS < 0) {
+				fillDmi(dmiAdd, handle, -1, splid, 1, dep.mSplIdEndSplit, dep.mExtLen,
+						!mSplTrie.isHalfId(splid));
+			} else {
+				fillDmi(dmiAdd, handle, dmiS, splid, mDmiDictLevel[dmiS] + 1,
+						dep.mSplIdEndSplit, mDmiSplstrLen[dmiS] + dep.mExtLen,
+						!mSplTrie.isHalfId(splid) && mDmiAllFullId[dmiS]);
+			}
+			retVal = 1;
+		}
+
+		if (!cached) {
+			if (0 == mLpiTotal) {
+				return retVal;
+			}
+			mLpiItems.sort(0, mLpiTotal, LmaPsbItems.CMP_PSB);
+			if (dmiS < 0 && mSplTrie.isHalfId(splid)) {
+				mLpiTotal = mLpiCache.putCache(splid, mLpiItems, mLpiTotal);
+			}
+		} else {
+			mLpiTotal = mLpiCache.getCache(splid, mLpiItems, MAX_LMA_PSB_ITEMS);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Extend a DMI node for the composing phrase.
+	 */
+	private int extendDmiC(DictExtPara dep, int dmiS) {
+		mLpiTotal = 0;
+
+		int pos = dep.mSplIdsExtended;
+		if (pos >= mCPhraseLength) {
+			return 0;
+		}
+
+		int splid = dep.mSplIds[pos];
+		if (splid == mCPhraseSplIds[pos]) {
+			int dmiAdd = mDmiPoolUsed;
+			if (dmiS < 0) {
+				fillDmi(dmiAdd, 0, -1, splid, 1, dep.mSplIdEndSplit, dep.mExtLen,
+						!mSplTrie.isHalfId(splid));
+			} else {
+				fillDmi(dmiAdd, 0, dmiS, splid, mDmiDictLevel[dmiS] + 1, dep.mSplIdEndSplit,
+						mDmiSplstrLen[dmiS] + dep.mExtLen,
+						!mSplTrie.isHalfId(splid) && mDmiAllFullId[dmiS]);
+			}
+
+			if (pos == mCPhraseLength - 1) {
+				// 0 is bigger than normal lemma score.
+				mLpiItems.set(0, LEMMA_ID_COMPOSING, 0, 0);
+				mLpiTotal = 1;
+			}
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Extend a MatrixNode with the given lemma list into row resRow.
+	 */
+	private void extendMtrxNd(int mtrxNd, LmaPsbItems lpiItems, int lpiNum, int dmiFr, int resRow) {
+		mRowMtrxNdFixed[resRow] = -1;
+
+		if (mMtrxNdPoolUsed >= MTRX_ND_POOL_SIZE - MAX_NODE_A_ROW) {
+			return;
+		}
+
+		if (0 == mMtrxStep[mtrxNd]) {
+			// Because the list is sorted, if the source step is 0, it is only
+			// necessary to pick up the first MAX_NODE_A_ROW items.
+			if (lpiNum > MAX_NODE_A_ROW) {
+				lpiNum = MAX_NODE_A_ROW;
+			}
+		}
+
+		int resMin = mRowMtrxNdPos[resRow];
+		for (int pos = 0; pos < lpiNum; pos++) {
+			float score = mMtrxScore[mtrxNd] + lpiItems.mPsb[pos];
+			if (pos > 0 && score - PRUMING_SCORE > mMtrxScore[resMin]) {
+				break;
+			}
+
+			// Try to add a new node, find its position.
+			int mtrxNdNum = mRowMtrxNdNum[resRow];
+			int res = resMin + mtrxNdNum;
+			boolean replace = false;
+			while (res > resMin && score < mMtrxScore[res - 1]) {
+				if (res - resMin < MAX_NODE_A_ROW) {
+					mMtrxId[res] = mMtrxId[res - 1];
+					mMtrxScore[res] = mMtrxScore[res - 1];
+					mMtrxFrom[res] = mMtrxFrom[res - 1];
+					mMtrxDmiFr[res] = mMtrxDmiFr[res - 1];
+					mMtrxStep[res] = mMtrxStep[res - 1];
+				}
+				res--;
+				replace = true;
+			}
+			if (replace || (mtrxNdNum < MAX_NODE_A_ROW
+					&& mRowMtrxNdPos[resRow] + mtrxNdNum < MTRX_ND_POOL_SIZE)) {
+				mMtrxId[res] = lpiItems.mId[pos];
+				mMtrxScore[res] = score;
+				mMtrxFrom[res] = mtrxNd;
+				mMtrxDmiFr[res] = dmiFr;
+				mMtrxStep[res] = resRow;
+				if (mRowMtrxNdNum[resRow] < MAX_NODE_A_ROW) {
+					mRowMtrxNdNum[resRow]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find a DMI node at stepTo which matches splIds[start, start + splIdNum).
+	 *
+	 * @return the DMI node, or -1 if none.
+	 */
+	private int matchDmi(int stepTo, int splIds[], int start, int splIdNum) {
+		if (mPysDecodedLen < stepTo || 0 == mRowDmiNum[stepTo]) {
+			return -1;
+		}
+
+		for (int dmiPos = 0; dmiPos < mRowDmiNum[stepTo]; dmiPos++) {
+			int dmi = mRowDmiPos[stepTo] + dmiPos;
+			if (mDmiDictLevel[dmi] != splIdNum) {
+				continue;
+			}
+
+			boolean matched = true;
+			for (int splPos = 0; splPos < splIdNum; splPos++) {
+				if (splIds[start + splIdNum - splPos - 1] != mDmiSplId[dmi]) {
+					matched = false;
+					break;
+				}
+				dmi = mDmiFr[dmi];
+			}
+			if (matched) {
+				return mRowDmiPos[stepTo] + dmiPos;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the first candidate, which is a "full sentence", into candStr and
+	 * its length into mRetStrLen.
+	 *
+	 * @param onlyUnfixed if true, only the unfixed part is fetched.
+	 */
+	private boolean getCandidate0(char candStr[], int maxLen, boolean onlyUnfixed) {
+		if (0 == mPysDecodedLen || 0 == mRowMtrxNdNum[mPysDecodedLen]) {
+			return false;
+		}
+
+		int idNum = 0;
+		int mtrxNd = mRowMtrxNdPos[mPysDecodedLen];
+		while (-1 != mtrxNd) {
+			mIdxs[idNum] = mMtrxId[mtrxNd];
+			idNum++;
+			mtrxNd = mMtrxFrom[mtrxNd];
+		}
+
+		int retPos = 0;
+		do {
+			idNum--;
+			if (0 == mIdxs[idNum]) {
+				continue;
+			}
+
+			int strLen = getLemmaStr(mIdxs[idNum], mStrBuf, 0, MAX_LEMMA_SIZE + 1);
+			if (strLen > 0 && ((!onlyUnfixed && maxLen - retPos > strLen)
+					|| (onlyUnfixed && maxLen - retPos + mFixedHzs > strLen))) {
+				if (!onlyUnfixed) {
+					System.arraycopy(mStrBuf, 0, candStr, retPos, strLen);
+				} else if (retPos >= mFixedHzs) {
+					System.arraycopy(mStrBuf, 0, candStr, retPos - mFixedHzs, strLen);
+				}
+				retPos += strLen;
+			} else {
+				return false;
+			}
+		} while (0 != idNum);
+
+		if (!onlyUnfixed) {
+			mRetStrLen = retPos;
+			candStr[retPos] = 0;
+		} else {
+			mRetStrLen = retPos - mFixedHzs;
+			candStr[retPos - mFixedHzs] = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Get all lemmas which match splidStr[splidStart, splidStart +
+	 * splidStrLen) into mLpiItems from lmaStart, removing repeated items and,
+	 * if checkFullSent is true, the lemma which is the same as the full
+	 * sentence in mFullSent.
+	 */
+	private int getLpis(int splidStr[], int splidStart, int splidStrLen, int lmaStart,
+			int maxLmaBuf, boolean checkFullSent, boolean sortByPsb) {
+		if (splidStrLen > MAX_LEMMA_SIZE) {
+			return 0;
+		}
+
+		// The native engine keeps the strings to remove the repeated lemmas
+		// of more than one Hanzi after the items in the buffer, so only the
+		// part before that room is given to the dictionary.
+		int maxLpiNum = maxLmaBuf;
+		if (splidStrLen > 1) {
+			maxLpiNum = maxLmaBuf * LMA_PSB_ITEM_SIZE / (LMA_PSB_ITEM_SIZE + LMA_PSB_STR_ITEM_SIZE);
+		}
+
+		LmaPsbItems items = mLpiItems;
+		int num = mDictTrie.getLpis(splidStr, splidStart, splidStrLen, items, lmaStart, maxLpiNum);
+		if (0 == num) {
+			return 0;
+		}
+
+		if (splidStrLen > 1) {
+			// Remove repeated items.
+			int lpsiNum = (maxLmaBuf - num) * LMA_PSB_ITEM_SIZE / LMA_PSB_STR_ITEM_SIZE;
+			if (num > lpsiNum) {
+				num = lpsiNum;
+			}
+			for (int pos = 0; pos < num; pos++) {
+				getLemmaStr(items.mId[lmaStart + pos], items.mStr,
+						items.strOffset(lmaStart + pos), MAX_LEMMA_SIZE + 1);
+			}
+			items.sort(lmaStart, num, LmaPsbItems.CMP_STR);
+
+			int remainNum = 0;
+			for (int pos = 0; pos < num; pos++) {
+				int cur = lmaStart + pos;
+				// Check this before the repeated ones, as the native engine
+				// does, so that a repeat of a dropped lemma is dropped too.
+				if (checkFullSent && 0 == strCmp(items.mStr, items.strOffset(cur), mFullSent, 0)) {
+					continue;
+				}
+				if (pos > 0 && 0 == strCmp(items.mStr, items.strOffset(cur), items.mStr,
+						items.strOffset(cur - 1))) {
+					if (items.mPsb[cur] < items.mPsb[cur - 1]) {
+						items.copy(cur, items, lmaStart + remainNum - 1);
+					}
+					continue;
+				}
+				items.copy(cur, items, lmaStart + remainNum);
+				remainNum++;
+			}
+			num = remainNum;
+		} else {
+			// For single character, some characters have more than one
+			// spelling, for example, "de" and "di" are all valid for a
+			// Chinese character, so when the user inputs "d", repeated items
+			// are generated. For single character lemmas, Hanzis will be got.
+			for (int pos = 0; pos < num; pos++) {
+				getLemmaStr(items.mId[lmaStart + pos], mStrBuf, 0, 2);
+				items.mHanzi[lmaStart + pos] = mStrBuf[0];
+			}
+			items.sort(lmaStart, num, LmaPsbItems.CMP_HANZI);
+
+			boolean fullSentIsChar = checkFullSent && 0 == mFullSent[1];
+			int remainNum = 0;
+			for (int pos = 0; pos < num; pos++) {
+				int cur = lmaStart + pos;
+				if (pos > 0 && items.mHanzi[cur] == items.mHanzi[cur - 1]) {
+					if (fullSentIsChar && items.mHanzi[cur] == mFullSent[0]) {
+						continue;
+					}
+					if (items.mPsb[cur] < items.mPsb[cur - 1]) {
+						items.copy(cur, items, lmaStart + remainNum - 1);
+					}
+					continue;
+				}
+				if (fullSentIsChar && items.mHanzi[cur] == mFullSent[0]) {
+					continue;
+				}
+				items.copy(cur, items, lmaStart + remainNum);
+				remainNum++;
+			}
+			num = remainNum;
+		}
+
+		if (sortByPsb) {
+			items.sort(lmaStart, num, LmaPsbItems.CMP_PSB);
+		}
+		return num;
+	}
+
+	private static int strCmp(char str1[], int off1, char str2[], int off2) {
+		for (int i = 0;; i++) {
+			char c1 = str1[off1 + i];
+			char c2 = str2[off2 + i];
+			if (c1 != c2 || 0 == c1) {
+				return c1 - c2;
+			}
+		}
+	}
+
+	private int getLemmaStr(int idLemma, char strBuf[], int start, int strMax) {
+		if (DictDef.isSystemLemma(idLemma)) {
+			return mDictTrie.getLemmaStr(idLemma, strBuf, start, strMax);
+		} else if (DictDef.isComposingLemma(idLemma)) {
+			if (strMax <= 1) {
+				return 0;
+			}
+			int strLen = mCPhraseSublmaStart[mCPhraseSublmaNum];
+			if (strLen > strMax - 1) {
+				strLen = strMax - 1;
+			}
+			System.arraycopy(mCPhraseChnStr, 0, strBuf, start, strLen);
+			strBuf[start + strLen] = 0;
+			return strLen;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The uni-gram scores of the system lemmas, the same as ngram.cpp. Every
+ * lemma has a one-byte index into a code book of 256 scores.
+ * 系统词条的一元语法分数，与ngram.cpp一致。
+ *
+ * @ClassName NGram
+ */
+final class NGram {
+	private static final int CODE_BOOK_SIZE = 256;
+
+	private final int mFreqCodes[] = new int[CODE_BOOK_SIZE];
+	private ByteBuffer mLmaFreqIdx;
+
+	boolean load(DictReader reader) {
+		int idxNum = reader.readSizeT();
+		ByteBuffer codes = reader.slice(CODE_BOOK_SIZE * 2);
+		for (int i = 0; i < CODE_BOOK_SIZE; i++) {
+			mFreqCodes[i] = codes.getChar(i * 2);
+		}
+		mLmaFreqIdx = reader.slice(idxNum);
+		return true;
+	}
+
+	/**
+	 * The score of a system lemma, the lower the more possible. There is no
+	 * user dictionary, so the system score is never compensated.
+	 * 系统词条的分数，越低越可能。
+	 */
+	int getUniPsb(int lmaId) {
+		return mFreqCodes[mLmaFreqIdx.get(lmaId) & 0xff];
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+/**
+ * Splits a Pinyin string into spelling ids, the same as splparser.cpp.
+ * 把拼音字符串切分成拼音ID，与splparser.cpp一致。
+ *
+ * @ClassName SpellingParser
+ */
+final class SpellingParser {
+	private final SpellingTrie mSplTrie;
+
+	private final int mSplIdx[] = new int[2];
+	private final int mStartPos[] = new int[3];
+
+	/**
+	 * Set by {@link #getSplIdByStr(byte[], int, int)}: whether the last
+	 * spelling may be a prefix of a longer one. 最后一个拼音是否可能是更长拼音的前缀
+	 */
+	boolean mIsPre;
+
+	SpellingParser(SpellingTrie splTrie) {
+		mSplTrie = splTrie;
+	}
+
+	static boolean isValidToParse(int ch) {
+		return SpellingTrie.isValidSplChar(ch);
+	}
+
+	/**
+	 * Split str[start, start + strLen) into at most maxSize spelling ids.
+	 * Return the number of ids; {@link #mIsPre} is updated.
+	 */
+	int splstrToIdxs(byte str[], int start, int strLen, int splIdx[], int startPos[], int maxSize) {
+		if (0 == maxSize || 0 == strLen) {
+			return 0;
+		}
+		if (!SpellingTrie.isValidSplChar(str[start])) {
+			return 0;
+		}
+
+		mIsPre = false;
+		SpellingTrie trie = mSplTrie;
+		int node = 0;
+		int strPos = 0;
+		int idxNum = 0;
+		if (null != startPos) {
+			startPos[0] = 0;
+		}
+		boolean lastIsSplitter = false;
+
+		while (strPos < strLen) {
+			int ch = str[start + strPos];
+			// All characters outside of [a, z] are considered as splitters.
+			if (!SpellingTrie.isValidSplChar(ch)) {
+				// Test if the current node is endable.
+				int id = trie.ifValidIdUpdate(trie.mNodeSplIdx[node]);
+				if (0 != id) {
+					splIdx[idxNum] = id;
+					idxNum++;
+					strPos++;
+					if (null != startPos) {
+						startPos[idxNum] = strPos;
+					}
+					if (idxNum >= maxSize) {
+						return idxNum;
+					}
+					node = 0;
+					lastIsSplitter = true;
+					continue;
+				} else {
+					if (lastIsSplitter) {
+						strPos++;
+						if (null != startPos) {
+							startPos[idxNum] = strPos;
+						}
+						continue;
+					} else {
+						return idxNum;
+					}
+				}
+			}
+
+			lastIsSplitter = false;
+
+			int foundSon = -1;
+			if (0 == strPos) {
+				foundSon = trie.mLevel1Sons[ch >= 'a' ? ch - 'a' : ch - 'A'];
+			} else {
+				int firstSon = trie.mNodeFirstSon[node];
+				for (int i = 0; i < trie.mNodeNumOfSon[node]; i++) {
+					if (SpellingTrie.isSameSplChar(trie.mNodeChar[firstSon + i], ch)) {
+						foundSon = firstSon + i;
+						break;
+					}
+				}
+			}
+
+			if (foundSon >= 0) {
+				node = foundSon;
+			} else {
+				// Not found, test if it is endable.
+				int id = trie.ifValidIdUpdate(trie.mNodeSplIdx[node]);
+				if (0 != id) {
+					splIdx[idxNum] = id;
+					idxNum++;
+					if (null != startPos) {
+						startPos[idxNum] = strPos;
+					}
+					if (idxNum >= maxSize) {
+						return idxNum;
+					}
+					node = 0;
+					continue;
+				} else {
+					return idxNum;
+				}
+			}
+
+			strPos++;
+		}
+
+		int id = trie.ifValidIdUpdate(trie.mNodeSplIdx[node]);
+		if (0 != id) {
+			splIdx[idxNum] = id;
+			idxNum++;
+			if (null != startPos) {
+				startPos[idxNum] = strPos;
+			}
+		}
+
+		mIsPre = !lastIsSplitter;
+		return idxNum;
+	}
+
+	/**
+	 * Get the spelling id of str[start, start + strLen) if the whole string is
+	 * one spelling, otherwise 0. {@link #mIsPre} is updated.
+	 * 如果整个字符串是一个拼音，返回其ID，否则返回0。
+	 */
+	int getSplIdByStr(byte str[], int start, int strLen) {
+		mIsPre = false;
+		if (splstrToIdxs(str, start, strLen, mSplIdx, mStartPos, 2) != 1) {
+			return 0;
+		}
+		if (mStartPos[1] != strLen) {
+			return 0;
+		}
+		return mSplIdx[0];
+	}
+}
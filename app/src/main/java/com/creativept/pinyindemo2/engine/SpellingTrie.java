@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.engine;
+
+import static com.creativept.pinyindemo2.engine.DictDef.FULL_SPL_ID_START;
+
+/**
+ * The trie of valid spellings, the same as spellingtrie.cpp. The nodes are
+ * kept in parallel arrays; node 0 is the root and the sons of a node are
+ * contiguous.
+ * 拼音字符串的Trie树，与spellingtrie.cpp一致。节点存放在并行数组中，0号节点是根节点，同一节点的子节点是连续的。
+ *
+ * @ClassName SpellingTrie
+ */
+final class SpellingTrie {
+	/**
+	 * z/c/s is for Zh/Ch/Sh.
+	 */
+	private static final String HALF_ID_TO_SC = "0ABCcDEFGHIJKLMNOPQRSsTUVWXYZz";
+
+	private static final int HALF_ID_SHENGMU_MASK = 0x01;
+	private static final int HALF_ID_YUNMU_MASK = 0x02;
+	private static final int HALF_ID_SZM_MASK = 0x04;
+
+	/**
+	 * Bit 0: Shengmu char; bit 1: one-char Yunmu; bit 2: enabled in ShouZiMu
+	 * mode. Both Shengmu and Yunmu are enabled in ShouZiMu mode, as the native
+	 * SpellingTrie does in its constructor.
+	 */
+	private static final byte CHAR_FLAGS[] = {
+			// a b c d e f g
+			0x06, 0x05, 0x05, 0x05, 0x06, 0x05, 0x05,
+			// h i j k l m n
+			0x05, 0x00, 0x05, 0x05, 0x05, 0x05, 0x05,
+			// o p q r s t
+			0x06, 0x05, 0x05, 0x05, 0x05, 0x05,
+			// u v w x y z
+			0x00, 0x00, 0x05, 0x05, 0x05, 0x05 };
+
+	private static final int VALID_SPL_CHAR_NUM = 26;
+
+	private int mSpellingSize;
+	private int mSpellingNum;
+	private byte mSpellingBuf[];
+
+	byte mNodeChar[];
+	int mNodeSplIdx[];
+	int mNodeFirstSon[];
+	int mNodeNumOfSon[];
+	private int mNodeNum;
+
+	/**
+	 * Node index of the first level sons, -1 if none. 第一层子节点的快速索引
+	 */
+	final int mLevel1Sons[] = new int[VALID_SPL_CHAR_NUM];
+
+	private final int mH2fStart[] = new int[FULL_SPL_ID_START];
+	private final int mH2fNum[] = new int[FULL_SPL_ID_START];
+	private int mF2h[];
+
+	static boolean isValidSplChar(int ch) {
+		return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+	}
+
+	static boolean isSameSplChar(int ch1, int ch2) {
+		return ch1 == ch2 || ch1 - ch2 == 'a' - 'A' || ch2 - ch1 == 'a' - 'A';
+	}
+
+	boolean load(DictReader reader) {
+		mSpellingSize = reader.readSizeT();
+		mSpellingNum = reader.readSizeT();
+		reader.readFloat(); // score_amplifier_, only used by the builder.
+		reader.readUnsignedByte(); // average_score_
+		mSpellingBuf = new byte[mSpellingSize * mSpellingNum];
+		reader.slice(mSpellingBuf.length).get(mSpellingBuf);
+		return construct();
+	}
+
+	private boolean construct() {
+		sortSpellings();
+
+		// Every spelling adds at most one node per char.
+		int maxNodes = mSpellingNum * mSpellingSize + 1;
+		mNodeChar = new byte[maxNodes];
+		mNodeSplIdx = new int[maxNodes];
+		mNodeFirstSon = new int[maxNodes];
+		mNodeNumOfSon = new int[maxNodes];
+		mNodeNum = 1;
+		mNodeFirstSon[0] = -1;
+		for (int i = 0; i < VALID_SPL_CHAR_NUM; i++) {
+			mLevel1Sons[i] = -1;
+		}
+
+		mNodeFirstSon[0] = constructSpellingsSubset(0, mSpellingNum, 0, 0);
+		if (mNodeFirstSon[0] < 0) {
+			return false;
+		}
+		mH2fStart[0] = mH2fNum[0] = 0;
+
+		mF2h = new int[mSpellingNum];
+		for (int hid = 0; hid < FULL_SPL_ID_START; hid++) {
+			for (int fid = mH2fStart[hid]; fid < mH2fStart[hid] + mH2fNum[hid]; fid++) {
+				mF2h[fid - FULL_SPL_ID_START] = hid;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The spellings are fixed-size, null-padded ASCII items sorted with
+	 * strcmp().
+	 */
+	private void sortSpellings() {
+		byte tmp[] = new byte[mSpellingSize];
+		for (int i = 1; i < mSpellingNum; i++) {
+			System.arraycopy(mSpellingBuf, i * mSpellingSize, tmp, 0, mSpellingSize);
+			int j = i - 1;
+			while (j >= 0 && compareSpelling(j, tmp) > 0) {
+				System.arraycopy(mSpellingBuf, j * mSpellingSize, mSpellingBuf,
+						(j + 1) * mSpellingSize, mSpellingSize);
+				j--;
+			}
+			System.arraycopy(tmp, 0, mSpellingBuf, (j + 1) * mSpellingSize, mSpellingSize);
+		}
+	}
+
+	private int compareSpelling(int item, byte other[]) {
+		int off = item * mSpellingSize;
+		for (int i = 0; i < mSpellingSize; i++) {
+			int c1 = mSpellingBuf[off + i] & 0xff;
+			int c2 = other[i] & 0xff;
+			if (c1 != c2 || 0 == c1) {
+				return c1 - c2;
+			}
+		}
+		return 0;
+	}
+
+	private byte spellingChar(int item, int level) {
+		return mSpellingBuf[item * mSpellingSize + level];
+	}
+
+	private int constructSpellingsSubset(int itemStart, int itemEnd, int level, int parent) {
+		if (level >= mSpellingSize || itemEnd <= itemStart) {
+			return -1;
+		}
+
+		// Scan the array to find how many sons.
+		int numOfSon = 0;
+		byte charForNode = spellingChar(itemStart, level);
+		for (int i = itemStart + 1; i < itemEnd; i++) {
+			byte charCurrent = spellingChar(i, level);
+			if (charCurrent != charForNode) {
+				numOfSon++;
+				charForNode = charCurrent;
+			}
+		}
+		numOfSon++;
+
+		int firstSon = mNodeNum;
+		mNodeNum += numOfSon;
+		for (int i = firstSon; i < mNodeNum; i++) {
+			mNodeFirstSon[i] = -1;
+		}
+
+		int sonPos = 0;
+		int lastStart = itemStart;
+		charForNode = spellingChar(itemStart, level);
+		boolean spellingEndable = 0 == spellingChar(itemStart, level + 1);
+		int itemStartNext = itemStart;
+
+		for (int i = itemStart + 1; i <= itemEnd; i++) {
+			if (i < itemEnd && spellingChar(i, level) == charForNode) {
+				continue;
+			}
+
+			// Construct a node for [itemStartNext, i).
+			int node = firstSon + sonPos;
+			mNodeChar[node] = charForNode;
+			if (0 == level) {
+				mLevel1Sons[charForNode - 'A'] = node;
+			}
+			if (spellingEndable) {
+				mNodeSplIdx[node] = FULL_SPL_ID_START + itemStartNext;
+			}
+
+			if (0 != spellingChar(lastStart, level + 1) || i - itemStartNext > 1) {
+				int realStart = itemStartNext;
+				if (0 == spellingChar(lastStart, level + 1)) {
+					realStart++;
+				}
+				mNodeFirstSon[node] = constructSpellingsSubset(realStart, i, level + 1, node);
+			}
+
+			boolean isHalf = false;
+			if (0 == level && isSzmChar(charForNode)) {
+				int splIdx = charForNode - 'A' + 1;
+				if (charForNode > 'C') {
+					splIdx++;
+				}
+				if (charForNode > 'S') {
+					splIdx++;
+				}
+				mNodeSplIdx[node] = splIdx;
+				mH2fNum[splIdx] = i - itemStartNext;
+				isHalf = true;
+			} else if (1 == level && 'h' == charForNode) {
+				byte chLevel0 = spellingChar(lastStart, 0);
+				int partId = 0;
+				if ('C' == chLevel0) {
+					partId = 'C' - 'A' + 1 + 1;
+				} else if ('S' == chLevel0) {
+					partId = 'S' - 'A' + 1 + 2;
+				} else if ('Z' == chLevel0) {
+					partId = 'Z' - 'A' + 1 + 3;
+				}
+				if (0 != partId) {
+					mNodeSplIdx[node] = partId;
+					mH2fNum[partId] = i - itemStartNext;
+					isHalf = true;
+				}
+			}
+			if (isHalf) {
+				int splIdx = mNodeSplIdx[node];
+				mH2fStart[splIdx] = mH2fNum[splIdx] > 0 ? itemStartNext + FULL_SPL_ID_START : 0;
+			}
+
+			if (i < itemEnd) {
+				// For the next sibling.
+				lastStart = i;
+				charForNode = spellingChar(i, level);
+				itemStartNext = i;
+				spellingEndable = 0 == spellingChar(i, level + 1);
+				sonPos++;
+			}
+		}
+
+		mNodeNumOfSon[parent] = numOfSon;
+		return firstSon;
+	}
+
+	private static boolean isShengmuChar(int ch) {
+		return 0 != (CHAR_FLAGS[ch - 'A'] & HALF_ID_SHENGMU_MASK);
+	}
+
+	private static boolean isYunmuChar(int ch) {
+		return 0 != (CHAR_FLAGS[ch - 'A'] & HALF_ID_YUNMU_MASK);
+	}
+
+	private static boolean isSzmChar(int ch) {
+		return isShengmuChar(ch) || isYunmuChar(ch);
+	}
+
+	private static boolean szmIsEnabled(int ch) {
+		return 0 != (CHAR_FLAGS[ch - 'A'] & HALF_ID_SZM_MASK);
+	}
+
+	/**
+	 * If the id is a valid spelling id, return it, maybe updated from a
+	 * disabled half id to its full id; otherwise return 0.
+	 * 如果是有效的拼音ID则返回它（可能更新为全拼ID），否则返回0。
+	 */
+	int ifValidIdUpdate(int splId) {
+		if (0 == splId) {
+			return 0;
+		}
+		if (splId >= FULL_SPL_ID_START) {
+			return splId;
+		}
+		char ch = HALF_ID_TO_SC.charAt(splId);
+		if (ch > 'Z' || szmIsEnabled(ch)) {
+			return splId;
+		} else if (isYunmuChar(ch)) {
+			return mH2fStart[splId];
+		}
+		return 0;
+	}
+
+	boolean isHalfId(int splId) {
+		return 0 != splId && splId < FULL_SPL_ID_START;
+	}
+
+	boolean isFullId(int splId) {
+		return splId >= FULL_SPL_ID_START && splId < FULL_SPL_ID_START + mSpellingNum;
+	}
+
+	boolean isHalfIdYunmu(int splId) {
+		if (0 == splId || splId >= FULL_SPL_ID_START) {
+			return false;
+		}
+		char ch = HALF_ID_TO_SC.charAt(splId);
+		// If ch >= 'a', that means the half id is one of Zh/Ch/Sh.
+		if (ch >= 'a') {
+			return false;
+		}
+		return isYunmuChar(ch);
+	}
+
+	int halfToFullStart(int halfId) {
+		return halfId < FULL_SPL_ID_START ? mH2fStart[halfId] : 0;
+	}
+
+	int halfToFullNum(int halfId) {
+		return halfId < FULL_SPL_ID_START ? mH2fNum[halfId] : 0;
+	}
+
+	int fullToHalf(int fullId) {
+		if (fullId < FULL_SPL_ID_START || fullId > mSpellingNum + FULL_SPL_ID_START) {
+			return 0;
+		}
+		return mF2h[fullId - FULL_SPL_ID_START];
+	}
+
+	int getSpellingNum() {
+		return mSpellingNum;
+	}
+}
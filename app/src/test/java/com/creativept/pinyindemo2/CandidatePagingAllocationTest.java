@@ -0,0 +1,117 @@
+package com.creativept.pinyindemo2;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Paging through candidates the way DecodingInfo and CandidateView do, with
+ * the candidate store and page index reused across resetCandidates(), must
+ * not allocate once they are big enough.
+ */
+public class CandidatePagingAllocationTest {
+    private static final int PAGE_SIZE = 10;
+    private static final int PAGE_CHARS = 16;
+
+    private final CandidateBuffer mCandidates = new CandidateBuffer();
+    private final IntArray mPageStart = new IntArray();
+    private final IntArray mCnToPage = new IntArray();
+    private final String mItems[] = new String[200];
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < mItems.length; i++) {
+            // One to four characters, like most candidates.
+            mItems[i] = "候选词语".substring(0, 1 + i % 4);
+        }
+    }
+
+    @Test
+    public void paging_doesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up, so that the buffers have grown and the code is compiled.
+        int checksum = 0;
+        for (int i = 0; i < 20000; i++) {
+            checksum += pageThrough(mItems.length);
+        }
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            checksum += pageThrough(mItems.length);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("checksum " + checksum, 0, allocated);
+    }
+
+    @Test
+    public void pageIndex_isKeptAcrossReset() {
+        pageThrough(mItems.length);
+        int pages = mPageStart.size() - 1;
+        int chars = mCnToPage.get(pages);
+
+        pageThrough(mItems.length);
+        assertEquals(pages, mPageStart.size() - 1);
+        assertEquals(chars, mCnToPage.get(pages));
+        assertEquals(mItems.length, mPageStart.get(pages));
+        assertEquals(mItems[mItems.length - 1], mCandidates.get(mItems.length - 1));
+    }
+
+    /**
+     * Reset, then fetch and lay out pages until all items are shown.
+     */
+    private int pageThrough(int total) {
+        resetCandidates();
+        int pageNo = 0;
+        while (mPageStart.get(pageNo) < total) {
+            // DecodingInfo.getCandiagtesForCache()
+            int fetchStart = mCandidates.size();
+            for (int i = fetchStart; i < total && i < fetchStart + PAGE_SIZE; i++) {
+                mCandidates.add(mItems[i]);
+            }
+            calculatePage(pageNo);
+            pageNo++;
+        }
+        return mCnToPage.get(pageNo);
+    }
+
+    private void resetCandidates() {
+        mCandidates.clear();
+        mPageStart.clear();
+        mPageStart.add(0);
+        mCnToPage.clear();
+        mCnToPage.add(0);
+    }
+
+    /**
+     * CandidateView.calculatePage(), with the width of a candidate being
+     * its number of characters.
+     */
+    private void calculatePage(int pageNo) {
+        int pStart = mPageStart.get(pageNo);
+        int pSize = 0;
+        int charNum = 0;
+        while (pStart + pSize < mCandidates.size()) {
+            int itemLen = mCandidates.length(pStart + pSize);
+            char item[] = mCandidates.getChars(pStart + pSize);
+            if (charNum + itemLen > PAGE_CHARS && pSize > 0 || 0 == item[0]) {
+                break;
+            }
+            charNum += itemLen;
+            pSize++;
+        }
+        mPageStart.add(pStart + pSize);
+        mCnToPage.add(mCnToPage.get(pageNo) + charNum);
+    }
+}
@@ -0,0 +1,76 @@
+package com.creativept.pinyindemo2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The grid must give the same key as scanning all keys, for every point on
+ * and around a QWERTY layout, including the gaps between keys.
+ */
+public class KeyGridTest {
+    /**
+     * Keys per row of the QWERTY keyboard, and the left of each row as a
+     * fraction of a key width.
+     */
+    private static final int ROW_KEYS[] = { 10, 9, 9, 7 };
+    private static final float ROW_INDENT[] = { 0, 0.5f, 1.5f, 1.5f };
+
+    @Test
+    public void findKey_matchesScan() {
+        int sizes[][] = { { 480, 240 }, { 720, 400 }, { 1080, 620 }, { 31, 15 } };
+        for (int sizePos = 0; sizePos < sizes.length; sizePos++) {
+            int width = sizes[sizePos][0];
+            int height = sizes[sizePos][1];
+            KeyGrid grid = buildQwerty(width, height, 0.01f, 0.02f);
+            for (int y = -20; y < height + 20; y++) {
+                for (int x = -20; x < width + 20; x++) {
+                    assertEquals(width + "x" + height + " (" + x + ", " + y + ")",
+                            grid.scanKeys(x, y), grid.findKey(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findKey_withoutKeys() {
+        KeyGrid grid = new KeyGrid();
+        grid.build(new int[0], new int[0], new int[0], new int[0], 0, 100, 100);
+        assertEquals(-1, grid.findKey(50, 50));
+        assertEquals(-1, grid.findKey(-1, 50));
+    }
+
+    /**
+     * Keys laid out as in the QWERTY keyboard xml, with the given margins as
+     * fractions of the keyboard size.
+     */
+    static KeyGrid buildQwerty(int width, int height, float xMargin, float yMargin) {
+        int keyNum = 0;
+        for (int row = 0; row < ROW_KEYS.length; row++) {
+            keyNum += ROW_KEYS[row];
+        }
+        int left[] = new int[keyNum];
+        int top[] = new int[keyNum];
+        int right[] = new int[keyNum];
+        int bottom[] = new int[keyNum];
+        float keyWidth = 0.1f;
+        float keyHeight = 1.0f / ROW_KEYS.length;
+        int i = 0;
+        for (int row = 0; row < ROW_KEYS.length; row++) {
+            for (int col = 0; col < ROW_KEYS[row]; col++, i++) {
+                float l = (ROW_INDENT[row] + col) * keyWidth;
+                // The last key of the last row is the wide space bar.
+                float r = row == ROW_KEYS.length - 1 && col == ROW_KEYS[row] - 1
+                        ? 1.0f : l + keyWidth;
+                float t = row * keyHeight;
+                left[i] = (int) ((l + xMargin) * width);
+                right[i] = (int) ((r - xMargin) * width);
+                top[i] = (int) ((t + yMargin) * height);
+                bottom[i] = (int) ((t + keyHeight - yMargin) * height);
+            }
+        }
+        KeyGrid grid = new KeyGrid();
+        grid.build(left, top, right, bottom, keyNum, width, height);
+        return grid;
+    }
+}
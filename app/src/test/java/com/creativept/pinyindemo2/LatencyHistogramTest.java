@@ -0,0 +1,85 @@
+package com.creativept.pinyindemo2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Percentiles must stay within a bucket of the exact ones, and recording from
+ * several threads must not lose counts.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void buckets_coverAllValues() {
+        long end = 0;
+        for (long value = 0; value < (1 << 20); value++) {
+            int bucket = LatencyHistogram.getBucket(value);
+            assertTrue("value " + value, value < LatencyHistogram.getBucketEnd(bucket));
+            if (bucket > 0) {
+                assertTrue("value " + value, value >= LatencyHistogram.getBucketEnd(bucket - 1));
+            }
+            end = Math.max(end, LatencyHistogram.getBucketEnd(bucket));
+        }
+        assertEquals(1 << 20, end);
+        assertEquals(LatencyHistogram.getBucket(LatencyHistogram.MAX_VALUE),
+                LatencyHistogram.getBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles_withinOneBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 10000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        double fractions[] = { 0.5, 0.95, 0.99, 1 };
+        for (double fraction : fractions) {
+            long exact = (long) Math.ceil(fraction * 10000);
+            long percentile = histogram.getPercentile(fraction);
+            assertTrue(fraction + ": " + percentile, percentile >= exact);
+            assertTrue(fraction + ": " + percentile,
+                    percentile <= exact + exact / LatencyHistogram.SUB_BUCKET_NUM);
+        }
+    }
+
+    @Test
+    public void smallValues_areExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(7);
+        assertEquals(0, histogram.getPercentile(0.25));
+        assertEquals(3, histogram.getPercentile(0.5));
+        assertEquals(7, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void record_fromThreads() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread threads[] = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int value = 0; value < 100000; value++) {
+                        histogram.record(value % 5000 + offset);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getCount());
+        assertEquals(4999 + threads.length - 1, histogram.getMax());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.benchmark;
+
+import com.creativept.pinyindemo2.HostDecoder;
+import com.creativept.pinyindemo2.PinyinDecoderService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the decoder hot path: search, incremental letters, deletion
+ * and choosing. Prediction is in {@link PredictBenchmark}. The native engine is process-global, so every
+ * benchmark runs single-threaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecoderBenchmark {
+	/**
+	 * Realistic Pinyin input, longer than the engine's 40-step limit.
+	 * 我想去北京看看天安门广场然后...
+	 */
+	private static final String INPUT = "woxiangqubeijingkankantiananmenguangchangranhou";
+
+	@Param({ "1", "5", "10", "20", "40" })
+	public int pyLength;
+
+	private byte mPyBuf[];
+
+	@Setup
+	public void setUp() throws Exception {
+		HostDecoder.open();
+		mPyBuf = HostDecoder.toCString(INPUT.substring(0, pyLength));
+	}
+
+	@TearDown
+	public void tearDown() {
+		HostDecoder.close();
+	}
+
+	/**
+	 * Search the whole string from scratch.
+	 */
+	@Benchmark
+	public int search() {
+		PinyinDecoderService.nativeImResetSearch();
+		return PinyinDecoderService.nativeImSearch(mPyBuf, pyLength);
+	}
+
+	/**
+	 * Type the string one letter at a time through nativeImAddLetter().
+	 */
+	@Benchmark
+	public int addLetter() {
+		PinyinDecoderService.nativeImResetSearch();
+		int num = 0;
+		for (int i = 0; i < pyLength; i++) {
+			num = PinyinDecoderService.nativeImAddLetter(mPyBuf[i]);
+		}
+		return num;
+	}
+
+	/**
+	 * Search the string, then delete it from the end one letter at a time.
+	 */
+	@Benchmark
+	public int delSearch() {
+		PinyinDecoderService.nativeImResetSearch();
+		int num = PinyinDecoderService.nativeImSearch(mPyBuf, pyLength);
+		int len = PinyinDecoderService.nativeImGetPyStrLen(false);
+		while (len > 0) {
+			num = PinyinDecoderService.nativeImDelSearch(len - 1, false, true);
+			len--;
+		}
+		return num;
+	}
+
+	/**
+	 * Search the string, then keep choosing the first word candidate until
+	 * the whole sentence is fixed.
+	 */
+	@Benchmark
+	public int chooseChain(Blackhole bh) {
+		PinyinDecoderService.nativeImResetSearch();
+		int num = PinyinDecoderService.nativeImSearch(mPyBuf, pyLength);
+		int splNum = PinyinDecoderService.nativeImGetSplStart()[0];
+		// Each choice fixes at least one spelling.
+		for (int i = 0; i < splNum && num > 1; i++) {
+			num = PinyinDecoderService.nativeImChoose(1);
+			bh.consume(PinyinDecoderService.nativeImGetFixedLen());
+		}
+		return num;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.benchmark;
+
+import com.creativept.pinyindemo2.HostDecoder;
+import com.creativept.pinyindemo2.PinyinDecoderService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search latency with system dictionaries of growing sizes, built by the
+ * buildScaleDicts task from a synthetic raw dictionary. The lookup in the
+ * trie should stay flat; what grows is the number of matching lemmas to score.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DictScaleBenchmark {
+	/**
+	 * System property holding the directory of the dict_N.dat files.
+	 * 各规模词库所在目录的系统属性
+	 */
+	public static final String SCALE_DICT_DIR_PROPERTY = "pinyin.scaledicts";
+
+	private static final String INPUTS[] = { "zhongguo", "nihaoma",
+			"kuangyeduodeyinse", "woxiangqubeijingkankan" };
+
+	@Param({ "65105", "1000000", "5000000" })
+	public int lemmaNum;
+
+	private byte mPyBufs[][];
+
+	@Setup
+	public void setUp() throws Exception {
+		String dir = System.getProperty(SCALE_DICT_DIR_PROPERTY);
+		if (null == dir) {
+			throw new IllegalStateException("-D" + SCALE_DICT_DIR_PROPERTY
+					+ " is not set");
+		}
+		HostDecoder.open(new File(dir, "dict_" + lemmaNum + ".dat").getPath(),
+				false);
+		mPyBufs = new byte[INPUTS.length][];
+		for (int i = 0; i < INPUTS.length; i++) {
+			mPyBufs[i] = HostDecoder.toCString(INPUTS[i]);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		HostDecoder.close();
+	}
+
+	/**
+	 * Search each input from scratch.
+	 */
+	@Benchmark
+	public int search() {
+		int num = 0;
+		for (int i = 0; i < mPyBufs.length; i++) {
+			PinyinDecoderService.nativeImResetSearch();
+			num += PinyinDecoderService.nativeImSearch(mPyBufs[i],
+					INPUTS[i].length());
+		}
+		return num;
+	}
+}
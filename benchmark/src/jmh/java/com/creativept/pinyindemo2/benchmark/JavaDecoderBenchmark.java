@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.benchmark;
+
+import com.creativept.pinyindemo2.HostDecoder;
+import com.creativept.pinyindemo2.PinyinDecoderService;
+import com.creativept.pinyindemo2.engine.MatrixSearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pure-Java decoder against the native engine through JNI, on the same
+ * host-built dictionary. Both are opened without a user dictionary, so the
+ * work done is the same; each benchmark has a java and a jni variant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JavaDecoderBenchmark {
+	/**
+	 * The same input as {@link DecoderBenchmark}.
+	 */
+	private static final String INPUT = "woxiangqubeijingkankantiananmenguangchangranhou";
+
+	/**
+	 * How many candidates are fetched after a search, about one page.
+	 */
+	private static final int PAGE_SIZE = 10;
+
+	@Param({ "1", "5", "10", "20", "40" })
+	public int pyLength;
+
+	private byte mPyBuf[];
+	private MatrixSearch mMatrixSearch;
+	private final char mCandBuf[] = new char[64];
+
+	@Setup
+	public void setUp() throws Exception {
+		HostDecoder.open(false);
+		RandomAccessFile file = new RandomAccessFile(HostDecoder.getSysDictPath(), "r");
+		try {
+			FileChannel channel = file.getChannel();
+			mMatrixSearch = new MatrixSearch(MatrixSearch.loadDict(channel, 0, channel.size()));
+		} finally {
+			file.close();
+		}
+		mPyBuf = HostDecoder.toCString(INPUT.substring(0, pyLength));
+	}
+
+	@TearDown
+	public void tearDown() {
+		HostDecoder.close();
+	}
+
+	@Benchmark
+	public int searchJava() {
+		mMatrixSearch.resetSearch();
+		mMatrixSearch.search(mPyBuf, pyLength);
+		return mMatrixSearch.getCandidateNum();
+	}
+
+	@Benchmark
+	public int searchJni() {
+		PinyinDecoderService.nativeImResetSearch();
+		return PinyinDecoderService.nativeImSearch(mPyBuf, pyLength);
+	}
+
+	/**
+	 * Search, then fetch the first page of candidates.
+	 */
+	@Benchmark
+	public void searchPageJava(Blackhole bh) {
+		mMatrixSearch.resetSearch();
+		mMatrixSearch.search(mPyBuf, pyLength);
+		int num = Math.min(mMatrixSearch.getCandidateNum(), PAGE_SIZE);
+		for (int i = 0; i < num; i++) {
+			bh.consume(mMatrixSearch.getCandidate(i, mCandBuf, mCandBuf.length));
+		}
+	}
+
+	@Benchmark
+	public void searchPageJni(Blackhole bh) {
+		PinyinDecoderService.nativeImResetSearch();
+		int num = Math.min(PinyinDecoderService.nativeImSearch(mPyBuf, pyLength), PAGE_SIZE);
+		for (int i = 0; i < num; i++) {
+			bh.consume(PinyinDecoderService.nativeImGetChoice(i));
+		}
+	}
+
+	/**
+	 * Type the string one letter at a time, searching the whole prefix each
+	 * time as the IME does.
+	 */
+	@Benchmark
+	public int typingJava() {
+		mMatrixSearch.resetSearch();
+		for (int i = 1; i <= pyLength; i++) {
+			mMatrixSearch.search(mPyBuf, i);
+		}
+		return mMatrixSearch.getCandidateNum();
+	}
+
+	@Benchmark
+	public int typingJni() {
+		PinyinDecoderService.nativeImResetSearch();
+		int num = 0;
+		for (int i = 1; i <= pyLength; i++) {
+			num = PinyinDecoderService.nativeImSearch(mPyBuf, i);
+		}
+		return num;
+	}
+}
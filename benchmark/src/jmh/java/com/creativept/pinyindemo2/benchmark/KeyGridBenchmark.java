@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.benchmark;
+
+import com.creativept.pinyindemo2.KeyGrid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hit-testing a stream of touch moves on a QWERTY layout, as
+ * SoftKeyboard.mapToKey() does for every ACTION_MOVE: with the grid index,
+ * and by scanning all keys as mapToKey() used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyGridBenchmark {
+	private static final int WIDTH = 1080;
+	private static final int HEIGHT = 620;
+
+	private static final int ROW_KEYS[] = { 10, 9, 9, 7 };
+	private static final float ROW_INDENT[] = { 0, 0.5f, 1.5f, 1.5f };
+
+	/**
+	 * 100 swipes of 20 moves each.
+	 */
+	private static final int MOVES = 2000;
+	private static final int MOVES_PER_SWIPE = 20;
+
+	private final KeyGrid mGrid = new KeyGrid();
+	private final int mX[] = new int[MOVES];
+	private final int mY[] = new int[MOVES];
+
+	@Setup
+	public void setUp() {
+		int keyNum = 0;
+		for (int row = 0; row < ROW_KEYS.length; row++) {
+			keyNum += ROW_KEYS[row];
+		}
+		int left[] = new int[keyNum];
+		int top[] = new int[keyNum];
+		int right[] = new int[keyNum];
+		int bottom[] = new int[keyNum];
+		float keyHeight = 1.0f / ROW_KEYS.length;
+		int i = 0;
+		for (int row = 0; row < ROW_KEYS.length; row++) {
+			for (int col = 0; col < ROW_KEYS[row]; col++, i++) {
+				float l = (ROW_INDENT[row] + col) * 0.1f;
+				float r = row == ROW_KEYS.length - 1 && col == ROW_KEYS[row] - 1
+						? 1.0f : l + 0.1f;
+				left[i] = (int) ((l + 0.01f) * WIDTH);
+				right[i] = (int) ((r - 0.01f) * WIDTH);
+				top[i] = (int) ((row * keyHeight + 0.02f) * HEIGHT);
+				bottom[i] = (int) (((row + 1) * keyHeight - 0.02f) * HEIGHT);
+			}
+		}
+		mGrid.build(left, top, right, bottom, keyNum, WIDTH, HEIGHT);
+
+		Random random = new Random(0);
+		for (int move = 0; move < MOVES; move += MOVES_PER_SWIPE) {
+			int x = random.nextInt(WIDTH);
+			int y = random.nextInt(HEIGHT);
+			int dx = random.nextInt(61) - 30;
+			int dy = random.nextInt(31) - 15;
+			for (int step = 0; step < MOVES_PER_SWIPE; step++) {
+				// Turn back at the edges, so that the finger stays on the
+				// keyboard.
+				if (x + dx < 0 || x + dx >= WIDTH) {
+					dx = -dx;
+				}
+				if (y + dy < 0 || y + dy >= HEIGHT) {
+					dy = -dy;
+				}
+				x += dx;
+				y += dy;
+				mX[move + step] = x;
+				mY[move + step] = y;
+			}
+		}
+	}
+
+	@Benchmark
+	public int grid() {
+		int sum = 0;
+		for (int move = 0; move < MOVES; move++) {
+			sum += mGrid.findKey(mX[move], mY[move]);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int scan() {
+		int sum = 0;
+		for (int move = 0; move < MOVES; move++) {
+			sum += mGrid.scanKeys(mX[move], mY[move]);
+		}
+		return sum;
+	}
+}
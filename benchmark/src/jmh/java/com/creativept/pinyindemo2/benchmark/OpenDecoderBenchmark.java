@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.benchmark;
+
+import com.creativept.pinyindemo2.HostDecoder;
+import com.creativept.pinyindemo2.PinyinDecoderService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening the engine the way PinyinDecoderService.initPinyinEngine() does:
+ * through a file descriptor, an offset and a length, followed by a first
+ * search so that the pages it needs are touched.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OpenDecoderBenchmark {
+	private FileInputStream mSysDict;
+	private long mLength;
+	private byte mUsrDict[];
+	private final byte mPyBuf[] = HostDecoder.toCString("zhongguo");
+
+	@Setup
+	public void setUp() throws IOException {
+		File sysDict = new File(HostDecoder.getSysDictPath());
+		mSysDict = new FileInputStream(sysDict);
+		mLength = sysDict.length();
+		// Without a user dictionary, see HostDecoder.open(boolean).
+		File tmp = File.createTempFile("usr_dict", ".dat");
+		tmp.delete();
+		mUsrDict = HostDecoder.toCString(new File(tmp, "usr_dict.dat").getPath());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mSysDict.close();
+	}
+
+	@Benchmark
+	public int openAndSearch() throws IOException {
+		if (!PinyinDecoderService.nativeImOpenDecoderFd(mSysDict.getFD(), 0,
+				mLength, mUsrDict)) {
+			throw new IOException("Failed to open the decoder");
+		}
+		int num = PinyinDecoderService.nativeImSearch(mPyBuf, mPyBuf.length - 1);
+		PinyinDecoderService.nativeImCloseDecoder();
+		return num;
+	}
+}
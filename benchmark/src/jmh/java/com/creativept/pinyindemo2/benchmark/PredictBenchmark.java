@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.benchmark;
+
+import com.creativept.pinyindemo2.HostDecoder;
+import com.creativept.pinyindemo2.PinyinDecoderService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of nativeImGetPredictsNum() over a set of typical histories.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PredictBenchmark {
+	/**
+	 * Fixed strings used for prediction.
+	 */
+	private static final String PREDICT_HISTORY[] = { "我", "中国", "今天",
+			"我们的", "北京", "电脑", "学习", "天气" };
+
+	@Setup
+	public void setUp() throws Exception {
+		HostDecoder.open();
+	}
+
+	@TearDown
+	public void tearDown() {
+		HostDecoder.close();
+	}
+
+	@Benchmark
+	public int predictsNum() {
+		int num = 0;
+		for (int i = 0; i < PREDICT_HISTORY.length; i++) {
+			num += PinyinDecoderService
+					.nativeImGetPredictsNum(PREDICT_HISTORY[i]);
+		}
+		return num;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2.benchmark;
+
+import com.creativept.pinyindemo2.HostDecoder;
+import com.creativept.pinyindemo2.PinyinDecoderService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to type a long string one key at a time, close to the engine's limit
+ * of 40 search steps (kMaxSearchSteps), the way PinyinIME does: after each
+ * key the engine is either given the whole string again or only the new
+ * letter, then the state kept in a DecodingSnapshot is read back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TypingLatencyBenchmark {
+	/**
+	 * Long spellings, so that the string stays under the engine's limit of 9
+	 * spellings for a sentence and nothing is trimmed.
+	 */
+	private static final String INPUT = "zhuangshuangchuangzhuangshuangchuangxiong";
+
+	@Param({ "30", "35", "39" })
+	public int pyLength;
+
+	private byte mInput[];
+	private final byte mPyBuf[] = new byte[INPUT.length() + 1];
+
+	@Setup
+	public void setUp() throws Exception {
+		HostDecoder.open();
+		mInput = HostDecoder.toCString(INPUT.substring(0, pyLength));
+	}
+
+	@TearDown
+	public void tearDown() {
+		HostDecoder.close();
+	}
+
+	/**
+	 * Copy the whole string into the buffer and search it for every key.
+	 */
+	@Benchmark
+	public void typeBySearch(Blackhole bh) {
+		PinyinDecoderService.nativeImResetSearch();
+		for (int len = 1; len <= pyLength; len++) {
+			for (int i = 0; i < len; i++) {
+				mPyBuf[i] = mInput[i];
+			}
+			mPyBuf[len] = 0;
+			int num = PinyinDecoderService.nativeImSearch(mPyBuf, len);
+			readSnapshot(bh, num);
+		}
+	}
+
+	/**
+	 * Only give the engine the new letter for every key.
+	 */
+	@Benchmark
+	public void typeByAddLetter(Blackhole bh) {
+		PinyinDecoderService.nativeImResetSearch();
+		for (int len = 1; len <= pyLength; len++) {
+			int num = PinyinDecoderService.nativeImAddLetter(mInput[len - 1]);
+			readSnapshot(bh, num);
+		}
+	}
+
+	/**
+	 * Read what PinyinDecoderService.decode() puts into a snapshot, apart
+	 * from the candidates after the first one.
+	 */
+	private static void readSnapshot(Blackhole bh, int num) {
+		bh.consume(num);
+		bh.consume(PinyinDecoderService.nativeImGetSplStart());
+		bh.consume(PinyinDecoderService.nativeImGetPyStr(false));
+		bh.consume(PinyinDecoderService.nativeImGetPyStrLen(true));
+		bh.consume(PinyinDecoderService.nativeImGetChoice(0));
+		bh.consume(PinyinDecoderService.nativeImGetFixedLen());
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Opens the native engine on the host with a host-built system dictionary (see
+ * the buildHostDict task) and a throw-away user dictionary.
+ */
+public class HostDecoder {
+	/**
+	 * System property holding the path of dict_pinyin. 系统词库路径的系统属性
+	 */
+	public static final String SYS_DICT_PROPERTY = "pinyin.sysdict";
+
+	private static File mUsrDict;
+
+	private HostDecoder() {
+	}
+
+	/**
+	 * Open the engine. Every call must be paired with {@link #close()}.
+	 */
+	public static void open() throws IOException {
+		open(true);
+	}
+
+	/**
+	 * Open the engine, without a user dictionary if withUserDict is false, so
+	 * that choosing does not learn and the results only depend on the system
+	 * dictionary. Every call must be paired with {@link #close()}.
+	 */
+	public static void open(boolean withUserDict) throws IOException {
+		open(getSysDictPath(), withUserDict);
+	}
+
+	/**
+	 * Open the engine with the given system dictionary, see
+	 * {@link #open(boolean)}.
+	 */
+	public static void open(String sysDict, boolean withUserDict) throws IOException {
+		mUsrDict = File.createTempFile("usr_dict", ".dat");
+		mUsrDict.delete();
+		// The engine goes on without a user dictionary if it cannot create
+		// one, as it does for a path in a missing directory.
+		String usrDict = withUserDict ? mUsrDict.getPath()
+				: new File(mUsrDict, "usr_dict.dat").getPath();
+		if (!PinyinDecoderService.nativeImOpenDecoder(toCString(sysDict),
+				toCString(usrDict))) {
+			throw new IOException("Failed to open " + sysDict);
+		}
+	}
+
+	/**
+	 * The path of the host-built system dictionary.
+	 */
+	public static String getSysDictPath() {
+		String sysDict = System.getProperty(SYS_DICT_PROPERTY);
+		if (null == sysDict) {
+			throw new IllegalStateException("-D" + SYS_DICT_PROPERTY
+					+ " is not set");
+		}
+		return sysDict;
+	}
+
+	public static void close() {
+		PinyinDecoderService.nativeImCloseDecoder();
+		if (null != mUsrDict) {
+			mUsrDict.delete();
+			mUsrDict = null;
+		}
+	}
+
+	/**
+	 * Null-terminated bytes of a string, as the native side expects.
+	 */
+	public static byte[] toCString(String str) {
+		byte buf[] = new byte[str.length() + 1];
+		for (int i = 0; i < str.length(); i++) {
+			buf[i] = (byte) str.charAt(i);
+		}
+		buf[str.length()] = 0;
+		return buf;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+
+/**
+ * Host-side stand-in for the app's PinyinDecoderService. It only declares the
+ * JNI functions, with the same class name and signatures, so that JNI_OnLoad()
+ * in com_android_inputmethod_pinyin_PinyinDecoderService.cpp registers them
+ * exactly as it does on the device.
+ */
+public class PinyinDecoderService {
+	static {
+		System.loadLibrary("jni_pinyinime");
+	}
+
+	public native static synchronized boolean nativeImOpenDecoder(
+			byte fn_sys_dict[], byte fn_usr_dict[]);
+
+	public native static synchronized boolean nativeImOpenDecoderFd(
+			FileDescriptor fd, long startOffset, long length,
+			byte fn_usr_dict[]);
+
+	public native static synchronized void nativeImSetMaxLens(int maxSpsLen,
+			int maxHzsLen);
+
+	public native static synchronized boolean nativeImCloseDecoder();
+
+	public native static synchronized int nativeImSearch(byte pyBuf[],
+			int pyLen);
+
+	public native static synchronized int nativeImDelSearch(int pos,
+			boolean is_pos_in_splid, boolean clear_fixed_this_step);
+
+	public native static synchronized void nativeImResetSearch();
+
+	public native static synchronized int nativeImAddLetter(byte ch);
+
+	public native static synchronized String nativeImGetPyStr(boolean decoded);
+
+	public native static synchronized int nativeImGetPyStrLen(boolean decoded);
+
+	public native static synchronized int[] nativeImGetSplStart();
+
+	public native static synchronized String nativeImGetChoice(int choiceId);
+
+	public native static synchronized int nativeImGetChoiceBuffer(
+			ByteBuffer buf, int choicesStart, int choicesNum, int sentFixedLen);
+
+	public native static synchronized int nativeImChoose(int choiceId);
+
+	public native static synchronized int nativeImCancelLastChoice();
+
+	public native static synchronized int nativeImGetFixedLen();
+
+	public native static synchronized boolean nativeImCancelInput();
+
+	public native static synchronized boolean nativeImFlushCache();
+
+	public native static synchronized int nativeImGetPredictsNum(
+			String fixedStr);
+
+	public native static synchronized String nativeImGetPredictItem(
+			int predictNo);
+
+	public interface TransferListener {
+		void onProgress(int lemmas, long bytes);
+	}
+
+	// The transfers take the lock of the engine in their native code.
+	public native static int nativeImImportUserDict(FileDescriptor fd,
+			TransferListener listener);
+
+	public native static int nativeImExportUserDict(FileDescriptor fd,
+			TransferListener listener);
+
+	public native static synchronized boolean nativeSyncBegin(byte[] user_dict);
+
+	public native static synchronized boolean nativeSyncFinish();
+
+	public native static synchronized String nativeSyncGetLemmas();
+
+	public native static synchronized int nativeSyncPutLemmas(String tomerge);
+
+	public native static synchronized int nativeSyncGetLastCount();
+
+	public native static synchronized int nativeSyncGetTotalCount();
+
+	public native static synchronized boolean nativeSyncClearLastGot();
+
+	public native static synchronized int nativeSyncGetCapacity();
+}
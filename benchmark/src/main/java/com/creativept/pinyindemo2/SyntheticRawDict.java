@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a raw dictionary of a given number of lemmas, to benchmark the engine
+ * with vocabularies larger than the shipped one. The lemmas of the shipped raw
+ * dictionary come first, then made-up words of 2 to 8 of its single
+ * characters. A character is picked with the square root of its frequency, so
+ * that common spellings get many homophonies as they do in a real vocabulary,
+ * without most words being made of the few most common characters. The output
+ * only depends on the arguments.
+ *
+ * <pre>
+ * SyntheticRawDict rawdict_utf16_65105_freq.txt out.txt 5000000
+ * </pre>
+ */
+public class SyntheticRawDict {
+	private static final long SEED = 20091117L;
+
+	/**
+	 * Cumulative percentage of the word lengths, from 2 Hanzis.
+	 */
+	private static final int LENGTH_PERCENT[] = { 40, 70, 90, 94, 97, 99, 100 };
+
+	private SyntheticRawDict() {
+	}
+
+	public static void main(String args[]) throws IOException {
+		if (args.length != 3) {
+			System.err.println("Usage: SyntheticRawDict raw_dict out_dict lemma_num");
+			System.exit(1);
+		}
+		int lemmaNum = Integer.parseInt(args[2]);
+
+		List<String> lines = new ArrayList<String>();
+		List<String> hanzis = new ArrayList<String>();
+		List<String> pinyins = new ArrayList<String>();
+		List<Double> freqs = new ArrayList<Double>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(args[0]), "UTF-16"));
+		try {
+			String line;
+			while (null != (line = reader.readLine())) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				lines.add(line);
+				// Hanzi, frequency, whether it is outside of GB2312, Pinyin.
+				String tokens[] = line.split(" ");
+				if (4 == tokens.length && 1 == tokens[0].length() && "0".equals(tokens[2])) {
+					hanzis.add(tokens[0]);
+					freqs.add(Double.valueOf(tokens[1]));
+					pinyins.add(tokens[3]);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		double cumFreqs[] = new double[freqs.size()];
+		double sum = 0;
+		for (int i = 0; i < cumFreqs.length; i++) {
+			sum += Math.sqrt(freqs.get(i));
+			cumFreqs[i] = sum;
+		}
+
+		Random random = new Random(SEED);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(args[1]), "UTF-16LE"), 1 << 16);
+		try {
+			// The byte order mark.
+			writer.write('\ufeff');
+			int num = Math.min(lemmaNum, lines.size());
+			for (int i = 0; i < num; i++) {
+				writer.write(lines.get(i));
+				writer.write('\n');
+			}
+
+			StringBuilder hanzi = new StringBuilder();
+			StringBuilder pinyin = new StringBuilder();
+			for (int i = num; i < lemmaNum; i++) {
+				int percent = random.nextInt(100);
+				int len = 2;
+				while (percent >= LENGTH_PERCENT[len - 2]) {
+					len++;
+				}
+
+				hanzi.setLength(0);
+				pinyin.setLength(0);
+				for (int pos = 0; pos < len; pos++) {
+					int pick = Arrays.binarySearch(cumFreqs, random.nextDouble() * sum);
+					if (pick < 0) {
+						pick = Math.min(-pick - 1, cumFreqs.length - 1);
+					}
+					hanzi.append(hanzis.get(pick));
+					pinyin.append(' ').append(pinyins.get(pick));
+				}
+				// Words of more than one Hanzi need a frequency of 60 at least.
+				int freq = 60 + random.nextInt(1000);
+				writer.write(hanzi + " " + freq + " 0" + pinyin + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package com.creativept.pinyindemo2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What the engine learns goes to the user dictionary's journal at once, so it
+ * is kept if the process is killed before the dictionary is closed. The
+ * process being killed is simulated by copying the files while the engine is
+ * open.
+ */
+public class UserDictJournalTest {
+    private static final String USR_DICT = "usr_dict.dat";
+
+    private static final String PINYIN = "zhongwen";
+
+    private File mDir;
+
+    private boolean mOpened;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("usr_dict", "");
+        mDir.delete();
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        close();
+        delete(mDir);
+    }
+
+    @Test
+    public void learntLemma_survivesKill() throws IOException {
+        open(new File(mDir, USR_DICT));
+        String learnt = learn(PINYIN);
+
+        File killed = new File(mDir, "killed");
+        assertTrue(killed.mkdir());
+        int copied = 0;
+        for (File file : mDir.listFiles()) {
+            if (file.getName().startsWith(USR_DICT)) {
+                copy(file, new File(killed, file.getName()));
+                copied++;
+            }
+        }
+        // The dictionary and its journal.
+        assertEquals(2, copied);
+        close();
+
+        open(new File(killed, USR_DICT));
+        assertTrue(isCandidate(PINYIN, learnt));
+    }
+
+    @Test
+    public void close_writesJournalToFile() throws IOException {
+        open(new File(mDir, USR_DICT));
+        String learnt = learn(PINYIN);
+        close();
+
+        assertArrayEquals(new String[] { USR_DICT }, mDir.list());
+        open(new File(mDir, USR_DICT));
+        assertTrue(isCandidate(PINYIN, learnt));
+    }
+
+    @Test
+    public void longJournal_isWrittenToFileWhileOpen() throws IOException {
+        File usrDict = new File(mDir, USR_DICT);
+        open(usrDict);
+        long emptyLength = usrDict.length();
+        // Every learning appends a few records, until the journal is long
+        // enough to be written to the file in the background.
+        for (int i = 0; i < 100000 && usrDict.length() == emptyLength; i++) {
+            learn(PINYIN);
+        }
+        assertTrue(usrDict.length() > emptyLength);
+        String learnt = learn(PINYIN);
+
+        File killed = new File(mDir, "killed");
+        assertTrue(killed.mkdir());
+        for (File file : mDir.listFiles()) {
+            if (file.getName().startsWith(USR_DICT)) {
+                copy(file, new File(killed, file.getName()));
+            }
+        }
+        close();
+
+        open(new File(killed, USR_DICT));
+        assertTrue(isCandidate(PINYIN, learnt));
+    }
+
+    @Test
+    public void brokenTail_isDropped() throws IOException {
+        open(new File(mDir, USR_DICT));
+        String learnt = learn(PINYIN);
+
+        File killed = new File(mDir, "killed");
+        assertTrue(killed.mkdir());
+        for (File file : mDir.listFiles()) {
+            if (file.getName().startsWith(USR_DICT + ".journal.")) {
+                // A record cut short by the kill.
+                File journal = new File(killed, file.getName());
+                copy(file, journal);
+                OutputStream out = new FileOutputStream(journal, true);
+                out.write(new byte[] { 24, 0, 1, 1, 7 });
+                out.close();
+            } else if (file.getName().equals(USR_DICT)) {
+                copy(file, new File(killed, USR_DICT));
+            }
+        }
+        close();
+
+        open(new File(killed, USR_DICT));
+        assertTrue(isCandidate(PINYIN, learnt));
+        close();
+        open(new File(killed, USR_DICT));
+        assertTrue(isCandidate(PINYIN, learnt));
+    }
+
+    private void open(File usrDict) throws IOException {
+        if (!PinyinDecoderService.nativeImOpenDecoder(
+                HostDecoder.toCString(HostDecoder.getSysDictPath()),
+                HostDecoder.toCString(usrDict.getPath()))) {
+            throw new IOException("Failed to open " + usrDict);
+        }
+        mOpened = true;
+    }
+
+    private void close() {
+        if (mOpened) {
+            PinyinDecoderService.nativeImCloseDecoder();
+            mOpened = false;
+        }
+    }
+
+    private static int search(String py) {
+        PinyinDecoderService.nativeImResetSearch();
+        return PinyinDecoderService.nativeImSearch(HostDecoder.toCString(py),
+                py.length());
+    }
+
+    private static boolean isCandidate(String py, String lemma) {
+        int num = search(py);
+        for (int i = 0; i < num; i++) {
+            if (lemma.equals(PinyinDecoderService.nativeImGetChoice(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Choose a single Hanzi other than the first one of the best sentence,
+     * then the best lemmas for the rest, which makes the engine learn the
+     * whole.
+     */
+    private static String learn(String py) {
+        int num = search(py);
+        String best = PinyinDecoderService.nativeImGetChoice(0);
+        int choice = 1;
+        while (choice < num) {
+            String candidate = PinyinDecoderService.nativeImGetChoice(choice);
+            if (1 == candidate.length() && candidate.charAt(0) != best.charAt(0)) {
+                break;
+            }
+            choice++;
+        }
+        assertTrue(choice < num);
+        num = PinyinDecoderService.nativeImChoose(choice);
+        // Choosing the whole sentence would not learn it.
+        while (num > 1) {
+            num = PinyinDecoderService.nativeImChoose(1);
+        }
+        String learnt = PinyinDecoderService.nativeImGetChoice(0);
+        assertNotEquals(best, learnt);
+        PinyinDecoderService.nativeImResetSearch();
+        return learnt;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte buf[] = new byte[4096];
+                int len;
+                while ((len = in.read(buf)) > 0) {
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File children[] = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
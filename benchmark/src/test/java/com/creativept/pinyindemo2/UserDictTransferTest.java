@@ -0,0 +1,297 @@
+package com.creativept.pinyindemo2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The user dictionary is exported to and imported from a file in the sync
+ * format, streamed in chunks. A large import is sorted into the dictionary
+ * and written to its file once, so it takes seconds rather than one journal
+ * record per lemma. The engine is not locked while the file is read, so
+ * decoding goes on during an import.
+ */
+public class UserDictTransferTest {
+    private static final String USR_DICT = "usr_dict.dat";
+
+    private static final String PINYIN = "zhongwen";
+
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    private static final String SYLLABLES[] = { "zhong", "wen", "shu", "ru",
+            "fa", "pin", "yin", "ci", "dian", "yong", "hu", "xue", "xi",
+            "gong", "zuo", "sheng", "huo", "peng", "you", "jia" };
+
+    private static final int LARGE_IMPORT = 200000;
+
+    private File mDir;
+
+    private boolean mOpened;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("usr_dict", "");
+        mDir.delete();
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        close();
+        delete(mDir);
+    }
+
+    @Test
+    public void exportedLemma_isImported() throws IOException {
+        open(new File(mDir, "exporting"));
+        String learnt = learn(PINYIN);
+        File exported = new File(mDir, "exported");
+        assertTrue(export(exported) >= 1);
+        close();
+
+        open(new File(mDir, USR_DICT));
+        assertTrue(importFrom(exported) >= 1);
+        assertTrue(isCandidate(PINYIN, learnt));
+        // Imported again, the lemma is updated in place.
+        assertTrue(importFrom(exported) >= 1);
+        assertTrue(isCandidate(PINYIN, learnt));
+        close();
+
+        open(new File(mDir, USR_DICT));
+        assertTrue(isCandidate(PINYIN, learnt));
+    }
+
+    @Test
+    public void brokenRecords_areSkipped() throws IOException {
+        File file = new File(mDir, "broken");
+        // Not a word of the system dictionary.
+        String lemma = "钟纹";
+        write(file, "\uFEFFzhong,钟纹,5,1;no comma;zhong wen,钟,5,1;"
+                + "qqq wen,钟纹,5,1;zhong wen," + lemma + ",20,1300000000");
+        open(new File(mDir, USR_DICT));
+        assertTrue(!isCandidate(PINYIN, lemma));
+        assertEquals(1, importFrom(file));
+        assertTrue(isCandidate(PINYIN, lemma));
+    }
+
+    @Test
+    public void largeImport_isFast() throws IOException {
+        File file = new File(mDir, "large");
+        Random random = new Random(1);
+        long lmt = System.currentTimeMillis() / 1000;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        StringBuilder record = new StringBuilder();
+        for (int i = 0; i < LARGE_IMPORT; i++) {
+            record.setLength(0);
+            int len = 2 + random.nextInt(3);
+            for (int j = 0; j < len; j++) {
+                if (j > 0) {
+                    record.append(' ');
+                }
+                record.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            record.append(',');
+            for (int j = 0; j < len; j++) {
+                record.append((char) (0x4e00 + random.nextInt(0x5000)));
+            }
+            record.append(',').append(1 + random.nextInt(100)).append(',')
+                    .append(lmt).append(';');
+            out.write(record.toString().getBytes(UTF_16LE));
+        }
+        // A lemma to look for, so frequent that it is among the candidates.
+        String lemma = "龘龘";
+        out.write(("zhong wen," + lemma + ",60000," + lmt + ";").getBytes(UTF_16LE));
+        out.close();
+
+        open(new File(mDir, USR_DICT));
+        final long progress[] = new long[2];
+        long start = System.nanoTime();
+        int imported = importFrom(file, new PinyinDecoderService.TransferListener() {
+            public void onProgress(int lemmas, long bytes) {
+                assertTrue(lemmas >= progress[0] && bytes >= progress[1]);
+                progress[0] = lemmas;
+                progress[1] = bytes;
+            }
+        });
+        System.out.printf("Imported %d lemmas in %.1f ms%n", imported,
+                (System.nanoTime() - start) / 1e6);
+        assertEquals(LARGE_IMPORT + 1, imported);
+        assertEquals(imported, progress[0]);
+        assertEquals(file.length(), progress[1]);
+        assertTrue(isCandidate(PINYIN, lemma));
+        close();
+
+        open(new File(mDir, USR_DICT));
+        assertTrue(isCandidate(PINYIN, lemma));
+        File exported = new File(mDir, "exported");
+        int num = export(exported);
+        assertTrue(num > LARGE_IMPORT * 9 / 10 && num <= LARGE_IMPORT + 1);
+    }
+
+    @Test
+    public void decode_isNotBlockedByImport() throws Exception {
+        final File fifo = new File(mDir, "fifo");
+        assertEquals(0, new ProcessBuilder("mkfifo", fifo.getPath()).start()
+                .waitFor());
+        open(new File(mDir, USR_DICT));
+        final String lemma = "钟纹";
+        final CountDownLatch chunkRead = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> importing = executor.submit(new Callable<Integer>() {
+                public Integer call() throws IOException {
+                    return importFrom(fifo,
+                            new PinyinDecoderService.TransferListener() {
+                        public void onProgress(int lemmas, long bytes) {
+                            if (lemmas > 0) {
+                                chunkRead.countDown();
+                            }
+                        }
+                    });
+                }
+            });
+            // Opened once the import opens the other end.
+            OutputStream out = new FileOutputStream(fifo);
+            try {
+                out.write(("zhong wen," + lemma + ",20,1300000000;")
+                        .getBytes(UTF_16LE));
+                out.flush();
+                assertTrue(chunkRead.await(10, TimeUnit.SECONDS));
+                // The import waits for more of the pipe now, without the
+                // lock of the engine.
+                Future<Integer> decoding = executor.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        return search(PINYIN);
+                    }
+                });
+                assertTrue(decoding.get(1, TimeUnit.SECONDS) > 0);
+            } finally {
+                out.close();
+            }
+            assertEquals(1, (int) importing.get(10, TimeUnit.SECONDS));
+            assertTrue(isCandidate(PINYIN, lemma));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void open(File usrDict) throws IOException {
+        if (!PinyinDecoderService.nativeImOpenDecoder(
+                HostDecoder.toCString(HostDecoder.getSysDictPath()),
+                HostDecoder.toCString(usrDict.getPath()))) {
+            throw new IOException("Failed to open " + usrDict);
+        }
+        mOpened = true;
+    }
+
+    private void close() {
+        if (mOpened) {
+            PinyinDecoderService.nativeImCloseDecoder();
+            mOpened = false;
+        }
+    }
+
+    private static int export(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            return PinyinDecoderService.nativeImExportUserDict(out.getFD(), null);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int importFrom(File file) throws IOException {
+        return importFrom(file, null);
+    }
+
+    private static int importFrom(File file,
+            PinyinDecoderService.TransferListener listener) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return PinyinDecoderService.nativeImImportUserDict(in.getFD(), listener);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(UTF_16LE));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int search(String py) {
+        PinyinDecoderService.nativeImResetSearch();
+        return PinyinDecoderService.nativeImSearch(HostDecoder.toCString(py),
+                py.length());
+    }
+
+    private static boolean isCandidate(String py, String lemma) {
+        int num = search(py);
+        for (int i = 0; i < num; i++) {
+            if (lemma.equals(PinyinDecoderService.nativeImGetChoice(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Choose a single Hanzi other than the first one of the best sentence,
+     * then the best lemmas for the rest, which makes the engine learn the
+     * whole.
+     */
+    private static String learn(String py) {
+        int num = search(py);
+        String best = PinyinDecoderService.nativeImGetChoice(0);
+        int choice = 1;
+        while (choice < num) {
+            String candidate = PinyinDecoderService.nativeImGetChoice(choice);
+            if (1 == candidate.length() && candidate.charAt(0) != best.charAt(0)) {
+                break;
+            }
+            choice++;
+        }
+        assertTrue(choice < num);
+        num = PinyinDecoderService.nativeImChoose(choice);
+        while (num > 1) {
+            num = PinyinDecoderService.nativeImChoose(1);
+        }
+        String learnt = PinyinDecoderService.nativeImGetChoice(0);
+        assertNotEquals(best, learnt);
+        PinyinDecoderService.nativeImResetSearch();
+        return learnt;
+    }
+
+    private static void delete(File file) {
+        File children[] = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,208 @@
+package com.creativept.pinyindemo2.engine;
+
+import com.creativept.pinyindemo2.HostDecoder;
+import com.creativept.pinyindemo2.PinyinDecoderService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Runs the golden corpus through the Java decoder and the native engine and
+ * checks that they end up in the same state after every step: searching
+ * letter by letter, choosing, cancelling and deleting.
+ *
+ * The native engine is opened without a user dictionary, so nothing is learnt
+ * while choosing.
+ */
+public class MatrixSearchGoldenTest {
+    private static final String CORPUS = "/golden_corpus.txt";
+
+    private MatrixSearch mJava;
+
+    /**
+     * The number of candidates returned by the last native operation.
+     */
+    private int mNativeNum;
+
+    @Before
+    public void setUp() throws Exception {
+        HostDecoder.open(false);
+        RandomAccessFile file = new RandomAccessFile(HostDecoder.getSysDictPath(), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            DictTrie dictTrie = MatrixSearch.loadDict(channel, 0, channel.size());
+            assertNotNull(dictTrie);
+            mJava = new MatrixSearch(dictTrie);
+        } finally {
+            file.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        HostDecoder.close();
+    }
+
+    @Test
+    public void typing_matchesNative() throws Exception {
+        for (String py : readCorpus()) {
+            resetBoth();
+            for (int len = 1; len <= py.length(); len++) {
+                searchBoth(py.substring(0, len));
+                assertSameState(py + " [" + len + "]");
+            }
+        }
+    }
+
+    /**
+     * Adding a letter gives the same state as searching the engine's string
+     * with the letter appended, as the IME does: the native engine adds
+     * letters while the Java decoder searches, then the other way round. The
+     * second half is also typed after a choice, so that letters are added
+     * behind a fixed part.
+     */
+    @Test
+    public void addingLetters_matchesSearch() throws Exception {
+        for (String py : readCorpus()) {
+            resetBoth();
+            for (int len = 1; len <= py.length(); len++) {
+                String next = mJava.getPyStr(false) + py.charAt(len - 1);
+                mNativeNum = PinyinDecoderService.nativeImAddLetter((byte) py.charAt(len - 1));
+                mJava.search(HostDecoder.toCString(next), next.length());
+                assertSameState(py + " native add [" + len + "]");
+            }
+
+            resetBoth();
+            int half = py.length() / 2;
+            for (int len = 1; len <= py.length(); len++) {
+                if (len == half + 1 && mJava.getCandidateNum() > 1) {
+                    chooseBoth(1);
+                }
+                String next = PinyinDecoderService.nativeImGetPyStr(false) + py.charAt(len - 1);
+                mNativeNum = PinyinDecoderService.nativeImSearch(HostDecoder.toCString(next),
+                        next.length());
+                mJava.addLetter((byte) py.charAt(len - 1));
+                assertSameState(py + " java add [" + len + "]");
+            }
+        }
+    }
+
+    @Test
+    public void choosing_matchesNative() throws Exception {
+        for (String py : readCorpus()) {
+            resetBoth();
+            searchBoth(py);
+            // Choose a different candidate each time, then the sentence.
+            for (int i = 1; ; i++) {
+                int num = mJava.getCandidateNum();
+                if (num <= 1) {
+                    break;
+                }
+                int candId = 1 + (i * 7) % (num - 1);
+                chooseBoth(candId);
+                assertSameState(py + " choose " + candId);
+            }
+            mNativeNum = PinyinDecoderService.nativeImCancelLastChoice();
+            mJava.cancelLastChoice();
+            assertSameState(py + " cancel");
+            chooseBoth(0);
+            assertSameState(py + " choose 0");
+        }
+    }
+
+    @Test
+    public void deleting_matchesNative() throws Exception {
+        for (String py : readCorpus()) {
+            // Delete letters from the end.
+            resetBoth();
+            searchBoth(py);
+            for (int len = mJava.getPyStr(false).length(); len > 0; len--) {
+                delSearchBoth(len - 1, false, true);
+                assertSameState(py + " del " + (len - 1));
+            }
+
+            // Fix the first word, then delete a spelling in it, which turns
+            // the fixed part into a composing phrase.
+            resetBoth();
+            searchBoth(py);
+            if (mJava.getCandidateNum() > 1) {
+                chooseBoth(1);
+                delSearchBoth(0, true, false);
+                assertSameState(py + " del spelling");
+                int len = mJava.getPyStr(false).length();
+                if (len > 0) {
+                    delSearchBoth(len - 1, false, true);
+                    assertSameState(py + " del last");
+                }
+            }
+        }
+    }
+
+    private void resetBoth() {
+        PinyinDecoderService.nativeImResetSearch();
+        mJava.resetSearch();
+        mNativeNum = 0;
+    }
+
+    private void searchBoth(String py) {
+        byte pyBuf[] = HostDecoder.toCString(py);
+        mNativeNum = PinyinDecoderService.nativeImSearch(pyBuf, py.length());
+        mJava.search(pyBuf, py.length());
+    }
+
+    private void delSearchBoth(int pos, boolean isPosInSplid, boolean clearFixedThisStep) {
+        mNativeNum = PinyinDecoderService.nativeImDelSearch(pos, isPosInSplid,
+                clearFixedThisStep);
+        mJava.delSearch(pos, isPosInSplid, clearFixedThisStep);
+    }
+
+    private void chooseBoth(int candId) {
+        mNativeNum = PinyinDecoderService.nativeImChoose(candId);
+        mJava.choose(candId);
+    }
+
+    private void assertSameState(String what) {
+        assertEquals(what, mNativeNum, mJava.getCandidateNum());
+        assertEquals(what, PinyinDecoderService.nativeImGetPyStr(false), mJava.getPyStr(false));
+        assertEquals(what, PinyinDecoderService.nativeImGetPyStrLen(true), mJava.getDecodedLen());
+        assertEquals(what, Arrays.toString(PinyinDecoderService.nativeImGetSplStart()),
+                Arrays.toString(mJava.getSplStart()));
+        assertEquals(what, PinyinDecoderService.nativeImGetFixedLen(), mJava.getFixedLen());
+
+        for (int i = 0; i < mNativeNum; i++) {
+            String expected = PinyinDecoderService.nativeImGetChoice(i);
+            String actual = mJava.getCandidate(i);
+            assertEquals(what + " #" + i, expected, null == actual ? "" : actual);
+        }
+    }
+
+    private static List<String> readCorpus() throws IOException {
+        List<String> corpus = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                MatrixSearchGoldenTest.class.getResourceAsStream(CORPUS), "US-ASCII"));
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    corpus.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return corpus;
+    }
+}
@@ -0,0 +1,913 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.creativept.pinyindemo2;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Compiles the soft keyboard templates and layouts in res/xml into the format
+ * of {@link SkbLayoutFormat}. It follows XmlKeyboardLoader step by step, so
+ * that the keys get the same attributes and positions, and it fails on the
+ * files XmlKeyboardLoader would not load.
+ *
+ * <pre>
+ * SkbCompiler &lt;res dir&gt; &lt;output dir&gt;
+ * </pre>
+ *
+ * String and color resources are taken from res/values. Drawables and xml
+ * files are referred to by name.
+ * 把res/xml中的软键盘模版和布局编译成二进制格式。
+ *
+ * @ClassName SkbCompiler
+ */
+public class SkbCompiler {
+	/** Same as in XmlKeyboardLoader. */
+	private static final int KEYTYPE_ID_LAST = -1;
+	private static final int ALWAYS_SHOW_ROW_ID = -1;
+	private static final boolean DEFAULT_SKB_CACHE_FLAG = true;
+	private static final boolean DEFAULT_SKB_STICKY_FLAG = true;
+
+	private static final int MAX_TOGGLE_STATE_ID = 0xff;
+
+	private final File mResDir;
+
+	/** String resources by name. */
+	private final Map<String, String> mStrings = new HashMap<String, String>();
+
+	/** Color resources by name. */
+	private final Map<String, Integer> mColors = new HashMap<String, Integer>();
+
+	/** Templates compiled so far, by xml name. */
+	private final Map<String, Template> mTemplates = new HashMap<String, Template>();
+
+	/** The file being compiled, for error messages. */
+	private String mFileName;
+
+	/** Strings of the file being compiled, in index order. */
+	private final LinkedHashMap<String, Integer> mStringTable = new LinkedHashMap<String, Integer>();
+
+	/**
+	 * What a keyboard needs to know about its template.
+	 */
+	static class Template {
+		float mXMargin;
+		float mYMargin;
+		int mKeyTypeNum;
+
+		/** Codes with default icons. */
+		List<Integer> mIconCodes = new ArrayList<Integer>();
+
+		/** Right edge of each default key, by key id. */
+		Map<Integer, Float> mKeyRights = new HashMap<Integer, Float>();
+	}
+
+	/**
+	 * The attributes a key inherits from its row and its keyboard, as
+	 * XmlKeyboardLoader.KeyCommonAttributes.
+	 */
+	class KeyCommonAttributes {
+		int keyType;
+		float keyWidth;
+		float keyHeight;
+		boolean repeat;
+		boolean balloon = true;
+
+		boolean getAttributes(Element e, KeyCommonAttributes defAttr)
+				throws CompileException {
+			keyType = getInteger(e, "key_type", defAttr.keyType);
+			keyWidth = getFloat(e, "width", defAttr.keyWidth);
+			keyHeight = getFloat(e, "height", defAttr.keyHeight);
+			repeat = getBoolean(e, "repeat", defAttr.repeat);
+			balloon = getBoolean(e, "balloon", defAttr.balloon);
+			return keyType >= 0 && keyWidth > 0 && keyHeight > 0;
+		}
+	}
+
+	public static class CompileException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public CompileException(String message) {
+			super(message);
+		}
+	}
+
+	public SkbCompiler(File resDir) {
+		mResDir = resDir;
+	}
+
+	public static void main(String args[]) {
+		if (args.length != 2) {
+			System.err.println("usage: SkbCompiler <res dir> <output dir>");
+			System.exit(2);
+		}
+		try {
+			int num = new SkbCompiler(new File(args[0])).compileAll(new File(
+					args[1]));
+			System.out.println("Compiled " + num + " soft keyboard layouts");
+		} catch (CompileException e) {
+			System.err.println("error: " + e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.println("error: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Compile every template and keyboard in res/xml into outDir.
+	 *
+	 * @return the number of files written.
+	 */
+	public int compileAll(File outDir) throws CompileException, IOException {
+		loadValues();
+		File xmlFiles[] = new File(mResDir, "xml").listFiles();
+		if (null == xmlFiles) {
+			throw new CompileException(mResDir + "/xml not found");
+		}
+		Arrays.sort(xmlFiles);
+		if (!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("cannot create " + outDir);
+		}
+		int num = 0;
+		for (File file : xmlFiles) {
+			String name = file.getName();
+			if (!name.endsWith(".xml")) {
+				continue;
+			}
+			name = name.substring(0, name.length() - 4);
+			byte data[] = compile(name);
+			if (null == data) {
+				continue;
+			}
+			OutputStream out = new FileOutputStream(new File(outDir, name
+					+ SkbLayoutFormat.FILE_SUFFIX));
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			num++;
+		}
+		return num;
+	}
+
+	/**
+	 * Compile res/xml/name.xml.
+	 *
+	 * @return the compiled file, or null if it is neither a template nor a
+	 *         keyboard.
+	 */
+	public byte[] compile(String name) throws CompileException, IOException {
+		if (mStrings.isEmpty() && mColors.isEmpty()) {
+			loadValues();
+		}
+		Element root = parse(new File(mResDir, "xml/" + name + ".xml"));
+		String tag = root.getTagName();
+		byte kind;
+		if ("skb_template".equals(tag)) {
+			kind = SkbLayoutFormat.KIND_TEMPLATE;
+		} else if ("keyboard".equals(tag)) {
+			kind = SkbLayoutFormat.KIND_KEYBOARD;
+		} else {
+			return null;
+		}
+
+		// Compile the template first, the keyboard needs it.
+		String templateName = null;
+		if (kind == SkbLayoutFormat.KIND_KEYBOARD) {
+			templateName = getResourceName(root, "skb_template", "xml");
+			if (null == templateName) {
+				throw error(name, "keyboard without skb_template");
+			}
+			getTemplate(templateName);
+		}
+
+		mFileName = name;
+		mStringTable.clear();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		if (kind == SkbLayoutFormat.KIND_TEMPLATE) {
+			compileTemplate(root, out, new Template());
+		} else {
+			compileKeyboard(root, out, getTemplate(templateName));
+		}
+		out.flush();
+
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		DataOutputStream fileOut = new DataOutputStream(file);
+		fileOut.writeInt(SkbLayoutFormat.MAGIC);
+		fileOut.writeShort(SkbLayoutFormat.VERSION);
+		fileOut.writeByte(kind);
+		fileOut.writeShort(mStringTable.size());
+		for (String s : mStringTable.keySet()) {
+			fileOut.writeUTF(s);
+		}
+		body.writeTo(fileOut);
+		fileOut.flush();
+		return file.toByteArray();
+	}
+
+	private Template getTemplate(String name) throws CompileException,
+			IOException {
+		Template template = mTemplates.get(name);
+		if (null != template) {
+			return template;
+		}
+		Element root = parse(new File(mResDir, "xml/" + name + ".xml"));
+		if (!"skb_template".equals(root.getTagName())) {
+			throw error(name, "not a soft keyboard template");
+		}
+		String fileName = mFileName;
+		mFileName = name;
+		template = new Template();
+		// Only the information about the template is kept.
+		compileTemplate(root, new DataOutputStream(new ByteArrayOutputStream()),
+				template);
+		mFileName = fileName;
+		mTemplates.put(name, template);
+		return template;
+	}
+
+	/**
+	 * XmlKeyboardLoader.loadSkbTemplate()
+	 */
+	private void compileTemplate(Element root, DataOutputStream out,
+			Template template) throws CompileException, IOException {
+		short skbBg = getResource(root, "skb_bg", "drawable");
+		short balloonBg = getResource(root, "balloon_bg", "drawable");
+		short popupBg = getResource(root, "popup_bg", "drawable");
+		if (SkbLayoutFormat.NO_STRING == skbBg
+				|| SkbLayoutFormat.NO_STRING == balloonBg
+				|| SkbLayoutFormat.NO_STRING == popupBg) {
+			throw error("skb_bg, balloon_bg and popup_bg are required");
+		}
+		template.mXMargin = getFloat(root, "key_xmargin", 0);
+		template.mYMargin = getFloat(root, "key_ymargin", 0);
+		int globalColor = getColor(root, "color", 0);
+		int globalColorHl = getColor(root, "color_highlight", 0xffffffff);
+		int globalColorBalloon = getColor(root, "color_balloon", 0xffffffff);
+
+		ByteArrayOutputStream keyTypes = new ByteArrayOutputStream();
+		DataOutputStream keyTypesOut = new DataOutputStream(keyTypes);
+		ByteArrayOutputStream icons = new ByteArrayOutputStream();
+		DataOutputStream iconsOut = new DataOutputStream(icons);
+		ByteArrayOutputStream keys = new ByteArrayOutputStream();
+		DataOutputStream keysOut = new DataOutputStream(keys);
+		int iconNum = 0;
+		int keyNum = 0;
+		KeyCommonAttributes attrDef = new KeyCommonAttributes();
+		KeyCommonAttributes attrKey = new KeyCommonAttributes();
+		for (Element e : getChildren(root)) {
+			String tag = e.getTagName();
+			if ("key_type".equals(tag)) {
+				int id = getInteger(e, "id", KEYTYPE_ID_LAST);
+				if (id != template.mKeyTypeNum) {
+					throw error("key type " + id + " is out of order");
+				}
+				keyTypesOut.writeShort(getResource(e, "bg", "drawable"));
+				keyTypesOut.writeShort(getResource(e, "hlbg", "drawable"));
+				keyTypesOut.writeInt(getColor(e, "color", globalColor));
+				keyTypesOut.writeInt(getColor(e, "color_highlight",
+						globalColorHl));
+				keyTypesOut.writeInt(getColor(e, "color_balloon",
+						globalColorBalloon));
+				template.mKeyTypeNum++;
+			} else if ("key_icon".equals(tag)) {
+				int keyCode = getInteger(e, "code", 0);
+				short icon = getResource(e, "icon", "drawable");
+				short iconPopup = getResource(e, "icon_popup", "drawable");
+				// Icons without popup icons are ignored.
+				if (SkbLayoutFormat.NO_STRING != icon
+						&& SkbLayoutFormat.NO_STRING != iconPopup) {
+					iconsOut.writeInt(keyCode);
+					iconsOut.writeShort(icon);
+					iconsOut.writeShort(iconPopup);
+					template.mIconCodes.add(keyCode);
+					iconNum++;
+				}
+			} else if ("key".equals(tag)) {
+				int keyId = getInteger(e, "id", -1);
+				if (-1 == keyId) {
+					throw error("default key without id");
+				}
+				if (!attrKey.getAttributes(e, attrDef)) {
+					throw error("key " + keyId + " has no type or size");
+				}
+				float x = getFloat(e, "start_pos_x", 0);
+				float y = getFloat(e, "start_pos_y", 0);
+				keysOut.writeInt(keyId);
+				float right = compileKey(e, attrKey, x, y, template,
+						template.mXMargin, template.mYMargin, keysOut);
+				template.mKeyRights.put(keyId, right);
+				keyNum++;
+			}
+		}
+		checkByte(template.mKeyTypeNum, "key types");
+		checkByte(iconNum, "key icons");
+		checkByte(keyNum, "default keys");
+
+		out.writeShort(skbBg);
+		out.writeShort(balloonBg);
+		out.writeShort(popupBg);
+		out.writeFloat(template.mXMargin);
+		out.writeFloat(template.mYMargin);
+		out.writeByte(template.mKeyTypeNum);
+		keyTypes.writeTo(out);
+		out.writeByte(iconNum);
+		icons.writeTo(out);
+		out.writeByte(keyNum);
+		keys.writeTo(out);
+	}
+
+	/**
+	 * XmlKeyboardLoader.loadKeyboard()
+	 */
+	private void compileKeyboard(Element root, DataOutputStream out,
+			Template template) throws CompileException, IOException {
+		KeyCommonAttributes attrDef = new KeyCommonAttributes();
+		KeyCommonAttributes attrSkb = new KeyCommonAttributes();
+		KeyCommonAttributes attrRow = new KeyCommonAttributes();
+		KeyCommonAttributes attrKeys = new KeyCommonAttributes();
+		KeyCommonAttributes attrKey = new KeyCommonAttributes();
+
+		if (!attrSkb.getAttributes(root, attrDef)) {
+			throw error("keyboard has no key type or key size");
+		}
+		int flags = 0;
+		if (getBoolean(root, "skb_cache_flag", DEFAULT_SKB_CACHE_FLAG)) {
+			flags |= SkbLayoutFormat.FLAG_CACHE;
+		}
+		if (getBoolean(root, "skb_sticky_flag", DEFAULT_SKB_STICKY_FLAG)) {
+			flags |= SkbLayoutFormat.FLAG_STICKY;
+		}
+		if (getBoolean(root, "qwerty", false)) {
+			flags |= SkbLayoutFormat.FLAG_QWERTY;
+		}
+		if (getBoolean(root, "qwerty_uppercase", false)) {
+			flags |= SkbLayoutFormat.FLAG_QWERTY_UPPERCASE;
+		}
+		float xMargin = getFloat(root, "key_xmargin", template.mXMargin);
+		float yMargin = getFloat(root, "key_ymargin", template.mYMargin);
+
+		out.writeShort(getResource(root, "skb_template", "xml"));
+		out.writeByte(flags);
+		out.writeFloat(xMargin);
+		out.writeFloat(yMargin);
+		out.writeShort(getResource(root, "skb_bg", "drawable"));
+		out.writeShort(getResource(root, "popup_bg", "drawable"));
+		out.writeShort(getResource(root, "balloon_bg", "drawable"));
+
+		List<Element> rows = getChildren(root);
+		out.writeShort(rows.size());
+		float y = 0;
+		for (Element row : rows) {
+			if (!"row".equals(row.getTagName())) {
+				throw error("unexpected " + row.getTagName()
+						+ " outside of a row");
+			}
+			if (!attrRow.getAttributes(row, attrSkb)) {
+				throw error("row has no key type or key size");
+			}
+			float x = getFloat(row, "start_pos_x", 0);
+			y = getFloat(row, "start_pos_y", y);
+			out.writeInt(getInteger(row, "row_id", ALWAYS_SHOW_ROW_ID));
+			out.writeFloat(y);
+
+			ByteArrayOutputStream items = new ByteArrayOutputStream();
+			DataOutputStream itemsOut = new DataOutputStream(items);
+			int itemNum = 0;
+			for (Element e : getChildren(row)) {
+				String tag = e.getTagName();
+				if ("keys".equals(tag)) {
+					if (!attrKeys.getAttributes(e, attrRow)) {
+						throw error("keys have no type or size");
+					}
+					String splitter = getString(e, "splitter");
+					String labels = getString(e, "labels");
+					String codes = getString(e, "codes");
+					if (null == splitter || null == labels) {
+						throw error("keys need splitter and labels");
+					}
+					splitter = Pattern.quote(splitter);
+					String labelArr[] = labels.split(splitter);
+					String codeArr[] = null;
+					if (null != codes) {
+						codeArr = codes.split(splitter);
+						if (labelArr.length != codeArr.length) {
+							throw error("keys have " + labelArr.length
+									+ " labels but " + codeArr.length
+									+ " codes");
+						}
+					}
+					checkKeyType(attrKeys.keyType, template);
+					for (int i = 0; i < labelArr.length; i++) {
+						int keyCode = 0;
+						if (null != codeArr) {
+							try {
+								keyCode = Integer.valueOf(codeArr[i]);
+							} catch (NumberFormatException ex) {
+								throw error("bad key code " + codeArr[i]);
+							}
+						}
+						float right = x + attrKeys.keyWidth;
+						float bottom = y + attrKeys.keyHeight;
+						checkMargins(x, y, right, bottom, xMargin, yMargin);
+
+						itemsOut.writeByte(SkbLayoutFormat.ITEM_KEY);
+						itemsOut.writeByte(getKeyFlags(false, attrKeys.repeat,
+								attrKeys.balloon));
+						itemsOut.writeInt(keyCode);
+						itemsOut.writeShort(addString(labelArr[i]));
+						itemsOut.writeShort(SkbLayoutFormat.NO_STRING);
+						itemsOut.writeShort(SkbLayoutFormat.NO_STRING);
+						itemsOut.writeShort(SkbLayoutFormat.NO_STRING);
+						itemsOut.writeByte(attrKeys.keyType);
+						itemsOut.writeFloat(x);
+						itemsOut.writeFloat(y);
+						itemsOut.writeFloat(right);
+						itemsOut.writeFloat(bottom);
+						itemNum++;
+						x = right;
+						checkPosition(x);
+					}
+				} else if ("key".equals(tag)) {
+					if (!attrKey.getAttributes(e, attrRow)) {
+						throw error("key has no type or size");
+					}
+					int keyId = getInteger(e, "id", -1);
+					if (keyId >= 0) {
+						Float right = template.mKeyRights.get(keyId);
+						if (null == right) {
+							throw error("no default key " + keyId);
+						}
+						itemsOut.writeByte(SkbLayoutFormat.ITEM_DEFAULT_KEY);
+						itemsOut.writeInt(keyId);
+						x = right;
+					} else {
+						itemsOut.writeByte(SkbLayoutFormat.ITEM_KEY);
+						x = compileKey(e, attrKey, x, y, template, xMargin,
+								yMargin, itemsOut);
+					}
+					itemNum++;
+					checkPosition(x);
+				} else {
+					throw error("unexpected " + tag + " in a row");
+				}
+			}
+			out.writeShort(itemNum);
+			items.writeTo(out);
+
+			y += attrRow.keyHeight;
+			checkPosition(y);
+		}
+	}
+
+	/**
+	 * XmlKeyboardLoader.getSoftKey() and getToggleStates()
+	 *
+	 * @return the right edge of the key.
+	 */
+	private float compileKey(Element e, KeyCommonAttributes attrKey, float x,
+			float y, Template template, float xMargin, float yMargin,
+			DataOutputStream out) throws CompileException, IOException {
+		int keyCode = getInteger(e, "code", 0);
+		String keyLabel = getString(e, "label");
+		short icon = getResource(e, "icon", "drawable");
+		short iconPopup = getResource(e, "icon_popup", "drawable");
+		short popupSkb = getResource(e, "popup_skb", "xml");
+		if (null == keyLabel && SkbLayoutFormat.NO_STRING == icon
+				&& !template.mIconCodes.contains(keyCode)) {
+			throw error("key " + keyCode + " has no label or icon");
+		}
+
+		float right = x + attrKey.keyWidth;
+		float bottom = y + attrKey.keyHeight;
+		checkMargins(x, y, right, bottom, xMargin, yMargin);
+		checkKeyType(attrKey.keyType, template);
+
+		List<Element> states = new ArrayList<Element>();
+		for (Element child : getChildren(e)) {
+			if (!"toggle_state".equals(child.getTagName())) {
+				throw error("unexpected " + child.getTagName() + " in a key");
+			}
+			states.add(child);
+		}
+		checkByte(states.size(), "toggle states");
+
+		out.writeByte(getKeyFlags(!states.isEmpty(), attrKey.repeat,
+				attrKey.balloon));
+		out.writeInt(keyCode);
+		out.writeShort(addString(keyLabel));
+		out.writeShort(icon);
+		out.writeShort(iconPopup);
+		out.writeShort(popupSkb);
+		out.writeByte(attrKey.keyType);
+		out.writeFloat(x);
+		out.writeFloat(y);
+		out.writeFloat(right);
+		out.writeFloat(bottom);
+		if (states.isEmpty()) {
+			return right;
+		}
+
+		out.writeByte(states.size());
+		for (Element state : states) {
+			int stateId = getInteger(state, "state_id", 0);
+			if (stateId <= 0 || stateId > MAX_TOGGLE_STATE_ID) {
+				throw error("bad toggle state id " + stateId);
+			}
+			String stateLabel = getString(state, "label");
+			int keyTypeId = getInteger(state, "key_type", KEYTYPE_ID_LAST);
+			int stateCode;
+			if (null == stateLabel) {
+				stateCode = getInteger(state, "code", keyCode);
+			} else {
+				stateCode = getInteger(state, "code", 0);
+			}
+			short stateIcon = getResource(state, "icon", "drawable");
+			short stateIconPopup = getResource(state, "icon_popup", "drawable");
+			if (SkbLayoutFormat.NO_STRING == stateIcon && null == stateLabel) {
+				throw error("toggle state " + stateId
+						+ " has no label or icon");
+			}
+			if (KEYTYPE_ID_LAST != keyTypeId) {
+				checkKeyType(keyTypeId, template);
+			}
+			boolean repeat = getBoolean(state, "repeat", attrKey.repeat);
+			boolean balloon = getBoolean(state, "balloon", attrKey.balloon);
+
+			out.writeByte(stateId);
+			out.writeByte(keyTypeId);
+			out.writeInt(stateCode);
+			out.writeShort(addString(stateLabel));
+			out.writeShort(stateIcon);
+			out.writeShort(stateIconPopup);
+			out.writeByte(getKeyFlags(false, repeat, balloon));
+		}
+		return right;
+	}
+
+	private static int getKeyFlags(boolean toggle, boolean repeat,
+			boolean balloon) {
+		int flags = 0;
+		if (toggle) {
+			flags |= SkbLayoutFormat.KEY_TOGGLE;
+		}
+		if (repeat) {
+			flags |= SkbLayoutFormat.KEY_REPEAT;
+		}
+		if (balloon) {
+			flags |= SkbLayoutFormat.KEY_BALLOON;
+		}
+		return flags;
+	}
+
+	private void checkMargins(float left, float top, float right,
+			float bottom, float xMargin, float yMargin) throws CompileException {
+		if (right - left < 2 * xMargin || bottom - top < 2 * yMargin) {
+			throw error("key is smaller than its margins");
+		}
+	}
+
+	/**
+	 * XmlKeyboardLoader rejects positions with (int) pos * size > size.
+	 */
+	private void checkPosition(float pos) throws CompileException {
+		if ((int) pos > 1) {
+			throw error("key out of the keyboard");
+		}
+	}
+
+	private void checkKeyType(int keyType, Template template)
+			throws CompileException {
+		if (keyType < 0 || keyType >= template.mKeyTypeNum) {
+			throw error("no key type " + keyType);
+		}
+	}
+
+	private void checkByte(int num, String what) throws CompileException {
+		if (num > 0x7f) {
+			throw error("too many " + what);
+		}
+	}
+
+	private short addString(String s) throws CompileException {
+		if (null == s) {
+			return SkbLayoutFormat.NO_STRING;
+		}
+		Integer index = mStringTable.get(s);
+		if (null == index) {
+			index = mStringTable.size();
+			if (index > Short.MAX_VALUE) {
+				throw error("too many strings");
+			}
+			mStringTable.put(s, index);
+		}
+		return (short) (int) index;
+	}
+
+	// Attribute values, as the get*() methods of XmlKeyboardLoader.
+
+	/**
+	 * Get a reference to a resource of the given type.
+	 *
+	 * @return the index of "type/name" in the string table, or
+	 *         {@link SkbLayoutFormat#NO_STRING} if the attribute is missing.
+	 */
+	private short getResource(Element e, String name, String type)
+			throws CompileException {
+		String resName = getResourceName(e, name, type);
+		if (null == resName) {
+			return SkbLayoutFormat.NO_STRING;
+		}
+		return addString(type + "/" + resName);
+	}
+
+	private String getResourceName(Element e, String name, String type)
+			throws CompileException {
+		if (!e.hasAttribute(name)) {
+			return null;
+		}
+		String value = e.getAttribute(name);
+		String prefix = "@" + type + "/";
+		if (!value.startsWith(prefix)) {
+			throw error(name + "=\"" + value + "\" is not a " + type);
+		}
+		String resName = value.substring(prefix.length());
+		if (!resourceExists(type, resName)) {
+			throw error("no " + type + " " + resName);
+		}
+		return resName;
+	}
+
+	private boolean resourceExists(String type, String resName) {
+		File dirs[] = mResDir.listFiles();
+		if (null == dirs) {
+			return false;
+		}
+		for (File dir : dirs) {
+			String dirName = dir.getName();
+			if (!dirName.equals(type) && !dirName.startsWith(type + "-")) {
+				continue;
+			}
+			String files[] = dir.list();
+			if (null == files) {
+				continue;
+			}
+			for (String file : files) {
+				if (file.equals(resName) || file.startsWith(resName + ".")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private int getInteger(Element e, String name, int defValue)
+			throws CompileException {
+		if (!e.hasAttribute(name)) {
+			return defValue;
+		}
+		String value = e.getAttribute(name);
+		if (value.startsWith("@")) {
+			String s = getStringResource(value);
+			try {
+				return Integer.parseInt(s);
+			} catch (NumberFormatException ex) {
+				throw error(value + " is not an integer");
+			}
+		}
+		try {
+			return Integer.valueOf(unescape(value));
+		} catch (NumberFormatException ex) {
+			return defValue;
+		}
+	}
+
+	private int getColor(Element e, String name, int defValue)
+			throws CompileException {
+		if (!e.hasAttribute(name)) {
+			return defValue;
+		}
+		String value = e.getAttribute(name);
+		if (value.startsWith("@")) {
+			if (!value.startsWith("@color/")) {
+				throw error(value + " is not a color");
+			}
+			Integer color = mColors.get(value.substring("@color/".length()));
+			if (null == color) {
+				throw error("no color " + value);
+			}
+			return color;
+		}
+		try {
+			return Integer.valueOf(unescape(value));
+		} catch (NumberFormatException ex) {
+			return defValue;
+		}
+	}
+
+	private String getString(Element e, String name) throws CompileException {
+		if (!e.hasAttribute(name)) {
+			return null;
+		}
+		String value = e.getAttribute(name);
+		if (value.startsWith("@")) {
+			return getStringResource(value);
+		}
+		return unescape(value);
+	}
+
+	private float getFloat(Element e, String name, float defValue)
+			throws CompileException {
+		if (!e.hasAttribute(name)) {
+			return defValue;
+		}
+		String s = e.getAttribute(name);
+		if (s.startsWith("@")) {
+			// XmlKeyboardLoader takes them as dimensions, which depend on
+			// the screen.
+			throw error(name + "=\"" + s + "\": references are not supported");
+		}
+		s = unescape(s);
+		try {
+			if (s.endsWith("%p")) {
+				return Float.parseFloat(s.substring(0, s.length() - 2)) / 100;
+			}
+			return Float.parseFloat(s);
+		} catch (NumberFormatException ex) {
+			return defValue;
+		}
+	}
+
+	private boolean getBoolean(Element e, String name, boolean defValue) {
+		if (!e.hasAttribute(name)) {
+			return defValue;
+		}
+		return Boolean.parseBoolean(unescape(e.getAttribute(name)));
+	}
+
+	private String getStringResource(String ref) throws CompileException {
+		if (!ref.startsWith("@string/")) {
+			throw error(ref + " is not a string");
+		}
+		String s = mStrings.get(ref.substring("@string/".length()));
+		if (null == s) {
+			throw error("no string " + ref);
+		}
+		return s;
+	}
+
+	/**
+	 * Remove the backslash escapes, as aapt does for attribute values, so that
+	 * "\?123" becomes "?123".
+	 */
+	static String unescape(String s) {
+		if (s.indexOf('\\') < 0) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c != '\\' || i + 1 == s.length()) {
+				sb.append(c);
+				continue;
+			}
+			c = s.charAt(++i);
+			if ('n' == c) {
+				sb.append('\n');
+			} else if ('t' == c) {
+				sb.append('\t');
+			} else if ('u' == c && i + 4 < s.length()) {
+				sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5),
+						16));
+				i += 4;
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Load the strings and colors in res/values.
+	 */
+	private void loadValues() throws CompileException, IOException {
+		File files[] = new File(mResDir, "values").listFiles();
+		if (null == files) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!file.getName().endsWith(".xml")) {
+				continue;
+			}
+			for (Element e : getChildren(parse(file))) {
+				String name = e.getAttribute("name");
+				if ("string".equals(e.getTagName())) {
+					mStrings.put(name, unescape(e.getTextContent().trim()));
+				} else if ("color".equals(e.getTagName())) {
+					mColors.put(name, parseColor(e.getTextContent().trim()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse #RGB, #ARGB, #RRGGBB and #AARRGGBB.
+	 */
+	private int parseColor(String s) throws CompileException {
+		if (!s.startsWith("#")) {
+			throw error("bad color " + s);
+		}
+		String hex = s.substring(1);
+		if (hex.length() == 3 || hex.length() == 4) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < hex.length(); i++) {
+				sb.append(hex.charAt(i)).append(hex.charAt(i));
+			}
+			hex = sb.toString();
+		}
+		if (hex.length() == 6) {
+			hex = "ff" + hex;
+		}
+		if (hex.length() != 8) {
+			throw error("bad color " + s);
+		}
+		try {
+			return (int) Long.parseLong(hex, 16);
+		} catch (NumberFormatException e) {
+			throw error("bad color " + s);
+		}
+	}
+
+	private static Element parse(File file) throws CompileException,
+			IOException {
+		try {
+			DocumentBuilder builder = DocumentBuilderFactory.newInstance()
+					.newDocumentBuilder();
+			Document doc = builder.parse(file);
+			return doc.getDocumentElement();
+		} catch (ParserConfigurationException e) {
+			throw new CompileException(e.toString());
+		} catch (SAXException e) {
+			throw new CompileException(file.getName() + ": " + e.getMessage());
+		}
+	}
+
+	private static List<Element> getChildren(Element parent) {
+		List<Element> children = new ArrayList<Element>();
+		NodeList nodes = parent.getChildNodes();
+		for (int i = 0; i < nodes.getLength(); i++) {
+			Node node = nodes.item(i);
+			if (node.getNodeType() == Node.ELEMENT_NODE) {
+				children.add((Element) node);
+			}
+		}
+		return children;
+	}
+
+	private CompileException error(String message) {
+		return error(mFileName, message);
+	}
+
+	private static CompileException error(String fileName, String message) {
+		return new CompileException(fileName + ".xml: " + message);
+	}
+}
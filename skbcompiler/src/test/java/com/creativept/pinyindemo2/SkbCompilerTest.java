@@ -0,0 +1,315 @@
+package com.creativept.pinyindemo2;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compiles the layouts of the app and reads them back, checking what
+ * XmlKeyboardLoader would give for a few keys.
+ */
+public class SkbCompilerTest {
+    @Rule
+    public final TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mResDir;
+
+    @Before
+    public void setUp() {
+        String res = System.getProperty("skb.res", "../app/src/main/res");
+        mResDir = new File(res);
+        assertTrue(mResDir + " not found", mResDir.isDirectory());
+    }
+
+    @Test
+    public void compileAll_writesTemplateAndKeyboards() throws Exception {
+        File outDir = mTemp.newFolder("skb");
+        int num = new SkbCompiler(mResDir).compileAll(outDir);
+        assertEquals(6, num);
+        assertTrue(new File(outDir, "skb_template1" + SkbLayoutFormat.FILE_SUFFIX).isFile());
+        assertTrue(new File(outDir, "skb_qwerty" + SkbLayoutFormat.FILE_SUFFIX).isFile());
+    }
+
+    @Test
+    public void compile_skipsOtherXml() throws Exception {
+        assertNull(new SkbCompiler(mResDir).compile("method"));
+    }
+
+    @Test
+    public void qwerty_keys() throws Exception {
+        Keyboard skb = readKeyboard(new SkbCompiler(mResDir).compile("skb_qwerty"));
+        assertEquals("xml/skb_template1", skb.mTemplate);
+        assertEquals(SkbLayoutFormat.FLAG_CACHE | SkbLayoutFormat.FLAG_STICKY
+                | SkbLayoutFormat.FLAG_QWERTY | SkbLayoutFormat.FLAG_QWERTY_UPPERCASE,
+                skb.mFlags);
+        assertEquals(7, skb.mRows.size());
+
+        Row row = skb.mRows.get(0);
+        assertEquals(-1, row.mRowId);
+        assertEquals(10, row.mKeys.size());
+        assertEquals("Q", row.mKeys.get(0).mLabel);
+        assertEquals(45, row.mKeys.get(0).mCode);
+        assertArrayEquals(new float[] { 0, 0, 0.1f, 0.25f }, row.mKeys.get(0).mRect, 0);
+        assertArrayEquals(new float[] { 0.9f, 0, 1.0f, 0.25f }, row.mKeys.get(9).mRect, 1e-6f);
+
+        // Keys in a row follow each other from start_pos_x.
+        row = skb.mRows.get(1);
+        assertEquals(0.25f, row.mY, 0);
+        Key a = row.mKeys.get(0);
+        assertEquals("A", a.mLabel);
+        assertEquals(Float.parseFloat("4.078") / 100, a.mRect[0], 0);
+        assertEquals(a.mRect[0] + Float.parseFloat("10.205") / 100, a.mRect[2], 0);
+
+        // The comma key toggles to the smiley, shift and apostrophe keys.
+        row = skb.mRows.get(2);
+        Key comma = row.mKeys.get(0);
+        assertEquals("，", comma.mLabel);
+        assertEquals("drawable/comma_full_icon", comma.mIcon);
+        assertEquals(4, comma.mStates.size());
+        assertEquals(6, comma.mStates.get(0).mStateId);
+        assertEquals(-6, comma.mStates.get(0).mCode);
+        assertEquals(2, comma.mStates.get(0).mKeyType);
+        assertEquals("'", comma.mStates.get(3).mLabel);
+        assertEquals(1, comma.mStates.get(3).mKeyType);
+        // The delete key from the template.
+        assertEquals(3, row.mKeys.get(row.mKeys.size() - 1).mDefaultKeyId);
+
+        // Rows enabled by the input mode, with the ids of the string resources.
+        assertEquals(12, skb.mRows.get(3).mRowId);
+        assertEquals(0.75f, skb.mRows.get(3).mY, 0);
+        assertEquals(13, skb.mRows.get(4).mRowId);
+        assertEquals(0.75f, skb.mRows.get(4).mY, 0);
+        assertEquals(4, skb.mRows.get(3).mKeys.get(1).mDefaultKeyId);
+    }
+
+    @Test
+    public void template_keyTypesAndDefaultKeys() throws Exception {
+        DataInputStream in = open(new SkbCompiler(mResDir).compile("skb_template1"),
+                SkbLayoutFormat.KIND_TEMPLATE);
+        assertEquals("drawable/skb_bg", string(in.readShort()));
+        assertEquals("drawable/key_balloon_bg", string(in.readShort()));
+        assertEquals("drawable/miniskb_bg", string(in.readShort()));
+        assertEquals(0, in.readFloat(), 0);
+        assertEquals(0, in.readFloat(), 0);
+
+        int keyTypeNum = in.readByte();
+        assertEquals(6, keyTypeNum);
+        for (int i = 0; i < keyTypeNum; i++) {
+            String bg = string(in.readShort());
+            String hlBg = string(in.readShort());
+            int color = in.readInt();
+            in.readInt();
+            int colorBalloon = in.readInt();
+            if (4 == i) {
+                assertNull(bg);
+                assertNull(hlBg);
+            }
+            // label_color and balloon_color.
+            assertEquals(0xffffffff, color);
+            assertEquals(0xff000000, colorBalloon);
+        }
+
+        int iconNum = in.readByte();
+        assertEquals(3, iconNum);
+        for (int i = 0; i < iconNum; i++) {
+            in.readInt();
+            in.readShort();
+            in.readShort();
+        }
+
+        int keyNum = in.readByte();
+        assertEquals(7, keyNum);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < keyNum; i++) {
+            ids.add(in.readInt());
+            Key key = readKey(in);
+            if (4 == ids.get(i)) {
+                // label="\?123"
+                assertEquals("?123", key.mLabel);
+                assertArrayEquals(new float[] { 0.2f, 0.75f,
+                        0.2f + Float.parseFloat("14.696") / 100, 1.0f }, key.mRect, 0);
+            }
+        }
+        assertEquals(7, ids.size());
+    }
+
+    @Test
+    public void unescape() {
+        assertEquals("?123", SkbCompiler.unescape("\\?123"));
+        assertEquals("@", SkbCompiler.unescape("\\@"));
+        assertEquals("+ | \\ √", SkbCompiler.unescape("+ | \\\\ √"));
+        assertEquals("aé", SkbCompiler.unescape("a\\u00e9"));
+    }
+
+    @Test
+    public void compile_failsLikeTheLoader() throws Exception {
+        File res = mTemp.newFolder("res");
+        File xml = new File(res, "xml");
+        assertTrue(xml.mkdir());
+        write(new File(xml, "skb_template1.xml"), "<skb_template skb_bg=\"@drawable/bg\" "
+                + "balloon_bg=\"@drawable/bg\" popup_bg=\"@drawable/bg\">"
+                + "<key_type id=\"0\"/></skb_template>");
+        File drawable = new File(res, "drawable");
+        assertTrue(drawable.mkdir());
+        write(new File(drawable, "bg.png"), "");
+
+        // No key width.
+        write(new File(xml, "skb_bad.xml"), "<keyboard skb_template=\"@xml/skb_template1\" "
+                + "height=\"25%p\"><row><keys splitter=\"|\" labels=\"a|b\"/></row></keyboard>");
+        assertCompileFails(res, "skb_bad");
+
+        // Keys beyond the right edge.
+        write(new File(xml, "skb_bad.xml"), "<keyboard skb_template=\"@xml/skb_template1\" "
+                + "width=\"60%p\" height=\"25%p\"><row><keys splitter=\"|\" labels=\"a|b|c|d\"/>"
+                + "</row></keyboard>");
+        assertCompileFails(res, "skb_bad");
+
+        // Missing drawable.
+        write(new File(xml, "skb_bad.xml"), "<keyboard skb_template=\"@xml/skb_template1\" "
+                + "width=\"10%p\" height=\"25%p\"><row><key icon=\"@drawable/none\"/>"
+                + "</row></keyboard>");
+        assertCompileFails(res, "skb_bad");
+
+        write(new File(xml, "skb_good.xml"), "<keyboard skb_template=\"@xml/skb_template1\" "
+                + "width=\"10%p\" height=\"25%p\"><row><key icon=\"@drawable/bg\"/>"
+                + "</row></keyboard>");
+        assertNotNull(new SkbCompiler(res).compile("skb_good"));
+    }
+
+    private static void assertCompileFails(File res, String name) throws IOException {
+        try {
+            new SkbCompiler(res).compile(name);
+            fail(name + " compiled");
+        } catch (SkbCompiler.CompileException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(name + ".xml: "));
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    // A reader of the format, as BinaryKeyboardLoader without the objects.
+
+    private String mStrings[];
+
+    static class Keyboard {
+        String mTemplate;
+        int mFlags;
+        List<Row> mRows = new ArrayList<Row>();
+    }
+
+    static class Row {
+        int mRowId;
+        float mY;
+        List<Key> mKeys = new ArrayList<Key>();
+    }
+
+    static class Key {
+        int mDefaultKeyId = -1;
+        int mCode;
+        String mLabel;
+        String mIcon;
+        int mKeyType;
+        float mRect[];
+        List<Key> mStates = new ArrayList<Key>();
+        int mStateId;
+    }
+
+    private DataInputStream open(byte data[], byte kind) throws IOException {
+        assertNotNull(data);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        assertEquals(SkbLayoutFormat.MAGIC, in.readInt());
+        assertEquals(SkbLayoutFormat.VERSION, in.readShort());
+        assertEquals(kind, in.readByte());
+        mStrings = new String[in.readShort()];
+        for (int i = 0; i < mStrings.length; i++) {
+            mStrings[i] = in.readUTF();
+        }
+        return in;
+    }
+
+    private String string(int index) {
+        return SkbLayoutFormat.NO_STRING == index ? null : mStrings[index];
+    }
+
+    private Keyboard readKeyboard(byte data[]) throws IOException {
+        DataInputStream in = open(data, SkbLayoutFormat.KIND_KEYBOARD);
+        Keyboard skb = new Keyboard();
+        skb.mTemplate = string(in.readShort());
+        skb.mFlags = in.readByte();
+        in.readFloat();
+        in.readFloat();
+        in.readShort();
+        in.readShort();
+        in.readShort();
+        int rowNum = in.readShort();
+        for (int r = 0; r < rowNum; r++) {
+            Row row = new Row();
+            row.mRowId = in.readInt();
+            row.mY = in.readFloat();
+            int itemNum = in.readShort();
+            for (int i = 0; i < itemNum; i++) {
+                if (SkbLayoutFormat.ITEM_DEFAULT_KEY == in.readByte()) {
+                    Key key = new Key();
+                    key.mDefaultKeyId = in.readInt();
+                    row.mKeys.add(key);
+                } else {
+                    row.mKeys.add(readKey(in));
+                }
+            }
+            skb.mRows.add(row);
+        }
+        assertEquals(-1, in.read());
+        return skb;
+    }
+
+    private Key readKey(DataInputStream in) throws IOException {
+        Key key = new Key();
+        int flags = in.readByte();
+        key.mCode = in.readInt();
+        key.mLabel = string(in.readShort());
+        key.mIcon = string(in.readShort());
+        in.readShort();
+        in.readShort();
+        key.mKeyType = in.readByte();
+        key.mRect = new float[] { in.readFloat(), in.readFloat(), in.readFloat(),
+                in.readFloat() };
+        if ((flags & SkbLayoutFormat.KEY_TOGGLE) != 0) {
+            int stateNum = in.readByte();
+            for (int i = 0; i < stateNum; i++) {
+                Key state = new Key();
+                state.mStateId = in.readByte() & 0xff;
+                state.mKeyType = in.readByte();
+                state.mCode = in.readInt();
+                state.mLabel = string(in.readShort());
+                state.mIcon = string(in.readShort());
+                in.readShort();
+                in.readByte();
+                key.mStates.add(state);
+            }
+        }
+        return key;
+    }
+}